@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2;
+
+import org.eclipse.bpmn2.BaseElement;
+
+/**
+ * A helper that also creates the elements of some shapes of the Process Designer
+ * models, in place of the elements the stencils map to. It is registered as any
+ * other {@link BpmnMarshallerHelper}, and its properties are applied the same way.
+ */
+public interface BpmnElementFactoryHelper extends BpmnMarshallerHelper {
+
+    /**
+     * @param stencilId the stencil of the shape.
+     * @param taskType the task type of the shape, null if it has none.
+     * @param customElement whether the task type is a custom task.
+     * @return the element of the shape, or null to let the stencil create it.
+     */
+    public BaseElement createElement(String stencilId, String taskType, boolean customElement);
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleReference;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+/**
+ * Keeps the list of the {@link BpmnMarshallerHelper} services registered in the
+ * OSGi registry up to date, so that the marshallers don't have to look them up
+ * each time they are created.
+ *
+ * Outside of an OSGi container, there are no helpers.
+ */
+public class BpmnMarshallerHelperTracker {
+
+    private static BpmnMarshallerHelperTracker _instance;
+
+    private List<BpmnMarshallerHelper> _helpers = new CopyOnWriteArrayList<BpmnMarshallerHelper>();
+    private ServiceTracker _tracker;
+
+    public static synchronized BpmnMarshallerHelperTracker getInstance() {
+        if (_instance == null) {
+            _instance = new BpmnMarshallerHelperTracker();
+        }
+        return _instance;
+    }
+
+    /**
+     * Private constructor to make sure we respect the singleton
+     * pattern.
+     */
+    private BpmnMarshallerHelperTracker() {
+        if (getClass().getClassLoader() instanceof BundleReference) {
+            final BundleContext bundleContext = ((BundleReference) getClass().getClassLoader()).getBundle().getBundleContext();
+            ServiceTrackerCustomizer cust = new ServiceTrackerCustomizer() {
+
+                public void removedService(ServiceReference reference, Object service) {
+                    _helpers.remove(service);
+                    bundleContext.ungetService(reference);
+                }
+
+                public void modifiedService(ServiceReference reference, Object service) {
+                }
+
+                public Object addingService(ServiceReference reference) {
+                    BpmnMarshallerHelper helper = (BpmnMarshallerHelper) bundleContext.getService(reference);
+                    if (helper != null) {
+                        _helpers.add(helper);
+                    }
+                    return helper;
+                }
+            };
+            _tracker = new ServiceTracker(bundleContext,
+                    BpmnMarshallerHelper.class.getName(), cust);
+            // track all the helpers, as getAllServiceReferences did.
+            _tracker.open(true);
+        }
+    }
+
+    /**
+     * Stops following the helpers, when the bundle stops.
+     */
+    public static synchronized void close() {
+        if (_instance != null) {
+            if (_instance._tracker != null) {
+                _instance._tracker.close();
+            }
+            _instance._helpers.clear();
+            _instance = null;
+        }
+    }
+
+    /**
+     * @return the helpers currently registered. The list is safe to iterate
+     * while helpers come and go.
+     */
+    public List<BpmnMarshallerHelper> getHelpers() {
+        return _helpers;
+    }
+}
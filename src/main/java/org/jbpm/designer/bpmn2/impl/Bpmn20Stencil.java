@@ -15,6 +15,11 @@
  */
 package org.jbpm.designer.bpmn2.impl;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.eclipse.bpmn2.Association;
 import org.eclipse.bpmn2.AssociationDirection;
 import org.eclipse.bpmn2.BaseElement;
@@ -24,6 +29,7 @@ import org.eclipse.bpmn2.CatchEvent;
 import org.eclipse.bpmn2.EventDefinition;
 import org.eclipse.bpmn2.ThrowEvent;
 import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EObject;
 
 /**
  * @author Antoine Toulme
@@ -110,6 +116,28 @@ public enum Bpmn20Stencil {
     public EClass className;
     public EClass eventType;
     public AssociationDirection associationDirection;
+    // the factories of the element and of its event definition, found once.
+    private ElementFactory factory;
+    private ElementFactory eventFactory;
+    
+    // stencil id -> task type (null for none) -> stencil, read from the names of the constants
+    private static final Map<String, Map<String, Bpmn20Stencil>> STENCILS = new HashMap<String, Map<String, Bpmn20Stencil>>();
+    
+    static {
+        for (Bpmn20Stencil stencil : values()) {
+            stencil.factory = ElementFactory.forClass(stencil.className);
+            stencil.eventFactory = stencil.eventType == null ? null : ElementFactory.forClass(stencil.eventType);
+            String name = stencil.name();
+            register(name, null, stencil);
+            // any underscore can separate the stencil id from the task type,
+            // and the underscores of the task type were spaces in the json.
+            for (int i = name.indexOf('_'); i >= 0; i = name.indexOf('_', i + 1)) {
+                for (String taskType : withSpaces(name.substring(i + 1))) {
+                    register(name.substring(0, i), taskType, stencil);
+                }
+            }
+        }
+    }
     
     private Bpmn20Stencil(EClass className) {
         this.className = className;
@@ -131,16 +159,17 @@ public enum Bpmn20Stencil {
             stencilId = "Task";
             taskType = "Custom";
         }
-        Bpmn20Stencil stencil = Bpmn20Stencil.valueOf(taskType == null ? stencilId : stencilId + "_" + taskType.replaceAll(" ", "_"));
+        Bpmn20Stencil stencil = lookup(stencilId, taskType);
         if (stencil == null) {
             throw new IllegalArgumentException("unregistered stencil id: " + stencilId);
         }
-        BaseElement elt = (BaseElement) Bpmn2Factory.eINSTANCE.create(stencil.className);
+        BaseElement elt = (BaseElement) create(stencil.factory, stencil.className);
         if (stencil.eventType != null) {
+            EventDefinition definition = (EventDefinition) create(stencil.eventFactory, stencil.eventType);
             if (elt instanceof CatchEvent) {
-                ((CatchEvent) elt).getEventDefinitions().add((EventDefinition) Bpmn2Factory.eINSTANCE.create(stencil.eventType));
+                ((CatchEvent) elt).getEventDefinitions().add(definition);
             } else if (elt instanceof ThrowEvent) {
-                ((ThrowEvent) elt).getEventDefinitions().add((EventDefinition) Bpmn2Factory.eINSTANCE.create(stencil.eventType));
+                ((ThrowEvent) elt).getEventDefinitions().add(definition);
             } else {
                 throw new IllegalArgumentException("Cannot set eventType on " + elt);
             }
@@ -150,4 +179,46 @@ public enum Bpmn20Stencil {
         }
         return elt;
     }
+    
+    /**
+     * @return the stencil of the given stencil id and task type, as
+     * <code>valueOf(stencilId + "_" + taskType.replaceAll(" ", "_"))</code> finds it.
+     */
+    public static Bpmn20Stencil lookup(String stencilId, String taskType) {
+        Map<String, Bpmn20Stencil> taskTypes = STENCILS.get(stencilId);
+        Bpmn20Stencil stencil = taskTypes == null ? null : taskTypes.get(taskType);
+        if (stencil == null) {
+            // fails as it always did
+            stencil = Bpmn20Stencil.valueOf(taskType == null ? stencilId : stencilId + "_" + taskType.replaceAll(" ", "_"));
+        }
+        return stencil;
+    }
+    
+    // the classes without a factory of their own are still created through the package factory.
+    private static EObject create(ElementFactory factory, EClass eClass) {
+        return factory != null ? factory.create() : Bpmn2Factory.eINSTANCE.create(eClass);
+    }
+    
+    private static void register(String stencilId, String taskType, Bpmn20Stencil stencil) {
+        Map<String, Bpmn20Stencil> taskTypes = STENCILS.get(stencilId);
+        if (taskTypes == null) {
+            taskTypes = new HashMap<String, Bpmn20Stencil>();
+            STENCILS.put(stencilId, taskTypes);
+        }
+        taskTypes.put(taskType, stencil);
+    }
+    
+    // the task type with each underscore written as an underscore or as a space.
+    private static List<String> withSpaces(String taskType) {
+        List<String> variants = new ArrayList<String>();
+        variants.add(taskType);
+        for (int i = taskType.indexOf('_'); i >= 0; i = taskType.indexOf('_', i + 1)) {
+            int size = variants.size();
+            for (int j = 0; j < size; j++) {
+                String variant = variants.get(j);
+                variants.add(variant.substring(0, i) + ' ' + variant.substring(i + 1));
+            }
+        }
+        return variants;
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.bpmn2.Definitions;
+
+/**
+ * Keeps the definitions last loaded for each asset of the repository, by
+ * uuid and version, so that the shapes of the collapsed subprocesses of a
+ * model are marshalled from the definitions the model was loaded from instead
+ * of loading the model again for each subprocess.
+ *
+ * Only the last loaded version of an asset is kept. The definitions are only
+ * returned for the version they were loaded from: the shapes of a subprocess
+ * must come from the version of the model the client has.
+ *
+ * The cached definitions are shared: they are marshalled holding their lock,
+ * as the marshaller corrects the size of some of their shapes.
+ *
+ * The cache is bounded, the least recently used asset is dropped first.
+ */
+public class Bpmn2AssetCache {
+
+    // the number of assets kept, about the ones a few users are working on.
+    public static final int DEFAULT_MAX_ASSETS = 32;
+
+    public static final Bpmn2AssetCache INSTANCE = new Bpmn2AssetCache(DEFAULT_MAX_ASSETS);
+
+    /**
+     * The definitions of a version of an asset.
+     */
+    private static class Asset {
+        final String version;
+        final Definitions definitions;
+
+        Asset(String version, Definitions definitions) {
+            this.version = version;
+            this.definitions = definitions;
+        }
+    }
+
+    private final Map<String, Asset> _assets;
+
+    public Bpmn2AssetCache(final int maxAssets) {
+        _assets = new LinkedHashMap<String, Asset>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Asset> eldest) {
+                return size() > maxAssets;
+            }
+        };
+    }
+
+    /**
+     * @param version the version of the asset the definitions must be loaded from
+     * @return the definitions of that version of the asset, null if they were
+     * dropped or another version was loaded since.
+     */
+    public synchronized Definitions get(String uuid, String version) {
+        Asset asset = _assets.get(uuid);
+        return asset == null || !asset.version.equals(version) ? null : asset.definitions;
+    }
+
+    /**
+     * Keeps the definitions of a version of the asset, in place of the ones of
+     * any other version.
+     */
+    public synchronized void put(String uuid, String version, Definitions definitions) {
+        _assets.put(uuid, new Asset(version, definitions));
+    }
+
+    public synchronized void remove(String uuid) {
+        _assets.remove(uuid);
+    }
+
+    public synchronized void clear() {
+        _assets.clear();
+    }
+
+    public synchronized int size() {
+        return _assets.size();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.Map;
+
+import org.eclipse.bpmn2.Task;
+
+/**
+ * Adds the properties of the tasks of a custom jBPM type, a work item of the
+ * preprocessing data, to the json {@link Bpmn2JsonMarshaller} writes for them.
+ *
+ * A handler is registered by the type of the tasks it handles with
+ * {@link Bpmn2JsonMarshaller#setCustomTaskHandler(String, Bpmn2CustomTaskHandler)}.
+ * It is shared by the threads using the marshaller.
+ */
+public interface Bpmn2CustomTaskHandler {
+
+    /**
+     * Called once the marshaller set the properties of the task, before they are written.
+     * @param properties the properties of the task, which can be changed. They
+     * are reused for the next shapes once written, so they must not be kept.
+     */
+    void marshallProperties(Task task, Map<String, Object> properties);
+}
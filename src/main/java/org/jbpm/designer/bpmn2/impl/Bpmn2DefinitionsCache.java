@@ -0,0 +1,250 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.util.Bpmn2Resource;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.jbpm.designer.bpmn2.resource.Bpmn2ResourceSetPool;
+
+/**
+ * Keeps the models unmarshalled from json, keyed by a hash of the json and
+ * of the preprocessing data, so that the servlets working on the same model
+ * one after the other only unmarshall it once.
+ *
+ * The cached models are never handed out: {@link #getDefinitions(byte[], String)}
+ * and {@link #copyResource(byte[], String)} return copies that the caller owns,
+ * copying a model is much cheaper than unmarshalling it again. The copies and the
+ * validation read the cached model while holding its resource, so that the lists
+ * EMF creates on first access aren't created by two threads at once.
+ *
+ * The cache is bounded by an estimate of the heap its models retain, see
+ * {@link #weigh(Bpmn2Resource, byte[])}, the least recently used models are
+ * dropped first.
+ */
+public class Bpmn2DefinitionsCache {
+
+    private static final Logger _logger = Logger.getLogger(Bpmn2DefinitionsCache.class);
+
+    // about a dozen models of a thousand tasks.
+    public static final long DEFAULT_MAX_WEIGHT = 64 * 1024 * 1024;
+
+    // what an object of the model retains with its lists and its diagram
+    // element, a rough estimate rather than a measure.
+    static final long OBJECT_WEIGHT = 512;
+
+    public static final Bpmn2DefinitionsCache INSTANCE = new Bpmn2DefinitionsCache(Bpmn2JsonUnmarshaller.INSTANCE, DEFAULT_MAX_WEIGHT);
+
+    private static class Entry {
+        final Bpmn2Resource resource;
+        final long weight;
+        // false for the models too heavy to be kept, nobody else sees them.
+        final boolean shared;
+
+        Entry(Bpmn2Resource resource, long weight, boolean shared) {
+            this.resource = resource;
+            this.weight = weight;
+            this.shared = shared;
+        }
+    }
+
+    private final Bpmn2JsonUnmarshaller _unmarshaller;
+    private final long _maxWeight;
+    // access ordered, the eldest entry is the least recently used.
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long _weight;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * @param unmarshaller the unmarshaller the models are created with
+     * @param maxWeight the estimated size in bytes of the kept models
+     */
+    public Bpmn2DefinitionsCache(Bpmn2JsonUnmarshaller unmarshaller, long maxWeight) {
+        _unmarshaller = unmarshaller;
+        _maxWeight = maxWeight;
+    }
+
+    /**
+     * @return a copy of the definitions of the model, that the caller can modify.
+     */
+    public Definitions getDefinitions(byte[] json, String preProcessingData) throws IOException {
+        return (Definitions) copyResource(json, preProcessingData).getContents().get(0);
+    }
+
+    public Definitions getDefinitions(InputStream json, String preProcessingData) throws IOException {
+        return getDefinitions(IOUtils.toByteArray(json), preProcessingData);
+    }
+
+    /**
+     * @return a copy of the model in a resource of its own, that the caller can
+     * modify and save.
+     */
+    public Bpmn2Resource copyResource(byte[] json, String preProcessingData) throws IOException {
+        Entry entry = getEntry(json, preProcessingData);
+        if (!entry.shared) {
+            return entry.resource;
+        }
+        Bpmn2Resource copy = Bpmn2ResourceSetPool.createResource();
+        synchronized (entry.resource) {
+            copy.getContents().addAll(EcoreUtil.copyAll(entry.resource.getContents()));
+        }
+        return copy;
+    }
+
+    public Bpmn2Resource copyResource(InputStream json, String preProcessingData) throws IOException {
+        return copyResource(IOUtils.toByteArray(json), preProcessingData);
+    }
+
+    /**
+     * Checks the model as {@link Bpmn2JsonUnmarshaller#validate(InputStream, String)} does,
+     * unmarshalling it only if it isn't cached.
+     */
+    public List<String> validate(InputStream json, String preProcessingData) {
+        Entry entry;
+        try {
+            entry = getEntry(IOUtils.toByteArray(json), preProcessingData);
+        } catch (Exception e) {
+            _logger.debug("Unable to unmarshall the model: " + e.getMessage(), e);
+            List<String> problems = new ArrayList<String>();
+            problems.add("Unable to unmarshall the model: " + e.getMessage());
+            return problems;
+        }
+        synchronized (entry.resource) {
+            return new Bpmn2StructureValidator().validate(entry.resource);
+        }
+    }
+
+    private Entry getEntry(byte[] json, String preProcessingData) throws IOException {
+        String key = hash(json, preProcessingData);
+        synchronized (_entries) {
+            Entry entry = _entries.get(key);
+            if (entry != null) {
+                _hits.incrementAndGet();
+                return entry;
+            }
+        }
+        _misses.incrementAndGet();
+        // unmarshalled outside of the lock, a model requested twice at the same time
+        // is unmarshalled twice and the first one is kept.
+        Bpmn2Resource resource = _unmarshaller.unmarshall(new ByteArrayInputStream(json), preProcessingData);
+        long weight = weigh(resource, json);
+        if (weight > _maxWeight) {
+            return new Entry(resource, weight, false);
+        }
+        synchronized (_entries) {
+            Entry entry = _entries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            entry = new Entry(resource, weight, true);
+            _entries.put(key, entry);
+            _weight += weight;
+            for (Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator(); _weight > _maxWeight && it.hasNext();) {
+                _weight -= it.next().getValue().weight;
+                it.remove();
+                _evictions.incrementAndGet();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * @return an estimate of the heap the model retains: {@link #OBJECT_WEIGHT}
+     * for each of its objects and two bytes for each character of its json, which
+     * is about what its strings take.
+     */
+    static long weigh(Bpmn2Resource resource, byte[] json) {
+        long objects = 0;
+        for (Iterator<EObject> it = EcoreUtil.getAllContents(resource, false); it.hasNext(); it.next()) {
+            objects++;
+        }
+        return objects * OBJECT_WEIGHT + 2L * json.length;
+    }
+
+    private String hash(byte[] json, String preProcessingData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            if (preProcessingData != null) {
+                digest.update(preProcessingData.getBytes("UTF-8"));
+            }
+            // keeps the preprocessing data and the json apart
+            digest.update((byte) 0);
+            digest.update(json);
+            byte[] bytes = digest.digest();
+            StringBuilder key = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+            _weight = 0;
+        }
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    public int size() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    /**
+     * @return the estimated size in bytes of the kept models.
+     */
+    public long getWeight() {
+        synchronized (_entries) {
+            return _weight;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.bpmn2.Artifact;
+import org.eclipse.bpmn2.Association;
+import org.eclipse.bpmn2.BaseElement;
+import org.eclipse.bpmn2.BoundaryEvent;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.FlowElement;
+import org.eclipse.bpmn2.Process;
+import org.eclipse.bpmn2.RootElement;
+import org.eclipse.bpmn2.di.BPMNDiagram;
+import org.eclipse.bpmn2.di.BPMNEdge;
+import org.eclipse.bpmn2.di.BPMNPlane;
+import org.eclipse.bpmn2.di.BPMNShape;
+import org.eclipse.dd.di.DiagramElement;
+
+/**
+ * The lookups {@link Bpmn2JsonMarshaller} makes for each element, indexed in
+ * one pass over the model instead of going through the whole model for each
+ * element:
+ * <ul>
+ * <li>the shape or edge of an element,</li>
+ * <li>the edge of an element,</li>
+ * <li>the boundary events attached to an activity,</li>
+ * <li>the associations going out of an element.</li>
+ * </ul>
+ * The boundary events and associations are the ones of the processes, as the
+ * marshaller only looks for them there.
+ */
+class Bpmn2DiagramIndex {
+
+    private final Map<BaseElement, DiagramElement> _diagramElements = new IdentityHashMap<BaseElement, DiagramElement>();
+    private final Map<BaseElement, BPMNEdge> _edges = new IdentityHashMap<BaseElement, BPMNEdge>();
+    private final Map<String, List<BoundaryEvent>> _boundaryEvents = new HashMap<String, List<BoundaryEvent>>();
+    private final Map<String, List<Association>> _associations = new HashMap<String, List<Association>>();
+
+    Bpmn2DiagramIndex(Definitions def) {
+        for (BPMNDiagram diagram : def.getDiagrams()) {
+            if (diagram != null && diagram.getPlane() != null) {
+                add(diagram.getPlane());
+            }
+        }
+        for (RootElement rootElement : def.getRootElements()) {
+            if (rootElement instanceof Process) {
+                add((Process) rootElement);
+            }
+        }
+    }
+
+    Bpmn2DiagramIndex(BPMNPlane plane) {
+        add(plane);
+        if (plane.getBpmnElement() instanceof Process) {
+            add((Process) plane.getBpmnElement());
+        }
+    }
+
+    /**
+     * @return the first shape or edge of the element, null if it has none.
+     */
+    DiagramElement getDiagramElement(BaseElement element) {
+        return _diagramElements.get(element);
+    }
+
+    /**
+     * @return the first edge of the element, null if it has none.
+     */
+    BPMNEdge getEdge(BaseElement element) {
+        return _edges.get(element);
+    }
+
+    List<BoundaryEvent> getBoundaryEvents(BaseElement activity) {
+        List<BoundaryEvent> boundaryEvents = _boundaryEvents.get(activity.getId());
+        return boundaryEvents == null ? Collections.<BoundaryEvent>emptyList() : boundaryEvents;
+    }
+
+    List<Association> getOutgoingAssociations(BaseElement source) {
+        List<Association> associations = _associations.get(source.getId());
+        return associations == null ? Collections.<Association>emptyList() : associations;
+    }
+
+    private void add(BPMNPlane plane) {
+        for (DiagramElement element : plane.getPlaneElement()) {
+            BaseElement bpmnElement = null;
+            if (element instanceof BPMNShape) {
+                bpmnElement = ((BPMNShape) element).getBpmnElement();
+            } else if (element instanceof BPMNEdge) {
+                bpmnElement = ((BPMNEdge) element).getBpmnElement();
+                if (bpmnElement != null && !_edges.containsKey(bpmnElement)) {
+                    _edges.put(bpmnElement, (BPMNEdge) element);
+                }
+            }
+            if (bpmnElement != null && !_diagramElements.containsKey(bpmnElement)) {
+                _diagramElements.put(bpmnElement, element);
+            }
+        }
+    }
+
+    private void add(Process process) {
+        for (FlowElement flowElement : process.getFlowElements()) {
+            if (flowElement instanceof BoundaryEvent && ((BoundaryEvent) flowElement).getAttachedToRef() != null) {
+                BoundaryEvent boundaryEvent = (BoundaryEvent) flowElement;
+                add(_boundaryEvents, boundaryEvent.getAttachedToRef().getId(), boundaryEvent);
+            }
+        }
+        for (Artifact artifact : process.getArtifacts()) {
+            if (artifact instanceof Association && ((Association) artifact).getSourceRef() != null) {
+                Association association = (Association) artifact;
+                add(_associations, association.getSourceRef().getId(), association);
+            }
+        }
+    }
+
+    private static <T> void add(Map<String, List<T>> index, String id, T value) {
+        List<T> values = index.get(id);
+        if (values == null) {
+            values = new ArrayList<T>(1);
+            index.put(id, values);
+        }
+        values.add(value);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.bpmn2.BaseElement;
+import org.eclipse.emf.ecore.EClass;
+
+/**
+ * Index of the elements created while parsing a json model.
+ *
+ * Elements are registered once, as they are created, by their json resource id
+ * and by their EClass, so that the revisit phases of the unmarshaller can look
+ * them up instead of walking the whole model again.
+ */
+public class Bpmn2ElementIndex {
+
+    private Map<String, BaseElement> _byId = new HashMap<String, BaseElement>();
+    private Map<EClass, List<BaseElement>> _byEClass = new LinkedHashMap<EClass, List<BaseElement>>();
+
+    public void add(String resourceId, BaseElement element) {
+        _byId.put(resourceId, element);
+        List<BaseElement> elements = _byEClass.get(element.eClass());
+        if (elements == null) {
+            elements = new ArrayList<BaseElement>();
+            _byEClass.put(element.eClass(), elements);
+        }
+        elements.add(element);
+    }
+
+    /**
+     * Registers the elements of another index after the elements of this one.
+     */
+    public void addAll(Bpmn2ElementIndex index) {
+        _byId.putAll(index._byId);
+        for (Entry<EClass, List<BaseElement>> entry : index._byEClass.entrySet()) {
+            List<BaseElement> elements = _byEClass.get(entry.getKey());
+            if (elements == null) {
+                elements = new ArrayList<BaseElement>();
+                _byEClass.put(entry.getKey(), elements);
+            }
+            elements.addAll(entry.getValue());
+        }
+    }
+
+    /**
+     * @param resourceId the json resource id of the element to forget
+     * @return the element that was registered with that id, if any
+     */
+    public BaseElement remove(String resourceId) {
+        BaseElement element = _byId.remove(resourceId);
+        if (element != null) {
+            List<BaseElement> elements = _byEClass.get(element.eClass());
+            if (elements != null) {
+                elements.remove(element);
+            }
+        }
+        return element;
+    }
+
+    public BaseElement getById(String resourceId) {
+        return _byId.get(resourceId);
+    }
+
+    /**
+     * @param eClass the type to look for
+     * @return the elements of the given type or any of its subtypes, in creation order
+     * for each concrete type.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends BaseElement> List<T> getByEClass(EClass eClass) {
+        List<T> result = null;
+        for (Entry<EClass, List<BaseElement>> entry : _byEClass.entrySet()) {
+            if (eClass.isSuperTypeOf(entry.getKey())) {
+                if (result == null) {
+                    result = new ArrayList<T>();
+                }
+                result.addAll((List<T>) entry.getValue());
+            }
+        }
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        return result;
+    }
+
+    public int size() {
+        return _byId.size();
+    }
+
+    public void clear() {
+        _byId.clear();
+        _byEClass.clear();
+    }
+}
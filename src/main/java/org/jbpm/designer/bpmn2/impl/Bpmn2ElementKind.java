@@ -0,0 +1,282 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import org.eclipse.bpmn2.AdHocSubProcess;
+import org.eclipse.bpmn2.Association;
+import org.eclipse.bpmn2.BoundaryEvent;
+import org.eclipse.bpmn2.BusinessRuleTask;
+import org.eclipse.bpmn2.CallActivity;
+import org.eclipse.bpmn2.Collaboration;
+import org.eclipse.bpmn2.ComplexGateway;
+import org.eclipse.bpmn2.DataObject;
+import org.eclipse.bpmn2.EndEvent;
+import org.eclipse.bpmn2.Error;
+import org.eclipse.bpmn2.Escalation;
+import org.eclipse.bpmn2.EventBasedGateway;
+import org.eclipse.bpmn2.ExclusiveGateway;
+import org.eclipse.bpmn2.Group;
+import org.eclipse.bpmn2.InclusiveGateway;
+import org.eclipse.bpmn2.Interface;
+import org.eclipse.bpmn2.IntermediateCatchEvent;
+import org.eclipse.bpmn2.IntermediateThrowEvent;
+import org.eclipse.bpmn2.ItemDefinition;
+import org.eclipse.bpmn2.ManualTask;
+import org.eclipse.bpmn2.Message;
+import org.eclipse.bpmn2.ParallelGateway;
+import org.eclipse.bpmn2.Process;
+import org.eclipse.bpmn2.ReceiveTask;
+import org.eclipse.bpmn2.Resource;
+import org.eclipse.bpmn2.ScriptTask;
+import org.eclipse.bpmn2.SendTask;
+import org.eclipse.bpmn2.SequenceFlow;
+import org.eclipse.bpmn2.ServiceTask;
+import org.eclipse.bpmn2.Signal;
+import org.eclipse.bpmn2.StartEvent;
+import org.eclipse.bpmn2.SubProcess;
+import org.eclipse.bpmn2.Task;
+import org.eclipse.bpmn2.TextAnnotation;
+import org.eclipse.bpmn2.UserTask;
+import org.eclipse.bpmn2.util.Bpmn2Switch;
+import org.eclipse.emf.ecore.EObject;
+
+/**
+ * The kinds of elements {@link Bpmn2JsonMarshaller} writes in its own way.
+ *
+ * The kind of an element is found by the switch EMF generated for the BPMN 2.0
+ * package, which jumps on the class id of the element, instead of testing the
+ * element against every type in turn. The marshaller then switches on the kind.
+ */
+enum Bpmn2ElementKind {
+
+    START_EVENT,
+    END_EVENT,
+    INTERMEDIATE_THROW_EVENT,
+    INTERMEDIATE_CATCH_EVENT,
+    BOUNDARY_EVENT,
+    TASK,
+    BUSINESS_RULE_TASK,
+    SCRIPT_TASK,
+    SERVICE_TASK,
+    MANUAL_TASK,
+    USER_TASK,
+    SEND_TASK,
+    RECEIVE_TASK,
+    SEQUENCE_FLOW,
+    PARALLEL_GATEWAY,
+    EXCLUSIVE_GATEWAY,
+    INCLUSIVE_GATEWAY,
+    EVENT_BASED_GATEWAY,
+    COMPLEX_GATEWAY,
+    CALL_ACTIVITY,
+    SUB_PROCESS,
+    AD_HOC_SUB_PROCESS,
+    DATA_OBJECT,
+    PROCESS,
+    // the root elements that are known but not written
+    IGNORED_ROOT_ELEMENT,
+    ASSOCIATION,
+    TEXT_ANNOTATION,
+    GROUP,
+    UNKNOWN;
+
+    // the switch keeps no state, it is shared by all the threads.
+    private static final Bpmn2Switch<Bpmn2ElementKind> SWITCH = new Bpmn2Switch<Bpmn2ElementKind>() {
+        @Override
+        public Bpmn2ElementKind caseStartEvent(StartEvent object) {
+            return START_EVENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseEndEvent(EndEvent object) {
+            return END_EVENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseIntermediateThrowEvent(IntermediateThrowEvent object) {
+            return INTERMEDIATE_THROW_EVENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseIntermediateCatchEvent(IntermediateCatchEvent object) {
+            return INTERMEDIATE_CATCH_EVENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseBoundaryEvent(BoundaryEvent object) {
+            return BOUNDARY_EVENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseTask(Task object) {
+            return TASK;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseBusinessRuleTask(BusinessRuleTask object) {
+            return BUSINESS_RULE_TASK;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseScriptTask(ScriptTask object) {
+            return SCRIPT_TASK;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseServiceTask(ServiceTask object) {
+            return SERVICE_TASK;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseManualTask(ManualTask object) {
+            return MANUAL_TASK;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseUserTask(UserTask object) {
+            return USER_TASK;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseSendTask(SendTask object) {
+            return SEND_TASK;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseReceiveTask(ReceiveTask object) {
+            return RECEIVE_TASK;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseSequenceFlow(SequenceFlow object) {
+            return SEQUENCE_FLOW;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseParallelGateway(ParallelGateway object) {
+            return PARALLEL_GATEWAY;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseExclusiveGateway(ExclusiveGateway object) {
+            return EXCLUSIVE_GATEWAY;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseInclusiveGateway(InclusiveGateway object) {
+            return INCLUSIVE_GATEWAY;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseEventBasedGateway(EventBasedGateway object) {
+            return EVENT_BASED_GATEWAY;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseComplexGateway(ComplexGateway object) {
+            return COMPLEX_GATEWAY;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseCallActivity(CallActivity object) {
+            return CALL_ACTIVITY;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseSubProcess(SubProcess object) {
+            return SUB_PROCESS;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseAdHocSubProcess(AdHocSubProcess object) {
+            return AD_HOC_SUB_PROCESS;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseDataObject(DataObject object) {
+            return DATA_OBJECT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseProcess(Process object) {
+            return PROCESS;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseInterface(Interface object) {
+            return IGNORED_ROOT_ELEMENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseItemDefinition(ItemDefinition object) {
+            return IGNORED_ROOT_ELEMENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseResource(Resource object) {
+            return IGNORED_ROOT_ELEMENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseError(Error object) {
+            return IGNORED_ROOT_ELEMENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseMessage(Message object) {
+            return IGNORED_ROOT_ELEMENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseSignal(Signal object) {
+            return IGNORED_ROOT_ELEMENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseEscalation(Escalation object) {
+            return IGNORED_ROOT_ELEMENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseCollaboration(Collaboration object) {
+            return IGNORED_ROOT_ELEMENT;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseAssociation(Association object) {
+            return ASSOCIATION;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseTextAnnotation(TextAnnotation object) {
+            return TEXT_ANNOTATION;
+        }
+
+        @Override
+        public Bpmn2ElementKind caseGroup(Group object) {
+            return GROUP;
+        }
+
+        @Override
+        public Bpmn2ElementKind defaultCase(EObject object) {
+            return UNKNOWN;
+        }
+    };
+
+    static Bpmn2ElementKind of(EObject element) {
+        return SWITCH.doSwitch(element);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.dd.dc.Bounds;
+import org.eclipse.dd.dc.DcFactory;
+import org.eclipse.dd.dc.Point;
+
+/**
+ * The bounds and dockers of the shapes of a json model, kept in arrays of
+ * floats until the diagram is created.
+ *
+ * Each shape id gets a slot. The bounds of a slot are four floats (x, y,
+ * width, height) and its dockers a run of (x, y) pairs. The {@link Bounds}
+ * and {@link Point} of the diagram are only created when the diagram
+ * elements are, and a new object is returned by each call.
+ */
+public class Bpmn2Geometry {
+
+    private static final int NO_DOCKERS = -1;
+
+    private Map<String, Integer> _slots = new HashMap<String, Integer>();
+    private int _size;
+
+    private boolean[] _hasBounds = new boolean[64];
+    private float[] _bounds = new float[64 * 4];
+    private int[] _dockerStart = new int[64];
+    private int[] _dockerCount = new int[64];
+
+    private float[] _dockers = new float[256];
+    private int _dockersLength;
+    // the slot dockers are being added to.
+    private int _current = -1;
+
+    public void putBounds(String id, float x, float y, float width, float height) {
+        int slot = slot(id);
+        _hasBounds[slot] = true;
+        _bounds[slot * 4] = x;
+        _bounds[slot * 4 + 1] = y;
+        _bounds[slot * 4 + 2] = width;
+        _bounds[slot * 4 + 3] = height;
+    }
+
+    /**
+     * Starts the dockers of a shape, replacing the ones it had. They are added
+     * with {@link #addDocker(float, float)}.
+     */
+    public void startDockers(String id) {
+        _current = slot(id);
+        _dockerStart[_current] = _dockersLength;
+        _dockerCount[_current] = 0;
+    }
+
+    public void addDocker(float x, float y) {
+        if (_dockerStart[_current] + _dockerCount[_current] * 2 != _dockersLength) {
+            throw new IllegalStateException("The dockers of a shape must be added together");
+        }
+        if (_dockersLength + 2 > _dockers.length) {
+            _dockers = Arrays.copyOf(_dockers, _dockers.length * 2);
+        }
+        _dockers[_dockersLength++] = x;
+        _dockers[_dockersLength++] = y;
+        _dockerCount[_current]++;
+    }
+
+    public void remove(String id) {
+        _slots.remove(id);
+    }
+
+    public boolean hasBounds(String id) {
+        Integer slot = _slots.get(id);
+        return slot != null && _hasBounds[slot];
+    }
+
+    /**
+     * @return new bounds for the shape, null if it has none.
+     */
+    public Bounds createBounds(String id) {
+        Integer slot = _slots.get(id);
+        if (slot == null || !_hasBounds[slot]) {
+            return null;
+        }
+        Bounds bounds = DcFactory.eINSTANCE.createBounds();
+        bounds.setX(_bounds[slot * 4]);
+        bounds.setY(_bounds[slot * 4 + 1]);
+        bounds.setWidth(_bounds[slot * 4 + 2]);
+        bounds.setHeight(_bounds[slot * 4 + 3]);
+        return bounds;
+    }
+
+    /**
+     * @return a new point at the center of the bounds of the shape.
+     * @throws IllegalArgumentException if the shape has no bounds.
+     */
+    public Point createCenter(String id) {
+        int slot = boundsSlot(id);
+        Point point = DcFactory.eINSTANCE.createPoint();
+        point.setX(_bounds[slot * 4] + (_bounds[slot * 4 + 2] / 2));
+        point.setY(_bounds[slot * 4 + 1] + (_bounds[slot * 4 + 3] / 2));
+        return point;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the shape has no dockers.
+     */
+    public int getDockerCount(String id) {
+        return _dockerCount[dockersSlot(id)];
+    }
+
+    /**
+     * @return a new point at the given docker of the shape.
+     */
+    public Point createDocker(String id, int index) {
+        int slot = dockersSlot(id);
+        if (index < 0 || index >= _dockerCount[slot]) {
+            throw new IndexOutOfBoundsException("Docker " + index + " of " + id);
+        }
+        int offset = _dockerStart[slot] + index * 2;
+        Point point = DcFactory.eINSTANCE.createPoint();
+        point.setX(_dockers[offset]);
+        point.setY(_dockers[offset + 1]);
+        return point;
+    }
+
+    /**
+     * Adds the geometry of the shapes of another part of the model.
+     */
+    public void merge(Bpmn2Geometry geometry) {
+        for (Map.Entry<String, Integer> entry : geometry._slots.entrySet()) {
+            int from = entry.getValue();
+            int slot = slot(entry.getKey());
+            _hasBounds[slot] = geometry._hasBounds[from];
+            System.arraycopy(geometry._bounds, from * 4, _bounds, slot * 4, 4);
+            if (geometry._dockerCount[from] != NO_DOCKERS) {
+                startDockers(entry.getKey());
+                for (int i = 0; i < geometry._dockerCount[from]; i++) {
+                    int offset = geometry._dockerStart[from] + i * 2;
+                    addDocker(geometry._dockers[offset], geometry._dockers[offset + 1]);
+                }
+            }
+        }
+    }
+
+    private int slot(String id) {
+        Integer slot = _slots.get(id);
+        if (slot == null) {
+            if (_size == _hasBounds.length) {
+                int capacity = _size * 2;
+                _hasBounds = Arrays.copyOf(_hasBounds, capacity);
+                _bounds = Arrays.copyOf(_bounds, capacity * 4);
+                _dockerStart = Arrays.copyOf(_dockerStart, capacity);
+                _dockerCount = Arrays.copyOf(_dockerCount, capacity);
+            }
+            slot = _size++;
+            _dockerCount[slot] = NO_DOCKERS;
+            _slots.put(id, slot);
+        }
+        return slot;
+    }
+
+    private int boundsSlot(String id) {
+        Integer slot = _slots.get(id);
+        if (slot == null || !_hasBounds[slot]) {
+            throw new IllegalArgumentException("No bounds for " + id);
+        }
+        return slot;
+    }
+
+    private int dockersSlot(String id) {
+        Integer slot = _slots.get(id);
+        if (slot == null || _dockerCount[slot] == NO_DOCKERS) {
+            throw new IllegalArgumentException("No dockers for " + id);
+        }
+        return slot;
+    }
+}
@@ -17,13 +17,17 @@ package org.jbpm.designer.bpmn2.impl;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonEncoding;
@@ -38,12 +42,10 @@ import org.eclipse.bpmn2.Association;
 import org.eclipse.bpmn2.AssociationDirection;
 import org.eclipse.bpmn2.BaseElement;
 import org.eclipse.bpmn2.BoundaryEvent;
-import org.eclipse.bpmn2.BusinessRuleTask;
 import org.eclipse.bpmn2.CallActivity;
 import org.eclipse.bpmn2.CallableElement;
 import org.eclipse.bpmn2.CatchEvent;
 import org.eclipse.bpmn2.Choreography;
-import org.eclipse.bpmn2.Collaboration;
 import org.eclipse.bpmn2.CompensateEventDefinition;
 import org.eclipse.bpmn2.ComplexGateway;
 import org.eclipse.bpmn2.ConditionalEventDefinition;
@@ -55,7 +57,6 @@ import org.eclipse.bpmn2.DataOutput;
 import org.eclipse.bpmn2.DataOutputAssociation;
 import org.eclipse.bpmn2.Definitions;
 import org.eclipse.bpmn2.EndEvent;
-import org.eclipse.bpmn2.Error;
 import org.eclipse.bpmn2.ErrorEventDefinition;
 import org.eclipse.bpmn2.Escalation;
 import org.eclipse.bpmn2.EscalationEventDefinition;
@@ -81,11 +82,9 @@ import org.eclipse.bpmn2.InputSet;
 import org.eclipse.bpmn2.Interface;
 import org.eclipse.bpmn2.IntermediateCatchEvent;
 import org.eclipse.bpmn2.IntermediateThrowEvent;
-import org.eclipse.bpmn2.ItemDefinition;
 import org.eclipse.bpmn2.Lane;
 import org.eclipse.bpmn2.LaneSet;
 import org.eclipse.bpmn2.LoopCharacteristics;
-import org.eclipse.bpmn2.ManualTask;
 import org.eclipse.bpmn2.Message;
 import org.eclipse.bpmn2.MessageEventDefinition;
 import org.eclipse.bpmn2.MultiInstanceLoopCharacteristics;
@@ -96,14 +95,12 @@ import org.eclipse.bpmn2.PotentialOwner;
 import org.eclipse.bpmn2.Process;
 import org.eclipse.bpmn2.Property;
 import org.eclipse.bpmn2.ReceiveTask;
-import org.eclipse.bpmn2.Resource;
 import org.eclipse.bpmn2.ResourceRole;
 import org.eclipse.bpmn2.RootElement;
 import org.eclipse.bpmn2.ScriptTask;
 import org.eclipse.bpmn2.SendTask;
 import org.eclipse.bpmn2.SequenceFlow;
 import org.eclipse.bpmn2.ServiceTask;
-import org.eclipse.bpmn2.Signal;
 import org.eclipse.bpmn2.SignalEventDefinition;
 import org.eclipse.bpmn2.StartEvent;
 import org.eclipse.bpmn2.SubProcess;
@@ -112,7 +109,6 @@ import org.eclipse.bpmn2.TerminateEventDefinition;
 import org.eclipse.bpmn2.TextAnnotation;
 import org.eclipse.bpmn2.ThrowEvent;
 import org.eclipse.bpmn2.TimerEventDefinition;
-import org.eclipse.bpmn2.UserTask;
 import org.eclipse.bpmn2.di.BPMNDiagram;
 import org.eclipse.bpmn2.di.BPMNEdge;
 import org.eclipse.bpmn2.di.BPMNPlane;
@@ -120,6 +116,7 @@ import org.eclipse.bpmn2.di.BPMNShape;
 import org.eclipse.dd.dc.Bounds;
 import org.eclipse.dd.dc.Point;
 import org.eclipse.dd.di.DiagramElement;
+import org.eclipse.emf.ecore.EObject;
 import org.eclipse.emf.ecore.util.FeatureMap;
 import org.jboss.drools.DroolsPackage;
 import org.jboss.drools.GlobalType;
@@ -133,6 +130,9 @@ import org.jbpm.designer.web.profile.IDiagramProfile;
  * @author Tihomir Surdilovic
  * 
  * a marshaller to transform BPMN 2.0 elements into JSON format.
+ * 
+ * The state of a conversion is kept in a {@link Bpmn2MarshallingContext} created
+ * for each call, a configured marshaller can be shared by many threads.
  *
  */
 public class Bpmn2JsonMarshaller {
@@ -141,24 +141,100 @@ public class Bpmn2JsonMarshaller {
 	public static final String defaultBrColor = "#000000";
 	public static final String defaultFontColor = "#000000";
 	
-	private Map<String, DiagramElement> _diagramElements = new HashMap<String, DiagramElement>();
-	private Map<String,Association> _diagramAssociations = new HashMap<String, Association>();
 	private static final Logger _logger = Logger.getLogger(Bpmn2JsonMarshaller.class);
 	private IDiagramProfile profile;
+	private boolean _collapseSubProcesses;
+	private Bpmn2StencilDefaults _stencilDefaults;
+	private final Map<String, Bpmn2CustomTaskHandler> _customTaskHandlers = new ConcurrentHashMap<String, Bpmn2CustomTaskHandler>();
 	
 	public void setProfile(IDiagramProfile profile) {
 	    this.profile = profile;
 	}
 
+	/**
+	 * Registers the handler adding the properties of the custom tasks of a type.
+	 * @param taskName the type of the tasks, as it is in the preprocessing data
+	 */
+	public void setCustomTaskHandler(String taskName, Bpmn2CustomTaskHandler handler) {
+	    _customTaskHandlers.put(taskName, handler);
+	}
+
+	/**
+	 * @param collapseSubProcesses whether the embedded subprocesses are written
+	 * without their shapes, marked with a <code>collapsed</code> property. The
+	 * shapes of a collapsed subprocess are written by
+	 * {@link #marshallSubProcess(Definitions, String, String, OutputStream)}.
+	 */
+	public void setCollapseSubProcesses(boolean collapseSubProcesses) {
+	    _collapseSubProcesses = collapseSubProcesses;
+	}
+
+	/**
+	 * @param stencilDefaults the defaults of the stencil set of the editor, the
+	 * properties equal to their default are then left out of the json. Null,
+	 * the default, writes all the properties.
+	 */
+	public void setStencilDefaults(Bpmn2StencilDefaults stencilDefaults) {
+	    _stencilDefaults = stencilDefaults;
+	}
+
     public String marshall(Definitions def, String preProcessingData) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        JsonFactory f = new JsonFactory();
-        JsonGenerator generator = f.createJsonGenerator(baos, JsonEncoding.UTF8);
-        marshallDefinitions(def, generator, preProcessingData);
-        generator.close();
+        marshall(def, preProcessingData, baos);
         
         return baos.toString("UTF-8");
     }
+
+    /**
+     * Writes the json model of the definitions to the stream, in UTF-8.
+     * The stream is flushed but not closed.
+     */
+    public void marshall(Definitions def, String preProcessingData, OutputStream out) throws IOException {
+        JsonFactory f = new JsonFactory();
+        f.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        JsonGenerator generator = f.createJsonGenerator(out, JsonEncoding.UTF8);
+        marshallDefinitions(def, generator, new Bpmn2MarshallingContext(def, preProcessingData, _collapseSubProcesses));
+        generator.close();
+    }
+
+    /**
+     * Writes the shapes of an embedded subprocess of the definitions to the
+     * stream, in UTF-8, as <code>{"resourceId":..., "childShapes":[...]}</code>.
+     * The nested subprocesses are collapsed if this marshaller collapses them.
+     * The stream is flushed but not closed.
+     * @return whether the definitions have the subprocess, nothing is written if not.
+     */
+    public boolean marshallSubProcess(Definitions def, String subProcessId, String preProcessingData, OutputStream out) throws IOException {
+        SubProcess subProcess = null;
+        for (Iterator<EObject> it = def.eAllContents(); it.hasNext();) {
+            EObject object = it.next();
+            if (object instanceof SubProcess && subProcessId.equals(((SubProcess) object).getId())) {
+                subProcess = (SubProcess) object;
+                break;
+            }
+        }
+        EObject process = subProcess;
+        while (process != null && !(process instanceof Process)) {
+            process = process.eContainer();
+        }
+        if (process == null) {
+            return false;
+        }
+        BPMNPlane plane = findPlane((Process) process, def);
+        JsonFactory f = new JsonFactory();
+        f.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        JsonGenerator generator = f.createJsonGenerator(out, JsonEncoding.UTF8);
+        Bpmn2MarshallingContext context = new Bpmn2MarshallingContext(def, preProcessingData, _collapseSubProcesses);
+        linkSequenceFlows(((Process) process).getFlowElements());
+        generator.writeStartObject();
+        generator.writeObjectField("resourceId", subProcess.getId());
+        generator.writeArrayFieldStart("childShapes");
+        marshallChildShapes(subProcess, plane, generator, context);
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+        return true;
+    }
     
     private void linkSequenceFlows(List<FlowElement> flowElements) {
     	Map<String, FlowNode> nodes = new HashMap<String, FlowNode>();
@@ -195,9 +271,8 @@ public class Bpmn2JsonMarshaller {
     	}
     }
 
-    protected void marshallDefinitions(Definitions def, JsonGenerator generator, String preProcessingData) throws JsonGenerationException, IOException {
-        try{
-        	generator.writeStartObject();
+    protected void marshallDefinitions(Definitions def, JsonGenerator generator, Bpmn2MarshallingContext context) throws JsonGenerationException, IOException {
+        generator.writeStartObject();
 	        generator.writeObjectField("resourceId", def.getId());
 	        /**
 	         * "properties":{"name":"",
@@ -233,7 +308,8 @@ public class Bpmn2JsonMarshaller {
 	        }
 	        
 	        for (RootElement rootElement : def.getRootElements()) {
-	            if (rootElement instanceof Process) {
+	            Bpmn2ElementKind kind = Bpmn2ElementKind.of(rootElement);
+	            if (kind == Bpmn2ElementKind.PROCESS) {
 	                // have to wait for process node to finish properties and stencil marshalling
 	                props.put("executable", ((Process) rootElement).isIsExecutable() + "");
 	                props.put("id", ((Process) rootElement).getId());
@@ -241,19 +317,19 @@ public class Bpmn2JsonMarshaller {
 	                
 	                List<Property> processProperties = ((Process) rootElement).getProperties();
 	                if(processProperties != null && processProperties.size() > 0) {
-	                    String propVal = "";
+	                    StringBuilder propVal = context.scratch(0);
 	                    for(int i=0; i<processProperties.size(); i++) {
 	                        Property p = processProperties.get(i);
-	                        propVal += p.getId();
+	                        propVal.append(p.getId());
 	                        // check the structureRef value
 	                        if(p.getItemSubjectRef() != null && p.getItemSubjectRef().getStructureRef() != null) {
-	                            propVal += ":" + p.getItemSubjectRef().getStructureRef();
+	                            propVal.append(":").append(p.getItemSubjectRef().getStructureRef());
 	                        }
 	                        if(i != processProperties.size()-1) {
-	                            propVal += ",";
+	                            propVal.append(",");
 	                        }
 	                    }
-	                    props.put("vardefs", propVal);
+	                    props.put("vardefs", propVal.toString());
 	                }
 	                
 	                // packageName and version and adHoc are jbpm-specific extension attribute
@@ -275,8 +351,8 @@ public class Bpmn2JsonMarshaller {
 	                
 	                // process imports and globals extension elements
 	                if(((Process) rootElement).getExtensionValues() != null && ((Process) rootElement).getExtensionValues().size() > 0) {
-	                    String importsStr = "";
-	                    String globalsStr = "";
+	                    StringBuilder importsBuff = context.scratch(0);
+	                    StringBuilder globalsBuff = context.scratch(1);
 	                    for(ExtensionAttributeValue extattrval : ((Process) rootElement).getExtensionValues()) {
 	                        FeatureMap extensionElements = extattrval.getValue();
 	                
@@ -289,15 +365,17 @@ public class Bpmn2JsonMarshaller {
 	                                                          .get(DroolsPackage.Literals.DOCUMENT_ROOT__GLOBAL, true);
 	                    
 	                        for(ImportType importType : importExtensions) {
-	                            importsStr += importType.getName();
-	                            importsStr += ",";
+	                            importsBuff.append(importType.getName());
+	                            importsBuff.append(",");
 	                        }
 	                        
 	                        for(GlobalType globalType : globalExtensions) {
-	                            globalsStr += (globalType.getIdentifier() + ":" + globalType.getType());
-	                            globalsStr += ",";
+	                            globalsBuff.append(globalType.getIdentifier()).append(":").append(globalType.getType());
+	                            globalsBuff.append(",");
 	                        }
 	                    }
+	                    String importsStr = importsBuff.toString();
+	                    String globalsStr = globalsBuff.toString();
 	                    if(importsStr.length() > 0) {
 	                        if(importsStr.endsWith(",")) {
 	                            importsStr = importsStr.substring(0, importsStr.length() - 1);
@@ -312,27 +390,13 @@ public class Bpmn2JsonMarshaller {
 	                    }
 	                }
 	                
-	                marshallProperties(props, generator);
+	                marshallProperties(props, "BPMNDiagram", generator);
 	                marshallStencil("BPMNDiagram", generator);
 	            	linkSequenceFlows(((Process) rootElement).getFlowElements());
-	                marshallProcess((Process) rootElement, def, generator, preProcessingData);
-	            } else if (rootElement instanceof Interface) {
-	                // TODO
-	            } else if (rootElement instanceof ItemDefinition) {
-                    // TODO
-                } else if (rootElement instanceof Resource) {
-	                // TODO
-	            } else if (rootElement instanceof Error) {
-	                // TODO
-	            } else if (rootElement instanceof Message) {
-	                // TODO
-	            } else if (rootElement instanceof Signal) {
-                    // TODO
-                } else if (rootElement instanceof Escalation) {
-                    // TODO
-                } else if (rootElement instanceof Collaboration) { 
-                	
-                } else {
+	                marshallProcess((Process) rootElement, def, generator, context);
+	            } else if (kind == Bpmn2ElementKind.IGNORED_ROOT_ELEMENT) {
+	                // TODO interfaces, item definitions, resources, errors, messages, signals, escalations and collaborations
+	            } else {
                 	_logger.warn("Unknown root element " + rootElement + ". This element will not be parsed.");
 	            }
 	        }
@@ -345,9 +409,6 @@ public class Bpmn2JsonMarshaller {
 	        generator.writeObject(this.profile.getStencilSetExtensionURL());
 	        generator.writeEndArray();
 	        generator.writeEndObject();
-        } finally {
-        	_diagramElements.clear();
-        }
     }
     
     
@@ -374,7 +435,7 @@ public class Bpmn2JsonMarshaller {
         generator.writeEndObject();
     } **/
 
-    protected void marshallCallableElement(CallableElement callableElement, Definitions def, JsonGenerator generator) throws JsonGenerationException, IOException {
+    protected void marshallCallableElement(CallableElement callableElement, Definitions def, JsonGenerator generator, Bpmn2MarshallingContext context) throws JsonGenerationException, IOException {
         generator.writeStartObject();
         generator.writeObjectField("resourceId", callableElement.getId());
         
@@ -387,57 +448,57 @@ public class Bpmn2JsonMarshaller {
         } else if (callableElement instanceof GlobalTask) {
             marshallGlobalTask((GlobalTask) callableElement, generator);
         } else if (callableElement instanceof Process) {
-            marshallProcess((Process) callableElement, def, generator, "");
+            marshallProcess((Process) callableElement, def, generator, context);
         } else {
             throw new UnsupportedOperationException("TODO"); //TODO!
         }
         generator.writeEndObject();
     }
 
-    protected void marshallProcess(Process process, Definitions def, JsonGenerator generator, String preProcessingData) throws JsonGenerationException, IOException {
-    	BPMNPlane plane = null;
+    private BPMNPlane findPlane(Process process, Definitions def) {
     	for (BPMNDiagram d: def.getDiagrams()) {
     		if (d != null) {
     			BPMNPlane p = d.getPlane();
     			if (p != null) {
     				if (p.getBpmnElement() == process) {
-    					plane = p;
-    					break;
+    					return p;
     				}
     			}
     		}
     	}
-    	if (plane == null) {
-    		throw new IllegalArgumentException("Could not find BPMNDI information");
-    	}
+    	throw new IllegalArgumentException("Could not find BPMNDI information");
+    }
+    
+    protected void marshallProcess(Process process, Definitions def, JsonGenerator generator, Bpmn2MarshallingContext context) throws JsonGenerationException, IOException {
+    	BPMNPlane plane = findPlane(process, def);
         generator.writeArrayFieldStart("childShapes");
         
-        List<String> laneFlowElementsIds = new ArrayList<String>();
+        Set<String> laneFlowElementsIds = new HashSet<String>();
         for(LaneSet laneSet : process.getLaneSets()) {
         	for(Lane lane : laneSet.getLanes()) {
         		// we only want to marshall lanes if we have the bpmndi info for them!
-        		if(findDiagramElement(plane, lane) != null) {
-        			laneFlowElementsIds.addAll( marshallLanes(lane, plane, generator, 0, 0, preProcessingData, def) );
+        		if(findDiagramElement(context, plane, lane) != null) {
+        			laneFlowElementsIds.addAll( marshallLanes(lane, plane, generator, context, 0, 0) );
         		}
         	}
         }
         for (FlowElement flowElement: process.getFlowElements()) {
         	if( !laneFlowElementsIds.contains(flowElement.getId()) ) {
-        		marshallFlowElement(flowElement, plane, generator, 0, 0, preProcessingData, def);
+        		marshallFlowElement(flowElement, plane, generator, context, 0, 0);
         	}
         }
         
         for (Artifact artifact: process.getArtifacts()) {
-        	marshallArtifact(artifact, plane, generator, 0, 0, preProcessingData, def);
+        	marshallArtifact(artifact, plane, generator, context, 0, 0);
         }
         
         generator.writeEndArray();
     }
     
-    private void setCatchEventProperties(CatchEvent event, Map<String, Object> properties) {
+    private void setCatchEventProperties(CatchEvent event, Map<String, Object> properties, Bpmn2MarshallingContext context) {
         if(event.getOutputSet() != null) {
             List<DataOutput> dataOutputs = event.getOutputSet().getDataOutputRefs();
-            StringBuffer doutbuff = new StringBuffer();
+            StringBuilder doutbuff = context.scratch(0);
             for(DataOutput dout : dataOutputs) {
                 doutbuff.append(dout.getName());
                 doutbuff.append(",");
@@ -448,7 +509,7 @@ public class Bpmn2JsonMarshaller {
             properties.put("dataoutput", doutbuff.toString());
         
             List<DataOutputAssociation> outputAssociations = event.getDataOutputAssociation();
-            StringBuffer doutassociationbuff = new StringBuffer();
+            StringBuilder doutassociationbuff = context.scratch(0);
             for(DataOutputAssociation doa : outputAssociations) {
                 doutassociationbuff.append(((DataOutput)doa.getSourceRef().get(0)).getName());
                 doutassociationbuff.append("->");
@@ -528,10 +589,10 @@ public class Bpmn2JsonMarshaller {
         }
     }
     
-    private void setThrowEventProperties(ThrowEvent event, Map<String, Object> properties) {
+    private void setThrowEventProperties(ThrowEvent event, Map<String, Object> properties, Bpmn2MarshallingContext context) {
         if(event.getInputSet() != null) {
             List<DataInput> dataInputs = event.getInputSet().getDataInputRefs();
-            StringBuffer dinbuff = new StringBuffer();
+            StringBuilder dinbuff = context.scratch(0);
             for(DataInput din : dataInputs) {
                 dinbuff.append(din.getName());
                 dinbuff.append(",");
@@ -542,7 +603,7 @@ public class Bpmn2JsonMarshaller {
             properties.put("datainput", dinbuff.toString());
             
             List<DataInputAssociation> inputAssociations = event.getDataInputAssociation();
-            StringBuffer dinassociationbuff = new StringBuffer();
+            StringBuilder dinassociationbuff = context.scratch(0);
             for(DataInputAssociation din : inputAssociations) {
                 dinassociationbuff.append(din.getSourceRef().get(0).getId());
                 dinassociationbuff.append("->");
@@ -622,17 +683,18 @@ public class Bpmn2JsonMarshaller {
         }
     }
     
-    private List<String> marshallLanes(Lane lane, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, String preProcessingData, Definitions def) throws JsonGenerationException, IOException {
-    	Bounds bounds = ((BPMNShape) findDiagramElement(plane, lane)).getBounds();
+    private List<String> marshallLanes(Lane lane, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset) throws JsonGenerationException, IOException {
+    	Bounds bounds = ((BPMNShape) findDiagramElement(context, plane, lane)).getBounds();
     	List<String> nodeRefIds = new ArrayList<String>();
     	if(bounds != null) {
 	    	generator.writeStartObject();
 	    	generator.writeObjectField("resourceId", lane.getId());
-	    	Map<String, Object> laneProperties = new LinkedHashMap<String, Object>();
+	    	// the properties of a lane are only written, they go straight to the generator
+	    	generator.writeObjectFieldStart("properties");
 	    	if(lane.getName() != null) {
-	    		laneProperties.put("name", lane.getName());
+	    		writeProperty(generator, "Lane", "name", lane.getName());
 	    	} else {
-	    		laneProperties.put("name", "");
+	    		writeProperty(generator, "Lane", "name", "");
 	    	}
 	    	
 	    	Iterator<FeatureMap.Entry> iter = lane.getAnyAttribute().iterator();
@@ -642,35 +704,34 @@ public class Bpmn2JsonMarshaller {
 	        while(iter.hasNext()) {
 	            FeatureMap.Entry entry = iter.next();
 	            if(entry.getEStructuralFeature().getName().equals("bgcolor")) {
-	            	laneProperties.put("bgcolor", entry.getValue());
+	            	writeProperty(generator, "Lane", "bgcolor", entry.getValue());
 	            	foundBgColor = true;
 	            }
 	            if(entry.getEStructuralFeature().getName().equals("bordercolor")) {
-	            	laneProperties.put("bordercolor", entry.getValue());
+	            	writeProperty(generator, "Lane", "bordercolor", entry.getValue());
 	            	foundBrColor = true;
 	            }
 	            if(entry.getEStructuralFeature().getName().equals("fontsize")) {
-	            	laneProperties.put("fontsize", entry.getValue());
+	            	writeProperty(generator, "Lane", "fontsize", entry.getValue());
 	            	foundBrColor = true;
 	            }
 	            if(entry.getEStructuralFeature().getName().equals("fontcolor")) {
-	            	laneProperties.put("fontcolor", entry.getValue());
+	            	writeProperty(generator, "Lane", "fontcolor", entry.getValue());
 	            	foundFontColor = true;
 	            }
 	        }
 	        if(!foundBgColor) {
-	        	laneProperties.put("bgcolor", defaultBgColor_Events);
+	        	writeProperty(generator, "Lane", "bgcolor", defaultBgColor_Events);
 	        }
 	        
 	        if(!foundBrColor) {
-	        	laneProperties.put("bordercolor", defaultBrColor);
+	        	writeProperty(generator, "Lane", "bordercolor", defaultBrColor);
 	        }
 	        
 	        if(!foundFontColor) {
-	        	laneProperties.put("fontcolor", defaultFontColor);
+	        	writeProperty(generator, "Lane", "fontcolor", defaultFontColor);
 	        }
-	    	
-	    	marshallProperties(laneProperties, generator);
+	        generator.writeEndObject();
 	    	generator.writeObjectFieldStart("stencil");
 	    	generator.writeObjectField("id", "Lane");
 		    generator.writeEndObject();
@@ -678,7 +739,7 @@ public class Bpmn2JsonMarshaller {
 		    for (FlowElement flowElement: lane.getFlowNodeRefs()) {
 		    	nodeRefIds.add(flowElement.getId());
 		    	// we dont want an offset here!
-		    	marshallFlowElement(flowElement, plane, generator, 0, 0, preProcessingData, def);
+		    	marshallFlowElement(flowElement, plane, generator, context, 0, 0);
 		    }
 		    generator.writeEndArray();
 		    generator.writeArrayFieldStart("outgoing");
@@ -699,18 +760,27 @@ public class Bpmn2JsonMarshaller {
     		for (FlowElement flowElement: lane.getFlowNodeRefs()) {
 		    	nodeRefIds.add(flowElement.getId());
 		    	// we dont want an offset here!
-		    	marshallFlowElement(flowElement, plane, generator, 0, 0, preProcessingData, def);
+		    	marshallFlowElement(flowElement, plane, generator, context, 0, 0);
 		    }
     	}
     	
     	return nodeRefIds;
     }
     
-    protected void marshallFlowElement(FlowElement flowElement, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, String preProcessingData, Definitions def) throws JsonGenerationException, IOException {
+    protected void marshallFlowElement(FlowElement flowElement, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset) throws JsonGenerationException, IOException {
     	generator.writeStartObject();
     	generator.writeObjectField("resourceId", flowElement.getId());
+    	Bpmn2ElementKind kind = Bpmn2ElementKind.of(flowElement);
+    	if (kind == Bpmn2ElementKind.SEQUENCE_FLOW) {
+    		// a sequence flow writes its properties itself, without the colors of the nodes
+    		marshallSequenceFlow((SequenceFlow) flowElement, plane, generator, context, xOffset, yOffset);
+    		generator.writeEndObject();
+    		return;
+    	}
     	
-    	Map<String, Object> flowElementProperties = new LinkedHashMap<String, Object>();
+    	// the properties of the nodes are read and replaced by the methods of each
+    	// kind of node and by the custom task handlers before they are written
+    	Bpmn2PropertyBuffer flowElementProperties = context.acquireProperties();
     	Iterator<FeatureMap.Entry> iter = flowElement.getAnyAttribute().iterator();
     	boolean foundBgColor = false;
     	boolean foundBrColor = false;
@@ -750,81 +820,102 @@ public class Bpmn2JsonMarshaller {
         	flowElementProperties.put("fontcolor", defaultFontColor);
         }
 
-        Map<String, Object> catchEventProperties = new LinkedHashMap<String, Object>(flowElementProperties);
-    	Map<String, Object> throwEventProperties = new LinkedHashMap<String, Object>(flowElementProperties);
-    	if(flowElement instanceof CatchEvent) {
-    	    setCatchEventProperties((CatchEvent) flowElement, catchEventProperties);
-    	}
-    	if(flowElement instanceof ThrowEvent) {
-    	    setThrowEventProperties((ThrowEvent) flowElement, throwEventProperties);
-    	}
-    	if (flowElement instanceof StartEvent) {
-    		marshallStartEvent((StartEvent) flowElement, plane, generator, xOffset, yOffset, catchEventProperties);
-    	} else if (flowElement instanceof EndEvent) {
-    		marshallEndEvent((EndEvent) flowElement, plane, generator, xOffset, yOffset, throwEventProperties);
-    	} else if (flowElement instanceof IntermediateThrowEvent) {
-    		marshallIntermediateThrowEvent((IntermediateThrowEvent) flowElement, plane, generator, xOffset, yOffset, throwEventProperties);
-    	} else if (flowElement instanceof IntermediateCatchEvent) {
-    		marshallIntermediateCatchEvent((IntermediateCatchEvent) flowElement, plane, generator, xOffset, yOffset, catchEventProperties);
-    	} else if (flowElement instanceof BoundaryEvent) {
-    		marshallBoundaryEvent((BoundaryEvent) flowElement, plane, generator, xOffset, yOffset, catchEventProperties);
-    	} else if (flowElement instanceof Task) {
-    		marshallTask((Task) flowElement, plane, generator, xOffset, yOffset, preProcessingData, def, flowElementProperties);
-    	} else if (flowElement instanceof SequenceFlow) {
-    		marshallSequenceFlow((SequenceFlow) flowElement, plane, generator, xOffset, yOffset);
-    	} else if (flowElement instanceof ParallelGateway) {
-    		marshallParallelGateway((ParallelGateway) flowElement, plane, generator, xOffset, yOffset, flowElementProperties);
-    	} else if (flowElement instanceof ExclusiveGateway) {
-    		marshallExclusiveGateway((ExclusiveGateway) flowElement, plane, generator, xOffset, yOffset, flowElementProperties);
-    	} else if (flowElement instanceof InclusiveGateway) {
-    		marshallInclusiveGateway((InclusiveGateway) flowElement, plane, generator, xOffset, yOffset, flowElementProperties);
-    	} else if (flowElement instanceof EventBasedGateway) {
-    		marshallEventBasedGateway((EventBasedGateway) flowElement, plane, generator, xOffset, yOffset, flowElementProperties);
-    	} else if (flowElement instanceof ComplexGateway) {
-    		marshallComplexGateway((ComplexGateway) flowElement, plane, generator, xOffset, yOffset, flowElementProperties);
-    	} else if (flowElement instanceof CallActivity) {
-    		marshallCallActivity((CallActivity) flowElement, plane, generator, xOffset, yOffset, flowElementProperties);
-    	} else if (flowElement instanceof SubProcess) {
-    	    if(flowElement instanceof AdHocSubProcess) {
-    	        marshallSubProcess((AdHocSubProcess) flowElement, plane, generator, xOffset, yOffset, preProcessingData, def, flowElementProperties);
-    	    } else {
-    	        marshallSubProcess((SubProcess) flowElement, plane, generator, xOffset, yOffset, preProcessingData, def, flowElementProperties);
-    	    }
-    	} else if (flowElement instanceof DataObject) {
+    	// the event properties are only set for the kind of event they are written for
+    	switch (kind) {
+    	case START_EVENT:
+    		marshallStartEvent((StartEvent) flowElement, plane, generator, context, xOffset, yOffset, catchEventProperties(flowElement, flowElementProperties, context));
+    		break;
+    	case END_EVENT:
+    		marshallEndEvent((EndEvent) flowElement, plane, generator, context, xOffset, yOffset, throwEventProperties(flowElement, flowElementProperties, context));
+    		break;
+    	case INTERMEDIATE_THROW_EVENT:
+    		marshallIntermediateThrowEvent((IntermediateThrowEvent) flowElement, plane, generator, context, xOffset, yOffset, throwEventProperties(flowElement, flowElementProperties, context));
+    		break;
+    	case INTERMEDIATE_CATCH_EVENT:
+    		marshallIntermediateCatchEvent((IntermediateCatchEvent) flowElement, plane, generator, context, xOffset, yOffset, catchEventProperties(flowElement, flowElementProperties, context));
+    		break;
+    	case BOUNDARY_EVENT:
+    		marshallBoundaryEvent((BoundaryEvent) flowElement, plane, generator, context, xOffset, yOffset, catchEventProperties(flowElement, flowElementProperties, context));
+    		break;
+    	case TASK:
+    	case BUSINESS_RULE_TASK:
+    	case SCRIPT_TASK:
+    	case SERVICE_TASK:
+    	case MANUAL_TASK:
+    	case USER_TASK:
+    	case SEND_TASK:
+    	case RECEIVE_TASK:
+    		marshallTask((Task) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
+    		break;
+    	case PARALLEL_GATEWAY:
+    		marshallParallelGateway((ParallelGateway) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
+    		break;
+    	case EXCLUSIVE_GATEWAY:
+    		marshallExclusiveGateway((ExclusiveGateway) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
+    		break;
+    	case INCLUSIVE_GATEWAY:
+    		marshallInclusiveGateway((InclusiveGateway) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
+    		break;
+    	case EVENT_BASED_GATEWAY:
+    		marshallEventBasedGateway((EventBasedGateway) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
+    		break;
+    	case COMPLEX_GATEWAY:
+    		marshallComplexGateway((ComplexGateway) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
+    		break;
+    	case CALL_ACTIVITY:
+    		marshallCallActivity((CallActivity) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
+    		break;
+    	case SUB_PROCESS:
+    	case AD_HOC_SUB_PROCESS:
+    		marshallSubProcess((SubProcess) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
+    		break;
+    	case DATA_OBJECT:
     		// only marshall if we can find DI info for it - BZ 800346
-    		if(findDiagramElement(plane, (DataObject) flowElement) != null) {
-    			marshallDataObject((DataObject) flowElement, plane, generator, xOffset, yOffset, flowElementProperties);
+    		if(findDiagramElement(context, plane, (DataObject) flowElement) != null) {
+    			marshallDataObject((DataObject) flowElement, plane, generator, context, xOffset, yOffset, flowElementProperties);
     		} else {
     			_logger.info("Could not marshall Data Object " + (DataObject) flowElement + " because no DI information could be found.");
     		}
-    	} else {
+    		break;
+    	default:
     		throw new UnsupportedOperationException("Unknown flow element " + flowElement);
     	}
+    	context.releaseProperties(flowElementProperties);
     	generator.writeEndObject();
     }
     
-    protected void marshallStartEvent(StartEvent startEvent, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> properties) throws JsonGenerationException, IOException {
+    private Map<String, Object> catchEventProperties(FlowElement flowElement, Map<String, Object> flowElementProperties, Bpmn2MarshallingContext context) {
+    	setCatchEventProperties((CatchEvent) flowElement, flowElementProperties, context);
+    	return flowElementProperties;
+    }
+    
+    private Map<String, Object> throwEventProperties(FlowElement flowElement, Map<String, Object> flowElementProperties, Bpmn2MarshallingContext context) {
+    	setThrowEventProperties((ThrowEvent) flowElement, flowElementProperties, context);
+    	return flowElementProperties;
+    }
+    
+    protected void marshallStartEvent(StartEvent startEvent, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> properties) throws JsonGenerationException, IOException {
         List<EventDefinition> eventDefinitions = startEvent.getEventDefinitions();
     	if (eventDefinitions == null || eventDefinitions.size() == 0) {
-    		marshallNode(startEvent, properties, "StartNoneEvent", plane, generator, xOffset, yOffset);
+    		marshallNode(startEvent, properties, "StartNoneEvent", plane, generator, context, xOffset, yOffset);
     	} else if (eventDefinitions.size() == 1) {
     		EventDefinition eventDefinition = eventDefinitions.get(0);
     		if (eventDefinition instanceof ConditionalEventDefinition) {
-    			marshallNode(startEvent, properties, "StartConditionalEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(startEvent, properties, "StartConditionalEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof SignalEventDefinition) {
-    			marshallNode(startEvent, properties, "StartSignalEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(startEvent, properties, "StartSignalEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof MessageEventDefinition) {
-    			marshallNode(startEvent, properties, "StartMessageEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(startEvent, properties, "StartMessageEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof TimerEventDefinition) {
-    			marshallNode(startEvent, properties, "StartTimerEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(startEvent, properties, "StartTimerEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof ErrorEventDefinition) {
-    		    marshallNode(startEvent, properties, "StartErrorEvent", plane, generator, xOffset, yOffset);
+    		    marshallNode(startEvent, properties, "StartErrorEvent", plane, generator, context, xOffset, yOffset);
     		} else if(eventDefinition instanceof ConditionalEventDefinition) {
-    		    marshallNode(startEvent, properties, "StartConditionalEvent", plane, generator, xOffset, yOffset);
+    		    marshallNode(startEvent, properties, "StartConditionalEvent", plane, generator, context, xOffset, yOffset);
     		} else if(eventDefinition instanceof EscalationEventDefinition) {
-                marshallNode(startEvent, properties, "StartEscalationEvent", plane, generator, xOffset, yOffset);
+                marshallNode(startEvent, properties, "StartEscalationEvent", plane, generator, context, xOffset, yOffset);
             } else if(eventDefinition instanceof CompensateEventDefinition) {
-                marshallNode(startEvent, properties, "StartCompensationEvent", plane, generator, xOffset, yOffset);
+                marshallNode(startEvent, properties, "StartCompensationEvent", plane, generator, context, xOffset, yOffset);
             }
     		else {
     			throw new UnsupportedOperationException("Event definition not supported: " + eventDefinition);
@@ -834,24 +925,24 @@ public class Bpmn2JsonMarshaller {
     	}
     }
     
-    protected void marshallEndEvent(EndEvent endEvent, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> properties) throws JsonGenerationException, IOException {
+    protected void marshallEndEvent(EndEvent endEvent, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> properties) throws JsonGenerationException, IOException {
     	List<EventDefinition> eventDefinitions = endEvent.getEventDefinitions();
     	if (eventDefinitions == null || eventDefinitions.size() == 0) {
-    		marshallNode(endEvent, properties, "EndNoneEvent", plane, generator, xOffset, yOffset);
+    		marshallNode(endEvent, properties, "EndNoneEvent", plane, generator, context, xOffset, yOffset);
     	} else if (eventDefinitions.size() == 1) {
     		EventDefinition eventDefinition = eventDefinitions.get(0);
     		if (eventDefinition instanceof TerminateEventDefinition) {
-    			marshallNode(endEvent, properties, "EndTerminateEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(endEvent, properties, "EndTerminateEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof SignalEventDefinition) {
-    			marshallNode(endEvent, properties, "EndSignalEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(endEvent, properties, "EndSignalEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof MessageEventDefinition) {
-    			marshallNode(endEvent, properties, "EndMessageEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(endEvent, properties, "EndMessageEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof ErrorEventDefinition) {
-    			marshallNode(endEvent, properties, "EndErrorEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(endEvent, properties, "EndErrorEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof EscalationEventDefinition) {
-    			marshallNode(endEvent, properties, "EndEscalationEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(endEvent, properties, "EndEscalationEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof CompensateEventDefinition) {
-    			marshallNode(endEvent, properties, "EndCompensationEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(endEvent, properties, "EndCompensationEvent", plane, generator, context, xOffset, yOffset);
     		} else {
     			throw new UnsupportedOperationException("Event definition not supported: " + eventDefinition);
     		}
@@ -860,24 +951,24 @@ public class Bpmn2JsonMarshaller {
     	}
     }
     
-    protected void marshallIntermediateCatchEvent(IntermediateCatchEvent catchEvent, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> properties) throws JsonGenerationException, IOException {
+    protected void marshallIntermediateCatchEvent(IntermediateCatchEvent catchEvent, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> properties) throws JsonGenerationException, IOException {
     	List<EventDefinition> eventDefinitions = catchEvent.getEventDefinitions();
     	if (eventDefinitions.size() == 1) {
     		EventDefinition eventDefinition = eventDefinitions.get(0);
     		if (eventDefinition instanceof SignalEventDefinition) {
-    			marshallNode(catchEvent, properties, "IntermediateSignalEventCatching", plane, generator, xOffset, yOffset);
+    			marshallNode(catchEvent, properties, "IntermediateSignalEventCatching", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof MessageEventDefinition) {
-    			marshallNode(catchEvent, properties, "IntermediateMessageEventCatching", plane, generator, xOffset, yOffset);
+    			marshallNode(catchEvent, properties, "IntermediateMessageEventCatching", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof TimerEventDefinition) {
-    			marshallNode(catchEvent, properties, "IntermediateTimerEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(catchEvent, properties, "IntermediateTimerEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof ConditionalEventDefinition) {
-    			marshallNode(catchEvent, properties, "IntermediateConditionalEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(catchEvent, properties, "IntermediateConditionalEvent", plane, generator, context, xOffset, yOffset);
     		} else if(eventDefinition instanceof ErrorEventDefinition) {
-    		    marshallNode(catchEvent, properties, "IntermediateErrorEvent", plane, generator, xOffset, yOffset);
+    		    marshallNode(catchEvent, properties, "IntermediateErrorEvent", plane, generator, context, xOffset, yOffset);
     		} else if(eventDefinition instanceof EscalationEventDefinition) {
-                marshallNode(catchEvent, properties, "IntermediateEscalationEvent", plane, generator, xOffset, yOffset);
+                marshallNode(catchEvent, properties, "IntermediateEscalationEvent", plane, generator, context, xOffset, yOffset);
             } else if(eventDefinition instanceof CompensateEventDefinition) {
-                marshallNode(catchEvent, properties, "IntermediateCompensationEventCatching", plane, generator, xOffset, yOffset);
+                marshallNode(catchEvent, properties, "IntermediateCompensationEventCatching", plane, generator, context, xOffset, yOffset);
             } 
     		else {
     			throw new UnsupportedOperationException("Event definition not supported: " + eventDefinition);
@@ -887,7 +978,7 @@ public class Bpmn2JsonMarshaller {
     	}
     }
     
-    protected void marshallBoundaryEvent(BoundaryEvent boundaryEvent, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> catchEventProperties) throws JsonGenerationException, IOException {
+    protected void marshallBoundaryEvent(BoundaryEvent boundaryEvent, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> catchEventProperties) throws JsonGenerationException, IOException {
     	List<EventDefinition> eventDefinitions = boundaryEvent.getEventDefinitions();
     	if(boundaryEvent.isCancelActivity()) {
     		catchEventProperties.put("boundarycancelactivity", "true");
@@ -897,19 +988,19 @@ public class Bpmn2JsonMarshaller {
     	if (eventDefinitions.size() == 1) {
     		EventDefinition eventDefinition = eventDefinitions.get(0);
     		if (eventDefinition instanceof SignalEventDefinition) {
-    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateSignalEventCatching", plane, generator, xOffset, yOffset);
+    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateSignalEventCatching", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof EscalationEventDefinition) {
-    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateEscalationEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateEscalationEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof ErrorEventDefinition) {
-    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateErrorEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateErrorEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof TimerEventDefinition) {
-    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateTimerEvent", plane, generator, xOffset, yOffset);
+    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateTimerEvent", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof CompensateEventDefinition) {
-    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateCompensationEventCatching", plane, generator, xOffset, yOffset);
+    			marshallNode(boundaryEvent, catchEventProperties, "IntermediateCompensationEventCatching", plane, generator, context, xOffset, yOffset);
     		} else if(eventDefinition instanceof ConditionalEventDefinition) {
-    		    marshallNode(boundaryEvent, catchEventProperties, "IntermediateConditionalEvent", plane, generator, xOffset, yOffset);
+    		    marshallNode(boundaryEvent, catchEventProperties, "IntermediateConditionalEvent", plane, generator, context, xOffset, yOffset);
     		} else if(eventDefinition instanceof MessageEventDefinition) {
-    		    marshallNode(boundaryEvent, catchEventProperties, "IntermediateMessageEventCatching", plane, generator, xOffset, yOffset);
+    		    marshallNode(boundaryEvent, catchEventProperties, "IntermediateMessageEventCatching", plane, generator, context, xOffset, yOffset);
     		}else {
     			throw new UnsupportedOperationException("Event definition not supported: " + eventDefinition);
     		}
@@ -918,20 +1009,20 @@ public class Bpmn2JsonMarshaller {
     	}
     }
     
-    protected void marshallIntermediateThrowEvent(IntermediateThrowEvent throwEvent, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> properties) throws JsonGenerationException, IOException {
+    protected void marshallIntermediateThrowEvent(IntermediateThrowEvent throwEvent, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> properties) throws JsonGenerationException, IOException {
     	List<EventDefinition> eventDefinitions = throwEvent.getEventDefinitions();
     	if (eventDefinitions.size() == 0) {
-			marshallNode(throwEvent, properties, "IntermediateEvent", plane, generator, xOffset, yOffset);
+			marshallNode(throwEvent, properties, "IntermediateEvent", plane, generator, context, xOffset, yOffset);
     	} else if (eventDefinitions.size() == 1) {
     		EventDefinition eventDefinition = eventDefinitions.get(0);
     		if (eventDefinition instanceof SignalEventDefinition) {
-    			marshallNode(throwEvent, properties, "IntermediateSignalEventThrowing", plane, generator, xOffset, yOffset);
+    			marshallNode(throwEvent, properties, "IntermediateSignalEventThrowing", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof MessageEventDefinition) {
-    			marshallNode(throwEvent, properties, "IntermediateMessageEventThrowing", plane, generator, xOffset, yOffset);
+    			marshallNode(throwEvent, properties, "IntermediateMessageEventThrowing", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof EscalationEventDefinition) {
-    			marshallNode(throwEvent, properties, "IntermediateEscalationEventThrowing", plane, generator, xOffset, yOffset);
+    			marshallNode(throwEvent, properties, "IntermediateEscalationEventThrowing", plane, generator, context, xOffset, yOffset);
     		} else if (eventDefinition instanceof CompensateEventDefinition) {
-    			marshallNode(throwEvent, properties, "IntermediateCompensationEventThrowing", plane, generator, xOffset, yOffset);
+    			marshallNode(throwEvent, properties, "IntermediateCompensationEventThrowing", plane, generator, context, xOffset, yOffset);
     		} else {
     			throw new UnsupportedOperationException("Event definition not supported: " + eventDefinition);
     		}
@@ -940,8 +1031,8 @@ public class Bpmn2JsonMarshaller {
     	}
     }
     
-    protected void marshallCallActivity(CallActivity callActivity, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
-    	Map<String, Object> properties = new LinkedHashMap<String, Object>(flowElementProperties);
+    protected void marshallCallActivity(CallActivity callActivity, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+    	Map<String, Object> properties = flowElementProperties;
     	
     	Iterator<FeatureMap.Entry> iter = callActivity.getAnyAttribute().iterator();
         while(iter.hasNext()) {
@@ -962,7 +1053,7 @@ public class Bpmn2JsonMarshaller {
         // data inputs
         if(callActivity.getIoSpecification() != null) {
             List<InputSet> inputSetList = callActivity.getIoSpecification().getInputSets();
-            StringBuilder dataInBuffer = new StringBuilder();
+            StringBuilder dataInBuffer = context.scratch(0);
             for(InputSet inset : inputSetList) {
                 List<DataInput> dataInputList =  inset.getDataInputRefs();
                 for(DataInput dataIn : dataInputList) {
@@ -984,7 +1075,7 @@ public class Bpmn2JsonMarshaller {
         // data outputs
         if(callActivity.getIoSpecification() != null) {
             List<OutputSet> outputSetList = callActivity.getIoSpecification().getOutputSets();
-            StringBuilder dataOutBuffer = new StringBuilder();
+            StringBuilder dataOutBuffer = context.scratch(0);
             for(OutputSet outset : outputSetList) {
                 List<DataOutput> dataOutputList =  outset.getDataOutputRefs();
                 for(DataOutput dataOut : dataOutputList) {
@@ -1002,7 +1093,7 @@ public class Bpmn2JsonMarshaller {
         }
         
         // assignments
-        StringBuilder associationBuff = new StringBuilder();
+        StringBuilder associationBuff = context.scratch(0);
         List<DataInputAssociation> inputAssociations = callActivity.getDataInputAssociations();
         List<DataOutputAssociation> outputAssociations = callActivity.getDataOutputAssociations();
         List<String> uniDirectionalAssociations = new ArrayList<String>();
@@ -1098,8 +1189,8 @@ public class Bpmn2JsonMarshaller {
         // on-entry and on-exit actions
         if(callActivity.getExtensionValues() != null && callActivity.getExtensionValues().size() > 0) {
             
-            String onEntryStr = "";
-            String onExitStr = "";
+            StringBuilder onEntryBuff = context.scratch(0);
+            StringBuilder onExitBuff = context.scratch(1);
             for(ExtensionAttributeValue extattrval : callActivity.getExtensionValues()) {
             
                 FeatureMap extensionElements = extattrval.getValue();
@@ -1113,8 +1204,8 @@ public class Bpmn2JsonMarshaller {
                                                   .get(DroolsPackage.Literals.DOCUMENT_ROOT__ON_EXIT_SCRIPT, true);
             
                 for(OnEntryScriptType onEntryScript : onEntryExtensions) {
-                    onEntryStr += onEntryScript.getScript();
-                    onEntryStr += "|";
+                    onEntryBuff.append(onEntryScript.getScript());
+                    onEntryBuff.append("|");
                 
                     if(onEntryScript.getScriptFormat() != null) {
                         String format = onEntryScript.getScriptFormat();
@@ -1131,8 +1222,8 @@ public class Bpmn2JsonMarshaller {
                 }
                 
                 for(OnExitScriptType onExitScript : onExitExtensions) {
-                    onExitStr += onExitScript.getScript();
-                    onExitStr += "|";
+                    onExitBuff.append(onExitScript.getScript());
+                    onExitBuff.append("|");
                     
                     if(onExitScript.getScriptFormat() != null) {
                         String format = onExitScript.getScriptFormat();
@@ -1150,6 +1241,8 @@ public class Bpmn2JsonMarshaller {
                     }
                 }
             }
+            String onEntryStr = onEntryBuff.toString();
+            String onExitStr = onExitBuff.toString();
             if(onEntryStr.length() > 0) {
                 if(onEntryStr.endsWith("|")) {
                     onEntryStr = onEntryStr.substring(0, onEntryStr.length() - 1);
@@ -1164,13 +1257,14 @@ public class Bpmn2JsonMarshaller {
             }
         }
     	
-        marshallNode(callActivity, properties, "ReusableSubprocess", plane, generator, xOffset, yOffset);
+        marshallNode(callActivity, properties, "ReusableSubprocess", plane, generator, context, xOffset, yOffset);
     }
     
-    protected void marshallTask(Task task, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, String preProcessingData, Definitions def, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
-        Map<String, Object> properties = new LinkedHashMap<String, Object>(flowElementProperties);
+    protected void marshallTask(Task task, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+        Map<String, Object> properties = flowElementProperties;
     	String taskType = "None";
-    	if (task instanceof BusinessRuleTask) {
+    	switch (Bpmn2ElementKind.of(task)) {
+    	case BUSINESS_RULE_TASK: {
     		taskType = "Business Rule";
     		Iterator<FeatureMap.Entry> iter = task.getAnyAttribute().iterator();
             while(iter.hasNext()) {
@@ -1179,7 +1273,9 @@ public class Bpmn2JsonMarshaller {
                     properties.put("ruleflowgroup", entry.getValue());
                 }
             }
-    	} else if (task instanceof ScriptTask) {
+            break;
+    	}
+    	case SCRIPT_TASK: {
     		ScriptTask scriptTask = (ScriptTask) task;
     		properties.put("script", scriptTask.getScript() != null ? scriptTask.getScript() : "");
     		String format = scriptTask.getScriptFormat();
@@ -1196,7 +1292,9 @@ public class Bpmn2JsonMarshaller {
                 properties.put("script_language", formatToWrite);
     		}
     		taskType = "Script";
-    	} else if (task instanceof ServiceTask) {
+    		break;
+    	}
+    	case SERVICE_TASK: {
     		taskType = "Service";
     		ServiceTask serviceTask = (ServiceTask) task;
     		if(serviceTask.getOperationRef() != null) {
@@ -1204,8 +1302,8 @@ public class Bpmn2JsonMarshaller {
     		    if(oper.getName() != null) {
     		        properties.put("operation", oper.getName());
     		    }
-    		    if(def != null) {
-    		        List<RootElement> roots = def.getRootElements();
+    		    if(context.getDefinitions() != null) {
+    		        List<RootElement> roots = context.getDefinitions().getRootElements();
     		        for(RootElement root : roots) {
     		            if(root instanceof Interface) {
     		                Interface inter = (Interface) root;
@@ -1219,9 +1317,12 @@ public class Bpmn2JsonMarshaller {
     		        }
     		    }
     		}
-    	} else if (task instanceof ManualTask) {
+    		break;
+    	}
+    	case MANUAL_TASK:
     		taskType = "Manual";
-    	} else if (task instanceof UserTask) {
+    		break;
+    	case USER_TASK: {
     		taskType = "User";
     		// get the user task actors
     		List<ResourceRole> roles = task.getResources();
@@ -1239,18 +1340,26 @@ public class Bpmn2JsonMarshaller {
     		    sb.setLength(sb.length() - 1);
     		}
     		properties.put("actors", sb.toString());
-    	} else if (task instanceof SendTask) {
+    		break;
+    	}
+    	case SEND_TASK: {
     		taskType = "Send";
     		SendTask st = (SendTask) task;
     		if(st.getMessageRef() != null) {
     			properties.put("messageref", st.getMessageRef().getId());
     		}
-    	} else if (task instanceof ReceiveTask) {
+    		break;
+    	}
+    	case RECEIVE_TASK: {
     		taskType = "Receive";
     		ReceiveTask rt = (ReceiveTask) task;
     		if(rt.getMessageRef() != null) {
     			properties.put("messageref", rt.getMessageRef().getId());
     		}
+    		break;
+    	}
+    	default:
+    		break;
     	}
     	
     	// get out the droolsjbpm-specific attributes "ruleflowGroup" and "taskName"
@@ -1263,7 +1372,8 @@ public class Bpmn2JsonMarshaller {
         }
         
         // check if we are dealing with a custom task
-        if(isCustomElement((String) properties.get("taskname"), preProcessingData)) {
+        boolean customTask = context.isCustomTaskType((String) properties.get("taskname"));
+        if(customTask) {
             properties.put("tasktype", properties.get("taskname"));
         } else {
             properties.put("tasktype", taskType);
@@ -1277,7 +1387,7 @@ public class Bpmn2JsonMarshaller {
         DataInput priorityDataInput = null;
         if(task.getIoSpecification() != null) {
             List<InputSet> inputSetList = task.getIoSpecification().getInputSets();
-            StringBuilder dataInBuffer = new StringBuilder();
+            StringBuilder dataInBuffer = context.scratch(0);
             for(InputSet inset : inputSetList) {
                 List<DataInput> dataInputList =  inset.getDataInputRefs();
                 for(DataInput dataIn : dataInputList) {
@@ -1315,7 +1425,7 @@ public class Bpmn2JsonMarshaller {
         // data outputs
         if(task.getIoSpecification() != null) {
             List<OutputSet> outputSetList = task.getIoSpecification().getOutputSets();
-            StringBuilder dataOutBuffer = new StringBuilder();
+            StringBuilder dataOutBuffer = context.scratch(0);
             for(OutputSet outset : outputSetList) {
                 List<DataOutput> dataOutputList =  outset.getDataOutputRefs();
                 for(DataOutput dataOut : dataOutputList) {
@@ -1333,7 +1443,7 @@ public class Bpmn2JsonMarshaller {
         }
         
         // assignments
-        StringBuilder associationBuff = new StringBuilder();
+        StringBuilder associationBuff = context.scratch(0);
         List<DataInputAssociation> inputAssociations = task.getDataInputAssociations();
         List<DataOutputAssociation> outputAssociations = task.getDataOutputAssociations();
         List<String> uniDirectionalAssociations = new ArrayList<String>();
@@ -1456,8 +1566,8 @@ public class Bpmn2JsonMarshaller {
         // on-entry and on-exit actions
         if(task.getExtensionValues() != null && task.getExtensionValues().size() > 0) {
             
-            String onEntryStr = "";
-            String onExitStr = "";
+            StringBuilder onEntryBuff = context.scratch(0);
+            StringBuilder onExitBuff = context.scratch(1);
             for(ExtensionAttributeValue extattrval : task.getExtensionValues()) {
             
                 FeatureMap extensionElements = extattrval.getValue();
@@ -1471,8 +1581,8 @@ public class Bpmn2JsonMarshaller {
                                                   .get(DroolsPackage.Literals.DOCUMENT_ROOT__ON_EXIT_SCRIPT, true);
             
                 for(OnEntryScriptType onEntryScript : onEntryExtensions) {
-                    onEntryStr += onEntryScript.getScript();
-                    onEntryStr += "|";
+                    onEntryBuff.append(onEntryScript.getScript());
+                    onEntryBuff.append("|");
                 
                     if(onEntryScript.getScriptFormat() != null) {
                         String format = onEntryScript.getScriptFormat();
@@ -1489,8 +1599,8 @@ public class Bpmn2JsonMarshaller {
                 }
                 
                 for(OnExitScriptType onExitScript : onExitExtensions) {
-                    onExitStr += onExitScript.getScript();
-                    onExitStr += "|";
+                    onExitBuff.append(onExitScript.getScript());
+                    onExitBuff.append("|");
                     
                     if(onExitScript.getScriptFormat() != null) {
                         String format = onExitScript.getScriptFormat();
@@ -1508,6 +1618,8 @@ public class Bpmn2JsonMarshaller {
                     }
                 }
             }
+            String onEntryStr = onEntryBuff.toString();
+            String onExitStr = onExitBuff.toString();
             if(onEntryStr.length() > 0) {
                 if(onEntryStr.endsWith("|")) {
                     onEntryStr = onEntryStr.substring(0, onEntryStr.length() - 1);
@@ -1523,40 +1635,44 @@ public class Bpmn2JsonMarshaller {
         }
         
         // marshall the node out
-        if(isCustomElement((String) properties.get("taskname"), preProcessingData)) {
-            marshallNode(task, properties, (String) properties.get("taskname"), plane, generator, xOffset, yOffset);
+        if(customTask) {
+            Bpmn2CustomTaskHandler handler = _customTaskHandlers.get(properties.get("taskname"));
+            if(handler != null) {
+                handler.marshallProperties(task, properties);
+            }
+            marshallNode(task, properties, (String) properties.get("taskname"), plane, generator, context, xOffset, yOffset);
         } else {
-            marshallNode(task, properties, "Task", plane, generator, xOffset, yOffset);
+            marshallNode(task, properties, "Task", plane, generator, context, xOffset, yOffset);
         }
     }
     
-    protected void marshallParallelGateway(ParallelGateway gateway, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
-    	marshallNode(gateway, flowElementProperties, "ParallelGateway", plane, generator, xOffset, yOffset);
+    protected void marshallParallelGateway(ParallelGateway gateway, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+    	marshallNode(gateway, flowElementProperties, "ParallelGateway", plane, generator, context, xOffset, yOffset);
     }
     
-    protected void marshallExclusiveGateway(ExclusiveGateway gateway, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+    protected void marshallExclusiveGateway(ExclusiveGateway gateway, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
     	if(gateway.getDefault() != null) {
     		flowElementProperties.put("defaultgate", gateway.getDefault().getId());
     	}
-    	marshallNode(gateway, flowElementProperties, "Exclusive_Databased_Gateway", plane, generator, xOffset, yOffset);
+    	marshallNode(gateway, flowElementProperties, "Exclusive_Databased_Gateway", plane, generator, context, xOffset, yOffset);
     }
     
-    protected void marshallInclusiveGateway(InclusiveGateway gateway, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+    protected void marshallInclusiveGateway(InclusiveGateway gateway, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
     	if(gateway.getDefault() != null) {
     		flowElementProperties.put("defaultgate", gateway.getDefault().getId());
     	}
-    	marshallNode(gateway, flowElementProperties, "InclusiveGateway", plane, generator, xOffset, yOffset);
+    	marshallNode(gateway, flowElementProperties, "InclusiveGateway", plane, generator, context, xOffset, yOffset);
     }
     
-    protected void marshallEventBasedGateway(EventBasedGateway gateway, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
-    	marshallNode(gateway, flowElementProperties, "EventbasedGateway", plane, generator, xOffset, yOffset);
+    protected void marshallEventBasedGateway(EventBasedGateway gateway, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+    	marshallNode(gateway, flowElementProperties, "EventbasedGateway", plane, generator, context, xOffset, yOffset);
     }
     
-    protected void marshallComplexGateway(ComplexGateway gateway, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
-    	marshallNode(gateway, flowElementProperties, "ComplexGateway", plane, generator, xOffset, yOffset);
+    protected void marshallComplexGateway(ComplexGateway gateway, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+    	marshallNode(gateway, flowElementProperties, "ComplexGateway", plane, generator, context, xOffset, yOffset);
     }
     
-    protected void marshallNode(FlowNode node, Map<String, Object> properties, String stencil, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset) throws JsonGenerationException, IOException {
+    protected void marshallNode(FlowNode node, Map<String, Object> properties, String stencil, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset) throws JsonGenerationException, IOException {
     	if (properties == null) {
     		properties = new LinkedHashMap<String, Object>();
     	}
@@ -1568,7 +1684,7 @@ public class Bpmn2JsonMarshaller {
         } else {
         	properties.put("name", "");
         }
-        marshallProperties(properties, generator);
+        marshallProperties(properties, stencil, generator);
         generator.writeObjectFieldStart("stencil");
         generator.writeObjectField("id", stencil);
         generator.writeEndObject();
@@ -1581,52 +1697,42 @@ public class Bpmn2JsonMarshaller {
         	generator.writeEndObject();
         }
         // we need to also add associations as outgoing elements
-        Process process = (Process) plane.getBpmnElement();
-        for (Artifact artifact : process.getArtifacts()) {
-        	if (artifact instanceof Association){
-                Association association = (Association) artifact;
-                if (association.getSourceRef().getId().equals(node.getId())) {
-                	generator.writeStartObject();
-                	generator.writeObjectField("resourceId", association.getId());
-                	generator.writeEndObject();
-                }
-        	}
+        Bpmn2DiagramIndex index = context.getIndex(plane);
+        for (Association association : index.getOutgoingAssociations(node)) {
+        	generator.writeStartObject();
+        	generator.writeObjectField("resourceId", association.getId());
+        	generator.writeEndObject();
         }
         // and boundary events for activities
-        for(FlowElement fe : process.getFlowElements()) {
-        	if(fe instanceof BoundaryEvent) {
-        		if(((BoundaryEvent) fe).getAttachedToRef().getId().equals(node.getId())) {
-        			generator.writeStartObject();
-                    generator.writeObjectField("resourceId", fe.getId());
-                    generator.writeEndObject();
-        		}
-        	}
+        for (BoundaryEvent boundaryEvent : index.getBoundaryEvents(node)) {
+        	generator.writeStartObject();
+        	generator.writeObjectField("resourceId", boundaryEvent.getId());
+        	generator.writeEndObject();
         }
         generator.writeEndArray();
         
         // boundary events have a docker
         if(node instanceof BoundaryEvent) {
         	// find the edge associated with this boundary event
-        	for (DiagramElement element: plane.getPlaneElement()) {
-        		if(element instanceof BPMNEdge && ((BPMNEdge) element).getBpmnElement() == node) {
-        			List<Point> waypoints = ((BPMNEdge) element).getWaypoint();
-        			if(waypoints != null && waypoints.size() > 0) {
-                		// one per boundary event
-                		Point p = waypoints.get(0);
-                		if(p != null) {
-                			generator.writeArrayFieldStart("dockers");
-                            generator.writeStartObject();
-                            generator.writeObjectField("x", p.getX());
-                            generator.writeObjectField("y", p.getY());
-                            generator.writeEndObject();
-                            generator.writeEndArray();
-                		}
-                	}
+        	BPMNEdge edge = index.getEdge(node);
+        	if(edge != null) {
+        		List<Point> waypoints = edge.getWaypoint();
+        		if(waypoints != null && waypoints.size() > 0) {
+        			// one per boundary event
+        			Point p = waypoints.get(0);
+        			if(p != null) {
+        				generator.writeArrayFieldStart("dockers");
+        				generator.writeStartObject();
+        				generator.writeObjectField("x", p.getX());
+        				generator.writeObjectField("y", p.getY());
+        				generator.writeEndObject();
+        				generator.writeEndArray();
+        			}
         		}
         	}
         }
         
-        BPMNShape shape = (BPMNShape) findDiagramElement(plane, node);
+        BPMNShape shape = (BPMNShape) findDiagramElement(context, plane, node);
         Bounds bounds = shape.getBounds();
         correctEventNodeSize(shape);
         generator.writeObjectFieldStart("bounds");
@@ -1674,8 +1780,8 @@ public class Bpmn2JsonMarshaller {
     	}
     }
     
-    protected void marshallDataObject(DataObject dataObject, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
-    	Map<String, Object> properties = new LinkedHashMap<String, Object>(flowElementProperties);
+    protected void marshallDataObject(DataObject dataObject, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+    	Map<String, Object> properties = flowElementProperties;
     	if(dataObject.getName() != null) {
     		properties.put("name", dataObject.getName());
     	} else {
@@ -1685,13 +1791,13 @@ public class Bpmn2JsonMarshaller {
 			properties.put("type", dataObject.getItemSubjectRef().getStructureRef());
 		}
 		
-		if(findOutgoingAssociation(plane, dataObject) != null) {
+		if(findOutgoingAssociation(context, plane, dataObject) != null) {
 			properties.put("input_output", "Input");
 		} else {
 			properties.put("input_output", "Output");
 		}
 	    
-		marshallProperties(properties, generator);
+		marshallProperties(properties, "DataObject", generator);
 	    
 		generator.writeObjectFieldStart("stencil");
 	    generator.writeObjectField("id", "DataObject");
@@ -1699,14 +1805,14 @@ public class Bpmn2JsonMarshaller {
 	    generator.writeArrayFieldStart("childShapes");
 	    generator.writeEndArray();
 	    generator.writeArrayFieldStart("outgoing");
-    	if(findOutgoingAssociation(plane, dataObject) != null) {
+    	if(findOutgoingAssociation(context, plane, dataObject) != null) {
     		generator.writeStartObject();
-    		generator.writeObjectField("resourceId", findOutgoingAssociation(plane, dataObject).getId());
+    		generator.writeObjectField("resourceId", findOutgoingAssociation(context, plane, dataObject).getId());
     		generator.writeEndObject();
     	}
 	    generator.writeEndArray();
 	    
-	    Bounds bounds = ((BPMNShape) findDiagramElement(plane, dataObject)).getBounds();
+	    Bounds bounds = ((BPMNShape) findDiagramElement(context, plane, dataObject)).getBounds();
 	    generator.writeObjectFieldStart("bounds");
 	    generator.writeObjectFieldStart("lowerRight");
 	    generator.writeObjectField("x", bounds.getX() + bounds.getWidth() - xOffset);
@@ -1719,8 +1825,8 @@ public class Bpmn2JsonMarshaller {
 	    generator.writeEndObject();
 	}
     
-    protected void marshallSubProcess(SubProcess subProcess, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, String preProcessingData, Definitions def, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
-    	Map<String, Object> properties = new LinkedHashMap<String, Object>(flowElementProperties);
+    protected void marshallSubProcess(SubProcess subProcess, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset, Map<String, Object> flowElementProperties) throws JsonGenerationException, IOException {
+    	Map<String, Object> properties = flowElementProperties;
 		if(subProcess.getName() != null) {
 			properties.put("name", subProcess.getName());
 		} else {
@@ -1744,7 +1850,7 @@ public class Bpmn2JsonMarshaller {
 		// data inputs
         if(subProcess.getIoSpecification() != null) {
             List<InputSet> inputSetList = subProcess.getIoSpecification().getInputSets();
-            StringBuilder dataInBuffer = new StringBuilder();
+            StringBuilder dataInBuffer = context.scratch(0);
             for(InputSet inset : inputSetList) {
                 List<DataInput> dataInputList =  inset.getDataInputRefs();
                 for(DataInput dataIn : dataInputList) {
@@ -1766,7 +1872,7 @@ public class Bpmn2JsonMarshaller {
         // data outputs
         if(subProcess.getIoSpecification() != null) {
             List<OutputSet> outputSetList = subProcess.getIoSpecification().getOutputSets();
-            StringBuilder dataOutBuffer = new StringBuilder();
+            StringBuilder dataOutBuffer = context.scratch(0);
             for(OutputSet outset : outputSetList) {
                 List<DataOutput> dataOutputList =  outset.getDataOutputRefs();
                 for(DataOutput dataOut : dataOutputList) {
@@ -1784,7 +1890,7 @@ public class Bpmn2JsonMarshaller {
         }
         
         // assignments
-        StringBuilder associationBuff = new StringBuilder();
+        StringBuilder associationBuff = context.scratch(0);
         List<DataInputAssociation> inputAssociations = subProcess.getDataInputAssociations();
         List<DataOutputAssociation> outputAssociations = subProcess.getDataOutputAssociations();
         List<String> uniDirectionalAssociations = new ArrayList<String>();
@@ -1880,8 +1986,8 @@ public class Bpmn2JsonMarshaller {
         // on-entry and on-exit actions
         if(subProcess.getExtensionValues() != null && subProcess.getExtensionValues().size() > 0) {
             
-            String onEntryStr = "";
-            String onExitStr = "";
+            StringBuilder onEntryBuff = context.scratch(0);
+            StringBuilder onExitBuff = context.scratch(1);
             for(ExtensionAttributeValue extattrval : subProcess.getExtensionValues()) {
             
                 FeatureMap extensionElements = extattrval.getValue();
@@ -1895,8 +2001,8 @@ public class Bpmn2JsonMarshaller {
                                                   .get(DroolsPackage.Literals.DOCUMENT_ROOT__ON_EXIT_SCRIPT, true);
             
                 for(OnEntryScriptType onEntryScript : onEntryExtensions) {
-                    onEntryStr += onEntryScript.getScript();
-                    onEntryStr += "|";
+                    onEntryBuff.append(onEntryScript.getScript());
+                    onEntryBuff.append("|");
                 
                     if(onEntryScript.getScriptFormat() != null) {
                         String format = onEntryScript.getScriptFormat();
@@ -1913,8 +2019,8 @@ public class Bpmn2JsonMarshaller {
                 }
                 
                 for(OnExitScriptType onExitScript : onExitExtensions) {
-                    onExitStr += onExitScript.getScript();
-                    onExitStr += "|";
+                    onExitBuff.append(onExitScript.getScript());
+                    onExitBuff.append("|");
                     
                     if(onExitScript.getScriptFormat() != null) {
                         String format = onExitScript.getScriptFormat();
@@ -1932,6 +2038,8 @@ public class Bpmn2JsonMarshaller {
                     }
                 }
             }
+            String onEntryStr = onEntryBuff.toString();
+            String onExitStr = onExitBuff.toString();
             if(onEntryStr.length() > 0) {
                 if(onEntryStr.endsWith("|")) {
                     onEntryStr = onEntryStr.substring(0, onEntryStr.length() - 1);
@@ -1966,41 +2074,45 @@ public class Bpmn2JsonMarshaller {
         // properties
         List<Property> processProperties = subProcess.getProperties();
         if(processProperties != null && processProperties.size() > 0) {
-            String propVal = "";
+            StringBuilder propVal = context.scratch(0);
             for(int i=0; i<processProperties.size(); i++) {
                 Property p = processProperties.get(i);
-                propVal += p.getId();
+                propVal.append(p.getId());
                 // check the structureRef value
                 if(p.getItemSubjectRef() != null && p.getItemSubjectRef().getStructureRef() != null) {
-                    propVal += ":" + p.getItemSubjectRef().getStructureRef();
+                    propVal.append(":").append(p.getItemSubjectRef().getStructureRef());
                 }
                 if(i != processProperties.size()-1) {
-                    propVal += ",";
+                    propVal.append(",");
                 }
             }
-            properties.put("vardefs", propVal);
+            properties.put("vardefs", propVal.toString());
         }
 		
-	    marshallProperties(properties, generator);
-	    generator.writeObjectFieldStart("stencil");
+	    boolean collapsed = context.isCollapseSubProcesses()
+	    		&& !(subProcess.getFlowElements().isEmpty() && subProcess.getArtifacts().isEmpty());
+	    if(collapsed) {
+	    	properties.put("collapsed", "true");
+	    }
+		
+	    String stencil;
 	    if(subProcess instanceof AdHocSubProcess) {
-	        generator.writeObjectField("id", "AdHocSubprocess");
+	        stencil = "AdHocSubprocess";
 	    } else {
 	    	if(haveValidLoopCharacteristics) {
-	    		generator.writeObjectField("id", "MultipleInstanceSubprocess");
+	    		stencil = "MultipleInstanceSubprocess";
 	    	} else {
-	    		generator.writeObjectField("id", "Subprocess");
+	    		stencil = "Subprocess";
 	    	}
 	    }
+	    marshallProperties(properties, stencil, generator);
+	    generator.writeObjectFieldStart("stencil");
+	    generator.writeObjectField("id", stencil);
 	    generator.writeEndObject();
 	    generator.writeArrayFieldStart("childShapes");
-	    Bounds bounds = ((BPMNShape) findDiagramElement(plane, subProcess)).getBounds();
-	    for (FlowElement flowElement: subProcess.getFlowElements()) {
-	    	// dont want to set the offset
-	    	marshallFlowElement(flowElement, plane, generator, 0, 0, preProcessingData, def);
-	    }
-	    for (Artifact artifact: subProcess.getArtifacts()) {
-	    	marshallArtifact(artifact, plane, generator, 0, 0, preProcessingData, def);
+	    Bounds bounds = ((BPMNShape) findDiagramElement(context, plane, subProcess)).getBounds();
+	    if(!collapsed) {
+	    	marshallChildShapes(subProcess, plane, generator, context);
 	    }
 	    generator.writeEndArray();
 	    generator.writeArrayFieldStart("outgoing");
@@ -2015,16 +2127,11 @@ public class Bpmn2JsonMarshaller {
         	generator.writeEndObject();
         }
 	    // subprocess boundary events
-	    Process process = (Process) plane.getBpmnElement();
-        for(FlowElement fe : process.getFlowElements()) {
-        	if(fe instanceof BoundaryEvent) {
-        		if(((BoundaryEvent) fe).getAttachedToRef().getId().equals(subProcess.getId())) {
-        			generator.writeStartObject();
-                    generator.writeObjectField("resourceId", fe.getId());
-                    generator.writeEndObject();
-        		}
-        	}
-        }
+	    for (BoundaryEvent boundaryEvent : context.getIndex(plane).getBoundaryEvents(subProcess)) {
+	    	generator.writeStartObject();
+	    	generator.writeObjectField("resourceId", boundaryEvent.getId());
+	    	generator.writeEndObject();
+	    }
 	    generator.writeEndArray();
 	    
 	    generator.writeObjectFieldStart("bounds");
@@ -2039,18 +2146,29 @@ public class Bpmn2JsonMarshaller {
 	    generator.writeEndObject();
 	}
     
-    protected void marshallSequenceFlow(SequenceFlow sequenceFlow, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset) throws JsonGenerationException, IOException {
-    	Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    private void marshallChildShapes(SubProcess subProcess, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context) throws JsonGenerationException, IOException {
+	    for (FlowElement flowElement: subProcess.getFlowElements()) {
+	    	// dont want to set the offset
+	    	marshallFlowElement(flowElement, plane, generator, context, 0, 0);
+	    }
+	    for (Artifact artifact: subProcess.getArtifacts()) {
+	    	marshallArtifact(artifact, plane, generator, context, 0, 0);
+	    }
+    }
+    
+    protected void marshallSequenceFlow(SequenceFlow sequenceFlow, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset) throws JsonGenerationException, IOException {
+    	// the properties of a sequence flow are only written, they go straight to the generator
+    	generator.writeObjectFieldStart("properties");
     	// check null for sequence flow name
     	if(sequenceFlow.getName() != null && !"".equals(sequenceFlow.getName())) {
-    	    properties.put("name", sequenceFlow.getName());
+    	    writeProperty(generator, "SequenceFlow", "name", sequenceFlow.getName());
     	} else {
-    	    properties.put("name", "");
+    	    writeProperty(generator, "SequenceFlow", "name", "");
     	}
     	Expression conditionExpression = sequenceFlow.getConditionExpression();
     	if (conditionExpression instanceof FormalExpression) {
     	    if(((FormalExpression) conditionExpression).getBody() != null) {
-    	        properties.put("conditionexpression", ((FormalExpression) conditionExpression).getBody());
+    	        writeProperty(generator, "SequenceFlow", "conditionexpression", ((FormalExpression) conditionExpression).getBody());
     	    }
     	    if(((FormalExpression) conditionExpression).getLanguage() != null) {
     	        String cd = ((FormalExpression) conditionExpression).getLanguage();
@@ -2065,7 +2183,7 @@ public class Bpmn2JsonMarshaller {
     	            // default to mvel
     	            cdStr = "mvel";
     	        }
-    	        properties.put("conditionexpressionlanguage", cdStr);
+    	        writeProperty(generator, "SequenceFlow", "conditionexpressionlanguage", cdStr);
     	    } 
     	}
     	// priority value
@@ -2078,7 +2196,7 @@ public class Bpmn2JsonMarshaller {
                     try {
                         Integer priorityInt = Integer.parseInt(priorityStr);
                         if(priorityInt >= 1) {
-                            properties.put("priority", entry.getValue());
+                            writeProperty(generator, "SequenceFlow", "priority", entry.getValue());
                         } else {
                             _logger.error("Priority must be equal or greater than 1.");
                         }
@@ -2089,7 +2207,7 @@ public class Bpmn2JsonMarshaller {
             }
         }
     	
-        marshallProperties(properties, generator);
+        generator.writeEndObject();
         generator.writeObjectFieldStart("stencil");
         generator.writeObjectField("id", "SequenceFlow");
         generator.writeEndObject();
@@ -2101,14 +2219,14 @@ public class Bpmn2JsonMarshaller {
         generator.writeEndObject();
         generator.writeEndArray();
         
-        Bounds sourceBounds = ((BPMNShape) findDiagramElement(plane, sequenceFlow.getSourceRef())).getBounds();
-        Bounds targetBounds = ((BPMNShape) findDiagramElement(plane, sequenceFlow.getTargetRef())).getBounds();
+        Bounds sourceBounds = ((BPMNShape) findDiagramElement(context, plane, sequenceFlow.getSourceRef())).getBounds();
+        Bounds targetBounds = ((BPMNShape) findDiagramElement(context, plane, sequenceFlow.getTargetRef())).getBounds();
         generator.writeArrayFieldStart("dockers");
         generator.writeStartObject();
         generator.writeObjectField("x", sourceBounds.getWidth() / 2);
         generator.writeObjectField("y", sourceBounds.getHeight() / 2);
         generator.writeEndObject();
-        List<Point> waypoints = ((BPMNEdge) findDiagramElement(plane, sequenceFlow)).getWaypoint();
+        List<Point> waypoints = ((BPMNEdge) findDiagramElement(context, plane, sequenceFlow)).getWaypoint();
         for (int i = 1; i < waypoints.size() - 1; i++) {
         	Point waypoint = waypoints.get(i);
             generator.writeStartObject();
@@ -2123,20 +2241,12 @@ public class Bpmn2JsonMarshaller {
         generator.writeEndArray();
     }
     
-    private DiagramElement findDiagramElement(BPMNPlane plane, BaseElement baseElement) {
-    	DiagramElement result = _diagramElements.get(baseElement.getId());
-    	if (result != null) {
-    		return result;
+    private DiagramElement findDiagramElement(Bpmn2MarshallingContext context, BPMNPlane plane, BaseElement baseElement) {
+    	DiagramElement result = context.getIndex(plane).getDiagramElement(baseElement);
+    	if (result == null) {
+    		_logger.info("Could not find BPMNDI information for " + baseElement);
     	}
-    	for (DiagramElement element: plane.getPlaneElement()) {
-        	if ((element instanceof BPMNEdge && ((BPMNEdge) element).getBpmnElement() == baseElement) ||
-    			(element instanceof BPMNShape && ((BPMNShape) element).getBpmnElement() == baseElement)) {
-        		_diagramElements.put(baseElement.getId(), element);
-        		return element;
-        	}
-        }
-    	_logger.info("Could not find BPMNDI information for " + baseElement);
-    	return null;
+    	return result;
     }
     
     protected void marshallGlobalTask(GlobalTask globalTask, JsonGenerator generator) {
@@ -2166,28 +2276,63 @@ public class Bpmn2JsonMarshaller {
     }
     
     protected void marshallProperties(Map<String, Object> properties, JsonGenerator generator) throws JsonGenerationException, IOException {
+        marshallProperties(properties, null, generator);
+    }
+
+    /**
+     * Writes the properties of a shape of the stencil, leaving out the ones
+     * equal to their default when the marshaller has the stencil defaults.
+     * The properties of a buffer are written straight from it.
+     */
+    protected void marshallProperties(Map<String, Object> properties, String stencil, JsonGenerator generator) throws JsonGenerationException, IOException {
+        Bpmn2StencilDefaults defaults = stencil == null ? null : _stencilDefaults;
+        if (properties instanceof Bpmn2PropertyBuffer) {
+            ((Bpmn2PropertyBuffer) properties).write(generator, stencil, defaults);
+            return;
+        }
         generator.writeObjectFieldStart("properties");
         for (Entry<String, Object> entry : properties.entrySet()) {
-            generator.writeObjectField(entry.getKey(), String.valueOf(entry.getValue()));
+            String value = String.valueOf(entry.getValue());
+            if (defaults == null || !defaults.isDefault(stencil, entry.getKey(), value)) {
+                generator.writeStringField(entry.getKey(), value);
+            }
         }
         generator.writeEndObject();
     }
+
+    /**
+     * Writes a property of a shape of the stencil into its open properties
+     * object, unless it is equal to its default and the marshaller has the
+     * stencil defaults.
+     */
+    private void writeProperty(JsonGenerator generator, String stencil, String name, Object value) throws JsonGenerationException, IOException {
+        String text = value instanceof String ? (String) value : String.valueOf(value);
+        if (_stencilDefaults == null || !_stencilDefaults.isDefault(stencil, name, text)) {
+            generator.writeStringField(name, text);
+        }
+    }
     
-    protected void marshallArtifact(Artifact artifact, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, String preProcessingData, Definitions def) throws IOException {
+    protected void marshallArtifact(Artifact artifact, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset) throws IOException {
     	generator.writeStartObject();
     	generator.writeObjectField("resourceId", artifact.getId());
-    	if (artifact instanceof Association) {
-    		marshallAssociation((Association)artifact, plane, generator, xOffset, yOffset, preProcessingData, def);
-    	} else if (artifact instanceof TextAnnotation) {
-    		marshallTextAnnotation((TextAnnotation) artifact, plane, generator, xOffset, yOffset, preProcessingData, def);
-    	} else if (artifact instanceof Group) {
-    		marshallGroup((Group) artifact, plane, generator, xOffset, yOffset, preProcessingData, def);
+    	switch (Bpmn2ElementKind.of(artifact)) {
+    	case ASSOCIATION:
+    		marshallAssociation((Association)artifact, plane, generator, context, xOffset, yOffset);
+    		break;
+    	case TEXT_ANNOTATION:
+    		marshallTextAnnotation((TextAnnotation) artifact, plane, generator, context, xOffset, yOffset);
+    		break;
+    	case GROUP:
+    		marshallGroup((Group) artifact, plane, generator, context, xOffset, yOffset);
+    		break;
+    	default:
+    		break;
     	}
     	generator.writeEndObject();
     }
     
-    protected void marshallAssociation(Association association, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, String preProcessingData, Definitions def) throws JsonGenerationException, IOException {
-    	Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    protected void marshallAssociation(Association association, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset) throws JsonGenerationException, IOException {
+    	Bpmn2PropertyBuffer properties = context.acquireProperties();
         Iterator<FeatureMap.Entry> iter = association.getAnyAttribute().iterator();
         while(iter.hasNext()) {
             FeatureMap.Entry entry = iter.next();
@@ -2196,15 +2341,18 @@ public class Bpmn2JsonMarshaller {
             }
         }
         
-        marshallProperties(properties, generator);
-        generator.writeObjectFieldStart("stencil");
+        String stencil;
         if(association.getAssociationDirection().equals(AssociationDirection.ONE)) {
-        	generator.writeObjectField("id", "Association_Unidirectional");
+        	stencil = "Association_Unidirectional";
         } else if(association.getAssociationDirection().equals(AssociationDirection.BOTH)) {
-        	generator.writeObjectField("id", "Association_Bidirectional");
+        	stencil = "Association_Bidirectional";
         } else {
-        	generator.writeObjectField("id", "Association_Undirected");
+        	stencil = "Association_Undirected";
         }
+        marshallProperties(properties, stencil, generator);
+        context.releaseProperties(properties);
+        generator.writeObjectFieldStart("stencil");
+        generator.writeObjectField("id", stencil);
         generator.writeEndObject();
         generator.writeArrayFieldStart("childShapes");
         generator.writeEndArray();
@@ -2214,14 +2362,14 @@ public class Bpmn2JsonMarshaller {
         generator.writeEndObject();
         generator.writeEndArray();
         
-        Bounds sourceBounds = ((BPMNShape) findDiagramElement(plane, association.getSourceRef())).getBounds();
-        Bounds targetBounds = ((BPMNShape) findDiagramElement(plane, association.getTargetRef())).getBounds();
+        Bounds sourceBounds = ((BPMNShape) findDiagramElement(context, plane, association.getSourceRef())).getBounds();
+        Bounds targetBounds = ((BPMNShape) findDiagramElement(context, plane, association.getTargetRef())).getBounds();
         generator.writeArrayFieldStart("dockers");
         generator.writeStartObject();
         generator.writeObjectField("x", sourceBounds.getWidth() / 2);
         generator.writeObjectField("y", sourceBounds.getHeight() / 2);
         generator.writeEndObject();
-        List<Point> waypoints = ((BPMNEdge) findDiagramElement(plane, association)).getWaypoint();
+        List<Point> waypoints = ((BPMNEdge) findDiagramElement(context, plane, association)).getWaypoint();
         for (int i = 1; i < waypoints.size() - 1; i++) {
         	Point waypoint = waypoints.get(i);
             generator.writeStartObject();
@@ -2236,12 +2384,13 @@ public class Bpmn2JsonMarshaller {
         generator.writeEndArray();
     }
 
-    protected void marshallTextAnnotation(TextAnnotation textAnnotation, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, String preProcessingData, Definitions def)  throws JsonGenerationException, IOException{
-    	Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    protected void marshallTextAnnotation(TextAnnotation textAnnotation, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset)  throws JsonGenerationException, IOException{
+    	Bpmn2PropertyBuffer properties = context.acquireProperties();
     	properties.put("text", textAnnotation.getText());
     	properties.put("artifacttype", "Annotation");
     	
-	    marshallProperties(properties, generator);
+	    marshallProperties(properties, "TextAnnotation", generator);
+	    context.releaseProperties(properties);
         
         generator.writeObjectFieldStart("stencil");
         generator.writeObjectField("id", "TextAnnotation");
@@ -2250,14 +2399,14 @@ public class Bpmn2JsonMarshaller {
         generator.writeEndArray();
     
     	generator.writeArrayFieldStart("outgoing");
-    	if(findOutgoingAssociation(plane, textAnnotation) != null) {
+    	if(findOutgoingAssociation(context, plane, textAnnotation) != null) {
     		generator.writeStartObject();
-    		generator.writeObjectField("resourceId", findOutgoingAssociation(plane, textAnnotation).getId());
+    		generator.writeObjectField("resourceId", findOutgoingAssociation(context, plane, textAnnotation).getId());
     		generator.writeEndObject();
     	}
     	generator.writeEndArray();
     
-    	Bounds bounds = ((BPMNShape) findDiagramElement(plane, textAnnotation)).getBounds();
+    	Bounds bounds = ((BPMNShape) findDiagramElement(context, plane, textAnnotation)).getBounds();
     	generator.writeObjectFieldStart("bounds");
     	generator.writeObjectFieldStart("lowerRight");
     	generator.writeObjectField("x", bounds.getX() + bounds.getWidth() - xOffset);
@@ -2270,13 +2419,14 @@ public class Bpmn2JsonMarshaller {
     	generator.writeEndObject();
     }
     
-    protected void marshallGroup(Group group, BPMNPlane plane, JsonGenerator generator, int xOffset, int yOffset, String preProcessingData, Definitions def)  throws JsonGenerationException, IOException{
-    	Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    protected void marshallGroup(Group group, BPMNPlane plane, JsonGenerator generator, Bpmn2MarshallingContext context, int xOffset, int yOffset)  throws JsonGenerationException, IOException{
+    	Bpmn2PropertyBuffer properties = context.acquireProperties();
     	if(group.getCategoryValueRef() != null && group.getCategoryValueRef().getValue() != null) {
     		properties.put("name", group.getCategoryValueRef().getValue());
     	}
     	
-	    marshallProperties(properties, generator);
+	    marshallProperties(properties, "Group", generator);
+	    context.releaseProperties(properties);
         
         generator.writeObjectFieldStart("stencil");
         generator.writeObjectField("id", "Group");
@@ -2285,14 +2435,14 @@ public class Bpmn2JsonMarshaller {
         generator.writeEndArray();
     
     	generator.writeArrayFieldStart("outgoing");
-    	if(findOutgoingAssociation(plane, group) != null) {
+    	if(findOutgoingAssociation(context, plane, group) != null) {
     		generator.writeStartObject();
-    		generator.writeObjectField("resourceId", findOutgoingAssociation(plane, group).getId());
+    		generator.writeObjectField("resourceId", findOutgoingAssociation(context, plane, group).getId());
     		generator.writeEndObject();
     	}
     	generator.writeEndArray();
     
-    	Bounds bounds = ((BPMNShape) findDiagramElement(plane, group)).getBounds();
+    	Bounds bounds = ((BPMNShape) findDiagramElement(context, plane, group)).getBounds();
     	generator.writeObjectFieldStart("bounds");
     	generator.writeObjectFieldStart("lowerRight");
     	generator.writeObjectField("x", bounds.getX() + bounds.getWidth() - xOffset);
@@ -2305,26 +2455,13 @@ public class Bpmn2JsonMarshaller {
     	generator.writeEndObject();
     }
     
-    protected Association findOutgoingAssociation(BPMNPlane plane, BaseElement baseElement) {
-    	Association result = _diagramAssociations.get(baseElement.getId());
-    	if (result != null) {
-    		return result;
-    	}
+    protected Association findOutgoingAssociation(Bpmn2MarshallingContext context, BPMNPlane plane, BaseElement baseElement) {
         if (!(plane.getBpmnElement() instanceof Process)){
             throw new IllegalArgumentException("Don't know how to get associations from a non-Process Diagram");
         }
         
-        Process process = (Process) plane.getBpmnElement();
-        for (Artifact artifact : process.getArtifacts()) {
-            if (artifact instanceof Association){
-                Association association = (Association) artifact;
-                if (association.getSourceRef() == baseElement){
-                    _diagramAssociations.put(baseElement.getId(), association);
-                    return association;
-                }
-            }
-        }
-        return null;
+        List<Association> associations = context.getIndex(plane).getOutgoingAssociations(baseElement);
+        return associations.isEmpty() ? null : associations.get(0);
     }
     
     protected void marshallStencil(String stencilId, JsonGenerator generator) throws JsonGenerationException, IOException {
@@ -2333,16 +2470,4 @@ public class Bpmn2JsonMarshaller {
         generator.writeEndObject();
     }
     
-    private boolean isCustomElement(String taskType, String preProcessingData) {
-        if(taskType != null && taskType.length() > 0 && preProcessingData != null && preProcessingData.length() > 0) {
-            String[] preProcessingDataElements = preProcessingData.split( ",\\s*" );
-            for(String preProcessingDataElement : preProcessingDataElements) {
-                if(taskType.equals(preProcessingDataElement)) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-    
 }
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.eclipse.bpmn2.BaseElement;
+import org.eclipse.bpmn2.BoundaryEvent;
+import org.eclipse.bpmn2.CatchEvent;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.Event;
+import org.eclipse.bpmn2.FlowElement;
+import org.eclipse.bpmn2.FlowNode;
+import org.eclipse.bpmn2.Gateway;
+import org.eclipse.bpmn2.Process;
+import org.eclipse.bpmn2.ReceiveTask;
+import org.eclipse.bpmn2.RootElement;
+import org.eclipse.bpmn2.SendTask;
+import org.eclipse.bpmn2.SequenceFlow;
+import org.eclipse.bpmn2.ServiceTask;
+import org.eclipse.bpmn2.Task;
+import org.eclipse.bpmn2.ThrowEvent;
+import org.eclipse.bpmn2.di.BPMNDiagram;
+import org.eclipse.bpmn2.di.BPMNEdge;
+import org.eclipse.bpmn2.di.BPMNPlane;
+import org.eclipse.bpmn2.di.BPMNShape;
+import org.eclipse.bpmn2.di.BpmnDiFactory;
+import org.eclipse.bpmn2.util.Bpmn2Resource;
+import org.eclipse.dd.dc.Bounds;
+import org.eclipse.dd.di.DiagramElement;
+
+/**
+ * Applies the shapes added, changed or removed in the editor to a model that was
+ * unmarshalled before, instead of unmarshalling the whole json model again.
+ *
+ * Only the top level shapes that need no revisiting of the rest of the model can be
+ * patched: sequence flows, gateways, events without event definitions and tasks without
+ * data, loops or messages. For anything else {@link #apply} returns false and the model
+ * has to be unmarshalled from its json again.
+ */
+public class Bpmn2JsonPatcher {
+
+    private static final Logger _logger = Logger.getLogger(Bpmn2JsonPatcher.class);
+
+    private Bpmn2JsonUnmarshaller _unmarshaller;
+
+    public Bpmn2JsonPatcher(Bpmn2JsonUnmarshaller unmarshaller) {
+        _unmarshaller = unmarshaller;
+    }
+
+    /**
+     * Patches the model.
+     * @param resource the resource returned by {@link Bpmn2JsonUnmarshaller#unmarshall(String, Bpmn2UnmarshallingContext)}
+     * @param context the context used to unmarshall the resource
+     * @param added the json of the shapes added to the diagram, by resource id
+     * @param changed the new json of the shapes that changed, by resource id
+     * @param removed the resource ids of the shapes removed from the diagram
+     * @return true if the patch was applied. When false, the resource and the context
+     * may have been partially patched and must be dropped.
+     */
+    public boolean apply(Bpmn2Resource resource, Bpmn2UnmarshallingContext context,
+            Map<String, String> added, Map<String, String> changed, Collection<String> removed) throws IOException {
+        Definitions def = (Definitions) resource.getContents().get(0);
+        Process process = getProcess(def);
+        if (process == null || def.getDiagrams().size() != 1) {
+            return false;
+        }
+        BPMNPlane plane = def.getDiagrams().get(0).getPlane();
+        Map<String, DiagramElement> diagramElements = getDiagramElements(def, context);
+
+        // check the elements we replace or remove first, the model is left untouched
+        // if one of them can't be patched.
+        Map<String, BaseElement> oldElements = new HashMap<String, BaseElement>();
+        for (String id : changed.keySet()) {
+            if (!addOldElement(id, process, context, oldElements)) {
+                return false;
+            }
+        }
+        for (String id : removed) {
+            if (!addOldElement(id, process, context, oldElements)) {
+                return false;
+            }
+        }
+        for (String id : added.keySet()) {
+            if (context.getIndex().getById(id) != null) {
+                return false;
+            }
+        }
+
+        // the sequence flows and nodes whose connections or edges must be refreshed.
+        Set<SequenceFlow> touchedFlows = new LinkedHashSet<SequenceFlow>();
+        Set<FlowNode> touchedNodes = new LinkedHashSet<FlowNode>();
+        for (Entry<String, BaseElement> entry : oldElements.entrySet()) {
+            BaseElement old = entry.getValue();
+            if (old instanceof SequenceFlow) {
+                SequenceFlow flow = (SequenceFlow) old;
+                addIfInProcess(flow.getSourceRef(), process, touchedNodes);
+                addIfInProcess(flow.getTargetRef(), process, touchedNodes);
+            } else {
+                touchedFlows.addAll(((FlowNode) old).getIncoming());
+                touchedFlows.addAll(((FlowNode) old).getOutgoing());
+            }
+            context.getIndex().remove(entry.getKey());
+            context.getOutgoingFlows().remove(old);
+        }
+
+        // parse the new shapes, they are not part of the definitions yet.
+        Map<String, BaseElement> newElements = new LinkedHashMap<String, BaseElement>();
+        if (!unmarshallShapes(changed, context, newElements) || !unmarshallShapes(added, context, newElements)) {
+            return false;
+        }
+
+        // swap the elements in the process.
+        for (String id : removed) {
+            BaseElement old = oldElements.get(id);
+            disconnect(old);
+            process.getFlowElements().remove(old);
+            DiagramElement diagramElement = diagramElements.remove(id);
+            if (diagramElement != null) {
+                plane.getPlaneElement().remove(diagramElement);
+            }
+            context.getGeometry().remove(id);
+        }
+        for (String id : changed.keySet()) {
+            BaseElement old = oldElements.get(id);
+            FlowElement element = (FlowElement) newElements.get(id);
+            if (old instanceof FlowNode && element instanceof FlowNode) {
+                // the flows that are not part of the patch still point to the old node.
+                for (SequenceFlow incoming : new ArrayList<SequenceFlow>(((FlowNode) old).getIncoming())) {
+                    incoming.setTargetRef((FlowNode) element);
+                }
+            } else if (old instanceof SequenceFlow && element instanceof SequenceFlow) {
+                FlowNode source = ((SequenceFlow) old).getSourceRef();
+                if (source != null && !newElements.containsKey(source.getId())) {
+                    ((SequenceFlow) element).setSourceRef(source);
+                }
+            } else {
+                return false;
+            }
+            disconnect(old);
+            process.getFlowElements().set(process.getFlowElements().indexOf(old), element);
+        }
+        for (String id : added.keySet()) {
+            process.getFlowElements().add((FlowElement) newElements.get(id));
+        }
+
+        // connect the new elements, the outgoing ids of the nodes are their outgoing flows,
+        // the outgoing id of a flow is its target.
+        for (BaseElement element : newElements.values()) {
+            List<String> outgoing = context.getOutgoingFlows().get(element);
+            if (element instanceof SequenceFlow) {
+                SequenceFlow flow = (SequenceFlow) element;
+                BaseElement target = outgoing.isEmpty() ? null : context.getIndex().getById(outgoing.get(0));
+                if (!(target instanceof FlowNode)) {
+                    return false;
+                }
+                flow.setTargetRef((FlowNode) target);
+                touchedFlows.add(flow);
+            } else {
+                for (String flowId : outgoing) {
+                    BaseElement target = context.getIndex().getById(flowId);
+                    if (!(target instanceof SequenceFlow)) {
+                        return false;
+                    }
+                    ((FlowNode) element).getOutgoing().add((SequenceFlow) target);
+                }
+                touchedNodes.add((FlowNode) element);
+                touchedFlows.addAll(((FlowNode) element).getIncoming());
+                touchedFlows.addAll(((FlowNode) element).getOutgoing());
+            }
+        }
+        for (SequenceFlow flow : touchedFlows) {
+            if (flow.eContainer() != process) {
+                continue;
+            }
+            if (flow.getSourceRef() == null || flow.getTargetRef() == null
+                    || flow.getSourceRef().eContainer() != process || flow.getTargetRef().eContainer() != process) {
+                return false;
+            }
+            touchedNodes.add(flow.getSourceRef());
+            touchedNodes.add(flow.getTargetRef());
+        }
+
+        // gateways derive their direction and default flow from their connections.
+        for (FlowNode node : touchedNodes) {
+            if (node instanceof Gateway && node.eContainer() == process) {
+                _unmarshaller.revisitGateway((Gateway) node, process);
+            }
+        }
+
+        // diagram.
+        BpmnDiFactory factory = BpmnDiFactory.eINSTANCE;
+        for (BaseElement element : newElements.values()) {
+            DiagramElement diagramElement = diagramElements.get(element.getId());
+            if (element instanceof SequenceFlow) {
+                BPMNEdge edge = diagramElement instanceof BPMNEdge ? (BPMNEdge) diagramElement : null;
+                if (edge == null) {
+                    edge = factory.createBPMNEdge();
+                    plane.getPlaneElement().add(edge);
+                    diagramElements.put(element.getId(), edge);
+                }
+                edge.setBpmnElement(element);
+            } else {
+                Bounds bounds = context.getGeometry().createBounds(element.getId());
+                if (bounds == null) {
+                    return false;
+                }
+                BPMNShape shape = diagramElement instanceof BPMNShape ? (BPMNShape) diagramElement : null;
+                if (shape == null) {
+                    shape = factory.createBPMNShape();
+                    plane.getPlaneElement().add(shape);
+                    diagramElements.put(element.getId(), shape);
+                }
+                shape.setBpmnElement(element);
+                shape.setBounds(bounds);
+            }
+        }
+        for (SequenceFlow flow : touchedFlows) {
+            DiagramElement edge = diagramElements.get(flow.getId());
+            if (flow.eContainer() == process && edge instanceof BPMNEdge) {
+                _unmarshaller.setEdgeWaypoints((BPMNEdge) edge, flow, context);
+            }
+        }
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Patched " + added.size() + " added, " + changed.size() + " changed and "
+                    + removed.size() + " removed shapes");
+        }
+        return true;
+    }
+
+    private boolean unmarshallShapes(Map<String, String> shapes, Bpmn2UnmarshallingContext context,
+            Map<String, BaseElement> newElements) throws IOException {
+        for (Entry<String, String> entry : shapes.entrySet()) {
+            BaseElement element = _unmarshaller.unmarshallShape(entry.getValue(), context);
+            if (!isPatchable(element) || !entry.getKey().equals(element.getId())) {
+                return false;
+            }
+            newElements.put(entry.getKey(), element);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the element is a top level element of the process that can be patched.
+     */
+    private boolean addOldElement(String id, Process process, Bpmn2UnmarshallingContext context,
+            Map<String, BaseElement> oldElements) {
+        BaseElement old = context.getIndex().getById(id);
+        if (old == null || old.eContainer() != process || !isPatchable(old)) {
+            return false;
+        }
+        oldElements.put(id, old);
+        return true;
+    }
+
+    /**
+     * @return true if the element has no influence on the rest of the model besides its
+     * sequence flows, which is what the revisit phases of the unmarshaller look for.
+     */
+    private boolean isPatchable(BaseElement element) {
+        if (element instanceof SequenceFlow || element instanceof Gateway) {
+            return true;
+        }
+        if (element instanceof BoundaryEvent) {
+            return false;
+        }
+        if (element instanceof CatchEvent) {
+            return ((CatchEvent) element).getEventDefinitions().isEmpty();
+        }
+        if (element instanceof ThrowEvent) {
+            return ((ThrowEvent) element).getEventDefinitions().isEmpty();
+        }
+        if (element instanceof Event) {
+            return true;
+        }
+        if (element instanceof Task) {
+            Task task = (Task) element;
+            return !(task instanceof ServiceTask || task instanceof SendTask || task instanceof ReceiveTask)
+                    && task.getIoSpecification() == null && task.getLoopCharacteristics() == null
+                    && task.getDataInputAssociations().isEmpty() && task.getDataOutputAssociations().isEmpty();
+        }
+        return false;
+    }
+
+    private void disconnect(BaseElement element) {
+        if (element instanceof SequenceFlow) {
+            ((SequenceFlow) element).setSourceRef(null);
+            ((SequenceFlow) element).setTargetRef(null);
+        } else if (element instanceof FlowNode) {
+            ((FlowNode) element).getOutgoing().clear();
+            ((FlowNode) element).getIncoming().clear();
+        }
+    }
+
+    private void addIfInProcess(FlowNode node, Process process, Set<FlowNode> nodes) {
+        if (node != null && node.eContainer() == process) {
+            nodes.add(node);
+        }
+    }
+
+    private Map<String, DiagramElement> getDiagramElements(Definitions def, Bpmn2UnmarshallingContext context) {
+        if (context.getDiagramElements() == null) {
+            Map<String, DiagramElement> diagramElements = new HashMap<String, DiagramElement>();
+            for (BPMNDiagram diagram : def.getDiagrams()) {
+                for (DiagramElement element : diagram.getPlane().getPlaneElement()) {
+                    BaseElement bpmnElement = element instanceof BPMNShape ? ((BPMNShape) element).getBpmnElement()
+                            : element instanceof BPMNEdge ? ((BPMNEdge) element).getBpmnElement() : null;
+                    // boundary events have both a shape and an edge, they are never patched.
+                    if (bpmnElement != null && bpmnElement.getId() != null && !(bpmnElement instanceof BoundaryEvent)) {
+                        diagramElements.put(bpmnElement.getId(), element);
+                    }
+                }
+            }
+            context.setDiagramElements(diagramElements);
+        }
+        return context.getDiagramElements();
+    }
+
+    private Process getProcess(Definitions def) {
+        Process process = null;
+        for (RootElement root : def.getRootElements()) {
+            if (root instanceof Process) {
+                if (process != null) {
+                    return null;
+                }
+                process = (Process) root;
+            }
+        }
+        return process;
+    }
+}
@@ -17,6 +17,7 @@ package org.jbpm.designer.bpmn2.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -25,11 +26,22 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.util.TokenBuffer;
 import org.eclipse.bpmn2.Activity;
 import org.eclipse.bpmn2.AdHocOrdering;
 import org.eclipse.bpmn2.AdHocSubProcess;
@@ -40,6 +52,7 @@ import org.eclipse.bpmn2.Auditing;
 import org.eclipse.bpmn2.BaseElement;
 import org.eclipse.bpmn2.BoundaryEvent;
 import org.eclipse.bpmn2.Bpmn2Factory;
+import org.eclipse.bpmn2.Bpmn2Package;
 import org.eclipse.bpmn2.BusinessRuleTask;
 import org.eclipse.bpmn2.CallActivity;
 import org.eclipse.bpmn2.CatchEvent;
@@ -115,15 +128,11 @@ import org.eclipse.bpmn2.di.BpmnDiFactory;
 import org.eclipse.bpmn2.util.Bpmn2Resource;
 import org.eclipse.dd.dc.Bounds;
 import org.eclipse.dd.dc.DcFactory;
-import org.eclipse.dd.dc.Point;
-import org.eclipse.emf.common.util.URI;
 import org.eclipse.emf.ecore.EObject;
 import org.eclipse.emf.ecore.EStructuralFeature.Internal;
 import org.eclipse.emf.ecore.impl.EAttributeImpl;
 import org.eclipse.emf.ecore.impl.EStructuralFeatureImpl;
 import org.eclipse.emf.ecore.impl.EStructuralFeatureImpl.SimpleFeatureMapEntry;
-import org.eclipse.emf.ecore.resource.ResourceSet;
-import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
 import org.eclipse.emf.ecore.util.ExtendedMetaData;
 import org.eclipse.emf.ecore.util.FeatureMap;
 import org.jboss.drools.DroolsFactory;
@@ -133,12 +142,12 @@ import org.jboss.drools.ImportType;
 import org.jboss.drools.OnEntryScriptType;
 import org.jboss.drools.OnExitScriptType;
 import org.jboss.drools.impl.DroolsPackageImpl;
+import org.jbpm.designer.bpmn2.BpmnElementFactoryHelper;
 import org.jbpm.designer.bpmn2.BpmnMarshallerHelper;
-import org.jbpm.designer.bpmn2.resource.JBPMBpmn2ResourceFactoryImpl;
-import org.osgi.framework.BundleContext;
-import org.osgi.framework.BundleReference;
-import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceReference;
+import org.jbpm.designer.bpmn2.BpmnMarshallerHelperTracker;
+import org.jbpm.designer.bpmn2.impl.Bpmn2PropertyTokenizer.DataMapping;
+import org.jbpm.designer.bpmn2.impl.Bpmn2PropertyTokenizer.Declaration;
+import org.jbpm.designer.bpmn2.resource.Bpmn2ResourceSetPool;
 
 /**
  * @author Antoine Toulme
@@ -149,60 +158,176 @@ import org.osgi.framework.ServiceReference;
  */
 public class Bpmn2JsonUnmarshaller {
 
+    private static final Logger _logger = Logger.getLogger(Bpmn2JsonUnmarshaller.class);
+
 	public static final String defaultBgColor = "#b1c2d6";
 	public static final String defaultBrColor = "#000000";
 	public static final String defaultFontColor = "#000000";
-    // a list of the objects created, kept in memory with their original id for
-    // fast lookup.
-    private Map<Object, String> _objMap = new HashMap<Object, String>();
-    
-    private Map<String, Object> _idMap = new HashMap<String, Object>();
-
-    // the collection of outgoing ids.
-    // we reconnect the edges with the shapes as a last step of the construction
-    // of our graph from json, as we miss elements before.
-    private Map<Object, List<String>> _outgoingFlows = new HashMap<Object, List<String>>();
-    private Set<String> _sequenceFlowTargets = new HashSet<String>();
-    private Map<String, Bounds> _bounds = new HashMap<String, Bounds>();
-    private Map<String, List<Point>> _dockers = new HashMap<String, List<Point>>();
-    private List<Lane> _lanes = new ArrayList<Lane>();
-    private List<Artifact> _artifacts = new ArrayList<Artifact>();
-    private Map<String, ItemDefinition> _subprocessItemDefs = new HashMap<String, ItemDefinition>();
-    private List<BpmnMarshallerHelper> _helpers;
-
-    private Bpmn2Resource _currentResource;
-    
-    private Map<String,Escalation> _escalations = new HashMap<String, Escalation>();
-    private Map<String,Error> _errors = new HashMap<String, Error>();
-    private Map<String,Message> _messages = new HashMap<String, Message>();
-    private Map<String,ItemDefinition> _itemDefinitions = new HashMap<String, ItemDefinition>();
-    
-    public Bpmn2JsonUnmarshaller() {
-        _helpers = new ArrayList<BpmnMarshallerHelper>();
+
+    // the drools attributes set on the elements, see demandExtensionAttributes.
+    private static final String[] EXTENSION_ATTRIBUTES = { "actrefname", "adHoc", "bgcolor", "bordercolor", "boundaryca",
+        "categoryval", "datype", "dg", "dtype", "erefname", "esccode", "fontcolor", "fontsize", "independent", "lanes",
+        "msgref", "packageName", "priority", "ruleFlowGroup", "scriptFormat", "servicetaskinterface",
+        "servicetaskoperation", "signalrefname", "taskName", "type", "version", "waitForCompletion" };
+
+    private static boolean _extensionAttributesDemanded;
+
+    static {
         DroolsPackageImpl.init();
-        // load the helpers to place them in field
-        if (getClass().getClassLoader() instanceof BundleReference) {
-            BundleContext context = ((BundleReference) getClass().getClassLoader()).
-                getBundle().getBundleContext();
+    }
+
+    /**
+     * The system property with the number of threads the shared unmarshaller parses the
+     * lanes and subprocesses of the models on, 0 to parse the models on the calling thread.
+     * It defaults to the number of processors.
+     */
+    public static final String PARSER_THREADS = "designer.parserthreads";
+
+    /**
+     * The unmarshaller shared by the profiles and the servlets.
+     */
+    public static final Bpmn2JsonUnmarshaller INSTANCE = new Bpmn2JsonUnmarshaller(createSharedExecutor());
+
+    // the unmarshaller keeps no state of its own, conversion state lives in a
+    // Bpmn2UnmarshallingContext created for each call.
+    private final BpmnMarshallerHelperTracker _helperTracker;
+    private final ExecutorService _executor;
+
+    public Bpmn2JsonUnmarshaller() {
+        this(null);
+    }
+
+    /**
+     * Creates an unmarshaller that parses the lanes and subprocesses at the top level of
+     * the models in parallel, on the threads of the given executor. The elements are put
+     * together on the calling thread once parsed, as EMF models can't be assembled concurrently.
+     * @param executor the executor to parse on, or null to parse the whole model on the calling thread.
+     */
+    public Bpmn2JsonUnmarshaller(ExecutorService executor) {
+        _helperTracker = BpmnMarshallerHelperTracker.getInstance();
+        _executor = executor;
+        if (executor != null) {
+            demandExtensionAttributes();
+        }
+    }
+
+    /**
+     * @return the executor of the shared unmarshaller, null if it parses on the calling thread.
+     * Its threads and queue are bounded, a full queue has the calling thread parse the shape.
+     */
+    private static ExecutorService createSharedExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String configured = System.getProperty(PARSER_THREADS);
+        if (configured != null) {
             try {
-                ServiceReference[] refs = context.getAllServiceReferences(
-                        BpmnMarshallerHelper.class.getName(), null);
-                for (ServiceReference ref : refs) {
-                    BpmnMarshallerHelper helper = (BpmnMarshallerHelper) context.getService(ref);
-                    _helpers.add(helper);
-                }
-            } catch (InvalidSyntaxException e) {
+                threads = Integer.parseInt(configured.trim());
+            } catch (NumberFormatException e) {
+                _logger.warn("Invalid " + PARSER_THREADS + ": " + configured);
             }
-            
+        }
+        if (threads < 2) {
+            return null;
+        }
+        final AtomicInteger created = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads * 16), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "designer-unmarshaller-" + created.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * The drools attributes are created the first time they are asked for, in a package
+     * shared by all the threads that isn't safe to change concurrently. They are asked
+     * for once before parsing in parallel, so that the parsing threads only look them up.
+     */
+    private static synchronized void demandExtensionAttributes() {
+        if (!_extensionAttributesDemanded) {
+            for (String name : EXTENSION_ATTRIBUTES) {
+                ExtendedMetaData.INSTANCE.demandFeature("http://www.jboss.org/drools", name, false, false);
+            }
+            _extensionAttributesDemanded = true;
         }
     }
 
     public Bpmn2Resource unmarshall(String json, String preProcessingData) throws JsonParseException, IOException {
-        return unmarshall(new JsonFactory().createJsonParser(json), preProcessingData);
+        return unmarshall(new JsonFactory().createJsonParser(json), new Bpmn2UnmarshallingContext(preProcessingData));
     }
 
     public Bpmn2Resource unmarshall(File file, String preProcessingData) throws JsonParseException, IOException {
-        return unmarshall(new JsonFactory().createJsonParser(file), preProcessingData);
+        return unmarshall(new JsonFactory().createJsonParser(file), new Bpmn2UnmarshallingContext(preProcessingData));
+    }
+
+    /**
+     * Unmarshalls the json model read from the stream, without holding its text in memory.
+     * The encoding of the stream is detected, the stream is not closed.
+     */
+    public Bpmn2Resource unmarshall(InputStream in, String preProcessingData) throws JsonParseException, IOException {
+        JsonFactory factory = new JsonFactory();
+        factory.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        return unmarshall(factory.createJsonParser(in), new Bpmn2UnmarshallingContext(preProcessingData));
+    }
+
+    /**
+     * Checks that the json model read from the stream can be converted to BPMN 2.0 and back,
+     * building its definitions once and without writing them as xml.
+     * @return the problems found, empty if none.
+     * @see Bpmn2StructureValidator
+     */
+    public List<String> validate(InputStream in, String preProcessingData) {
+        Bpmn2Resource resource;
+        try {
+            resource = unmarshall(in, preProcessingData);
+        } catch (Exception e) {
+            _logger.debug("Unable to unmarshall the model: " + e.getMessage(), e);
+            List<String> problems = new ArrayList<String>();
+            problems.add("Unable to unmarshall the model: " + e.getMessage());
+            return problems;
+        }
+        return new Bpmn2StructureValidator().validate(resource);
+    }
+
+    /**
+     * Unmarshalls the json model, keeping the conversion state in the given context
+     * so that the model can be patched afterwards.
+     * @see Bpmn2JsonPatcher
+     */
+    public Bpmn2Resource unmarshall(String json, Bpmn2UnmarshallingContext context) throws JsonParseException, IOException {
+        return unmarshall(new JsonFactory().createJsonParser(json), context);
+    }
+
+    /**
+     * Unmarshalls a single shape of the json model. The shape is not added to the
+     * definitions, and only the references to elements already in the context
+     * can be resolved.
+     */
+    BaseElement unmarshallShape(String json, Bpmn2UnmarshallingContext context) throws JsonParseException, IOException {
+        JsonParser parser = new JsonFactory().createJsonParser(json);
+        try {
+            parser.nextToken(); // open the object
+            return unmarshallItem(parser, context);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * @return whether helpers change the elements after the unmarshaller set their properties.
+     */
+    boolean hasHelpers() {
+        return !_helperTracker.getHelpers().isEmpty();
+    }
+
+    /**
+     * @return whether the task type is a custom element of the given pre-processing data.
+     */
+    boolean isCustomTask(String taskType, String preProcessingData) {
+        return isCustomElement(taskType, preProcessingData);
     }
 
     /**
@@ -212,55 +337,71 @@ public class Bpmn2JsonUnmarshaller {
      * @throws JsonParseException
      * @throws IOException
      */
-    private Bpmn2Resource unmarshall(JsonParser parser, String preProcessingData) throws JsonParseException, IOException {
+    Bpmn2Resource unmarshall(JsonParser parser, Bpmn2UnmarshallingContext context) throws JsonParseException, IOException {
         try {
             parser.nextToken(); // open the object
-            ResourceSet rSet = new ResourceSetImpl();
-            rSet.getResourceFactoryRegistry().getExtensionToFactoryMap().put("bpmn2",
-                    new JBPMBpmn2ResourceFactoryImpl());
-            Bpmn2Resource bpmn2 = (Bpmn2Resource) rSet.createResource(URI.createURI("virtual.bpmn2"));
-            rSet.getResources().add(bpmn2);
-            _currentResource = bpmn2;
+            Bpmn2Resource bpmn2 = Bpmn2ResourceSetPool.createResource();
             // do the unmarshalling now:
-            Definitions def = (Definitions) unmarshallItem(parser, preProcessingData);
-            revisitServiceTasks(def);
-            revisitMessages(def);
-            revisitCatchEvents(def);
-            revisitThrowEvents(def);
-            revisitLanes(def);
-            revisitSubProcessItemDefs(def);
-            revisitArtifacts(def);
+            long start = System.currentTimeMillis();
+            Definitions def = (Definitions) unmarshallItem(parser, context, _executor);
+            long parsed = System.currentTimeMillis();
+            // phases registered on the same pipeline share one traversal of the flow elements,
+            // lanes and artifacts are only added to the process after the event definitions are set.
+            ActivityNameLookup activities = new ActivityNameLookup(def);
+            new RevisitPipeline()
+                .add(new ServiceTasksPhase())
+                .add(new MessagesPhase())
+                .add(new EventDefinitionsPhase("catch events", true, activities, context))
+                .add(new EventDefinitionsPhase("throw events", false, activities, context))
+                .run(def);
+            revisitLanes(def, context);
+            revisitSubProcessItemDefs(def, context);
+            revisitArtifacts(def, context);
             revisitGroups(def);
-            revisitTaskAssociations(def);
-            revisitSendReceiveTasks(def);
-            reconnectFlows();
-            revisitGateways(def);
-            revisitCatchEventsConvertToBoundary(def);
-            revisitDataObjects(def);
-            revisitAssociationsIoSpec(def);
-            createDiagram(def);
+            // the flows are connected before the task associations and the send and receive
+            // tasks, which used to run first: neither of them reads or changes a sequence flow
+            // or the incoming and outgoing flows of a node, and the gateways need the connections.
+            reconnectFlows(context);
+            new RevisitPipeline()
+                .add(new TaskAssociationsPhase())
+                .add(new SendReceiveTasksPhase())
+                .add(new GatewaysPhase())
+                .add(new CatchEventsToBoundaryPhase(context))
+                .add(new DataObjectsPhase())
+                .add(new AssociationsIoSpecPhase())
+                .run(def);
+            long revisited = System.currentTimeMillis();
+            createDiagram(def, context);
             updateIDs(def);
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("Unmarshalled " + context.getIndex().size() + " elements: parsing " + (parsed - start) + " ms, revisiting "
+                        + (revisited - parsed) + " ms, diagram " + (System.currentTimeMillis() - revisited) + " ms");
+            }
             // return def;
-            _currentResource.getContents().add(def);
-            return _currentResource;
+            bpmn2.getContents().add(def);
+            return bpmn2;
         } finally {
             parser.close();
-            _objMap.clear();
-            _idMap.clear();
-            _outgoingFlows.clear();
-            _sequenceFlowTargets.clear();
-            _bounds.clear();
-            _currentResource = null;
         }
     }
     
+    /**
+     * The item definitions of the subprocesses are kept in the context of an
+     * unmarshalling: without one there are none to add.
+     * @deprecated use {@link #revisitSubProcessItemDefs(Definitions, Bpmn2UnmarshallingContext)}
+     */
+    @Deprecated
     public void revisitSubProcessItemDefs(Definitions def) {
-    	Iterator<String> iter =  _subprocessItemDefs.keySet().iterator();
+        revisitSubProcessItemDefs(def, new Bpmn2UnmarshallingContext(""));
+    }
+
+    public void revisitSubProcessItemDefs(Definitions def, Bpmn2UnmarshallingContext context) {
+    	Iterator<String> iter =  context.getSubProcessItemDefs().keySet().iterator();
     	while(iter.hasNext()) {
     		String key = iter.next();
-    		def.getRootElements().add(_subprocessItemDefs.get(key));
+    		def.getRootElements().add(context.getSubProcessItemDefs().get(key));
     	}
-    	_subprocessItemDefs.clear();
+    	context.getSubProcessItemDefs().clear();
     }
     
     public void updateIDs(Definitions def) {
@@ -285,304 +426,163 @@ public class Bpmn2JsonUnmarshaller {
     }
     
     public void revisitDataObjects(Definitions def) {
-    	List<RootElement> rootElements =  def.getRootElements();
-    	List<ItemDefinition> itemDefinitionsToAdd = new ArrayList<ItemDefinition>();
-        for(RootElement root : rootElements) {
-        	if(root instanceof Process) {
-        		Process process = (Process) root;
-        		List<FlowElement> flowElements = process.getFlowElements();
-	            for(FlowElement fe : flowElements) {
-	            	if(fe instanceof DataObject) {
-	            		DataObject da = (DataObject) fe;
-	            		ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
-	            		itemdef.setId("_" + da.getId() + "Item");
-	            		Iterator<FeatureMap.Entry> iter = da.getAnyAttribute().iterator();
-	                    while(iter.hasNext()) {
-	                        FeatureMap.Entry entry = iter.next();
-	                        if(entry.getEStructuralFeature().getName().equals("datype")) {
-	                        	String typeValue = (String) entry.getValue();
-	                        	if(typeValue != null && !typeValue.equals("None")) {
-	                        		itemdef.setStructureRef((String) entry.getValue());
-	                        	}
-	                        }
-	                    }
-	                    da.setItemSubjectRef(itemdef);
-	                    itemDefinitionsToAdd.add(itemdef);
-	            	}
-	            }
-        	}
-        }
-        
-        for(ItemDefinition itemDef : itemDefinitionsToAdd) {
-        	def.getRootElements().add(itemDef);
-        }
-        
-        for(RootElement root : rootElements) {
-        	if(root instanceof Process) {
-	        	Process process = (Process) root;
-	            List<Artifact> artifactElements = process.getArtifacts();
-	            for(Artifact af : artifactElements) {
-	            	if(af instanceof Association) {
-	            		Association as = (Association) af;
-	            		if(as.getSourceRef() != null && as.getSourceRef() instanceof DataObject 
-	            				&& as.getTargetRef() != null && (as.getTargetRef() instanceof Task || as.getTargetRef() instanceof ThrowEvent)) {
-	            			DataObject da = (DataObject) as.getSourceRef();
-	            			if(as.getTargetRef() instanceof Task) {
-	            				Task task = (Task) as.getTargetRef();
-	            				if(task.getIoSpecification() == null) {
-	            	                InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
-	            	                task.setIoSpecification(iospec);
-	            	            }
-	            				if(task.getIoSpecification().getInputSets() == null || task.getIoSpecification().getInputSets().size() < 1) {
-	            	            	InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
-	            	                task.getIoSpecification().getInputSets().add(inset);
-	            	            }
-	            				InputSet inSet = task.getIoSpecification().getInputSets().get(0);
-	            				boolean foundDataInput = false;
-	            				for(DataInput dataInput : inSet.getDataInputRefs()) {
-	            					if(dataInput.getId().equals(task.getId() + "_" + da.getId() + "Input")) {
-	            						foundDataInput = true;
-	            					}
-	            				}
-	            				if(!foundDataInput) {
-		            	        	DataInput d = Bpmn2Factory.eINSTANCE.createDataInput();
-		            	            d.setId(task.getId() + "_" + da.getId() + "Input");
-		            	            d.setName(da.getId() + "Input");
-		            	            task.getIoSpecification().getDataInputs().add(d);
-		            	            task.getIoSpecification().getInputSets().get(0).getDataInputRefs().add(d);
-		            	        	
-		            	        	DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
-		            	        	dia.setTargetRef(d);
-		            	        	dia.getSourceRef().add(da);
-		            	            task.getDataInputAssociations().add(dia);
-	            				}
-	            			} else if(as.getTargetRef() instanceof ThrowEvent) {
-	            				ThrowEvent te = (ThrowEvent) as.getTargetRef();
-	            				// update throw event data input and add data input association
-	            				boolean foundDataInput = false;
-	            				List<DataInput> dataInputs = te.getDataInputs();
-	            				for(DataInput din : dataInputs) {
-	            					if(din.getId().equals(te.getId() + "_" + da.getId() + "Input")) {
-	            						foundDataInput = true;
-	            					}
-	            				}
-	            				if(!foundDataInput) {
-	            					DataInput datain = Bpmn2Factory.eINSTANCE.createDataInput();
-	            					datain.setId(te.getId() + "_" + da.getId() + "Input");
-	            					datain.setName(da.getId() + "Input");
-	            					te.getDataInputs().add(datain);
-	            					
-	            					if(te.getInputSet() == null) {
-		            	            	InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
-		            	            	te.setInputSet(inset);
-		            	            }
-	            					te.getInputSet().getDataInputRefs().add(datain);
-	            					
-	            					DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
-	            					dia.setTargetRef(datain);
-	            					dia.getSourceRef().add(da);
-	            					te.getDataInputAssociation().add(dia);
-	            				}
-	            			}
-	            		} 
-	            		if(as.getTargetRef() != null && as.getTargetRef() instanceof DataObject 
-	            				&& as.getSourceRef() != null && (as.getSourceRef() instanceof Task || as.getSourceRef() instanceof CatchEvent)) {
-	            			DataObject da = (DataObject) as.getTargetRef();
-	            			if(as.getSourceRef() instanceof Task) {
-	            				Task task = (Task) as.getSourceRef();
-	            				if(task.getIoSpecification() == null) {
-	            	                InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
-	            	                task.setIoSpecification(iospec);
-	            	            }
-	            				
-	            				if(task.getIoSpecification().getOutputSets() == null || task.getIoSpecification().getOutputSets().size() < 1) {
-	            	            	OutputSet outSet = Bpmn2Factory.eINSTANCE.createOutputSet();
-	            	                task.getIoSpecification().getOutputSets().add(outSet);
-	            	            }
-	            				
-	            				boolean foundDataOutput = false;
-	            				OutputSet outSet = task.getIoSpecification().getOutputSets().get(0);
-	            				for(DataOutput dataOut : outSet.getDataOutputRefs()) {
-	            					if(dataOut.getId().equals(task.getId() + "_" + da.getId() + "Output")) {
-	            						foundDataOutput = true;
-	            					}
-	            				}
-	            				
-	            				if(!foundDataOutput) {
-		            	        	DataOutput d = Bpmn2Factory.eINSTANCE.createDataOutput();
-		            	            d.setId(task.getId() + "_" + da.getId() + "Output");
-		            	            d.setName(da.getId());
-		            	            task.getIoSpecification().getDataOutputs().add(d);
-		            	            task.getIoSpecification().getOutputSets().get(0).getDataOutputRefs().add(d);
-		            	        	
-		            	        	DataOutputAssociation dia = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
-		            	        	dia.setTargetRef(da);
-		            	        	dia.getSourceRef().add(d);
-		            	            task.getDataOutputAssociations().add(dia);
-	            				}
-	            			} else if(as.getSourceRef() instanceof CatchEvent) {
-	            				CatchEvent ce = (CatchEvent) as.getSourceRef();
-	            				// update catch event data output and add data output association
-	            				boolean foundDataOutput = false;
-	            				List<DataOutput> dataOutputs = ce.getDataOutputs();
-	            				for(DataOutput dout : dataOutputs) {
-	            					if(dout.getId().equals(ce.getId() + "_" + da.getId() + "Output")) {
-	            						foundDataOutput = true;
-	            					}
-	            				}
-	            				if(!foundDataOutput) {
-	            					DataOutput dataout = Bpmn2Factory.eINSTANCE.createDataOutput();
-	            					dataout.setId(ce.getId() + "_" + da.getId() + "Output");
-	            					dataout.setName(da.getId() + "Output");
-	            					ce.getDataOutputs().add(dataout);
-	            					
-	            					if(ce.getOutputSet() == null) {
-		            	            	OutputSet outset = Bpmn2Factory.eINSTANCE.createOutputSet();
-		            	            	ce.setOutputSet(outset);
-		            	            }
-	            					ce.getOutputSet().getDataOutputRefs().add(dataout);
-	            					
-	            					DataOutputAssociation dia = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
-	            					dia.setTargetRef(da);
-	            					dia.getSourceRef().add(dataout);
-	            					ce.getDataOutputAssociation().add(dia);
-	            				}
-	            			}
-	            		} 
-	            	}
-	            }
-	        }
-        }
+        new RevisitPipeline().add(new DataObjectsPhase()).run(def);
     }
-    
+
     public void revisitTaskAssociations(Definitions def) {
-    	List<RootElement> rootElements =  def.getRootElements();
-        for(RootElement root : rootElements) {
-            if(root instanceof Process) {
-                Process process = (Process) root;
-                List<FlowElement> flowElements = process.getFlowElements();
-                for(FlowElement fe : flowElements) {
-                	if(fe instanceof Task) {
-                		Task t = (Task) fe;
-                		if(t.getDataInputAssociations() != null) {
-                			List<DataInputAssociation> inputList = t.getDataInputAssociations();
-                			if(inputList != null) {
-                				for(DataInputAssociation input : inputList) {
-                					List<ItemAwareElement> sourceRef = input.getSourceRef();
-                					if(sourceRef != null) {
-                						for(ItemAwareElement iae : sourceRef) {
-                							String[] iaeParts = iae.getId().split( "\\." );
-                							if(iaeParts.length > 1) {
-                								FormalExpression dataInputTransformationExpression = Bpmn2Factory.eINSTANCE.createFormalExpression();
-                								dataInputTransformationExpression.setBody(iae.getId());
-                								input.setTransformation(dataInputTransformationExpression);
-                    		                    iae.setId(iaeParts[0]);
-                							}
-                						}
-                					}
-                				}
-                			}
-                		}
-                		if(t.getDataOutputAssociations() != null) {
-                			List<DataOutputAssociation> outputList = t.getDataOutputAssociations();
-                			if(outputList != null) {
-                				for(DataOutputAssociation output : outputList) {
-                					ItemAwareElement targetEle = output.getTargetRef();
-                					if(targetEle != null) {
-                						String[] targetEleParts = targetEle.getId().split( "\\." );
-                						if(targetEleParts.length > 1) {
-                							FormalExpression dataOutputTransformationExpression = Bpmn2Factory.eINSTANCE.createFormalExpression();
-                							dataOutputTransformationExpression.setBody(targetEle.getId());
-            								output.setTransformation(dataOutputTransformationExpression);
-                		                    targetEle.setId(targetEleParts[0]);
-            							}
-                					}
-                				}
-                			}
-                		}
-                		
-                		if(t.getIoSpecification() != null) {
-                			InputOutputSpecification ios = t.getIoSpecification();
-                			if(ios.getInputSets() == null || ios.getInputSets().size() < 1) {
-                				InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
-                				ios.getInputSets().add(inset);
-                			}
-                			
-                			if(ios.getOutputSets() == null) {
-                				if(ios.getOutputSets() == null || ios.getOutputSets().size() < 1) {
-                					OutputSet outset = Bpmn2Factory.eINSTANCE.createOutputSet();
-                					ios.getOutputSets().add(outset);
-                				}
-                			}
-                		}
-                	}
-                }
-            }
-        }
+        new RevisitPipeline().add(new TaskAssociationsPhase()).run(def);
     }
-    
+
     public void revisitSendReceiveTasks(Definitions def) {
-    	List<Message> toAddMessages = new ArrayList<Message>();
-        List<ItemDefinition> toAddItemDefinitions = new ArrayList<ItemDefinition>();
-    	List<RootElement> rootElements =  def.getRootElements();
-        for(RootElement root : rootElements) {
-            if(root instanceof Process) {
-                Process process = (Process) root;
-                List<FlowElement> flowElements = process.getFlowElements();
-                for(FlowElement fe : flowElements) {
-                	if(fe instanceof ReceiveTask) {
-                		ReceiveTask rt = (ReceiveTask) fe;
-                		ItemDefinition idef = Bpmn2Factory.eINSTANCE.createItemDefinition();
-                        Message msg = Bpmn2Factory.eINSTANCE.createMessage();
-                		Iterator<FeatureMap.Entry> iter = rt.getAnyAttribute().iterator();
-                        while(iter.hasNext()) {
-                            FeatureMap.Entry entry = iter.next();
-                            if(entry.getEStructuralFeature().getName().equals("msgref")) {
-                                msg.setId((String) entry.getValue());
-                                idef.setId((String) entry.getValue() + "Type");
-                            }
-                        }
-                        msg.setItemRef(idef);
-                        rt.setMessageRef(msg);
-                        toAddMessages.add(msg);
-                        toAddItemDefinitions.add(idef);
-                	} else if(fe instanceof SendTask) {
-                		SendTask st = (SendTask) fe;
-                		ItemDefinition idef = Bpmn2Factory.eINSTANCE.createItemDefinition();
-                        Message msg = Bpmn2Factory.eINSTANCE.createMessage();
-                		Iterator<FeatureMap.Entry> iter = st.getAnyAttribute().iterator();
-                        while(iter.hasNext()) {
-                            FeatureMap.Entry entry = iter.next();
-                            if(entry.getEStructuralFeature().getName().equals("msgref")) {
-                                msg.setId((String) entry.getValue());
-                                idef.setId((String) entry.getValue() + "Type");
-                            }
-                        }
-                        msg.setItemRef(idef);
-                        st.setMessageRef(msg);
-                        toAddMessages.add(msg);
-                        toAddItemDefinitions.add(idef);
-                	}
+        new RevisitPipeline().add(new SendReceiveTasksPhase()).run(def);
+    }
+
+    private void setDataObjectAssociationInfo(Association as) {
+        if(as.getSourceRef() != null && as.getSourceRef() instanceof DataObject
+                && as.getTargetRef() != null && (as.getTargetRef() instanceof Task || as.getTargetRef() instanceof ThrowEvent)) {
+            DataObject da = (DataObject) as.getSourceRef();
+            if(as.getTargetRef() instanceof Task) {
+                Task task = (Task) as.getTargetRef();
+                if(task.getIoSpecification() == null) {
+                    InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
+                    task.setIoSpecification(iospec);
+                }
+                if(task.getIoSpecification().getInputSets() == null || task.getIoSpecification().getInputSets().size() < 1) {
+                    InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
+                    task.getIoSpecification().getInputSets().add(inset);
+                }
+                InputSet inSet = task.getIoSpecification().getInputSets().get(0);
+                boolean foundDataInput = false;
+                for(DataInput dataInput : inSet.getDataInputRefs()) {
+                    if(dataInput.getId().equals(task.getId() + "_" + da.getId() + "Input")) {
+                        foundDataInput = true;
+                    }
+                }
+                if(!foundDataInput) {
+                    DataInput d = Bpmn2Factory.eINSTANCE.createDataInput();
+                    d.setId(task.getId() + "_" + da.getId() + "Input");
+                    d.setName(da.getId() + "Input");
+                    task.getIoSpecification().getDataInputs().add(d);
+                    task.getIoSpecification().getInputSets().get(0).getDataInputRefs().add(d);
+
+                    DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
+                    dia.setTargetRef(d);
+                    dia.getSourceRef().add(da);
+                    task.getDataInputAssociations().add(dia);
+                }
+            } else if(as.getTargetRef() instanceof ThrowEvent) {
+                ThrowEvent te = (ThrowEvent) as.getTargetRef();
+                // update throw event data input and add data input association
+                boolean foundDataInput = false;
+                List<DataInput> dataInputs = te.getDataInputs();
+                for(DataInput din : dataInputs) {
+                    if(din.getId().equals(te.getId() + "_" + da.getId() + "Input")) {
+                        foundDataInput = true;
+                    }
+                }
+                if(!foundDataInput) {
+                    DataInput datain = Bpmn2Factory.eINSTANCE.createDataInput();
+                    datain.setId(te.getId() + "_" + da.getId() + "Input");
+                    datain.setName(da.getId() + "Input");
+                    te.getDataInputs().add(datain);
+
+                    if(te.getInputSet() == null) {
+                        InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
+                        te.setInputSet(inset);
+                    }
+                    te.getInputSet().getDataInputRefs().add(datain);
+
+                    DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
+                    dia.setTargetRef(datain);
+                    dia.getSourceRef().add(da);
+                    te.getDataInputAssociation().add(dia);
                 }
             }
         }
-        
-        for(ItemDefinition idef : toAddItemDefinitions) {
-            def.getRootElements().add(idef);
-        }
-        for(Message msg : toAddMessages) { 
-            def.getRootElements().add(msg);
+        if(as.getTargetRef() != null && as.getTargetRef() instanceof DataObject
+                && as.getSourceRef() != null && (as.getSourceRef() instanceof Task || as.getSourceRef() instanceof CatchEvent)) {
+            DataObject da = (DataObject) as.getTargetRef();
+            if(as.getSourceRef() instanceof Task) {
+                Task task = (Task) as.getSourceRef();
+                if(task.getIoSpecification() == null) {
+                    InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
+                    task.setIoSpecification(iospec);
+                }
+
+                if(task.getIoSpecification().getOutputSets() == null || task.getIoSpecification().getOutputSets().size() < 1) {
+                    OutputSet outSet = Bpmn2Factory.eINSTANCE.createOutputSet();
+                    task.getIoSpecification().getOutputSets().add(outSet);
+                }
+
+                boolean foundDataOutput = false;
+                OutputSet outSet = task.getIoSpecification().getOutputSets().get(0);
+                for(DataOutput dataOut : outSet.getDataOutputRefs()) {
+                    if(dataOut.getId().equals(task.getId() + "_" + da.getId() + "Output")) {
+                        foundDataOutput = true;
+                    }
+                }
+
+                if(!foundDataOutput) {
+                    DataOutput d = Bpmn2Factory.eINSTANCE.createDataOutput();
+                    d.setId(task.getId() + "_" + da.getId() + "Output");
+                    d.setName(da.getId());
+                    task.getIoSpecification().getDataOutputs().add(d);
+                    task.getIoSpecification().getOutputSets().get(0).getDataOutputRefs().add(d);
+
+                    DataOutputAssociation dia = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
+                    dia.setTargetRef(da);
+                    dia.getSourceRef().add(d);
+                    task.getDataOutputAssociations().add(dia);
+                }
+            } else if(as.getSourceRef() instanceof CatchEvent) {
+                CatchEvent ce = (CatchEvent) as.getSourceRef();
+                // update catch event data output and add data output association
+                boolean foundDataOutput = false;
+                List<DataOutput> dataOutputs = ce.getDataOutputs();
+                for(DataOutput dout : dataOutputs) {
+                    if(dout.getId().equals(ce.getId() + "_" + da.getId() + "Output")) {
+                        foundDataOutput = true;
+                    }
+                }
+                if(!foundDataOutput) {
+                    DataOutput dataout = Bpmn2Factory.eINSTANCE.createDataOutput();
+                    dataout.setId(ce.getId() + "_" + da.getId() + "Output");
+                    dataout.setName(da.getId() + "Output");
+                    ce.getDataOutputs().add(dataout);
+
+                    if(ce.getOutputSet() == null) {
+                        OutputSet outset = Bpmn2Factory.eINSTANCE.createOutputSet();
+                        ce.setOutputSet(outset);
+                    }
+                    ce.getOutputSet().getDataOutputRefs().add(dataout);
+
+                    DataOutputAssociation dia = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
+                    dia.setTargetRef(da);
+                    dia.getSourceRef().add(dataout);
+                    ce.getDataOutputAssociation().add(dia);
+                }
+            }
         }
     }
-    
+
+    /**
+     * The lanes are kept in the context of an unmarshalling: without one there
+     * are none to add.
+     * @deprecated use {@link #revisitLanes(Definitions, Bpmn2UnmarshallingContext)}
+     */
+    @Deprecated
     public void revisitLanes(Definitions def) {
+        revisitLanes(def, new Bpmn2UnmarshallingContext(""));
+    }
+
+    public void revisitLanes(Definitions def, Bpmn2UnmarshallingContext context) {
         List<RootElement> rootElements =  def.getRootElements();
         for(RootElement root : rootElements) {
             if(root instanceof Process) {
                 Process process = (Process) root;
-                if((process.getLaneSets() == null || process.getLaneSets().size() < 1) && _lanes.size() > 0) {
+                if((process.getLaneSets() == null || process.getLaneSets().size() < 1) && context.getLanes().size() > 0) {
                 	LaneSet ls = Bpmn2Factory.eINSTANCE.createLaneSet();
-                	for(Lane lane : _lanes) {
+                	for(Lane lane : context.getLanes()) {
                 		ls.getLanes().add(lane);
                 		List<FlowNode> laneFlowNodes = lane.getFlowNodeRefs();
                 		for(FlowNode fl : laneFlowNodes) {
@@ -595,12 +595,22 @@ public class Bpmn2JsonUnmarshaller {
         }
     }
     
+    /**
+     * The artifacts are kept in the context of an unmarshalling: without one
+     * there are none to add.
+     * @deprecated use {@link #revisitArtifacts(Definitions, Bpmn2UnmarshallingContext)}
+     */
+    @Deprecated
     public void revisitArtifacts(Definitions def) {
+        revisitArtifacts(def, new Bpmn2UnmarshallingContext(""));
+    }
+
+    public void revisitArtifacts(Definitions def, Bpmn2UnmarshallingContext context) {
     	List<RootElement> rootElements =  def.getRootElements();
         for(RootElement root : rootElements) {
             if(root instanceof Process) {
                 Process process = (Process) root;
-                for(Artifact a : _artifacts) {
+                for(Artifact a : context.getArtifacts()) {
                 	process.getArtifacts().add(a);
                 }
             }
@@ -641,697 +651,281 @@ public class Bpmn2JsonUnmarshaller {
     }
     
     /**
-     * Updates event definitions for all throwing events.
+     * Updates event definitions for all throwing events, with the errors,
+     * escalations and messages of their own.
      * @param def Definitions
      */
     public void revisitThrowEvents(Definitions def) {
-    	List<RootElement> rootElements =  def.getRootElements();
-    	List<Signal> toAddSignals = new ArrayList<Signal>();
-        Set<Error> toAddErrors = new HashSet<Error>();
-        Set<Escalation> toAddEscalations = new HashSet<Escalation>();
-        Set<Message> toAddMessages = new HashSet<Message>();
-        Set<ItemDefinition> toAddItemDefinitions = new HashSet<ItemDefinition>();
-        for(RootElement root : rootElements) {
-            if(root instanceof Process) {
-            	setThrowEventsInfo((Process) root, def, rootElements, toAddSignals, toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions);
-            }
-        }
-        for(Signal s : toAddSignals) {
-            def.getRootElements().add(s);
-        }
-        for(Error er : toAddErrors) {
-            def.getRootElements().add(er);
-        }
-        for(Escalation es : toAddEscalations) {
-            def.getRootElements().add(es);
-        }
-        for(ItemDefinition idef : toAddItemDefinitions) {
-            def.getRootElements().add(idef);
-        }
-        for(Message msg : toAddMessages) { 
-            def.getRootElements().add(msg);
-        }
+        revisitThrowEvents(def, new Bpmn2UnmarshallingContext(""));
     }
-    
+
+    /**
+     * Updates event definitions for all throwing events.
+     * @param def Definitions
+     * @param context the unmarshalling, which shares the errors, escalations and messages of the events
+     */
+    public void revisitThrowEvents(Definitions def, Bpmn2UnmarshallingContext context) {
+        new RevisitPipeline().add(new EventDefinitionsPhase("throw events", false, new ActivityNameLookup(def), context)).run(def);
+    }
+
 	public void setThrowEventsInfo(FlowElementsContainer container,
 			Definitions def,
 			List<RootElement> rootElements, List<Signal> toAddSignals,
 			Set<Error> toAddErrors, Set<Escalation> toAddEscalations,
 			Set<Message> toAddMessages,
 			Set<ItemDefinition> toAddItemDefinitions) {
-		List<FlowElement> flowElements = container.getFlowElements();
-		for (FlowElement fe : flowElements) {
+		setThrowEventsInfo(container, def, rootElements, toAddSignals, toAddErrors, toAddEscalations,
+				toAddMessages, toAddItemDefinitions, new Bpmn2UnmarshallingContext(""));
+	}
+
+	public void setThrowEventsInfo(FlowElementsContainer container,
+			Definitions def,
+			List<RootElement> rootElements, List<Signal> toAddSignals,
+			Set<Error> toAddErrors, Set<Escalation> toAddEscalations,
+			Set<Message> toAddMessages,
+			Set<ItemDefinition> toAddItemDefinitions, Bpmn2UnmarshallingContext context) {
+		ActivityNameLookup activities = new ActivityNameLookup(def);
+		for (FlowElement fe : container.getFlowElements()) {
 			if (fe instanceof ThrowEvent) {
 				if (((ThrowEvent) fe).getEventDefinitions().size() > 0) {
-					EventDefinition ed = ((ThrowEvent) fe)
-							.getEventDefinitions().get(0);
-					if (ed instanceof SignalEventDefinition) {
-						// Signal signal =
-						// Bpmn2Factory.eINSTANCE.createSignal();
-						// Iterator<FeatureMap.Entry> iter =
-						// ed.getAnyAttribute().iterator();
-						// while(iter.hasNext()) {
-						// FeatureMap.Entry entry = iter.next();
-						// if(entry.getEStructuralFeature().getName().equals("signalrefname"))
-						// {
-						// signal.setName((String) entry.getValue());
-						// }
-						// }
-						// toAddSignals.add(signal);
-						// ((SignalEventDefinition) ed).setSignalRef(signal);
-					} else if (ed instanceof ErrorEventDefinition) {
-                                                String errorCode = null;
-                                                String errorId = null;
-						Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute()
-								.iterator();
-						while (iter.hasNext()) {
-							FeatureMap.Entry entry = iter.next();
-							if (entry.getEStructuralFeature().getName()
-									.equals("erefname")) {
-								errorId = (String) entry.getValue();
-								errorCode = (String) entry.getValue();
-							}
-						}
-
-                                                Error err = this._errors.get(errorCode);
-                                                if (err == null){
-                                                    err = Bpmn2Factory.eINSTANCE.createError();
-                                                    err.setId(errorId);
-                                                    err.setErrorCode(errorCode);
-                                                    this._errors.put(errorCode, err);
-                                                }
-                                                
-						toAddErrors.add(err);
-						((ErrorEventDefinition) ed).setErrorRef(err);
-
-					} else if (ed instanceof EscalationEventDefinition) {
-						String escalationCode = null;
-                                                Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute().iterator();
-                                                while(iter.hasNext()) {
-                                                    FeatureMap.Entry entry = iter.next();
-                                                    if(entry.getEStructuralFeature().getName().equals("esccode")) {
-                                                        escalationCode = (String) entry.getValue();
-                                                        break;
-                                                    }
-                                                }
-
-                                                Escalation escalation = this._escalations.get(escalationCode);
-                                                if (escalation == null){
-                                                    escalation = Bpmn2Factory.eINSTANCE.createEscalation();
-                                                    escalation.setEscalationCode(escalationCode);
-                                                    this._escalations.put(escalationCode, escalation);
-                                                }
-                                                toAddEscalations.add(escalation);
-                                                ((EscalationEventDefinition) ed).setEscalationRef(escalation);
-					} else if (ed instanceof MessageEventDefinition) {
-                                            String idefId = null;
-                                            String msgId = null;
-                                            
-						Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute()
-								.iterator();
-						while (iter.hasNext()) {
-							FeatureMap.Entry entry = iter.next();
-							if (entry.getEStructuralFeature().getName()
-									.equals("msgref")) {
-                                                            msgId = (String) entry.getValue();
-                                                            idefId = (String) entry.getValue() + "Type";
-							}
-						}
-                                                
-                                                ItemDefinition idef = _itemDefinitions.get(idefId);
-                                                if (idef == null){
-                                                    idef = Bpmn2Factory.eINSTANCE
-								.createItemDefinition();
-                                                    idef.setId(idefId);
-                                                    _itemDefinitions.put(idefId, idef);
-                                                }
-                                                
-                                                Message msg = _messages.get(msgId);
-                                                if (msg == null){
-                                                    msg = Bpmn2Factory.eINSTANCE.createMessage();
-                                                    msg.setId(msgId);
-                                                    msg.setItemRef(idef);
-                                                    _messages.put(msgId, msg);
-                                                }
-                                                
-						
-						toAddMessages.add(msg);
-						toAddItemDefinitions.add(idef);
-						((MessageEventDefinition) ed).setMessageRef(msg);
-					} else if (ed instanceof CompensateEventDefinition) {
-						Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute()
-								.iterator();
-						while (iter.hasNext()) {
-							FeatureMap.Entry entry = iter.next();
-							if (entry.getEStructuralFeature().getName()
-									.equals("actrefname")) {
-								String activityNameRef = (String) entry
-										.getValue();
-								// we have to iterate again through all flow
-								// elements
-								// in order to find our activity name
-								List<RootElement> re = def.getRootElements();
-								for (RootElement r : re) {
-									if (r instanceof Process) {
-										Process p = (Process) r;
-										List<FlowElement> fes = p
-												.getFlowElements();
-										for (FlowElement f : fes) {
-											if (f instanceof Activity
-													&& ((Activity) f)
-															.getName()
-															.equals(activityNameRef)) {
-												((CompensateEventDefinition) ed)
-														.setActivityRef((Activity) f);
-											}
-										}
-									}
-								}
-							}
-						}
-					}
+					setEventDefinitionInfo(((ThrowEvent) fe).getEventDefinitions().get(0), activities,
+							toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions, context);
 				}
 			} else if(fe instanceof FlowElementsContainer) {
-				setThrowEventsInfo((FlowElementsContainer) fe, def, rootElements, toAddSignals, toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions);
+				setThrowEventsInfo((FlowElementsContainer) fe, def, rootElements, toAddSignals, toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions, context);
             }
 		}
 	}
-    
-    private void revisitCatchEventsConvertToBoundary(Definitions def) {
-    	List<CatchEvent> catchEventsToRemove = new ArrayList<CatchEvent>();
-    	List<BoundaryEvent> boundaryEventsToAdd = new ArrayList<BoundaryEvent>();
-    	List<RootElement> rootElements =  def.getRootElements();
-    	for(RootElement root : rootElements) {
-    		if(root instanceof Process) {
-    			Process process = (Process) root;
-                List<FlowElement> flowElements =  process.getFlowElements();
-                for(FlowElement fe : flowElements) {
-                	if(fe instanceof CatchEvent) {
-                		CatchEvent ce = (CatchEvent) fe;
-                		// check if we have an outgoing connection to this catch event from an activity
-                		 for (Entry<Object, List<String>> entry : _outgoingFlows.entrySet()) {
-                			 for (String flowId : entry.getValue()) {
-                				 if (entry.getKey() instanceof Activity && flowId.equals(ce.getId())) {
-                					 BoundaryEvent be = Bpmn2Factory.eINSTANCE.createBoundaryEvent();
-                					 if(ce.getDataOutputs() != null) {
-                						 be.getDataOutputs().addAll(ce.getDataOutputs());
-                					 }
-                					 if(ce.getDataOutputAssociation() != null) {
-                						 be.getDataOutputAssociation().addAll(ce.getDataOutputAssociation());
-                					 }
-                					 if(ce.getOutputSet() != null) {
-                						 be.setOutputSet(ce.getOutputSet());
-                					 }
-                					 if(ce.getEventDefinitions() != null) {
-                						 be.getEventDefinitions().addAll(ce.getEventDefinitions());
-                					 }
-                					 if(ce.getEventDefinitionRefs() != null) {
-                						 be.getEventDefinitionRefs().addAll(ce.getEventDefinitionRefs());
-                					 }
-                					 if(ce.getProperties() != null) {
-                						 be.getProperties().addAll(ce.getProperties());
-                					 }
-                					 if(ce.getAnyAttribute() != null) {
-                						 be.getAnyAttribute().addAll(ce.getAnyAttribute());
-                					 }
-                					 if(ce.getOutgoing() != null) {
-                						 be.getOutgoing().addAll(ce.getOutgoing());
-                					 }
-                					 if(ce.getIncoming() != null) {
-                						 be.getIncoming().addAll(ce.getIncoming());
-                					 }
-                					 if(ce.getProperties() != null) {
-                						 be.getProperties().addAll(ce.getProperties());
-                					 }
-                					 
-                					 Iterator<FeatureMap.Entry> iter = ce.getAnyAttribute().iterator();
-                                     while(iter.hasNext()) {
-                                         FeatureMap.Entry entry2 = iter.next();
-                                         if(entry2.getEStructuralFeature().getName().equals("boundaryca")) {
-                                        	 String boundaryceVal = (String) entry2.getValue();
-                                             be.setCancelActivity(Boolean.getBoolean(boundaryceVal));
-                                         }
-                                     }
-                					 
-                					 be.setName(ce.getName());
-                					 be.setId(ce.getId());
-                					 
-                					 be.setAttachedToRef(((Activity)entry.getKey()));
-                					 ((Activity)entry.getKey()).getBoundaryEventRefs().add(be);
-                					 catchEventsToRemove.add(ce);
-                					 boundaryEventsToAdd.add(be);
-                				 }
-                			 }
-                		 }
-                	}
-                }
-                if(boundaryEventsToAdd.size() > 0) {
-            		for(BoundaryEvent be : boundaryEventsToAdd) {
-            			process.getFlowElements().add(be);
-            		}
-            	}
-                if(catchEventsToRemove.size() > 0) {
-                	for(CatchEvent ce : catchEventsToRemove) {
-                		process.getFlowElements().remove(ce);
-                	}
-                }
-    		}
-    	}
-    }
-    
-    public void revisitAssociationsIoSpec(Definitions def) {
-    	List<RootElement> rootElements =  def.getRootElements();
-    	List<ItemDefinition> toAddItemDefinitions = new ArrayList<ItemDefinition>();
-    	for(RootElement root : rootElements) {
-            if(root instanceof Process) {
-            	setItemDefinitionsForActivitiesIoSpec((Process) root, def, toAddItemDefinitions);
-            }
-        }
-    	for(ItemDefinition itemDef : toAddItemDefinitions) {
-        	def.getRootElements().add(itemDef);
-        }
-    }
-    
-    public void setItemDefinitionsForActivitiesIoSpec(FlowElementsContainer container, Definitions def, List<ItemDefinition> toAddItemDefinitions) {
-    	List<FlowElement> flowElements =  container.getFlowElements();
-    	for(FlowElement fe : flowElements) {
-    		if(fe instanceof Activity) {
-    			Activity ac = (Activity) fe;
-    			if(ac.getIoSpecification() != null) {
-    				if(ac.getIoSpecification().getDataInputs() != null) {
-    					List<DataInput> dataInputs = ac.getIoSpecification().getDataInputs();
-    					for(DataInput din: dataInputs) {
-    						Iterator<FeatureMap.Entry> iter = din.getAnyAttribute().iterator();
-                            while(iter.hasNext()) {
-                                FeatureMap.Entry entry = iter.next();
-                                if(entry.getEStructuralFeature().getName().equals("dtype")) {
-                                	String dinType = (String) entry.getValue();
-                               	 	if(dinType != null && dinType.length() > 0) {
-                               	 		ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
-                               	 		itemdef.setId("_" + din.getId() + "Item");
-                               	 		itemdef.setStructureRef(dinType);
-                               	 		toAddItemDefinitions.add(itemdef);
-                               	 		din.setItemSubjectRef(itemdef);
-                               	 	}
-                                }
-                            }
-    					}
-    				}
-    				
-    				if(ac.getIoSpecification().getDataOutputs() != null) {
-    					List<DataOutput> dataOutputs = ac.getIoSpecification().getDataOutputs();
-    					for(DataOutput dout: dataOutputs) {
-    						Iterator<FeatureMap.Entry> iter = dout.getAnyAttribute().iterator();
-                            while(iter.hasNext()) {
-                                FeatureMap.Entry entry = iter.next();
-                                if(entry.getEStructuralFeature().getName().equals("dtype")) {
-                                	String doutType = (String) entry.getValue();
-                               	 	if(doutType != null && doutType.length() > 0) {
-                               	 		ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
-                               	 		itemdef.setId("_" + dout.getId() + "Item");
-                               	 		itemdef.setStructureRef(doutType);
-                               	 		toAddItemDefinitions.add(itemdef);
-                               	 		dout.setItemSubjectRef(itemdef);
-                               	 	}
-                                }
-                            }
-    					}
-    				}
-    			}
-    		} else if(fe instanceof FlowElementsContainer) {
-    			setItemDefinitionsForActivitiesIoSpec((FlowElementsContainer) fe, def, toAddItemDefinitions);
-            }
-    	}
+
+    /**
+     * Updates event definitions for all catch events, with the errors,
+     * escalations and messages of their own.
+     * @param def Definitions
+     */
+    public void revisitCatchEvents(Definitions def) {
+        revisitCatchEvents(def, new Bpmn2UnmarshallingContext(""));
     }
-    
+
     /**
      * Updates event definitions for all catch events.
      * @param def Definitions
+     * @param context the unmarshalling, which shares the errors, escalations and messages of the events
      */
-    public void revisitCatchEvents(Definitions def) {
-    	List<RootElement> rootElements =  def.getRootElements();
-        List<Signal> toAddSignals = new ArrayList<Signal>();
-        Set<Error> toAddErrors = new HashSet<Error>();
-        Set<Escalation> toAddEscalations = new HashSet<Escalation>();
-        Set<Message> toAddMessages = new HashSet<Message>();
-        Set<ItemDefinition> toAddItemDefinitions = new HashSet<ItemDefinition>();
-        for(RootElement root : rootElements) {
-            if(root instanceof Process) {
-            	setCatchEventsInfo((Process) root, def, toAddSignals, toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions);
+    public void revisitCatchEvents(Definitions def, Bpmn2UnmarshallingContext context) {
+        new RevisitPipeline().add(new EventDefinitionsPhase("catch events", true, new ActivityNameLookup(def), context)).run(def);
+    }
+
+    public void setCatchEventsInfo(FlowElementsContainer container, Definitions def, List<Signal> toAddSignals, Set<Error> toAddErrors,
+    		Set<Escalation> toAddEscalations, Set<Message> toAddMessages, Set<ItemDefinition> toAddItemDefinitions) {
+        setCatchEventsInfo(container, def, toAddSignals, toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions,
+                new Bpmn2UnmarshallingContext(""));
+    }
+
+    public void setCatchEventsInfo(FlowElementsContainer container, Definitions def, List<Signal> toAddSignals, Set<Error> toAddErrors,
+    		Set<Escalation> toAddEscalations, Set<Message> toAddMessages, Set<ItemDefinition> toAddItemDefinitions,
+    		Bpmn2UnmarshallingContext context) {
+        ActivityNameLookup activities = new ActivityNameLookup(def);
+        for(FlowElement fe : container.getFlowElements()) {
+            if(fe instanceof CatchEvent) {
+                if(((CatchEvent)fe).getEventDefinitions().size() > 0) {
+                    setEventDefinitionInfo(((CatchEvent) fe).getEventDefinitions().get(0), activities,
+                            toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions, context);
+                }
+            } else if(fe instanceof FlowElementsContainer) {
+            	setCatchEventsInfo((FlowElementsContainer) fe, def, toAddSignals, toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions, context);
             }
         }
-        for(Signal s : toAddSignals) {
-            def.getRootElements().add(s);
-        }
-        for(Error er : toAddErrors) {
-            def.getRootElements().add(er);
-        }
-        for(Escalation es : toAddEscalations) {
-            def.getRootElements().add(es);
-        }
-        for(ItemDefinition idef : toAddItemDefinitions) {
-            def.getRootElements().add(idef);
-        }
-        for(Message msg : toAddMessages) {
-            def.getRootElements().add(msg);
-        }
     }
-    
-    public void setCatchEventsInfo(FlowElementsContainer container, Definitions def, List<Signal> toAddSignals, Set<Error> toAddErrors, 
-    		Set<Escalation> toAddEscalations, Set<Message> toAddMessages, Set<ItemDefinition> toAddItemDefinitions) {
-                List<FlowElement> flowElements =  container.getFlowElements();
-                for(FlowElement fe : flowElements) {
-                    if(fe instanceof CatchEvent) {
-                        if(((CatchEvent)fe).getEventDefinitions().size() > 0) {
-                            EventDefinition ed = ((CatchEvent)fe).getEventDefinitions().get(0);
-                            if (ed instanceof SignalEventDefinition) {
-//                                Signal signal = Bpmn2Factory.eINSTANCE.createSignal();
-//                                Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute().iterator();
-//                                while(iter.hasNext()) {
-//                                    FeatureMap.Entry entry = iter.next();
-//                                    if(entry.getEStructuralFeature().getName().equals("signalrefname")) {
-//                                        signal.setName((String) entry.getValue());
-//                                    }
-//                                }
-//                                toAddSignals.add(signal);
-//                                ((SignalEventDefinition) ed).setSignalRef(signal);
-                            } else if(ed instanceof ErrorEventDefinition) {
-                                String errorCode = null;
-                                String errorId = null;
-                                Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute()
-                                                .iterator();
-                                while (iter.hasNext()) {
-                                        FeatureMap.Entry entry = iter.next();
-                                        if (entry.getEStructuralFeature().getName()
-                                                        .equals("erefname")) {
-                                                errorId = (String) entry.getValue();
-                                                errorCode = (String) entry.getValue();
-                                        }
-                                }
 
-                                Error err = this._errors.get(errorCode);
-                                if (err == null){
-                                    err = Bpmn2Factory.eINSTANCE.createError();
-                                    err.setId(errorId);
-                                    err.setErrorCode(errorCode);
-                                    this._errors.put(errorCode, err);
-                                }
+    /**
+     * Resolves the error, escalation, message and activity references of the
+     * event definition of a catch or throw event.
+     */
+    private void setEventDefinitionInfo(EventDefinition ed, ActivityNameLookup activities, Set<Error> toAddErrors,
+            Set<Escalation> toAddEscalations, Set<Message> toAddMessages, Set<ItemDefinition> toAddItemDefinitions,
+            Bpmn2UnmarshallingContext context) {
+        if(ed instanceof ErrorEventDefinition) {
+            String errorCode = null;
+            String errorId = null;
+            Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute().iterator();
+            while (iter.hasNext()) {
+                FeatureMap.Entry entry = iter.next();
+                if (entry.getEStructuralFeature().getName().equals("erefname")) {
+                    errorId = (String) entry.getValue();
+                    errorCode = (String) entry.getValue();
+                }
+            }
 
-                                toAddErrors.add(err);
-                                ((ErrorEventDefinition) ed).setErrorRef(err);
-                                
-                            } else if(ed instanceof EscalationEventDefinition) {
-                                String escalationCode = null;
-                                Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute().iterator();
-                                while(iter.hasNext()) {
-                                    FeatureMap.Entry entry = iter.next();
-                                    if(entry.getEStructuralFeature().getName().equals("esccode")) {
-                                        escalationCode = (String) entry.getValue();
-                                        break;
-                                    }
-                                }
-                                
-                                Escalation escalation = this._escalations.get(escalationCode);
-                                if (escalation == null){
-                                    escalation = Bpmn2Factory.eINSTANCE.createEscalation();
-                                    escalation.setEscalationCode(escalationCode);
-                                    this._escalations.put(escalationCode, escalation);
-                                }
-                                toAddEscalations.add(escalation);
-                                ((EscalationEventDefinition) ed).setEscalationRef(escalation);
-                            } else if(ed instanceof MessageEventDefinition) {
-                                String idefId = null;
-                                String msgId = null;
-
-                                Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute()
-                                                .iterator();
-                                while (iter.hasNext()) {
-                                        FeatureMap.Entry entry = iter.next();
-                                        if (entry.getEStructuralFeature().getName()
-                                                        .equals("msgref")) {
-                                            msgId = (String) entry.getValue();
-                                            idefId = (String) entry.getValue() + "Type";
-                                        }
-                                }
+            Error err = context.getErrors().get(errorCode);
+            if (err == null){
+                err = Bpmn2Factory.eINSTANCE.createError();
+                err.setId(errorId);
+                err.setErrorCode(errorCode);
+                context.getErrors().put(errorCode, err);
+            }
 
-                                ItemDefinition idef = _itemDefinitions.get(idefId);
-                                if (idef == null){
-                                    idef = Bpmn2Factory.eINSTANCE
-                                                .createItemDefinition();
-                                    idef.setId(idefId);
-                                    _itemDefinitions.put(idefId, idef);
-                                }
+            toAddErrors.add(err);
+            ((ErrorEventDefinition) ed).setErrorRef(err);
+        } else if(ed instanceof EscalationEventDefinition) {
+            String escalationCode = null;
+            Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute().iterator();
+            while(iter.hasNext()) {
+                FeatureMap.Entry entry = iter.next();
+                if(entry.getEStructuralFeature().getName().equals("esccode")) {
+                    escalationCode = (String) entry.getValue();
+                    break;
+                }
+            }
 
-                                Message msg = _messages.get(msgId);
-                                if (msg == null){
-                                    msg = Bpmn2Factory.eINSTANCE.createMessage();
-                                    msg.setId(msgId);
-                                    msg.setItemRef(idef);
-                                    _messages.put(msgId, msg);
-                                }
-
-
-                                toAddMessages.add(msg);
-                                toAddItemDefinitions.add(idef);
-                                ((MessageEventDefinition) ed).setMessageRef(msg);
-                            } else if(ed instanceof CompensateEventDefinition) {
-                                Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute().iterator();
-                                while(iter.hasNext()) {
-                                    FeatureMap.Entry entry = iter.next();
-                                    if(entry.getEStructuralFeature().getName().equals("actrefname")) {
-                                        String activityNameRef = (String) entry.getValue();
-                                        // we have to iterate again through all flow elements
-                                        // in order to find our activity name
-                                        List<RootElement> re =  def.getRootElements();
-                                        for(RootElement r : re) {
-                                            if(r instanceof Process) {
-                                                Process p = (Process) r;
-                                                List<FlowElement> fes =  p.getFlowElements();
-                                                for(FlowElement f : fes) {
-                                                    if(f instanceof Activity && ((Activity) f).getName().equals(activityNameRef)) {
-                                                        ((CompensateEventDefinition) ed).setActivityRef((Activity)f);
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    } else if(fe instanceof FlowElementsContainer) {
-                    	setCatchEventsInfo((FlowElementsContainer) fe, def, toAddSignals, toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions);
-                    }
-        }
-    }
-    
-    /**
-     * Updates the gatewayDirection attributes of all gateways.
-     * @param def
-     */
-    private void revisitGateways(Definitions def) {
-        List<RootElement> rootElements =  def.getRootElements();
-        for(RootElement root : rootElements) {
-            if(root instanceof Process) {
-                setGatewayInfo((Process) root);
+            Escalation escalation = context.getEscalations().get(escalationCode);
+            if (escalation == null){
+                escalation = Bpmn2Factory.eINSTANCE.createEscalation();
+                escalation.setEscalationCode(escalationCode);
+                context.getEscalations().put(escalationCode, escalation);
             }
-        }
-    }
-    
-    private void setGatewayInfo(FlowElementsContainer container) {
-    	List<FlowElement> flowElements =  container.getFlowElements();
-        for(FlowElement fe : flowElements) {
-            if(fe instanceof Gateway) {
-                Gateway gateway = (Gateway) fe;
-                int incoming = gateway.getIncoming() == null ? 0 : gateway.getIncoming().size();
-                int outgoing = gateway.getOutgoing() == null ? 0 : gateway.getOutgoing().size();
-                if (incoming <= 1 && outgoing > 1) {
-                    gateway.setGatewayDirection(GatewayDirection.DIVERGING);
-                } else if (incoming > 1 && outgoing <= 1) {
-                    gateway.setGatewayDirection(GatewayDirection.CONVERGING);
-                } else if (incoming > 1 && outgoing > 1) {
-                    gateway.setGatewayDirection(GatewayDirection.MIXED);
-                } else if (incoming == 1 && outgoing == 1) { 
-                    // this handles the 1:1 case of the diverging gateways
-                } else {
-                    gateway.setGatewayDirection(GatewayDirection.UNSPECIFIED);
-                }
-            }
-            if(fe instanceof InclusiveGateway) {
-            	Iterator<FeatureMap.Entry> iter = fe.getAnyAttribute().iterator();
-            	while(iter.hasNext()) {
-                    FeatureMap.Entry entry = iter.next();
-                    if(entry.getEStructuralFeature().getName().equals("dg")) {
-                    	for(FlowElement feg : flowElements) {
-                    		if(feg instanceof SequenceFlow && feg.getId().equals((String) entry.getValue())) {
-                    			SequenceFlow sf = (SequenceFlow) feg;
-                    			((InclusiveGateway) fe).setDefault(sf);
-                    			if(sf.getConditionExpression() == null) {
-                    				FormalExpression  expr = Bpmn2Factory.eINSTANCE.createFormalExpression();
-                    				expr.setBody("");
-                    				sf.setConditionExpression(expr);
-                    			}
-                    		}
-                    	}
-                    }
+            toAddEscalations.add(escalation);
+            ((EscalationEventDefinition) ed).setEscalationRef(escalation);
+        } else if(ed instanceof MessageEventDefinition) {
+            String idefId = null;
+            String msgId = null;
+            Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute().iterator();
+            while (iter.hasNext()) {
+                FeatureMap.Entry entry = iter.next();
+                if (entry.getEStructuralFeature().getName().equals("msgref")) {
+                    msgId = (String) entry.getValue();
+                    idefId = (String) entry.getValue() + "Type";
                 }
             }
-            if(fe instanceof ExclusiveGateway) {
-            	Iterator<FeatureMap.Entry> iter = fe.getAnyAttribute().iterator();
-            	while(iter.hasNext()) {
-                    FeatureMap.Entry entry = iter.next();
-                    if(entry.getEStructuralFeature().getName().equals("dg")) {
-                    	for(FlowElement feg : flowElements) {
-                    		if(feg instanceof SequenceFlow && feg.getId().equals((String) entry.getValue())) {
-                    			SequenceFlow sf = (SequenceFlow) feg;
-                    			((ExclusiveGateway) fe).setDefault(sf);
-                    			if(sf.getConditionExpression() == null) {
-                    				FormalExpression  expr = Bpmn2Factory.eINSTANCE.createFormalExpression();
-                    				expr.setBody("");
-                    				sf.setConditionExpression(expr);
-                    			}
-                    		}
-                    	}
-                    }
-                }
+
+            ItemDefinition idef = context.getItemDefinitions().get(idefId);
+            if (idef == null){
+                idef = Bpmn2Factory.eINSTANCE.createItemDefinition();
+                idef.setId(idefId);
+                context.getItemDefinitions().put(idefId, idef);
             }
-            if(fe instanceof FlowElementsContainer) {
-            	setGatewayInfo((FlowElementsContainer) fe);
+
+            Message msg = context.getMessages().get(msgId);
+            if (msg == null){
+                msg = Bpmn2Factory.eINSTANCE.createMessage();
+                msg.setId(msgId);
+                msg.setItemRef(idef);
+                context.getMessages().put(msgId, msg);
             }
-        }
-    }
-    
-    private void revisitServiceTasks(Definitions def) {
-        List<RootElement> rootElements =  def.getRootElements();
-        List<Interface> toAddInterfaces = new ArrayList<Interface>();
-        List<Message> toAddMessages = new ArrayList<Message>();
-        List<ItemDefinition> toAddDefinitions = new ArrayList<ItemDefinition>();
-        for(RootElement root : rootElements) {
-            if(root instanceof Process) {
-                Process process = (Process) root;
-                List<FlowElement> flowElements =  process.getFlowElements();
-                for(FlowElement fe : flowElements) {
-                    if(fe instanceof ServiceTask) {
-                        Iterator<FeatureMap.Entry> iter = fe.getAnyAttribute().iterator();
-                        String serviceInterface = null;
-                        String serviceOperation = null;
-                        while(iter.hasNext()) {
-                            FeatureMap.Entry entry = iter.next();
-                            if(entry.getEStructuralFeature().getName().equals("servicetaskinterface")) {
-                                serviceInterface = (String) entry.getValue();
-                            }
-                            if(entry.getEStructuralFeature().getName().equals("servicetaskoperation")) {
-                                serviceOperation = (String) entry.getValue();
-                            }
-                        }
-                        Interface newInterface = Bpmn2Factory.eINSTANCE.createInterface();
-                        if(serviceInterface != null) {
-                            newInterface.setName(serviceInterface);
-                            newInterface.setId(fe.getId() + "_ServiceInterface");
-                        }
-                        if(serviceOperation != null) {
-                            Operation oper = Bpmn2Factory.eINSTANCE.createOperation();
-                            oper.setId(fe.getId() + "_ServiceOperation");
-                            oper.setName(serviceOperation);
-                            
-                            Message message = Bpmn2Factory.eINSTANCE.createMessage();
-                            message.setId(fe.getId() + "_InMessage");
-                            
-                            ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
-                            itemdef.setId(message.getId() + "Type");
-                            message.setItemRef(itemdef);
-                            toAddDefinitions.add(itemdef);
-                            
-                            toAddMessages.add(message);
-                            
-                            oper.setInMessageRef(message);
-                            newInterface.getOperations().add(oper);
-                            ((ServiceTask) fe).setOperationRef(oper);
-                        }
-                        toAddInterfaces.add(newInterface);
+
+            toAddMessages.add(msg);
+            toAddItemDefinitions.add(idef);
+            ((MessageEventDefinition) ed).setMessageRef(msg);
+        } else if(ed instanceof CompensateEventDefinition) {
+            Iterator<FeatureMap.Entry> iter = ed.getAnyAttribute().iterator();
+            while(iter.hasNext()) {
+                FeatureMap.Entry entry = iter.next();
+                if(entry.getEStructuralFeature().getName().equals("actrefname")) {
+                    Activity activity = activities.get((String) entry.getValue());
+                    if(activity != null) {
+                        ((CompensateEventDefinition) ed).setActivityRef(activity);
                     }
                 }
             }
         }
-        
-        for(ItemDefinition id : toAddDefinitions) {
-            def.getRootElements().add(id);
-        }
-        for(Message m : toAddMessages) {
-            def.getRootElements().add(m);
-        }
-        for(Interface i : toAddInterfaces) {
-            def.getRootElements().add(i);
-        }
+        // signal event definitions are left as they are
     }
-    
-    /**
-     * Revisit message to set their item ref to a item definition
-     * @param def Definitions
-     */
-    private void revisitMessages(Definitions def) {
-        List<RootElement> rootElements =  def.getRootElements();
-        List<ItemDefinition> toAddDefinitions = new ArrayList<ItemDefinition>();
-        for(RootElement root : rootElements) {
-            if(root instanceof Message) {
-            	if(!existsMessageItemDefinition(rootElements, root.getId())) {
-            		ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
-            		itemdef.setId(root.getId() + "Type");
-            		toAddDefinitions.add(itemdef);
-            		((Message) root).setItemRef(itemdef);
-            	}
-            }
-        }
-        for(ItemDefinition id : toAddDefinitions) {
-            def.getRootElements().add(id);
-        }
+
+    public void revisitAssociationsIoSpec(Definitions def) {
+        new RevisitPipeline().add(new AssociationsIoSpecPhase()).run(def);
     }
-    
-    private boolean existsMessageItemDefinition(List<RootElement> rootElements, String id) {
-    	for(RootElement root : rootElements) {
-    		if(root instanceof ItemDefinition && root.getId().equals(id + "Type")) {
-    			return true;
-    		}
+
+    public void setItemDefinitionsForActivitiesIoSpec(FlowElementsContainer container, Definitions def, List<ItemDefinition> toAddItemDefinitions) {
+    	for(FlowElement fe : container.getFlowElements()) {
+    		if(fe instanceof Activity) {
+    			setItemDefinitionsForActivityIoSpec((Activity) fe, toAddItemDefinitions);
+    		} else if(fe instanceof FlowElementsContainer) {
+    			setItemDefinitionsForActivitiesIoSpec((FlowElementsContainer) fe, def, toAddItemDefinitions);
+            }
     	}
-    	return false;
     }
-        
+
+    private void setItemDefinitionsForActivityIoSpec(Activity ac, List<ItemDefinition> toAddItemDefinitions) {
+		if(ac.getIoSpecification() != null) {
+			if(ac.getIoSpecification().getDataInputs() != null) {
+				List<DataInput> dataInputs = ac.getIoSpecification().getDataInputs();
+				for(DataInput din: dataInputs) {
+					Iterator<FeatureMap.Entry> iter = din.getAnyAttribute().iterator();
+                    while(iter.hasNext()) {
+                        FeatureMap.Entry entry = iter.next();
+                        if(entry.getEStructuralFeature().getName().equals("dtype")) {
+                        	String dinType = (String) entry.getValue();
+                       	 	if(dinType != null && dinType.length() > 0) {
+                       	 		ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
+                       	 		itemdef.setId("_" + din.getId() + "Item");
+                       	 		itemdef.setStructureRef(dinType);
+                       	 		toAddItemDefinitions.add(itemdef);
+                       	 		din.setItemSubjectRef(itemdef);
+                       	 	}
+                        }
+                    }
+				}
+			}
+
+			if(ac.getIoSpecification().getDataOutputs() != null) {
+				List<DataOutput> dataOutputs = ac.getIoSpecification().getDataOutputs();
+				for(DataOutput dout: dataOutputs) {
+					Iterator<FeatureMap.Entry> iter = dout.getAnyAttribute().iterator();
+                    while(iter.hasNext()) {
+                        FeatureMap.Entry entry = iter.next();
+                        if(entry.getEStructuralFeature().getName().equals("dtype")) {
+                        	String doutType = (String) entry.getValue();
+                       	 	if(doutType != null && doutType.length() > 0) {
+                       	 		ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
+                       	 		itemdef.setId("_" + dout.getId() + "Item");
+                       	 		itemdef.setStructureRef(doutType);
+                       	 		toAddItemDefinitions.add(itemdef);
+                       	 		dout.setItemSubjectRef(itemdef);
+                       	 	}
+                        }
+                    }
+				}
+			}
+		}
+    }
+
     /**
      * Reconnect the sequence flows and the flow nodes.
      * Done after the initial pass so that we have all the target information.
      */
-    private void reconnectFlows() {
+    private void reconnectFlows(Bpmn2UnmarshallingContext context) {
         // create the reverse id map:
-        for (Entry<Object, List<String>> entry : _outgoingFlows.entrySet()) {
+        for (Entry<Object, List<String>> entry : context.getOutgoingFlows().entrySet()) {
             for (String flowId : entry.getValue()) {
+                BaseElement target = context.getIndex().getById(flowId);
                 if (entry.getKey() instanceof SequenceFlow) { // if it is a sequence flow, we can tell its targets
-                    ((SequenceFlow) entry.getKey()).setTargetRef((FlowNode) _idMap.get(flowId));
+                    ((SequenceFlow) entry.getKey()).setTargetRef((FlowNode) target);
                 } else if (entry.getKey() instanceof Association) {
-                    ((Association) entry.getKey()).setTargetRef((BaseElement) _idMap.get(flowId));
+                    ((Association) entry.getKey()).setTargetRef(target);
                 } else { // if it is a node, we can map it to its outgoing sequence flows
-                    if (_idMap.get(flowId) instanceof SequenceFlow) {
-                        ((FlowNode) entry.getKey()).getOutgoing().add((SequenceFlow) _idMap.get(flowId));
-                    } else if (_idMap.get(flowId) instanceof Association) {
-                        ((Association) _idMap.get(flowId)).setSourceRef((BaseElement) entry.getKey());
+                    if (target instanceof SequenceFlow) {
+                        ((FlowNode) entry.getKey()).getOutgoing().add((SequenceFlow) target);
+                    } else if (target instanceof Association) {
+                        ((Association) target).setSourceRef((BaseElement) entry.getKey());
                     }
                 }
             }
         }
     }
     
-    private void createSubProcessDiagram(BPMNPlane plane, FlowElement flowElement, BpmnDiFactory factory) {
+    private void createSubProcessDiagram(BPMNPlane plane, FlowElement flowElement, BpmnDiFactory factory, Bpmn2UnmarshallingContext context) {
 		SubProcess sp = (SubProcess) flowElement;
 		for(FlowElement subProcessFlowElement : sp.getFlowElements()) {
 			if(subProcessFlowElement instanceof SubProcess) {
-				Bounds spb = _bounds.get(subProcessFlowElement.getId());
+				Bounds spb = context.getGeometry().createBounds(subProcessFlowElement.getId());
 				if (spb != null) {
 					BPMNShape shape = factory.createBPMNShape();
 					shape.setBpmnElement(subProcessFlowElement);
 					shape.setBounds(spb);
 					plane.getPlaneElement().add(shape);
 				}
-				createSubProcessDiagram(plane, subProcessFlowElement, factory);
+				createSubProcessDiagram(plane, subProcessFlowElement, factory, context);
 			} else if (subProcessFlowElement instanceof FlowNode) {
-				Bounds spb = _bounds.get(subProcessFlowElement.getId());
+				Bounds spb = context.getGeometry().createBounds(subProcessFlowElement.getId());
 				if (spb != null) {
 					BPMNShape shape = factory.createBPMNShape();
 					shape.setBpmnElement(subProcessFlowElement);
@@ -1339,34 +933,15 @@ public class Bpmn2JsonUnmarshaller {
 					plane.getPlaneElement().add(shape);
 				}
 			} else if (subProcessFlowElement instanceof SequenceFlow) {
-				SequenceFlow sequenceFlow = (SequenceFlow) subProcessFlowElement;
 				BPMNEdge edge = factory.createBPMNEdge();
 				edge.setBpmnElement(subProcessFlowElement);
-				DcFactory dcFactory = DcFactory.eINSTANCE;
-				Point point = dcFactory.createPoint();
-				if(sequenceFlow.getSourceRef() != null) {
-					Bounds sourceBounds = _bounds.get(sequenceFlow.getSourceRef().getId());
-					point.setX(sourceBounds.getX() + (sourceBounds.getWidth()/2));
-					point.setY(sourceBounds.getY() + (sourceBounds.getHeight()/2));
-				}
-				edge.getWaypoint().add(point);
-				List<Point> dockers = _dockers.get(sequenceFlow.getId());
-				for (int i = 1; i < dockers.size() - 1; i++) {
-					edge.getWaypoint().add(dockers.get(i));
-				}
-				point = dcFactory.createPoint();
-				if(sequenceFlow.getTargetRef() != null) {
-					Bounds targetBounds = _bounds.get(sequenceFlow.getTargetRef().getId());
-					point.setX(targetBounds.getX() + (targetBounds.getWidth()/2));
-					point.setY(targetBounds.getY() + (targetBounds.getHeight()/2));
-				}
-				edge.getWaypoint().add(point);
+				setEdgeWaypoints(edge, (SequenceFlow) subProcessFlowElement, context);
 				plane.getPlaneElement().add(edge);
 			}
 		}
 		for (Artifact artifact : sp.getArtifacts()) {
             if (artifact instanceof TextAnnotation || artifact instanceof Group) {
-            	Bounds ba = _bounds.get(artifact.getId());
+            	Bounds ba = context.getGeometry().createBounds(artifact.getId());
             	if (ba != null) {
             		BPMNShape shape = factory.createBPMNShape();
             		shape.setBpmnElement(artifact);
@@ -1378,27 +953,42 @@ public class Bpmn2JsonUnmarshaller {
                 Association association = (Association)artifact;
                 BPMNEdge edge = factory.createBPMNEdge();
                 edge.setBpmnElement(association);
-                DcFactory dcFactory = DcFactory.eINSTANCE;
-                Point point = dcFactory.createPoint();
-                Bounds sourceBounds = _bounds.get(association.getSourceRef().getId());
-                point.setX(sourceBounds.getX() + (sourceBounds.getWidth()/2));
-                point.setY(sourceBounds.getY() + (sourceBounds.getHeight()/2));
-                edge.getWaypoint().add(point);
-                List<Point> dockers = _dockers.get(association.getId());
-                for (int i = 1; i < dockers.size() - 1; i++) {
-                        edge.getWaypoint().add(dockers.get(i));
-                }
-                point = dcFactory.createPoint();
-                Bounds targetBounds = _bounds.get(association.getTargetRef().getId());
-                point.setX(targetBounds.getX() + (targetBounds.getWidth()/2));
-                point.setY(targetBounds.getY() + (targetBounds.getHeight()/2));
-                edge.getWaypoint().add(point);
+                Bpmn2Geometry geometry = context.getGeometry();
+                edge.getWaypoint().add(geometry.createCenter(association.getSourceRef().getId()));
+                int dockers = geometry.getDockerCount(association.getId());
+                for (int i = 1; i < dockers - 1; i++) {
+                    edge.getWaypoint().add(geometry.createDocker(association.getId(), i));
+                }
+                edge.getWaypoint().add(geometry.createCenter(association.getTargetRef().getId()));
                 plane.getPlaneElement().add(edge);
             }
         }
     }
     
-    private void createDiagram(Definitions def) {
+    /**
+     * Sets the waypoints of the edge of a sequence flow: the center of its source,
+     * the dockers in between, and the center of its target.
+     */
+    void setEdgeWaypoints(BPMNEdge edge, SequenceFlow sequenceFlow, Bpmn2UnmarshallingContext context) {
+        edge.getWaypoint().clear();
+        Bpmn2Geometry geometry = context.getGeometry();
+        if(sequenceFlow.getSourceRef() != null) {
+            edge.getWaypoint().add(geometry.createCenter(sequenceFlow.getSourceRef().getId()));
+        } else {
+            edge.getWaypoint().add(DcFactory.eINSTANCE.createPoint());
+        }
+        int dockers = geometry.getDockerCount(sequenceFlow.getId());
+        for (int i = 1; i < dockers - 1; i++) {
+            edge.getWaypoint().add(geometry.createDocker(sequenceFlow.getId(), i));
+        }
+        if(sequenceFlow.getTargetRef() != null) {
+            edge.getWaypoint().add(geometry.createCenter(sequenceFlow.getTargetRef().getId()));
+        } else {
+            edge.getWaypoint().add(DcFactory.eINSTANCE.createPoint());
+        }
+    }
+
+    private void createDiagram(Definitions def, Bpmn2UnmarshallingContext context) {
     	for (RootElement rootElement: def.getRootElements()) {
     		if (rootElement instanceof Process) {
     			Process process = (Process) rootElement;
@@ -1410,7 +1000,7 @@ public class Bpmn2JsonUnmarshaller {
     			// first process flowNodes
         		for (FlowElement flowElement: process.getFlowElements()) {
         			if (flowElement instanceof FlowNode) {
-        				Bounds b = _bounds.get(flowElement.getId());
+        				Bounds b = context.getGeometry().createBounds(flowElement.getId());
         				if (b != null) {
         					BPMNShape shape = factory.createBPMNShape();
         					shape.setBpmnElement(flowElement);
@@ -1419,28 +1009,24 @@ public class Bpmn2JsonUnmarshaller {
         					if(flowElement instanceof BoundaryEvent) {
         						BPMNEdge edge = factory.createBPMNEdge();
         						edge.setBpmnElement(flowElement);
-        						List<Point> dockers = _dockers.get(flowElement.getId());
-        						DcFactory dcFactory = DcFactory.eINSTANCE;
-        						Point addedDocker = dcFactory.createPoint();
-    	    					for (int i = 0; i < dockers.size(); i++) {
-    	    						edge.getWaypoint().add(dockers.get(i));
-    	    						if(i == 0) {
-    	    							addedDocker.setX(dockers.get(i).getX());
-    	    							addedDocker.setY(dockers.get(i).getY());
-    	    						}
+        						Bpmn2Geometry geometry = context.getGeometry();
+        						int dockers = geometry.getDockerCount(flowElement.getId());
+    	    					for (int i = 0; i < dockers; i++) {
+    	    						edge.getWaypoint().add(geometry.createDocker(flowElement.getId(), i));
     	    					}
-    	    					if(dockers.size() == 1) {
-    	    						edge.getWaypoint().add(addedDocker);
+    	    					// a single docker is drawn as an edge from the docker to itself
+    	    					if(dockers == 1) {
+    	    						edge.getWaypoint().add(geometry.createDocker(flowElement.getId(), 0));
     	    					}
     	    					plane.getPlaneElement().add(edge);
         					}
         				}
         				// check if its a subprocess
         				if(flowElement instanceof SubProcess) {
-        					createSubProcessDiagram(plane, flowElement, factory);
+        					createSubProcessDiagram(plane, flowElement, factory, context);
         				}
         			} else if(flowElement instanceof DataObject) {
-        				Bounds b = _bounds.get(flowElement.getId());
+        				Bounds b = context.getGeometry().createBounds(flowElement.getId());
         				if (b != null) {
         					BPMNShape shape = factory.createBPMNShape();
         					shape.setBpmnElement(flowElement);
@@ -1449,28 +1035,9 @@ public class Bpmn2JsonUnmarshaller {
         				}
         			}
         			else if (flowElement instanceof SequenceFlow) {
-        				SequenceFlow sequenceFlow = (SequenceFlow) flowElement;
         				BPMNEdge edge = factory.createBPMNEdge();
     					edge.setBpmnElement(flowElement);
-    					DcFactory dcFactory = DcFactory.eINSTANCE;
-    					Point point = dcFactory.createPoint();
-    					if(sequenceFlow.getSourceRef() != null) {
-    						Bounds sourceBounds = _bounds.get(sequenceFlow.getSourceRef().getId());
-    						point.setX(sourceBounds.getX() + (sourceBounds.getWidth()/2));
-    						point.setY(sourceBounds.getY() + (sourceBounds.getHeight()/2));
-    					}
-    					edge.getWaypoint().add(point);
-    					List<Point> dockers = _dockers.get(sequenceFlow.getId());
-    					for (int i = 1; i < dockers.size() - 1; i++) {
-    						edge.getWaypoint().add(dockers.get(i));
-    					}
-    					point = dcFactory.createPoint();
-    					if(sequenceFlow.getTargetRef() != null) {
-    						Bounds targetBounds = _bounds.get(sequenceFlow.getTargetRef().getId());
-    						point.setX(targetBounds.getX() + (targetBounds.getWidth()/2));
-    						point.setY(targetBounds.getY() + (targetBounds.getHeight()/2));
-    					}
-    					edge.getWaypoint().add(point);
+    					setEdgeWaypoints(edge, (SequenceFlow) flowElement, context);
     					plane.getPlaneElement().add(edge);
         			}
         		}
@@ -1478,7 +1045,7 @@ public class Bpmn2JsonUnmarshaller {
                 if (process.getArtifacts() != null){
                     for (Artifact artifact : process.getArtifacts()) {
                         if (artifact instanceof TextAnnotation || artifact instanceof Group) {
-                        	Bounds b = _bounds.get(artifact.getId());
+                        	Bounds b = context.getGeometry().createBounds(artifact.getId());
                         	if (b != null) {
                         		BPMNShape shape = factory.createBPMNShape();
                         		shape.setBpmnElement(artifact);
@@ -1490,21 +1057,13 @@ public class Bpmn2JsonUnmarshaller {
                             Association association = (Association)artifact;
                             BPMNEdge edge = factory.createBPMNEdge();
                             edge.setBpmnElement(association);
-                            DcFactory dcFactory = DcFactory.eINSTANCE;
-                            Point point = dcFactory.createPoint();
-                            Bounds sourceBounds = _bounds.get(association.getSourceRef().getId());
-                            point.setX(sourceBounds.getX() + (sourceBounds.getWidth()/2));
-                            point.setY(sourceBounds.getY() + (sourceBounds.getHeight()/2));
-                            edge.getWaypoint().add(point);
-                            List<Point> dockers = _dockers.get(association.getId());
-                            for (int i = 1; i < dockers.size() - 1; i++) {
-                                    edge.getWaypoint().add(dockers.get(i));
+                            Bpmn2Geometry geometry = context.getGeometry();
+                            edge.getWaypoint().add(geometry.createCenter(association.getSourceRef().getId()));
+                            int dockers = geometry.getDockerCount(association.getId());
+                            for (int i = 1; i < dockers - 1; i++) {
+                                edge.getWaypoint().add(geometry.createDocker(association.getId(), i));
                             }
-                            point = dcFactory.createPoint();
-                            Bounds targetBounds = _bounds.get(association.getTargetRef().getId());
-                            point.setX(targetBounds.getX() + (targetBounds.getWidth()/2));
-                            point.setY(targetBounds.getY() + (targetBounds.getHeight()/2));
-                            edge.getWaypoint().add(point);
+                            edge.getWaypoint().add(geometry.createCenter(association.getTargetRef().getId()));
                             plane.getPlaneElement().add(edge);
                         }
                     }
@@ -1513,7 +1072,7 @@ public class Bpmn2JsonUnmarshaller {
         		if(process.getLaneSets() != null && process.getLaneSets().size() > 0) {
         			for(LaneSet ls : process.getLaneSets()) {
         				for(Lane lane : ls.getLanes()) {
-        					Bounds b = _bounds.get(lane.getId());
+        					Bounds b = context.getGeometry().createBounds(lane.getId());
             				if (b != null) {
             					BPMNShape shape = factory.createBPMNShape();
             					shape.setBpmnElement(lane);
@@ -1528,7 +1087,15 @@ public class Bpmn2JsonUnmarshaller {
     	}
     }
 
-    private BaseElement unmarshallItem(JsonParser parser, String preProcessingData) throws JsonParseException, IOException {
+    private BaseElement unmarshallItem(JsonParser parser, Bpmn2UnmarshallingContext context) throws JsonParseException, IOException {
+        return unmarshallItem(parser, context, null);
+    }
+
+    /**
+     * @param executor the executor to parse the lanes and subprocesses of the item on, or null
+     * to parse its whole content on this thread.
+     */
+    private BaseElement unmarshallItem(JsonParser parser, Bpmn2UnmarshallingContext context, ExecutorService executor) throws JsonParseException, IOException {
         String resourceId = null;
         Map<String, String> properties = null;
         String stencil = null;
@@ -1540,7 +1107,7 @@ public class Bpmn2JsonUnmarshaller {
             if ("resourceId".equals(fieldname)) {
                 resourceId = parser.getText();
             } else if ("properties".equals(fieldname)) {
-                properties = unmarshallProperties(parser);
+                properties = unmarshallProperties(parser, context);
             } else if ("stencil".equals(fieldname)) {
                 // "stencil":{"id":"Task"},
                 parser.nextToken();
@@ -1548,11 +1115,15 @@ public class Bpmn2JsonUnmarshaller {
                 stencil = parser.getText();
                 parser.nextToken();
             } else if ("childShapes".equals(fieldname)) {
-                while (parser.nextToken() != JsonToken.END_ARRAY) { // open the
-                                                                    // object
-                    // the childShapes element is a json array. We opened the
-                    // array.
-                    childElements.add(unmarshallItem(parser, preProcessingData));
+                if (executor != null) {
+                    childElements.addAll(unmarshallChildShapes(parser, context, executor));
+                } else {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) { // open the
+                                                                        // object
+                        // the childShapes element is a json array. We opened the
+                        // array.
+                        childElements.add(unmarshallItem(parser, context));
+                    }
                 }
             } else if ("bounds".equals(fieldname)) {
                 // bounds: {"lowerRight":{"x":484.0,"y":198.0},"upperLeft":{"x":454.0,"y":168.0}}
@@ -1575,15 +1146,10 @@ public class Bpmn2JsonUnmarshaller {
                 Integer y1 = parser.getIntValue();
                 parser.nextToken();
                 parser.nextToken();
-                Bounds b = DcFactory.eINSTANCE.createBounds();
-                b.setX(x1);
-                b.setY(y1);
-                b.setWidth(x2 - x1);
-                b.setHeight(y2 - y1);
-                this._bounds.put(resourceId, b);
+                context.getGeometry().putBounds(resourceId, x1, y1, x2 - x1, y2 - y1);
             } else if ("dockers".equals(fieldname)) {
                 // "dockers":[{"x":50,"y":40},{"x":353.5,"y":115},{"x":353.5,"y":152},{"x":50,"y":40}],
-            	List<Point> dockers = new ArrayList<Point>();
+            	context.getGeometry().startDockers(resourceId);
             	JsonToken nextToken = parser.nextToken();
             	boolean end = JsonToken.END_ARRAY.equals(nextToken);
             	while (!end) {
@@ -1593,15 +1159,11 @@ public class Bpmn2JsonUnmarshaller {
                     parser.nextToken();
                     parser.nextToken();
                     Integer y = parser.getIntValue();
-                    Point point = DcFactory.eINSTANCE.createPoint();
-                    point.setX(x);
-                    point.setY(y);
-                    dockers.add(point);
+                    context.getGeometry().addDocker(x, y);
                     parser.nextToken();
                     nextToken = parser.nextToken();
                     end = JsonToken.END_ARRAY.equals(nextToken);
             	}
-            	this._dockers.put(resourceId, dockers);
             } else if ("outgoing".equals(fieldname)) {
                 while (parser.nextToken() != JsonToken.END_ARRAY) {
                     // {resourceId: oryx_1AAA8C9A-39A5-42FC-8ED1-507A7F3728EA}
@@ -1625,20 +1187,26 @@ public class Bpmn2JsonUnmarshaller {
                 // parser.nextToken(); // }, closing the object
             }
         }
+        if (context.getStencilDefaults() != null) {
+            // the model was sent without its default values, as the editor does
+            // give them back to the shape before reading it.
+            if (properties == null) {
+                properties = new Bpmn2ShapeProperties(context.getSharedValues());
+            }
+            context.getStencilDefaults().fill(stencil, properties);
+        }
         properties.put("resourceId", resourceId);
-        boolean customElement = isCustomElement(properties.get("tasktype"), preProcessingData);
+        boolean customElement = context.isCustomTaskType(properties.get("tasktype"));
         BaseElement baseElt = this.createBaseElement(stencil, properties.get("tasktype"), customElement);
         
-        // register the sequence flow targets.
-        if(baseElt instanceof SequenceFlow) {
-            _sequenceFlowTargets.addAll(outgoing);
-        }
-        _outgoingFlows.put(baseElt, outgoing);
-        _objMap.put(baseElt, resourceId); // keep the object around to do connections
-        _idMap.put(resourceId, baseElt);
+        context.getOutgoingFlows().put(baseElt, outgoing);
+        context.getIndex().add(resourceId, baseElt); // keep the object around to do connections
         // baseElt.setId(resourceId); commented out as bpmn2 seems to create
         // duplicate ids right now.
         applyProperties(baseElt, properties);
+        if (baseElt instanceof SubProcess) {
+            registerSubProcessItemDefs((SubProcess) baseElt, context);
+        }
         if (baseElt instanceof Definitions) {
         	Process rootLevelProcess = null;
         	for (BaseElement child : childElements) {
@@ -1682,10 +1250,10 @@ public class Bpmn2JsonUnmarshaller {
                     if (child instanceof SequenceFlow) {
                         // for some reason sequence flows are placed as root elements.
                         // find if the target has a container, and if we can use it:
-                        List<String> ids = _outgoingFlows.get(child);
+                        List<String> ids = context.getOutgoingFlows().get(child);
                         FlowElementsContainer container = null;
                         for (String id : ids) { // yes, we iterate, but we'll take the first in the list that will work.
-                            Object obj = _idMap.get(id);
+                            Object obj = context.getIndex().getById(id);
                             if (obj instanceof EObject && ((EObject) obj).eContainer() instanceof FlowElementsContainer) {
                                 container = (FlowElementsContainer) ((EObject) obj).eContainer();
                                 break;
@@ -1705,18 +1273,17 @@ public class Bpmn2JsonUnmarshaller {
                             rootLevelProcess = Bpmn2Factory.eINSTANCE.createProcess();
                             // set the properties and item definitions first
                             if(properties.get("vardefs") != null && properties.get("vardefs").length() > 0) {
-                                String[] vardefs = properties.get("vardefs").split( ",\\s*" );
-                                for(String vardef : vardefs) {
+                                List<Declaration> vardefs = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("vardefs"));
+                                for(Declaration vardef : vardefs) {
                                     Property prop = Bpmn2Factory.eINSTANCE.createProperty();
                                     ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
                                     // check if we define a structure ref in the definition
-                                    if(vardef.contains(":")) {
-                                        String[] vardefParts = vardef.split( ":\\s*" );
-                                        prop.setId(vardefParts[0]);
+                                    if(vardef.getType() != null) {
+                                        prop.setId(vardef.getName());
                                         itemdef.setId("_" + prop.getId() + "Item");
-                                        itemdef.setStructureRef(vardefParts[1]);
+                                        itemdef.setStructureRef(vardef.getType());
                                     } else {
-                                        prop.setId(vardef);
+                                        prop.setId(vardef.getText());
                                         itemdef.setId("_" + prop.getId() + "Item");
                                     }
                                     prop.setItemSubjectRef(itemdef);
@@ -1812,12 +1379,12 @@ public class Bpmn2JsonUnmarshaller {
 //        			((Lane) baseElt).getChildLaneSet().getLanes().add((Lane) child);
 //        		} 
         		else if(child instanceof Artifact){
-        			_artifacts.add((Artifact) child);
+        			context.getArtifacts().add((Artifact) child);
         		} else {
         			throw new IllegalArgumentException("Don't know what to do of " + childElements);
         		}
         	}
-        	_lanes.add((Lane) baseElt);
+        	context.getLanes().add((Lane) baseElt);
       } else {
             if (!childElements.isEmpty()) {
                 throw new IllegalArgumentException("Don't know what to do of " + childElements + " with " + baseElt);
@@ -1849,91 +1416,115 @@ public class Bpmn2JsonUnmarshaller {
         }
     }
 
-    protected void applyProperties(BaseElement baseElement, Map<String, String> properties) {
-        applyBaseElementProperties((BaseElement) baseElement, properties);
-        if (baseElement instanceof SubProcess) {
-            applySubProcessProperties((SubProcess) baseElement, properties);
-        }
-        if (baseElement instanceof AdHocSubProcess) {
-            applyAdHocSubProcessProperties((AdHocSubProcess) baseElement, properties);
-        }
-        if (baseElement instanceof CallActivity) {
-        	applyCallActivityProperties((CallActivity) baseElement, properties);
-        }
-        if (baseElement instanceof GlobalTask) {
-            applyGlobalTaskProperties((GlobalTask) baseElement, properties);
-        }
-        if (baseElement instanceof Definitions) {
-            applyDefinitionProperties((Definitions) baseElement, properties);
-        }
-        if (baseElement instanceof Process) {
-            applyProcessProperties((Process) baseElement, properties);
-        }
-        if (baseElement instanceof Lane) {
-            applyLaneProperties((Lane) baseElement, properties);
-        }
-        if (baseElement instanceof SequenceFlow) {
-            applySequenceFlowProperties((SequenceFlow) baseElement, properties);
-        }
-        if (baseElement instanceof Task) {
-            applyTaskProperties((Task) baseElement, properties);
-        }
-        if (baseElement instanceof UserTask) {
-            applyUserTaskProperties((UserTask) baseElement, properties);
-        }  
-        if (baseElement instanceof BusinessRuleTask) {
-            applyBusinessRuleTaskProperties((BusinessRuleTask) baseElement, properties);
-        }
-        if (baseElement instanceof ScriptTask) {
-            applyScriptTaskProperties((ScriptTask) baseElement, properties);
-        }
-        if (baseElement instanceof ServiceTask) {
-            applyServiceTaskProperties((ServiceTask) baseElement, properties);
-        }
-        if(baseElement instanceof ReceiveTask) {
-        	applyReceiveTaskProperties((ReceiveTask) baseElement, properties);
-        }
-        if(baseElement instanceof SendTask) {
-        	applySendTaskProperties((SendTask) baseElement, properties);
-        }
-        if (baseElement instanceof Gateway) {
-            applyGatewayProperties((Gateway) baseElement, properties);
-        }
-        if (baseElement instanceof Event) {
-            applyEventProperties((Event) baseElement, properties);
-        }
-        if (baseElement instanceof CatchEvent) {
-            applyCatchEventProperties((CatchEvent) baseElement, properties);
-        }
-        if (baseElement instanceof ThrowEvent) {
-            applyThrowEventProperties((ThrowEvent) baseElement, properties);
-        }
-        if (baseElement instanceof TextAnnotation) {
-            applyTextAnnotationProperties((TextAnnotation) baseElement, properties);
-        }
-        if (baseElement instanceof Group) {
-            applyGroupProperties((Group) baseElement, properties);
-        }
-        if (baseElement instanceof DataObject) {
-            applyDataObjectProperties((DataObject) baseElement, properties);
-        }
-        if (baseElement instanceof DataStore) {
-            applyDataStoreProperties((DataStore) baseElement, properties);
-        }
-        if (baseElement instanceof Message) {
-            applyMessageProperties((Message) baseElement, properties);
-        }
-        if (baseElement instanceof StartEvent) {
-            applyStartEventProperties((StartEvent) baseElement, properties);
+    /**
+     * Keeps the item definitions of the multi-instance data input and of the
+     * properties of a sub-process, they are added to the definitions later on.
+     */
+    private void registerSubProcessItemDefs(SubProcess sp, Bpmn2UnmarshallingContext context) {
+        if (sp.getLoopCharacteristics() instanceof MultiInstanceLoopCharacteristics) {
+            DataInput din = ((MultiInstanceLoopCharacteristics) sp.getLoopCharacteristics()).getInputDataItem();
+            if (din != null && din.getItemSubjectRef() != null) {
+                context.getSubProcessItemDefs().put(din.getItemSubjectRef().getId(), din.getItemSubjectRef());
+            }
         }
-        if (baseElement instanceof EndEvent) {
-            applyEndEventProperties((EndEvent) baseElement, properties);
+        for (Property prop : sp.getProperties()) {
+            if (prop.getItemSubjectRef() != null) {
+                context.getSubProcessItemDefs().put(prop.getItemSubjectRef().getId(), prop.getItemSubjectRef());
+            }
         }
-        if(baseElement instanceof Association) {
-        	applyAssociationProperties((Association) baseElement, properties);
+    }
+
+    protected void applyProperties(BaseElement baseElement, Map<String, String> properties) {
+        applyBaseElementProperties((BaseElement) baseElement, properties);
+        for (PropertyApplier applier : PropertyApplier.chain(baseElement.getClass())) {
+            switch (applier) {
+            case SUB_PROCESS:
+                applySubProcessProperties((SubProcess) baseElement, properties);
+                break;
+            case AD_HOC_SUB_PROCESS:
+                applyAdHocSubProcessProperties((AdHocSubProcess) baseElement, properties);
+                break;
+            case CALL_ACTIVITY:
+                applyCallActivityProperties((CallActivity) baseElement, properties);
+                break;
+            case GLOBAL_TASK:
+                applyGlobalTaskProperties((GlobalTask) baseElement, properties);
+                break;
+            case DEFINITIONS:
+                applyDefinitionProperties((Definitions) baseElement, properties);
+                break;
+            case PROCESS:
+                applyProcessProperties((Process) baseElement, properties);
+                break;
+            case LANE:
+                applyLaneProperties((Lane) baseElement, properties);
+                break;
+            case SEQUENCE_FLOW:
+                applySequenceFlowProperties((SequenceFlow) baseElement, properties);
+                break;
+            case TASK:
+                applyTaskProperties((Task) baseElement, properties);
+                break;
+            case USER_TASK:
+                applyUserTaskProperties((UserTask) baseElement, properties);
+                break;
+            case BUSINESS_RULE_TASK:
+                applyBusinessRuleTaskProperties((BusinessRuleTask) baseElement, properties);
+                break;
+            case SCRIPT_TASK:
+                applyScriptTaskProperties((ScriptTask) baseElement, properties);
+                break;
+            case SERVICE_TASK:
+                applyServiceTaskProperties((ServiceTask) baseElement, properties);
+                break;
+            case RECEIVE_TASK:
+                applyReceiveTaskProperties((ReceiveTask) baseElement, properties);
+                break;
+            case SEND_TASK:
+                applySendTaskProperties((SendTask) baseElement, properties);
+                break;
+            case GATEWAY:
+                applyGatewayProperties((Gateway) baseElement, properties);
+                break;
+            case EVENT:
+                applyEventProperties((Event) baseElement, properties);
+                break;
+            case CATCH_EVENT:
+                applyCatchEventProperties((CatchEvent) baseElement, properties);
+                break;
+            case THROW_EVENT:
+                applyThrowEventProperties((ThrowEvent) baseElement, properties);
+                break;
+            case TEXT_ANNOTATION:
+                applyTextAnnotationProperties((TextAnnotation) baseElement, properties);
+                break;
+            case GROUP:
+                applyGroupProperties((Group) baseElement, properties);
+                break;
+            case DATA_OBJECT:
+                applyDataObjectProperties((DataObject) baseElement, properties);
+                break;
+            case DATA_STORE:
+                applyDataStoreProperties((DataStore) baseElement, properties);
+                break;
+            case MESSAGE:
+                applyMessageProperties((Message) baseElement, properties);
+                break;
+            case START_EVENT:
+                applyStartEventProperties((StartEvent) baseElement, properties);
+                break;
+            case END_EVENT:
+                applyEndEventProperties((EndEvent) baseElement, properties);
+                break;
+            case ASSOCIATION:
+                applyAssociationProperties((Association) baseElement, properties);
+                break;
+            }
         }
-        // finally, apply properties from helpers:
-        for (BpmnMarshallerHelper helper : _helpers) {
+        // finally, apply properties from helpers. They come and go with their
+        // bundles, so they aren't part of the chain, and they apply last so that
+        // they can change what the chain set.
+        for (BpmnMarshallerHelper helper : _helperTracker.getHelpers()) {
             helper.applyProperties(baseElement, properties);
         }
     }
@@ -1945,8 +1536,9 @@ public class Bpmn2JsonUnmarshaller {
             sp.setName("");
         }
         // process on-entry and on-exit actions as custom elements
-        if(properties.get("onentryactions") != null && properties.get("onentryactions").length() > 0) {
-            String[] allActions = properties.get("onentryactions").split( "\\|\\s*" );
+        String entryActions = properties.get("onentryactions");
+        if(entryActions != null && entryActions.length() > 0) {
+            String[] allActions = Bpmn2PropertyTokenizer.split(entryActions, "|");
             for(String action : allActions) {
                 OnEntryScriptType onEntryScript = DroolsFactory.eINSTANCE.createOnEntryScriptType();
                 onEntryScript.setScript(wrapInCDATABlock(action));
@@ -1972,8 +1564,9 @@ public class Bpmn2JsonUnmarshaller {
             }
         }
         
-        if(properties.get("onexitactions") != null && properties.get("onexitactions").length() > 0) {
-            String[] allActions = properties.get("onexitactions").split( "\\|\\s*" );
+        String exitActions = properties.get("onexitactions");
+        if(exitActions != null && exitActions.length() > 0) {
+            String[] allActions = Bpmn2PropertyTokenizer.split(exitActions, "|");
             for(String action : allActions) {
                 OnExitScriptType onExitScript = DroolsFactory.eINSTANCE.createOnExitScriptType();
                 onExitScript.setScript(wrapInCDATABlock(action));
@@ -2001,29 +1594,28 @@ public class Bpmn2JsonUnmarshaller {
         
         // data input set
         if(properties.get("datainputset") != null && properties.get("datainputset").trim().length() > 0) {
-            String[] allDataInputs = properties.get("datainputset").split( ",\\s*" );
+            List<Declaration> allDataInputs = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("datainputset"));
             if(sp.getIoSpecification() == null) {
                 InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
                 sp.setIoSpecification(iospec);
             }
             InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
-            for(String dataInput : allDataInputs) {
-            	if(dataInput.trim().length() > 0) {
+            for(Declaration dataInput : allDataInputs) {
+            	if(dataInput.getText().trim().length() > 0) {
 	                DataInput nextInput = Bpmn2Factory.eINSTANCE.createDataInput();
-	                String[] dataInputParts = dataInput.split( ":\\s*" );
-	                if(dataInputParts.length == 2) {
-	                	nextInput.setId(sp.getId() + "_" + dataInputParts[0] + "Input");
-	                	nextInput.setName(dataInputParts[0]);
+	                if(dataInput.isNameAndType()) {
+	                	nextInput.setId(sp.getId() + "_" + dataInput.getName() + "Input");
+	                	nextInput.setName(dataInput.getName());
 	                	
 	                	ExtendedMetaData metadata = ExtendedMetaData.INSTANCE;
 	                    EAttributeImpl extensionAttribute = (EAttributeImpl) metadata.demandFeature(
 	                            "http://www.jboss.org/drools", "dtype", false, false);
 	                    EStructuralFeatureImpl.SimpleFeatureMapEntry extensionEntry = new EStructuralFeatureImpl.SimpleFeatureMapEntry(extensionAttribute,
-	                    		dataInputParts[1]);
+	                    		dataInput.getType());
 	                    nextInput.getAnyAttribute().add(extensionEntry);
 	                } else {
-	                	nextInput.setId(sp.getId() + "_" + dataInput + "Input");
-	                	nextInput.setName(dataInput);
+	                	nextInput.setId(sp.getId() + "_" + dataInput.getText() + "Input");
+	                	nextInput.setName(dataInput.getText());
 	                }
 	                
 	                sp.getIoSpecification().getDataInputs().add(nextInput);
@@ -2039,30 +1631,29 @@ public class Bpmn2JsonUnmarshaller {
         
         // data output set
         if(properties.get("dataoutputset") != null && properties.get("dataoutputset").trim().length() > 0) {
-            String[] allDataOutputs = properties.get("dataoutputset").split( ",\\s*" );
+            List<Declaration> allDataOutputs = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("dataoutputset"));
             if(sp.getIoSpecification() == null) {
                 InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
                 sp.setIoSpecification(iospec);
             }
             
             OutputSet outset = Bpmn2Factory.eINSTANCE.createOutputSet();
-            for(String dataOutput : allDataOutputs) {
-            	if(dataOutput.trim().length() > 0) {
+            for(Declaration dataOutput : allDataOutputs) {
+            	if(dataOutput.getText().trim().length() > 0) {
 	                DataOutput nextOut = Bpmn2Factory.eINSTANCE.createDataOutput();
-	                String[] dataOutputParts = dataOutput.split( ":\\s*" );
-	                if(dataOutputParts.length == 2) {
-	                	nextOut.setId(sp.getId() + "_" + dataOutputParts[0] + "Output");
-	                	nextOut.setName(dataOutputParts[0]);
+	                if(dataOutput.isNameAndType()) {
+	                	nextOut.setId(sp.getId() + "_" + dataOutput.getName() + "Output");
+	                	nextOut.setName(dataOutput.getName());
 	                	
 	                	ExtendedMetaData metadata = ExtendedMetaData.INSTANCE;
 	                    EAttributeImpl extensionAttribute = (EAttributeImpl) metadata.demandFeature(
 	                            "http://www.jboss.org/drools", "dtype", false, false);
 	                    EStructuralFeatureImpl.SimpleFeatureMapEntry extensionEntry = new EStructuralFeatureImpl.SimpleFeatureMapEntry(extensionAttribute,
-	                    		dataOutputParts[1]);
+	                    		dataOutput.getType());
 	                    nextOut.getAnyAttribute().add(extensionEntry);
 	                } else {
-	                	nextOut.setId(sp.getId() + "_" + dataOutput + "Output");
-	                	nextOut.setName(dataOutput);
+	                	nextOut.setId(sp.getId() + "_" + dataOutput.getText() + "Output");
+	                	nextOut.setName(dataOutput.getText());
 	                }
 	                
 	                sp.getIoSpecification().getDataOutputs().add(nextOut);
@@ -2078,17 +1669,16 @@ public class Bpmn2JsonUnmarshaller {
         
         // assignments
         if(properties.get("assignments") != null && properties.get("assignments").length() > 0 && sp.getIoSpecification() != null) {
-            String[] allAssignments = properties.get("assignments").split( ",\\s*" );
-            for(String assignment : allAssignments) {
-                if(assignment.contains("=")) {
-                    String[] assignmentParts = assignment.split( "=\\s*" );
+            List<DataMapping> allAssignments = Bpmn2PropertyTokenizer.parseDataMappings(properties.get("assignments"));
+            for(DataMapping assignment : allAssignments) {
+                if(assignment.getKind() == DataMapping.Kind.ASSIGNMENT) {
                     DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
 
                     boolean foundTaskName = false;
                     if(sp.getIoSpecification() != null && sp.getIoSpecification().getDataOutputs() != null) {
                     	List<DataInput> dataInputs = sp.getIoSpecification().getDataInputs();
                     	for(DataInput di : dataInputs) {
-                    		if(di.getId().equals(sp.getId() + "_" + assignmentParts[0] + "Input")) {
+                    		if(di.getId().equals(sp.getId() + "_" + assignment.getLeft() + "Input")) {
                     			dia.setTargetRef(di);
                     			if(di.getName().equals("TaskName")) {
                     				foundTaskName = true;
@@ -2100,8 +1690,8 @@ public class Bpmn2JsonUnmarshaller {
                     
                     Assignment a = Bpmn2Factory.eINSTANCE.createAssignment();
                     FormalExpression fromExpression = Bpmn2Factory.eINSTANCE.createFormalExpression();
-                    if(assignmentParts.length > 1) {
-                        fromExpression.setBody(assignmentParts[1]);
+                    if(assignment.getRight() != null) {
+                        fromExpression.setBody(assignment.getRight());
                     } else {
                         fromExpression.setBody("");
                     }
@@ -2114,26 +1704,25 @@ public class Bpmn2JsonUnmarshaller {
                     dia.getAssignment().add(a);
                     sp.getDataInputAssociations().add(dia);
                     
-                } else if(assignment.contains("<->")) {
-                    String[] assignmentParts = assignment.split( "<->\\s*" );
+                } else if(assignment.getKind() == DataMapping.Kind.BIDIRECTIONAL) {
                     DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
                     DataOutputAssociation doa = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
                     
                     ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                    ie.setId(assignmentParts[0]);
+                    ie.setId(assignment.getLeft());
                     dia.getSourceRef().add(ie);
                     doa.setTargetRef(ie);
                     
                     List<DataInput> dataInputs = sp.getIoSpecification().getDataInputs();
                     for(DataInput di : dataInputs) {
-                        if(di.getId().equals(sp.getId() + "_" + assignmentParts[1] + "Input")) {
+                        if(di.getId().equals(sp.getId() + "_" + assignment.getRight() + "Input")) {
                             dia.setTargetRef(di);
                             break;
                         }
                     }
                     List<DataOutput> dataOutputs = sp.getIoSpecification().getDataOutputs();
                     for(DataOutput dout : dataOutputs) {
-                        if(dout.getId().equals(sp.getId() + "_" + assignmentParts[1] + "Output")) {
+                        if(dout.getId().equals(sp.getId() + "_" + assignment.getRight() + "Output")) {
                             doa.getSourceRef().add(dout);
                             break;
                         }
@@ -2141,13 +1730,12 @@ public class Bpmn2JsonUnmarshaller {
                     
                     sp.getDataInputAssociations().add(dia);
                     sp.getDataOutputAssociations().add(doa);
-                } else if(assignment.contains("->")) {
-                    String[] assignmentParts = assignment.split( "->\\s*" );
+                } else if(assignment.getKind() == DataMapping.Kind.UNIDIRECTIONAL) {
                     // we need to check if this is an data input or data output assignment
                     boolean leftHandAssignMentIsDO = false;
                     List<DataOutput> dataOutputs = sp.getIoSpecification().getDataOutputs();
                     for(DataOutput dout : dataOutputs) {
-                        if(dout.getId().equals(sp.getId() + "_" + assignmentParts[0] + "Output")) {
+                        if(dout.getId().equals(sp.getId() + "_" + assignment.getLeft() + "Output")) {
                             leftHandAssignMentIsDO = true;
                             break;
                         }
@@ -2156,14 +1744,14 @@ public class Bpmn2JsonUnmarshaller {
                         // doing data output
                         DataOutputAssociation doa = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
                         for(DataOutput dout : dataOutputs) {
-                            if(dout.getId().equals(sp.getId() + "_" + assignmentParts[0] + "Output")) {
+                            if(dout.getId().equals(sp.getId() + "_" + assignment.getLeft() + "Output")) {
                                 doa.getSourceRef().add(dout);
                                 break;
                             }
                         }
                         
                         ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                        ie.setId(assignmentParts[1]);
+                        ie.setId(assignment.getRight());
                         doa.setTargetRef(ie);
                         sp.getDataOutputAssociations().add(doa);
                     } else {
@@ -2171,12 +1759,12 @@ public class Bpmn2JsonUnmarshaller {
                         DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
                         // association from process var to dataInput var
                         ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                        ie.setId(assignmentParts[0]);
+                        ie.setId(assignment.getLeft());
                         dia.getSourceRef().add(ie);
 
                         List<DataInput> dataInputs = sp.getIoSpecification().getDataInputs();
                         for(DataInput di : dataInputs) {
-                            if(di.getId().equals(sp.getId() + "_" + assignmentParts[1] + "Input")) {
+                            if(di.getId().equals(sp.getId() + "_" + assignment.getRight() + "Input")) {
                                 dia.setTargetRef(di);
                                 break;
                             }
@@ -2224,30 +1812,27 @@ public class Bpmn2JsonUnmarshaller {
             ItemDefinition itemDef = Bpmn2Factory.eINSTANCE.createItemDefinition();
             itemDef.setId(sp.getId() + "_" + "multiInstanceItemType");
             din.setItemSubjectRef(itemDef);
-            _subprocessItemDefs.put(itemDef.getId(), itemDef);
             loopCharacteristics.setInputDataItem(din);
             sp.setLoopCharacteristics(loopCharacteristics);
         }
         
         // properties
         if(properties.get("vardefs") != null && properties.get("vardefs").length() > 0) {
-            String[] vardefs = properties.get("vardefs").split( ",\\s*" );
-            for(String vardef : vardefs) {
+            List<Declaration> vardefs = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("vardefs"));
+            for(Declaration vardef : vardefs) {
                 Property prop = Bpmn2Factory.eINSTANCE.createProperty();
                 ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
                 // check if we define a structure ref in the definition
-                if(vardef.contains(":")) {
-                    String[] vardefParts = vardef.split( ":\\s*" );
-                    prop.setId(vardefParts[0]);
+                if(vardef.getType() != null) {
+                    prop.setId(vardef.getName());
                     itemdef.setId("_" + prop.getId() + "Item");
-                    itemdef.setStructureRef(vardefParts[1]);
+                    itemdef.setStructureRef(vardef.getType());
                 } else {
-                    prop.setId(vardef);
+                    prop.setId(vardef.getText());
                     itemdef.setId("_" + prop.getId() + "Item");
                 }
                 prop.setItemSubjectRef(itemdef);
                 sp.getProperties().add(prop);
-                _subprocessItemDefs.put(itemdef.getId(), itemdef);
             }
         }
     }
@@ -2388,7 +1973,7 @@ public class Bpmn2JsonUnmarshaller {
     
     protected void applyCatchEventProperties(CatchEvent event, Map<String, String> properties) {
         if (properties.get("dataoutput") != null && !"".equals(properties.get("dataoutput"))) {
-            String[] allDataOutputs = properties.get("dataoutput").split( ",\\s*" );
+            String[] allDataOutputs = Bpmn2PropertyTokenizer.split(properties.get("dataoutput"), ",");
             OutputSet outSet = Bpmn2Factory.eINSTANCE.createOutputSet();
             for(String dataOutput : allDataOutputs) {
                 DataOutput dataout = Bpmn2Factory.eINSTANCE.createDataOutput();
@@ -2414,23 +1999,22 @@ public class Bpmn2JsonUnmarshaller {
 
         // data output associations
         if (properties.get("dataoutputassociations") != null && !"".equals(properties.get("dataoutputassociations"))) {
-            String[] allAssociations = properties.get("dataoutputassociations").split( ",\\s*" );
-            for(String association : allAssociations) {
+            List<DataMapping> allAssociations = Bpmn2PropertyTokenizer.parseAssociations(properties.get("dataoutputassociations"));
+            for(DataMapping association : allAssociations) {
                 // data outputs are uni-directional
-                String[] associationParts = association.split( "->\\s*" );
                 DataOutputAssociation doa = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
                 // for source refs we loop through already defined data outputs
                 List<DataOutput> dataOutputs = event.getDataOutputs();
                 if(dataOutputs != null) {
                     for(DataOutput ddo : dataOutputs) {
-                        if(ddo.getId().equals(event.getId() + "_" + associationParts[0])) {
+                        if(ddo.getId().equals(event.getId() + "_" + association.getLeft())) {
                             doa.getSourceRef().add(ddo);
                         }
                     }
                 }
                 // since we dont have the process vars defined yet..need to improvise
                 ItemAwareElement e = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                e.setId(associationParts[1]);
+                e.setId(association.getRight());
                 doa.setTargetRef(e);
                 event.getDataOutputAssociation().add(doa);
             }
@@ -2493,8 +2077,9 @@ public class Bpmn2JsonUnmarshaller {
                     }
                     conditionExpression.setLanguage(languageStr);
                 }
-                if(properties.get("conditionexpression") != null && !"".equals(properties.get("conditionexpression"))) {
-                    conditionExpression.setBody(wrapInCDATABlock(properties.get("conditionexpression")));
+                String condition = properties.get("conditionexpression");
+                if(condition != null && !"".equals(condition)) {
+                    conditionExpression.setBody(wrapInCDATABlock(condition));
                 }
                 ((ConditionalEventDefinition) event.getEventDefinitions().get(0)).setCondition(conditionExpression);
             } else if(ed instanceof EscalationEventDefinition) {
@@ -2533,7 +2118,7 @@ public class Bpmn2JsonUnmarshaller {
     
     protected void applyThrowEventProperties(ThrowEvent event, Map<String, String> properties) {
         if (properties.get("datainput") != null && !"".equals(properties.get("datainput"))) {
-            String[] allDataInputs = properties.get("datainput").split( ",\\s*" );
+            String[] allDataInputs = Bpmn2PropertyTokenizer.split(properties.get("datainput"), ",");
             InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
             for(String dataInput : allDataInputs) {
                 DataInput datain = Bpmn2Factory.eINSTANCE.createDataInput();
@@ -2550,22 +2135,21 @@ public class Bpmn2JsonUnmarshaller {
 
         // data input associations
         if (properties.get("datainputassociations") != null && !"".equals(properties.get("datainputassociations"))) {
-            String[] allAssociations = properties.get("datainputassociations").split( ",\\s*" );
-            for(String association : allAssociations) {
+            List<DataMapping> allAssociations = Bpmn2PropertyTokenizer.parseAssociations(properties.get("datainputassociations"));
+            for(DataMapping association : allAssociations) {
                 // data inputs are uni-directional
-                String[] associationParts = association.split( "->\\s*" );
                 DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
                 
                 // since we dont have the process vars defined yet..need to improvise
                 ItemAwareElement e = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                e.setId(associationParts[0]);
+                e.setId(association.getLeft());
                 dia.getSourceRef().add(e);
                 
                 // for target ref we loop through already defined data inputs
                 List<DataInput> dataInputs = event.getDataInputs();
                 if(dataInputs != null) {
                     for(DataInput di : dataInputs) {
-                        if(di.getId().equals(event.getId() + "_" + associationParts[1])) {
+                        if(di.getId().equals(event.getId() + "_" + association.getRight())) {
                             dia.setTargetRef(di);
                             break;
                         }
@@ -2634,8 +2218,9 @@ public class Bpmn2JsonUnmarshaller {
                     }
                     conditionExpression.setLanguage(languageStr);
                 }
-                if(properties.get("conditionexpression") != null && !"".equals(properties.get("conditionexpression"))) {
-                    conditionExpression.setBody(wrapInCDATABlock(properties.get("conditionexpression")));
+                String condition = properties.get("conditionexpression");
+                if(condition != null && !"".equals(condition)) {
+                    conditionExpression.setBody(wrapInCDATABlock(condition));
                 }
                 ((ConditionalEventDefinition) event.getEventDefinitions().get(0)).setCondition(conditionExpression);
             } else if(ed instanceof EscalationEventDefinition) {
@@ -2680,8 +2265,9 @@ public class Bpmn2JsonUnmarshaller {
     }
 
     protected void applyBaseElementProperties(BaseElement baseElement, Map<String, String> properties) {
-        if (properties.get("documentation") != null && !"".equals(properties.get("documentation"))) {
-            baseElement.getDocumentation().add(createDocumentation(wrapInCDATABlock(properties.get("documentation"))));
+        String documentation = properties.get("documentation");
+        if (documentation != null && !"".equals(documentation)) {
+            baseElement.getDocumentation().add(createDocumentation(wrapInCDATABlock(documentation)));
         }
         if(baseElement.getId() == null || baseElement.getId().length() < 1) {
             baseElement.setId(properties.get("resourceId"));
@@ -2786,7 +2372,7 @@ public class Bpmn2JsonUnmarshaller {
         
         // import extension elements
         if(properties.get("imports") != null && properties.get("imports").length() > 0) {
-            String[] allImports = properties.get("imports").split( ",\\s*" );
+            String[] allImports = Bpmn2PropertyTokenizer.split(properties.get("imports"), ",");
             for(String importStr : allImports) {
                 ImportType importType = DroolsFactory.eINSTANCE.createImportType();
                 importType.setName(importStr);
@@ -2803,13 +2389,12 @@ public class Bpmn2JsonUnmarshaller {
         
         // globals extension elements
         if(properties.get("globals") != null && properties.get("globals").length() > 0) {
-            String[] allGlobals = properties.get("globals").split( ",\\s*" );
-            for(String globalStr : allGlobals) {
-                String[] globalParts = globalStr.split( ":\\s*" ); // identifier:type
-                if(globalParts.length == 2) {
+            List<Declaration> allGlobals = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("globals"));
+            for(Declaration global : allGlobals) {
+                if(global.isNameAndType()) { // identifier:type
                     GlobalType globalType = DroolsFactory.eINSTANCE.createGlobalType();
-                    globalType.setIdentifier(globalParts[0]);
-                    globalType.setType(globalParts[1]);
+                    globalType.setIdentifier(global.getName());
+                    globalType.setType(global.getType());
                     if(process.getExtensionValues() == null || process.getExtensionValues().size() < 1) {
                     	ExtensionAttributeValue extensionElement = Bpmn2Factory.eINSTANCE.createExtensionAttributeValue();
                     	process.getExtensionValues().add(extensionElement);
@@ -2846,8 +2431,9 @@ public class Bpmn2JsonUnmarshaller {
             scriptTask.setName("");
         }
         
-        if(properties.get("script") != null && properties.get("script").length() > 0) {
-        	scriptTask.setScript(wrapInCDATABlock(properties.get("script")));
+        String script = properties.get("script");
+        if(script != null && script.length() > 0) {
+        	scriptTask.setScript(wrapInCDATABlock(script));
         }
         
         if(properties.get("script_language") != null && properties.get("script_language").length() > 0) {
@@ -2947,29 +2533,28 @@ public class Bpmn2JsonUnmarshaller {
     	
     	//callActivity data input set
         if(properties.get("datainputset") != null && properties.get("datainputset").trim().length() > 0) {
-            String[] allDataInputs = properties.get("datainputset").split( ",\\s*" );
+            List<Declaration> allDataInputs = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("datainputset"));
             if(callActivity.getIoSpecification() == null) {
                 InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
                 callActivity.setIoSpecification(iospec);
             }
             InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
-            for(String dataInput : allDataInputs) {
-            	if(dataInput.trim().length() > 0) {
+            for(Declaration dataInput : allDataInputs) {
+            	if(dataInput.getText().trim().length() > 0) {
 	                DataInput nextInput = Bpmn2Factory.eINSTANCE.createDataInput();
-	                String[] dataInputParts = dataInput.split( ":\\s*" );
-	                if(dataInputParts.length == 2) {
-	                	nextInput.setId(callActivity.getId() + "_" + dataInputParts[0] + "Input");
-	                	nextInput.setName(dataInputParts[0]);
+	                if(dataInput.isNameAndType()) {
+	                	nextInput.setId(callActivity.getId() + "_" + dataInput.getName() + "Input");
+	                	nextInput.setName(dataInput.getName());
 	                	
 	                	ExtendedMetaData metadata = ExtendedMetaData.INSTANCE;
 	                    EAttributeImpl extensionAttribute = (EAttributeImpl) metadata.demandFeature(
 	                            "http://www.jboss.org/drools", "dtype", false, false);
 	                    EStructuralFeatureImpl.SimpleFeatureMapEntry extensionEntry = new EStructuralFeatureImpl.SimpleFeatureMapEntry(extensionAttribute,
-	                    		dataInputParts[1]);
+	                    		dataInput.getType());
 	                    nextInput.getAnyAttribute().add(extensionEntry);
 	                } else {
-	                	nextInput.setId(callActivity.getId() + "_" + dataInput + "Input");
-	                	nextInput.setName(dataInput);
+	                	nextInput.setId(callActivity.getId() + "_" + dataInput.getText() + "Input");
+	                	nextInput.setName(dataInput.getText());
 	                }
 	                callActivity.getIoSpecification().getDataInputs().add(nextInput);
 	                inset.getDataInputRefs().add(nextInput);
@@ -2984,30 +2569,29 @@ public class Bpmn2JsonUnmarshaller {
         
         //callActivity data output set
         if(properties.get("dataoutputset") != null && properties.get("dataoutputset").trim().length() > 0) {
-            String[] allDataOutputs = properties.get("dataoutputset").split( ",\\s*" );
+            List<Declaration> allDataOutputs = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("dataoutputset"));
             if(callActivity.getIoSpecification() == null) {
                 InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
                 callActivity.setIoSpecification(iospec);
             }
 
             OutputSet outset = Bpmn2Factory.eINSTANCE.createOutputSet();
-            for(String dataOutput : allDataOutputs) {
-            	if(dataOutput.trim().length() > 0) {
+            for(Declaration dataOutput : allDataOutputs) {
+            	if(dataOutput.getText().trim().length() > 0) {
 	                DataOutput nextOut = Bpmn2Factory.eINSTANCE.createDataOutput();
-	                String[] dataOutputParts = dataOutput.split( ":\\s*" );
-	                if(dataOutputParts.length == 2) {
-	                	nextOut.setId(callActivity.getId() + "_" + dataOutputParts[0] + "Output");
-	                	nextOut.setName(dataOutputParts[0]);
+	                if(dataOutput.isNameAndType()) {
+	                	nextOut.setId(callActivity.getId() + "_" + dataOutput.getName() + "Output");
+	                	nextOut.setName(dataOutput.getName());
 	                	
 	                	ExtendedMetaData metadata = ExtendedMetaData.INSTANCE;
 	                    EAttributeImpl extensionAttribute = (EAttributeImpl) metadata.demandFeature(
 	                            "http://www.jboss.org/drools", "dtype", false, false);
 	                    EStructuralFeatureImpl.SimpleFeatureMapEntry extensionEntry = new EStructuralFeatureImpl.SimpleFeatureMapEntry(extensionAttribute,
-	                    		dataOutputParts[1]);
+	                    		dataOutput.getType());
 	                    nextOut.getAnyAttribute().add(extensionEntry);
 	                } else {
-	                	nextOut.setId(callActivity.getId() + "_" + dataOutput + "Output");
-	                	nextOut.setName(dataOutput);
+	                	nextOut.setId(callActivity.getId() + "_" + dataOutput.getText() + "Output");
+	                	nextOut.setName(dataOutput.getText());
 	                }
 	                
 	                callActivity.getIoSpecification().getDataOutputs().add(nextOut);
@@ -3023,17 +2607,16 @@ public class Bpmn2JsonUnmarshaller {
         
         //callActivity assignments
         if(properties.get("assignments") != null && properties.get("assignments").length() > 0) {
-            String[] allAssignments = properties.get("assignments").split( ",\\s*" );
-            for(String assignment : allAssignments) {
-                if(assignment.contains("=")) {
-                    String[] assignmentParts = assignment.split( "=\\s*" );
+            List<DataMapping> allAssignments = Bpmn2PropertyTokenizer.parseDataMappings(properties.get("assignments"));
+            for(DataMapping assignment : allAssignments) {
+                if(assignment.getKind() == DataMapping.Kind.ASSIGNMENT) {
                     DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
 
                     boolean foundTaskName = false;
                     if(callActivity.getIoSpecification() != null && callActivity.getIoSpecification().getDataOutputs() != null) {
                     	List<DataInput> dataInputs = callActivity.getIoSpecification().getDataInputs();
                     	for(DataInput di : dataInputs) {
-                    		if(di.getId().equals(callActivity.getId() + "_" + assignmentParts[0] + "Input")) {
+                    		if(di.getId().equals(callActivity.getId() + "_" + assignment.getLeft() + "Input")) {
                     			dia.setTargetRef(di);
                     			if(di.getName().equals("TaskName")) {
                     				foundTaskName = true;
@@ -3045,8 +2628,8 @@ public class Bpmn2JsonUnmarshaller {
                     
                     Assignment a = Bpmn2Factory.eINSTANCE.createAssignment();
                     FormalExpression fromExpression = Bpmn2Factory.eINSTANCE.createFormalExpression();
-                    if(assignmentParts.length > 1) {
-                        fromExpression.setBody(assignmentParts[1]);
+                    if(assignment.getRight() != null) {
+                        fromExpression.setBody(assignment.getRight());
                     } else {
                         fromExpression.setBody("");
                     }
@@ -3059,26 +2642,25 @@ public class Bpmn2JsonUnmarshaller {
                     dia.getAssignment().add(a);
                     callActivity.getDataInputAssociations().add(dia);
                     
-                } else if(assignment.contains("<->")) {
-                    String[] assignmentParts = assignment.split( "<->\\s*" );
+                } else if(assignment.getKind() == DataMapping.Kind.BIDIRECTIONAL) {
                     DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
                     DataOutputAssociation doa = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
                     
                     ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                    ie.setId(assignmentParts[0]);
+                    ie.setId(assignment.getLeft());
                     dia.getSourceRef().add(ie);
                     doa.setTargetRef(ie);
                     
                     List<DataInput> dataInputs = callActivity.getIoSpecification().getDataInputs();
                     for(DataInput di : dataInputs) {
-                        if(di.getId().equals(callActivity.getId() + "_" + assignmentParts[1] + "Input")) {
+                        if(di.getId().equals(callActivity.getId() + "_" + assignment.getRight() + "Input")) {
                             dia.setTargetRef(di);
                             break;
                         }
                     }
                     List<DataOutput> dataOutputs = callActivity.getIoSpecification().getDataOutputs();
                     for(DataOutput dout : dataOutputs) {
-                        if(dout.getId().equals(callActivity.getId() + "_" + assignmentParts[1] + "Output")) {
+                        if(dout.getId().equals(callActivity.getId() + "_" + assignment.getRight() + "Output")) {
                             doa.getSourceRef().add(dout);
                             break;
                         }
@@ -3086,13 +2668,12 @@ public class Bpmn2JsonUnmarshaller {
                     
                     callActivity.getDataInputAssociations().add(dia);
                     callActivity.getDataOutputAssociations().add(doa);
-                } else if(assignment.contains("->")) {
-                    String[] assignmentParts = assignment.split( "->\\s*" );
+                } else if(assignment.getKind() == DataMapping.Kind.UNIDIRECTIONAL) {
                     // we need to check if this is an data input or data output assignment
                     boolean leftHandAssignMentIsDO = false;
                     List<DataOutput> dataOutputs = callActivity.getIoSpecification().getDataOutputs();
                     for(DataOutput dout : dataOutputs) {
-                        if(dout.getId().equals(callActivity.getId() + "_" + assignmentParts[0] + "Output")) {
+                        if(dout.getId().equals(callActivity.getId() + "_" + assignment.getLeft() + "Output")) {
                             leftHandAssignMentIsDO = true;
                             break;
                         }
@@ -3101,14 +2682,14 @@ public class Bpmn2JsonUnmarshaller {
                         // doing data output
                         DataOutputAssociation doa = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
                         for(DataOutput dout : dataOutputs) {
-                            if(dout.getId().equals(callActivity.getId() + "_" + assignmentParts[0] + "Output")) {
+                            if(dout.getId().equals(callActivity.getId() + "_" + assignment.getLeft() + "Output")) {
                                 doa.getSourceRef().add(dout);
                                 break;
                             }
                         }
                         
                         ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                        ie.setId(assignmentParts[1]);
+                        ie.setId(assignment.getRight());
                         doa.setTargetRef(ie);
                         callActivity.getDataOutputAssociations().add(doa);
                     } else {
@@ -3116,12 +2697,12 @@ public class Bpmn2JsonUnmarshaller {
                         DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
                         // association from process var to dataInput var
                         ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                        ie.setId(assignmentParts[0]);
+                        ie.setId(assignment.getLeft());
                         dia.getSourceRef().add(ie);
 
                         List<DataInput> dataInputs = callActivity.getIoSpecification().getDataInputs();
                         for(DataInput di : dataInputs) {
-                            if(di.getId().equals(callActivity.getId() + "_" + assignmentParts[1] + "Input")) {
+                            if(di.getId().equals(callActivity.getId() + "_" + assignment.getRight() + "Input")) {
                                 dia.setTargetRef(di);
                                 break;
                             }
@@ -3135,8 +2716,9 @@ public class Bpmn2JsonUnmarshaller {
         }
         
         // process on-entry and on-exit actions as custom elements
-        if(properties.get("onentryactions") != null && properties.get("onentryactions").length() > 0) {
-            String[] allActions = properties.get("onentryactions").split( "\\|\\s*" );
+        String entryActions = properties.get("onentryactions");
+        if(entryActions != null && entryActions.length() > 0) {
+            String[] allActions = Bpmn2PropertyTokenizer.split(entryActions, "|");
             for(String action : allActions) {
                 OnEntryScriptType onEntryScript = DroolsFactory.eINSTANCE.createOnEntryScriptType();
                 onEntryScript.setScript(wrapInCDATABlock(action));
@@ -3162,8 +2744,9 @@ public class Bpmn2JsonUnmarshaller {
             }
         }
         
-        if(properties.get("onexitactions") != null && properties.get("onexitactions").length() > 0) {
-            String[] allActions = properties.get("onexitactions").split( "\\|\\s*" );
+        String exitActions = properties.get("onexitactions");
+        if(exitActions != null && exitActions.length() > 0) {
+            String[] allActions = Bpmn2PropertyTokenizer.split(exitActions, "|");
             for(String action : allActions) {
                 OnExitScriptType onExitScript = DroolsFactory.eINSTANCE.createOnExitScriptType();
                 onExitScript.setScript(wrapInCDATABlock(action));
@@ -3244,29 +2827,28 @@ public class Bpmn2JsonUnmarshaller {
         
         //process data input set
         if(properties.get("datainputset") != null && properties.get("datainputset").trim().length() > 0) {
-            String[] allDataInputs = properties.get("datainputset").split( ",\\s*" );
+            List<Declaration> allDataInputs = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("datainputset"));
             if(task.getIoSpecification() == null) {
                 InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
                 task.setIoSpecification(iospec);
             }
             InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
-            for(String dataInput : allDataInputs) {
-            	if(dataInput.trim().length() > 0) {
+            for(Declaration dataInput : allDataInputs) {
+            	if(dataInput.getText().trim().length() > 0) {
 	                DataInput nextInput = Bpmn2Factory.eINSTANCE.createDataInput();
-	                String[] dataInputParts = dataInput.split( ":\\s*" );
-	                if(dataInputParts.length == 2) {
-	                	nextInput.setId(task.getId() + "_" + dataInputParts[0] + "Input");
-	                	nextInput.setName(dataInputParts[0]);
+	                if(dataInput.isNameAndType()) {
+	                	nextInput.setId(task.getId() + "_" + dataInput.getName() + "Input");
+	                	nextInput.setName(dataInput.getName());
 	                	
 	                	ExtendedMetaData metadata = ExtendedMetaData.INSTANCE;
 	                    EAttributeImpl extensionAttribute = (EAttributeImpl) metadata.demandFeature(
 	                            "http://www.jboss.org/drools", "dtype", false, false);
 	                    EStructuralFeatureImpl.SimpleFeatureMapEntry extensionEntry = new EStructuralFeatureImpl.SimpleFeatureMapEntry(extensionAttribute,
-	                    		dataInputParts[1]);
+	                    		dataInput.getType());
 	                    nextInput.getAnyAttribute().add(extensionEntry);
 	                } else {
-	                	nextInput.setId(task.getId() + "_" + dataInput + "Input");
-	                	nextInput.setName(dataInput);
+	                	nextInput.setId(task.getId() + "_" + dataInput.getText() + "Input");
+	                	nextInput.setName(dataInput.getText());
 	                }
 	                
 	                task.getIoSpecification().getDataInputs().add(nextInput);
@@ -3286,30 +2868,29 @@ public class Bpmn2JsonUnmarshaller {
         
         //process data output set
         if(properties.get("dataoutputset") != null && properties.get("dataoutputset").trim().length() > 0) {
-            String[] allDataOutputs = properties.get("dataoutputset").split( ",\\s*" );
+            List<Declaration> allDataOutputs = Bpmn2PropertyTokenizer.parseDeclarations(properties.get("dataoutputset"));
             if(task.getIoSpecification() == null) {
                 InputOutputSpecification iospec = Bpmn2Factory.eINSTANCE.createInputOutputSpecification();
                 task.setIoSpecification(iospec);
             }
             
             OutputSet outset = Bpmn2Factory.eINSTANCE.createOutputSet();
-            for(String dataOutput : allDataOutputs) {
-            	if(dataOutput.trim().length() > 0) {
+            for(Declaration dataOutput : allDataOutputs) {
+            	if(dataOutput.getText().trim().length() > 0) {
 	                DataOutput nextOut = Bpmn2Factory.eINSTANCE.createDataOutput();
-	                String[] dataOutputParts = dataOutput.split( ":\\s*" );
-	                if(dataOutputParts.length == 2) {
-	                	nextOut.setId(task.getId() + "_" + dataOutputParts[0] + "Output");
-	                	nextOut.setName(dataOutputParts[0]);
+	                if(dataOutput.isNameAndType()) {
+	                	nextOut.setId(task.getId() + "_" + dataOutput.getName() + "Output");
+	                	nextOut.setName(dataOutput.getName());
 	                	
 	                	ExtendedMetaData metadata = ExtendedMetaData.INSTANCE;
 	                    EAttributeImpl extensionAttribute = (EAttributeImpl) metadata.demandFeature(
 	                            "http://www.jboss.org/drools", "dtype", false, false);
 	                    EStructuralFeatureImpl.SimpleFeatureMapEntry extensionEntry = new EStructuralFeatureImpl.SimpleFeatureMapEntry(extensionAttribute,
-	                    		dataOutputParts[1]);
+	                    		dataOutput.getType());
 	                    nextOut.getAnyAttribute().add(extensionEntry);
 	                } else {
-	                	nextOut.setId(task.getId() + "_" + dataOutput + "Output");
-	                	nextOut.setName(dataOutput);
+	                	nextOut.setId(task.getId() + "_" + dataOutput.getText() + "Output");
+	                	nextOut.setName(dataOutput.getText());
 	                }
 	                
 	                task.getIoSpecification().getDataOutputs().add(nextOut);
@@ -3325,17 +2906,16 @@ public class Bpmn2JsonUnmarshaller {
         
         //process assignments
         if(properties.get("assignments") != null && properties.get("assignments").length() > 0) {
-            String[] allAssignments = properties.get("assignments").split( ",\\s*" );
-            for(String assignment : allAssignments) {
-                if(assignment.contains("=")) {
-                    String[] assignmentParts = assignment.split( "=\\s*" );
+            List<DataMapping> allAssignments = Bpmn2PropertyTokenizer.parseDataMappings(properties.get("assignments"));
+            for(DataMapping assignment : allAssignments) {
+                if(assignment.getKind() == DataMapping.Kind.ASSIGNMENT) {
                     DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
 
                     boolean foundTaskName = false;
                     if(task.getIoSpecification() != null && task.getIoSpecification().getDataOutputs() != null) {
                     	List<DataInput> dataInputs = task.getIoSpecification().getDataInputs();
                     	for(DataInput di : dataInputs) {
-                    		if(di.getId().equals(task.getId() + "_" + assignmentParts[0] + "Input")) {
+                    		if(di.getId().equals(task.getId() + "_" + assignment.getLeft() + "Input")) {
                     			dia.setTargetRef(di);
                     			if(di.getName().equals("TaskName")) {
                     				foundTaskName = true;
@@ -3345,7 +2925,7 @@ public class Bpmn2JsonUnmarshaller {
                     	}
                     }
                     // if we are dealing with TaskName and none has been defined, add it
-                    if(assignmentParts[0].equals("TaskName") && !foundTaskName) {
+                    if("TaskName".equals(assignment.getLeft()) && !foundTaskName) {
                         DataInput assignmentTaskNameDataInput = Bpmn2Factory.eINSTANCE.createDataInput();
                         assignmentTaskNameDataInput.setId(task.getId() + "_TaskNameInput");
                         assignmentTaskNameDataInput.setName("TaskName");
@@ -3361,8 +2941,8 @@ public class Bpmn2JsonUnmarshaller {
                     
                     Assignment a = Bpmn2Factory.eINSTANCE.createAssignment();
                     FormalExpression fromExpression = Bpmn2Factory.eINSTANCE.createFormalExpression();
-                    if(assignmentParts.length > 1) {
-                        fromExpression.setBody(assignmentParts[1]);
+                    if(assignment.getRight() != null) {
+                        fromExpression.setBody(assignment.getRight());
                     } else {
                         fromExpression.setBody("");
                     }
@@ -3375,26 +2955,25 @@ public class Bpmn2JsonUnmarshaller {
                     dia.getAssignment().add(a);
                     task.getDataInputAssociations().add(dia);
                     
-                } else if(assignment.contains("<->")) {
-                    String[] assignmentParts = assignment.split( "<->\\s*" );
+                } else if(assignment.getKind() == DataMapping.Kind.BIDIRECTIONAL) {
                     DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
                     DataOutputAssociation doa = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
                     
                     ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                    ie.setId(assignmentParts[0]);
+                    ie.setId(assignment.getLeft());
                     dia.getSourceRef().add(ie);
                     doa.setTargetRef(ie);
                     
                     List<DataInput> dataInputs = task.getIoSpecification().getDataInputs();
                     for(DataInput di : dataInputs) {
-                        if(di.getId().equals(task.getId() + "_" + assignmentParts[1] + "Input")) {
+                        if(di.getId().equals(task.getId() + "_" + assignment.getRight() + "Input")) {
                             dia.setTargetRef(di);
                             break;
                         }
                     }
                     List<DataOutput> dataOutputs = task.getIoSpecification().getDataOutputs();
                     for(DataOutput dout : dataOutputs) {
-                        if(dout.getId().equals(task.getId() + "_" + assignmentParts[1] + "Output")) {
+                        if(dout.getId().equals(task.getId() + "_" + assignment.getRight() + "Output")) {
                             doa.getSourceRef().add(dout);
                             break;
                         }
@@ -3402,13 +2981,12 @@ public class Bpmn2JsonUnmarshaller {
                     
                     task.getDataInputAssociations().add(dia);
                     task.getDataOutputAssociations().add(doa);
-                } else if(assignment.contains("->")) {
-                    String[] assignmentParts = assignment.split( "->\\s*" );
+                } else if(assignment.getKind() == DataMapping.Kind.UNIDIRECTIONAL) {
                     // we need to check if this is an data input or data output assignment
                     boolean leftHandAssignMentIsDO = false;
                     List<DataOutput> dataOutputs = task.getIoSpecification().getDataOutputs();
                     for(DataOutput dout : dataOutputs) {
-                        if(dout.getId().equals(task.getId() + "_" + assignmentParts[0] + "Output")) {
+                        if(dout.getId().equals(task.getId() + "_" + assignment.getLeft() + "Output")) {
                             leftHandAssignMentIsDO = true;
                             break;
                         }
@@ -3417,14 +2995,14 @@ public class Bpmn2JsonUnmarshaller {
                         // doing data output
                         DataOutputAssociation doa = Bpmn2Factory.eINSTANCE.createDataOutputAssociation();
                         for(DataOutput dout : dataOutputs) {
-                            if(dout.getId().equals(task.getId() + "_" + assignmentParts[0] + "Output")) {
+                            if(dout.getId().equals(task.getId() + "_" + assignment.getLeft() + "Output")) {
                                 doa.getSourceRef().add(dout);
                                 break;
                             }
                         }
                         
                         ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                        ie.setId(assignmentParts[1]);
+                        ie.setId(assignment.getRight());
                         doa.setTargetRef(ie);
                         task.getDataOutputAssociations().add(doa);
                     } else {
@@ -3432,12 +3010,12 @@ public class Bpmn2JsonUnmarshaller {
                         DataInputAssociation dia = Bpmn2Factory.eINSTANCE.createDataInputAssociation();
                         // association from process var to dataInput var
                         ItemAwareElement ie = Bpmn2Factory.eINSTANCE.createItemAwareElement();
-                        ie.setId(assignmentParts[0]);
+                        ie.setId(assignment.getLeft());
                         dia.getSourceRef().add(ie);
 
                         List<DataInput> dataInputs = task.getIoSpecification().getDataInputs();
                         for(DataInput di : dataInputs) {
-                            if(di.getId().equals(task.getId() + "_" + assignmentParts[1] + "Input")) {
+                            if(di.getId().equals(task.getId() + "_" + assignment.getRight() + "Input")) {
                                 dia.setTargetRef(di);
                                 break;
                             }
@@ -3469,8 +3047,9 @@ public class Bpmn2JsonUnmarshaller {
         }
         
         // process on-entry and on-exit actions as custom elements
-        if(properties.get("onentryactions") != null && properties.get("onentryactions").length() > 0) {
-            String[] allActions = properties.get("onentryactions").split( "\\|\\s*" );
+        String entryActions = properties.get("onentryactions");
+        if(entryActions != null && entryActions.length() > 0) {
+            String[] allActions = Bpmn2PropertyTokenizer.split(entryActions, "|");
             for(String action : allActions) {
                 OnEntryScriptType onEntryScript = DroolsFactory.eINSTANCE.createOnEntryScriptType();
                 onEntryScript.setScript(wrapInCDATABlock(action));
@@ -3496,8 +3075,9 @@ public class Bpmn2JsonUnmarshaller {
             }
         }
         
-        if(properties.get("onexitactions") != null && properties.get("onexitactions").length() > 0) {
-            String[] allActions = properties.get("onexitactions").split( "\\|\\s*" );
+        String exitActions = properties.get("onexitactions");
+        if(exitActions != null && exitActions.length() > 0) {
+            String[] allActions = Bpmn2PropertyTokenizer.split(exitActions, "|");
             for(String action : allActions) {
                 OnExitScriptType onExitScript = DroolsFactory.eINSTANCE.createOnExitScriptType();
                 onExitScript.setScript(wrapInCDATABlock(action));
@@ -3526,7 +3106,7 @@ public class Bpmn2JsonUnmarshaller {
     
     protected void applyUserTaskProperties(UserTask task, Map<String, String> properties) {
         if(properties.get("actors") != null && properties.get("actors").length() > 0) {
-            String[] allActors = properties.get("actors").split( ",\\s*" );
+            String[] allActors = Bpmn2PropertyTokenizer.split(properties.get("actors"), ",");
             for(String actor : allActors) {
                 PotentialOwner po = Bpmn2Factory.eINSTANCE.createPotentialOwner();
                 ResourceAssignmentExpression rae = Bpmn2Factory.eINSTANCE.createResourceAssignmentExpression();
@@ -3867,9 +3447,10 @@ public class Bpmn2JsonUnmarshaller {
             audit.getDocumentation().add(createDocumentation(properties.get("auditing")));
             sequenceFlow.setAuditing(audit);
         }
-        if (properties.get("conditionexpression") != null && !"".equals(properties.get("conditionexpression"))) {
+        String condition = properties.get("conditionexpression");
+        if (condition != null && !"".equals(condition)) {
             FormalExpression expr = Bpmn2Factory.eINSTANCE.createFormalExpression();
-            expr.setBody(wrapInCDATABlock(properties.get("conditionexpression")));
+            expr.setBody(wrapInCDATABlock(condition));
             // check if language was specified 
             if (properties.get("conditionexpressionlanguage") != null && !"".equals(properties.get("conditionexpressionlanguage"))) {
                 String languageStr;
@@ -3905,12 +3486,155 @@ public class Bpmn2JsonUnmarshaller {
         sequenceFlow.setIsImmediate(Boolean.parseBoolean(properties.get("isimmediate")));
     }
 
-    private Map<String, String> unmarshallProperties(JsonParser parser) throws JsonParseException, IOException {
-        Map<String, String> properties = new HashMap<String, String>();
+    /**
+     * Parses the child shapes of an item, the lanes and the shapes with children of their own
+     * on the executor, each with a context of its own, and the other shapes on this thread
+     * in the meantime, each run of them between two subtrees with a context of its own too.
+     * The contexts are merged into the given one in the order of the shapes, so the elements
+     * end up in the index in the same order as when parsing on a single thread.
+     */
+    private List<BaseElement> unmarshallChildShapes(JsonParser parser, Bpmn2UnmarshallingContext context,
+            ExecutorService executor) throws JsonParseException, IOException {
+        List<Object> shapes = new ArrayList<Object>();
+        try {
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                TokenBuffer shape = new TokenBuffer(null);
+                shape.copyCurrentStructure(parser);
+                if (isSubtree(shape)) {
+                    shapes.add(executor.submit(new SubtreeUnmarshaller(shape, context)));
+                } else {
+                    shapes.add(shape);
+                }
+            }
+            List<BaseElement> childElements = new ArrayList<BaseElement>(shapes.size());
+            // the context each shape was parsed with, shared by the shapes of a run
+            List<Bpmn2UnmarshallingContext> contexts = new ArrayList<Bpmn2UnmarshallingContext>(shapes.size());
+            Bpmn2UnmarshallingContext run = null;
+            for (Object shape : shapes) {
+                if (shape instanceof TokenBuffer) {
+                    if (run == null) {
+                        run = createPartContext(context);
+                    }
+                    childElements.add(unmarshallBufferedItem((TokenBuffer) shape, run));
+                    contexts.add(run);
+                } else {
+                    run = null;
+                    childElements.add(null);
+                    contexts.add(null);
+                }
+            }
+            Bpmn2UnmarshallingContext merged = null;
+            for (int i = 0; i < shapes.size(); i++) {
+                Bpmn2UnmarshallingContext part = contexts.get(i);
+                if (shapes.get(i) instanceof Future) {
+                    SubtreeUnmarshaller subtree = getSubtree((Future<?>) shapes.get(i));
+                    part = subtree._context;
+                    childElements.set(i, subtree._element);
+                }
+                if (part != merged) {
+                    context.merge(part);
+                    merged = part;
+                }
+            }
+            return childElements;
+        } finally {
+            for (Object shape : shapes) {
+                if (shape instanceof Future) {
+                    ((Future<?>) shape).cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the shape is a lane or has children, which is worth parsing on its own.
+     */
+    private boolean isSubtree(TokenBuffer shape) throws JsonParseException, IOException {
+        JsonParser parser = shape.asParser();
+        parser.nextToken(); // open the object
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldname = parser.getCurrentName();
+            parser.nextToken();
+            if ("childShapes".equals(fieldname)) {
+                if (parser.nextToken() != JsonToken.END_ARRAY) {
+                    return true;
+                }
+            } else if ("stencil".equals(fieldname)) {
+                // "stencil":{"id":"Lane"},
+                parser.nextToken();
+                parser.nextToken();
+                if ("Lane".equals(parser.getText())) {
+                    return true;
+                }
+                parser.nextToken();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a context to parse a part of the model with, before it is merged into the given one.
+     */
+    private Bpmn2UnmarshallingContext createPartContext(Bpmn2UnmarshallingContext parent) {
+        Bpmn2UnmarshallingContext context = new Bpmn2UnmarshallingContext(parent.getPreProcessingData());
+        context.setStencilDefaults(parent.getStencilDefaults());
+        return context;
+    }
+
+    private BaseElement unmarshallBufferedItem(TokenBuffer shape, Bpmn2UnmarshallingContext context) throws JsonParseException, IOException {
+        JsonParser parser = shape.asParser();
+        parser.nextToken(); // open the object
+        return unmarshallItem(parser, context);
+    }
+
+    private SubtreeUnmarshaller getSubtree(Future<?> future) throws IOException {
+        try {
+            return (SubtreeUnmarshaller) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while unmarshalling the model");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof java.lang.Error) {
+                throw (java.lang.Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Parses a shape and its children on an executor thread.
+     */
+    private class SubtreeUnmarshaller implements Callable<SubtreeUnmarshaller> {
+
+        private TokenBuffer _shape;
+        private Bpmn2UnmarshallingContext _context;
+        private BaseElement _element;
+
+        SubtreeUnmarshaller(TokenBuffer shape, Bpmn2UnmarshallingContext parent) {
+            _shape = shape;
+            _context = createPartContext(parent);
+        }
+
+        public SubtreeUnmarshaller call() throws Exception {
+            _element = unmarshallBufferedItem(_shape, _context);
+            _shape = null;
+            return this;
+        }
+    }
+
+    private Map<String, String> unmarshallProperties(JsonParser parser, Bpmn2UnmarshallingContext context) throws JsonParseException, IOException {
+        Bpmn2ShapeProperties properties = new Bpmn2ShapeProperties(context.getSharedValues());
         while (parser.nextToken() != JsonToken.END_OBJECT) {
             String fieldname = parser.getCurrentName();
             parser.nextToken();
-            properties.put(fieldname, parser.getText());
+            properties.put(fieldname, parser);
         }
         return properties;
     }
@@ -3923,7 +3647,7 @@ public class Bpmn2JsonUnmarshaller {
     
     private boolean isCustomElement(String taskType, String preProcessingData) {
         if(taskType != null && taskType.length() > 0 && preProcessingData != null && preProcessingData.length() > 0) {
-            String[] preProcessingDataElements = preProcessingData.split( ",\\s*" );
+            String[] preProcessingDataElements = Bpmn2PropertyTokenizer.split(preProcessingData, ",");
             for(String preProcessingDataElement : preProcessingDataElements) {
                 if(taskType.equals(preProcessingDataElement)) {
                     return true;
@@ -3934,11 +3658,579 @@ public class Bpmn2JsonUnmarshaller {
     }
     
     protected BaseElement createBaseElement(String stencil, String taskType, boolean customElement){
+        for (BpmnMarshallerHelper helper : _helperTracker.getHelpers()) {
+            if (helper instanceof BpmnElementFactoryHelper) {
+                BaseElement element = ((BpmnElementFactoryHelper) helper).createElement(stencil, taskType, customElement);
+                if (element != null) {
+                    return element;
+                }
+            }
+        }
         return Bpmn20Stencil.createElement(stencil, taskType, customElement);
     }
     
     protected String wrapInCDATABlock(String value) {
     	return "<![CDATA[" + value + "]]>";
     }
-}
 
+    /**
+     * Map of the process activities by name, built on first use to resolve
+     * the activity references of compensation event definitions.
+     */
+    private static class ActivityNameLookup {
+
+        private Definitions _def;
+        private Map<String, Activity> _activities;
+
+        ActivityNameLookup(Definitions def) {
+            _def = def;
+        }
+
+        Activity get(String name) {
+            if (_activities == null) {
+                _activities = new HashMap<String, Activity>();
+                for (RootElement root : _def.getRootElements()) {
+                    if (root instanceof Process) {
+                        for (FlowElement fe : ((Process) root).getFlowElements()) {
+                            if (fe instanceof Activity) {
+                                _activities.put(((Activity) fe).getName(), (Activity) fe);
+                            }
+                        }
+                    }
+                }
+            }
+            return _activities.get(name);
+        }
+    }
+
+    private class ServiceTasksPhase extends RevisitPipeline.Phase {
+
+        private List<Interface> toAddInterfaces = new ArrayList<Interface>();
+        private List<Message> toAddMessages = new ArrayList<Message>();
+        private List<ItemDefinition> toAddDefinitions = new ArrayList<ItemDefinition>();
+
+        ServiceTasksPhase() {
+            super("service tasks");
+        }
+
+        @Override
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+            if(fe instanceof ServiceTask) {
+                Iterator<FeatureMap.Entry> iter = fe.getAnyAttribute().iterator();
+                String serviceInterface = null;
+                String serviceOperation = null;
+                while(iter.hasNext()) {
+                    FeatureMap.Entry entry = iter.next();
+                    if(entry.getEStructuralFeature().getName().equals("servicetaskinterface")) {
+                        serviceInterface = (String) entry.getValue();
+                    }
+                    if(entry.getEStructuralFeature().getName().equals("servicetaskoperation")) {
+                        serviceOperation = (String) entry.getValue();
+                    }
+                }
+                Interface newInterface = Bpmn2Factory.eINSTANCE.createInterface();
+                if(serviceInterface != null) {
+                    newInterface.setName(serviceInterface);
+                    newInterface.setId(fe.getId() + "_ServiceInterface");
+                }
+                if(serviceOperation != null) {
+                    Operation oper = Bpmn2Factory.eINSTANCE.createOperation();
+                    oper.setId(fe.getId() + "_ServiceOperation");
+                    oper.setName(serviceOperation);
+
+                    Message message = Bpmn2Factory.eINSTANCE.createMessage();
+                    message.setId(fe.getId() + "_InMessage");
+
+                    ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
+                    itemdef.setId(message.getId() + "Type");
+                    message.setItemRef(itemdef);
+                    toAddDefinitions.add(itemdef);
+
+                    toAddMessages.add(message);
+
+                    oper.setInMessageRef(message);
+                    newInterface.getOperations().add(oper);
+                    ((ServiceTask) fe).setOperationRef(oper);
+                }
+                toAddInterfaces.add(newInterface);
+            }
+        }
+
+        @Override
+        public void complete(Definitions def) {
+            for(ItemDefinition id : toAddDefinitions) {
+                def.getRootElements().add(id);
+            }
+            for(Message m : toAddMessages) {
+                def.getRootElements().add(m);
+            }
+            for(Interface i : toAddInterfaces) {
+                def.getRootElements().add(i);
+            }
+        }
+    }
+
+    /**
+     * Revisit message to set their item ref to a item definition
+     */
+    private class MessagesPhase extends RevisitPipeline.Phase {
+
+        MessagesPhase() {
+            super("messages");
+        }
+
+        @Override
+        public void complete(Definitions def) {
+            List<RootElement> rootElements =  def.getRootElements();
+            Set<String> itemDefinitionIds = new HashSet<String>();
+            for(RootElement root : rootElements) {
+                if(root instanceof ItemDefinition) {
+                    itemDefinitionIds.add(root.getId());
+                }
+            }
+            List<ItemDefinition> toAddDefinitions = new ArrayList<ItemDefinition>();
+            for(RootElement root : rootElements) {
+                if(root instanceof Message) {
+                    if(!itemDefinitionIds.contains(root.getId() + "Type")) {
+                        ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
+                        itemdef.setId(root.getId() + "Type");
+                        toAddDefinitions.add(itemdef);
+                        ((Message) root).setItemRef(itemdef);
+                    }
+                }
+            }
+            for(ItemDefinition id : toAddDefinitions) {
+                def.getRootElements().add(id);
+            }
+        }
+    }
+
+    /**
+     * Updates the event definitions of all catch or all throw events,
+     * sub-processes included.
+     */
+    private class EventDefinitionsPhase extends RevisitPipeline.Phase {
+
+        private boolean _catchEvents;
+        private ActivityNameLookup _activities;
+        private Bpmn2UnmarshallingContext _context;
+        private Set<Error> toAddErrors = new HashSet<Error>();
+        private Set<Escalation> toAddEscalations = new HashSet<Escalation>();
+        private Set<Message> toAddMessages = new HashSet<Message>();
+        private Set<ItemDefinition> toAddItemDefinitions = new HashSet<ItemDefinition>();
+
+        EventDefinitionsPhase(String name, boolean catchEvents, ActivityNameLookup activities, Bpmn2UnmarshallingContext context) {
+            super(name);
+            _catchEvents = catchEvents;
+            _activities = activities;
+            _context = context;
+        }
+
+        @Override
+        public boolean isRecursive() {
+            return true;
+        }
+
+        @Override
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+            List<EventDefinition> eventDefinitions = null;
+            if(_catchEvents && fe instanceof CatchEvent) {
+                eventDefinitions = ((CatchEvent) fe).getEventDefinitions();
+            } else if(!_catchEvents && fe instanceof ThrowEvent) {
+                eventDefinitions = ((ThrowEvent) fe).getEventDefinitions();
+            }
+            if(eventDefinitions != null && eventDefinitions.size() > 0) {
+                setEventDefinitionInfo(eventDefinitions.get(0), _activities,
+                        toAddErrors, toAddEscalations, toAddMessages, toAddItemDefinitions, _context);
+            }
+        }
+
+        @Override
+        public void complete(Definitions def) {
+            for(Error er : toAddErrors) {
+                def.getRootElements().add(er);
+            }
+            for(Escalation es : toAddEscalations) {
+                def.getRootElements().add(es);
+            }
+            for(ItemDefinition idef : toAddItemDefinitions) {
+                def.getRootElements().add(idef);
+            }
+            for(Message msg : toAddMessages) {
+                def.getRootElements().add(msg);
+            }
+        }
+    }
+
+    private class TaskAssociationsPhase extends RevisitPipeline.Phase {
+
+        TaskAssociationsPhase() {
+            super("task associations");
+        }
+
+        @Override
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+            if(fe instanceof Task) {
+                Task t = (Task) fe;
+                if(t.getDataInputAssociations() != null) {
+                    List<DataInputAssociation> inputList = t.getDataInputAssociations();
+                    if(inputList != null) {
+                        for(DataInputAssociation input : inputList) {
+                            List<ItemAwareElement> sourceRef = input.getSourceRef();
+                            if(sourceRef != null) {
+                                for(ItemAwareElement iae : sourceRef) {
+                                    String[] iaeParts = iae.getId().split( "\\." );
+                                    if(iaeParts.length > 1) {
+                                        FormalExpression dataInputTransformationExpression = Bpmn2Factory.eINSTANCE.createFormalExpression();
+                                        dataInputTransformationExpression.setBody(iae.getId());
+                                        input.setTransformation(dataInputTransformationExpression);
+                                        iae.setId(iaeParts[0]);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                if(t.getDataOutputAssociations() != null) {
+                    List<DataOutputAssociation> outputList = t.getDataOutputAssociations();
+                    if(outputList != null) {
+                        for(DataOutputAssociation output : outputList) {
+                            ItemAwareElement targetEle = output.getTargetRef();
+                            if(targetEle != null) {
+                                String[] targetEleParts = targetEle.getId().split( "\\." );
+                                if(targetEleParts.length > 1) {
+                                    FormalExpression dataOutputTransformationExpression = Bpmn2Factory.eINSTANCE.createFormalExpression();
+                                    dataOutputTransformationExpression.setBody(targetEle.getId());
+                                    output.setTransformation(dataOutputTransformationExpression);
+                                    targetEle.setId(targetEleParts[0]);
+                                }
+                            }
+                        }
+                    }
+                }
+
+                if(t.getIoSpecification() != null) {
+                    InputOutputSpecification ios = t.getIoSpecification();
+                    if(ios.getInputSets() == null || ios.getInputSets().size() < 1) {
+                        InputSet inset = Bpmn2Factory.eINSTANCE.createInputSet();
+                        ios.getInputSets().add(inset);
+                    }
+
+                    if(ios.getOutputSets() == null) {
+                        if(ios.getOutputSets() == null || ios.getOutputSets().size() < 1) {
+                            OutputSet outset = Bpmn2Factory.eINSTANCE.createOutputSet();
+                            ios.getOutputSets().add(outset);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private class SendReceiveTasksPhase extends RevisitPipeline.Phase {
+
+        private List<Message> toAddMessages = new ArrayList<Message>();
+        private List<ItemDefinition> toAddItemDefinitions = new ArrayList<ItemDefinition>();
+
+        SendReceiveTasksPhase() {
+            super("send and receive tasks");
+        }
+
+        @Override
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+            if(fe instanceof ReceiveTask || fe instanceof SendTask) {
+                ItemDefinition idef = Bpmn2Factory.eINSTANCE.createItemDefinition();
+                Message msg = Bpmn2Factory.eINSTANCE.createMessage();
+                Iterator<FeatureMap.Entry> iter = fe.getAnyAttribute().iterator();
+                while(iter.hasNext()) {
+                    FeatureMap.Entry entry = iter.next();
+                    if(entry.getEStructuralFeature().getName().equals("msgref")) {
+                        msg.setId((String) entry.getValue());
+                        idef.setId((String) entry.getValue() + "Type");
+                    }
+                }
+                msg.setItemRef(idef);
+                if(fe instanceof ReceiveTask) {
+                    ((ReceiveTask) fe).setMessageRef(msg);
+                } else {
+                    ((SendTask) fe).setMessageRef(msg);
+                }
+                toAddMessages.add(msg);
+                toAddItemDefinitions.add(idef);
+            }
+        }
+
+        @Override
+        public void complete(Definitions def) {
+            for(ItemDefinition idef : toAddItemDefinitions) {
+                def.getRootElements().add(idef);
+            }
+            for(Message msg : toAddMessages) {
+                def.getRootElements().add(msg);
+            }
+        }
+    }
+
+    /**
+     * Sets the direction and the default flow of a gateway from its current connections.
+     */
+    void revisitGateway(Gateway gateway, FlowElementsContainer container) {
+        new GatewaysPhase().visit(gateway, container);
+    }
+
+    /**
+     * Updates the gatewayDirection attributes and the default flows of all gateways.
+     */
+    private class GatewaysPhase extends RevisitPipeline.Phase {
+
+        // the sequence flows of each container, by element id
+        private Map<FlowElementsContainer, Map<String, SequenceFlow>> _flowsById =
+            new HashMap<FlowElementsContainer, Map<String, SequenceFlow>>();
+
+        GatewaysPhase() {
+            super("gateways");
+        }
+
+        @Override
+        public boolean isRecursive() {
+            return true;
+        }
+
+        @Override
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+            if(fe instanceof Gateway) {
+                Gateway gateway = (Gateway) fe;
+                int incoming = gateway.getIncoming() == null ? 0 : gateway.getIncoming().size();
+                int outgoing = gateway.getOutgoing() == null ? 0 : gateway.getOutgoing().size();
+                if (incoming <= 1 && outgoing > 1) {
+                    gateway.setGatewayDirection(GatewayDirection.DIVERGING);
+                } else if (incoming > 1 && outgoing <= 1) {
+                    gateway.setGatewayDirection(GatewayDirection.CONVERGING);
+                } else if (incoming > 1 && outgoing > 1) {
+                    gateway.setGatewayDirection(GatewayDirection.MIXED);
+                } else if (incoming == 1 && outgoing == 1) {
+                    // this handles the 1:1 case of the diverging gateways
+                } else {
+                    gateway.setGatewayDirection(GatewayDirection.UNSPECIFIED);
+                }
+            }
+            if(fe instanceof InclusiveGateway || fe instanceof ExclusiveGateway) {
+                Iterator<FeatureMap.Entry> iter = fe.getAnyAttribute().iterator();
+                while(iter.hasNext()) {
+                    FeatureMap.Entry entry = iter.next();
+                    if(entry.getEStructuralFeature().getName().equals("dg")) {
+                        // the default flow is the sibling of the gateway with that id
+                        SequenceFlow sf = getFlowsById(container).get((String) entry.getValue());
+                        if(sf != null) {
+                            if(fe instanceof InclusiveGateway) {
+                                ((InclusiveGateway) fe).setDefault(sf);
+                            } else {
+                                ((ExclusiveGateway) fe).setDefault(sf);
+                            }
+                            if(sf.getConditionExpression() == null) {
+                                FormalExpression  expr = Bpmn2Factory.eINSTANCE.createFormalExpression();
+                                expr.setBody("");
+                                sf.setConditionExpression(expr);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private Map<String, SequenceFlow> getFlowsById(FlowElementsContainer container) {
+            Map<String, SequenceFlow> flows = _flowsById.get(container);
+            if(flows == null) {
+                flows = new HashMap<String, SequenceFlow>();
+                for(FlowElement fe : container.getFlowElements()) {
+                    if(fe instanceof SequenceFlow && fe.getId() != null) {
+                        flows.put(fe.getId(), (SequenceFlow) fe);
+                    }
+                }
+                _flowsById.put(container, flows);
+            }
+            return flows;
+        }
+    }
+
+    /**
+     * Replaces the catch events docked on an activity by boundary events.
+     */
+    private class CatchEventsToBoundaryPhase extends RevisitPipeline.Phase {
+
+        // activities by the ids of their outgoing elements
+        private Map<String, List<Activity>> _sources;
+        private List<CatchEvent> catchEventsToRemove = new ArrayList<CatchEvent>();
+        private List<BoundaryEvent> boundaryEventsToAdd = new ArrayList<BoundaryEvent>();
+        private Bpmn2UnmarshallingContext _context;
+
+        CatchEventsToBoundaryPhase(Bpmn2UnmarshallingContext context) {
+            super("boundary events");
+            _context = context;
+        }
+
+        private List<Activity> getSourceActivities(String id) {
+            if(_sources == null) {
+                _sources = new HashMap<String, List<Activity>>();
+                List<Activity> activities = _context.getIndex().getByEClass(Bpmn2Package.eINSTANCE.getActivity());
+                for(Activity activity : activities) {
+                    List<String> outgoing = _context.getOutgoingFlows().get(activity);
+                    if(outgoing != null) {
+                        for(String flowId : outgoing) {
+                            List<Activity> sources = _sources.get(flowId);
+                            if(sources == null) {
+                                sources = new ArrayList<Activity>();
+                                _sources.put(flowId, sources);
+                            }
+                            sources.add(activity);
+                        }
+                    }
+                }
+            }
+            return _sources.get(id);
+        }
+
+        @Override
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+            if(!(fe instanceof CatchEvent)) {
+                return;
+            }
+            CatchEvent ce = (CatchEvent) fe;
+            // check if we have an outgoing connection to this catch event from an activity
+            List<Activity> sources = getSourceActivities(ce.getId());
+            if(sources == null) {
+                return;
+            }
+            for(Activity activity : sources) {
+                BoundaryEvent be = Bpmn2Factory.eINSTANCE.createBoundaryEvent();
+                if(ce.getDataOutputs() != null) {
+                    be.getDataOutputs().addAll(ce.getDataOutputs());
+                }
+                if(ce.getDataOutputAssociation() != null) {
+                    be.getDataOutputAssociation().addAll(ce.getDataOutputAssociation());
+                }
+                if(ce.getOutputSet() != null) {
+                    be.setOutputSet(ce.getOutputSet());
+                }
+                if(ce.getEventDefinitions() != null) {
+                    be.getEventDefinitions().addAll(ce.getEventDefinitions());
+                }
+                if(ce.getEventDefinitionRefs() != null) {
+                    be.getEventDefinitionRefs().addAll(ce.getEventDefinitionRefs());
+                }
+                if(ce.getProperties() != null) {
+                    be.getProperties().addAll(ce.getProperties());
+                }
+                if(ce.getAnyAttribute() != null) {
+                    be.getAnyAttribute().addAll(ce.getAnyAttribute());
+                }
+                if(ce.getOutgoing() != null) {
+                    be.getOutgoing().addAll(ce.getOutgoing());
+                }
+                if(ce.getIncoming() != null) {
+                    be.getIncoming().addAll(ce.getIncoming());
+                }
+                if(ce.getProperties() != null) {
+                    be.getProperties().addAll(ce.getProperties());
+                }
+
+                Iterator<FeatureMap.Entry> iter = ce.getAnyAttribute().iterator();
+                while(iter.hasNext()) {
+                    FeatureMap.Entry entry = iter.next();
+                    if(entry.getEStructuralFeature().getName().equals("boundaryca")) {
+                        String boundaryceVal = (String) entry.getValue();
+                        be.setCancelActivity(Boolean.getBoolean(boundaryceVal));
+                    }
+                }
+
+                be.setName(ce.getName());
+                be.setId(ce.getId());
+
+                be.setAttachedToRef(activity);
+                activity.getBoundaryEventRefs().add(be);
+                catchEventsToRemove.add(ce);
+                boundaryEventsToAdd.add(be);
+            }
+        }
+
+        @Override
+        public void complete(Definitions def) {
+            for(int i = 0; i < boundaryEventsToAdd.size(); i++) {
+                FlowElementsContainer container = (FlowElementsContainer) catchEventsToRemove.get(i).eContainer();
+                container.getFlowElements().add(boundaryEventsToAdd.get(i));
+            }
+            for(CatchEvent ce : catchEventsToRemove) {
+                ((FlowElementsContainer) ce.eContainer()).getFlowElements().remove(ce);
+            }
+        }
+    }
+
+    private class DataObjectsPhase extends RevisitPipeline.Phase {
+
+        private List<ItemDefinition> itemDefinitionsToAdd = new ArrayList<ItemDefinition>();
+
+        DataObjectsPhase() {
+            super("data objects");
+        }
+
+        @Override
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+            if(fe instanceof DataObject) {
+                DataObject da = (DataObject) fe;
+                ItemDefinition itemdef =  Bpmn2Factory.eINSTANCE.createItemDefinition();
+                itemdef.setId("_" + da.getId() + "Item");
+                Iterator<FeatureMap.Entry> iter = da.getAnyAttribute().iterator();
+                while(iter.hasNext()) {
+                    FeatureMap.Entry entry = iter.next();
+                    if(entry.getEStructuralFeature().getName().equals("datype")) {
+                        String typeValue = (String) entry.getValue();
+                        if(typeValue != null && !typeValue.equals("None")) {
+                            itemdef.setStructureRef((String) entry.getValue());
+                        }
+                    }
+                }
+                da.setItemSubjectRef(itemdef);
+                itemDefinitionsToAdd.add(itemdef);
+            }
+        }
+
+        @Override
+        public void complete(Definitions def) {
+            for(ItemDefinition itemDef : itemDefinitionsToAdd) {
+                def.getRootElements().add(itemDef);
+            }
+            for(RootElement root : def.getRootElements()) {
+                if(root instanceof Process) {
+                    for(Artifact af : ((Process) root).getArtifacts()) {
+                        if(af instanceof Association) {
+                            setDataObjectAssociationInfo((Association) af);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private class AssociationsIoSpecPhase extends RevisitPipeline.Phase {
+
+        private List<ItemDefinition> toAddItemDefinitions = new ArrayList<ItemDefinition>();
+
+        AssociationsIoSpecPhase() {
+            super("io specifications");
+        }
+
+        @Override
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+            if(fe instanceof Activity) {
+                setItemDefinitionsForActivityIoSpec((Activity) fe, toAddItemDefinitions);
+            }
+        }
+
+        @Override
+        public void complete(Definitions def) {
+            for(ItemDefinition itemDef : toAddItemDefinitions) {
+                def.getRootElements().add(itemDef);
+            }
+        }
+    }
+}
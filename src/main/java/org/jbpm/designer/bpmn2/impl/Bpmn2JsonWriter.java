@@ -0,0 +1,849 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.jbpm.designer.web.profile.IDiagramProfile;
+
+/**
+ * Writes the json model of a BPMN 2.0 xml straight from the xml, without
+ * loading the EMF model of the process first.
+ *
+ * The xml is read twice. The first pass indexes what the json of an element
+ * needs from the rest of the document, such as the bounds of the shapes and
+ * the outgoing flows of the nodes, and checks that the model is supported.
+ * The second pass writes the json of the flow elements as they are read.
+ *
+ * Only the models {@link Bpmn2XmlWriter} writes directly are supported: flat
+ * processes made of none start and end events, tasks without data, exclusive
+ * and parallel gateways and sequence flows, with process variables, imports
+ * and globals. Lanes, subprocesses, boundary events, event definitions, data
+ * associations, artifacts and empty conditions are not, nor are documents with
+ * several processes or diagrams. Nothing is written for those models, which
+ * are left to EMF and {@link Bpmn2JsonMarshaller}. The json of both ways is
+ * the same.
+ */
+public class Bpmn2JsonWriter {
+
+    private static final Logger _logger = Logger.getLogger(Bpmn2JsonWriter.class);
+
+    private static final String BPMN2 = "http://www.omg.org/spec/BPMN/20100524/MODEL";
+    private static final String BPMNDI = "http://www.omg.org/spec/BPMN/20100524/DI";
+    private static final String DC = "http://www.omg.org/spec/DD/20100524/DC";
+    private static final String DI = "http://www.omg.org/spec/DD/20100524/DI";
+
+    private static final String TASK = "task";
+    private static final String EXCLUSIVE_GATEWAY = "exclusiveGateway";
+
+    // the stencils of the flow nodes written directly.
+    private static final Map<String, String> STENCILS = new HashMap<String, String>();
+    static {
+        STENCILS.put("startEvent", "StartNoneEvent");
+        STENCILS.put("endEvent", "EndNoneEvent");
+        STENCILS.put(TASK, "Task");
+        STENCILS.put(EXCLUSIVE_GATEWAY, "Exclusive_Databased_Gateway");
+        STENCILS.put("parallelGateway", "ParallelGateway");
+    }
+
+    // the root elements the marshaller doesn't write.
+    private static final Set<String> SKIPPED_ROOT_ELEMENTS = new HashSet<String>();
+    static {
+        Collections.addAll(SKIPPED_ROOT_ELEMENTS, "itemDefinition", "message", "signal", "error", "escalation",
+                "interface", "resource");
+    }
+
+    private static final XMLInputFactory _inputFactory = XMLInputFactory.newInstance();
+    static {
+        _inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        _inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        _inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    private static final JsonFactory _jsonFactory = new JsonFactory();
+    static {
+        _jsonFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    /**
+     * What the json of the flow elements needs from the rest of the document.
+     */
+    private static class Index {
+        String definitionsId;
+        // the diagram properties, in the order the marshaller puts them.
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+
+        String processId;
+        String planeElement;
+        // the flow node elements and the source and target of the flows, by id.
+        Map<String, String> nodes = new HashMap<String, String>();
+        Map<String, String[]> flows = new HashMap<String, String[]>();
+        // the outgoing flows of the nodes, in the order EMF resolves them.
+        Map<String, Set<String>> outgoing = new HashMap<String, Set<String>>();
+        List<String> defaultFlows = new ArrayList<String>();
+
+        // the first diagram element of each element, the bounds of a shape or
+        // the waypoints of an edge.
+        Map<String, float[]> bounds = new HashMap<String, float[]>();
+        Map<String, float[]> waypoints = new HashMap<String, float[]>();
+
+        void addOutgoing(String node, String flow) {
+            Set<String> flows = outgoing.get(node);
+            if (flows == null) {
+                flows = new LinkedHashSet<String>();
+                outgoing.put(node, flows);
+            }
+            flows.add(flow);
+        }
+
+        Set<String> getOutgoing(String node) {
+            Set<String> flows = outgoing.get(node);
+            return flows == null ? Collections.<String>emptySet() : flows;
+        }
+    }
+
+    /**
+     * Thrown by the first pass when the model isn't supported.
+     */
+    private static class UnsupportedModelException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedModelException(String message) {
+            super(message);
+        }
+    }
+
+    private IDiagramProfile _profile;
+    private Bpmn2StencilDefaults _stencilDefaults;
+
+    /**
+     * @param profile the profile of the stencil set written with the model.
+     */
+    public Bpmn2JsonWriter(IDiagramProfile profile) {
+        _profile = profile;
+    }
+
+    /**
+     * @param stencilDefaults the defaults of the stencil set, the properties
+     * equal to their default are then left out as {@link Bpmn2JsonMarshaller} does.
+     */
+    public void setStencilDefaults(Bpmn2StencilDefaults stencilDefaults) {
+        _stencilDefaults = stencilDefaults;
+    }
+
+    /**
+     * Writes the json model of the BPMN 2.0 xml, if the model is supported.
+     * The stream is not closed.
+     * @param xml the model, in UTF-8.
+     * @return whether the model was written. Nothing is written when it wasn't.
+     */
+    public boolean write(byte[] xml, String preProcessingData, OutputStream output) throws IOException {
+        Index index;
+        try {
+            index = index(xml);
+        } catch (UnsupportedModelException e) {
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("Reading the model through EMF, it has " + e.getMessage());
+            }
+            return false;
+        } catch (XMLStreamException e) {
+            // EMF reports the errors of the xml
+            return false;
+        }
+        try {
+            writeDefinitions(xml, index, preProcessingData, output);
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to read the model: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private Index index(byte[] xml) throws XMLStreamException, UnsupportedModelException {
+        XMLStreamReader reader = _inputFactory.createXMLStreamReader(new ByteArrayInputStream(xml));
+        try {
+            Index index = new Index();
+            reader.nextTag();
+            if (!isElement(reader, BPMN2, "definitions")) {
+                throw new UnsupportedModelException("no definitions");
+            }
+            index.definitionsId = reader.getAttributeValue(null, "id");
+            Map<String, Object> properties = index.properties;
+            properties.put("namespaces", "");
+            properties.put("targetnamespace", "http://www.omg.org/bpmn20");
+            properties.put("typelanguage", getRequiredAttribute(reader, "typeLanguage"));
+            properties.put("name", reader.getAttributeValue(null, "name"));
+            properties.put("id", index.definitionsId);
+            properties.put("expressionlanguage", getRequiredAttribute(reader, "expressionLanguage"));
+
+            String documentation = null;
+            Map<String, String> structureRefs = new HashMap<String, String>();
+            Map<String, Object> processProperties = null;
+            List<String[]> variables = null;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (isElement(reader, BPMN2, "documentation")) {
+                    String text = readDocumentation(reader);
+                    if (documentation == null) {
+                        documentation = text;
+                    }
+                } else if (isElement(reader, BPMN2, "process")) {
+                    if (index.processId != null) {
+                        throw new UnsupportedModelException("several processes");
+                    }
+                    processProperties = new LinkedHashMap<String, Object>();
+                    variables = indexProcess(reader, index, processProperties);
+                } else if (isElement(reader, BPMN2, "itemDefinition")) {
+                    structureRefs.put(reader.getAttributeValue(null, "id"), reader.getAttributeValue(null, "structureRef"));
+                    skip(reader);
+                } else if (BPMN2.equals(reader.getNamespaceURI()) && SKIPPED_ROOT_ELEMENTS.contains(name)) {
+                    skip(reader);
+                } else if (isElement(reader, BPMNDI, "BPMNDiagram")) {
+                    if (index.planeElement != null) {
+                        throw new UnsupportedModelException("several diagrams");
+                    }
+                    indexDiagram(reader, index);
+                } else {
+                    throw new UnsupportedModelException("a " + name + " element");
+                }
+            }
+            if (index.processId == null) {
+                throw new UnsupportedModelException("no process");
+            }
+            if (!index.processId.equals(index.planeElement)) {
+                throw new UnsupportedModelException("no diagram of the process");
+            }
+            checkReferences(index);
+
+            // the diagram properties are in the order the marshaller puts them
+            if (documentation != null) {
+                properties.put("documentation", documentation);
+            }
+            properties.put("executable", processProperties.remove("executable"));
+            properties.put("id", processProperties.remove("id"));
+            properties.put("name", processProperties.remove("name"));
+            if (!variables.isEmpty()) {
+                StringBuilder vardefs = new StringBuilder();
+                for (String[] variable : variables) {
+                    if (vardefs.length() > 0) {
+                        vardefs.append(",");
+                    }
+                    vardefs.append(variable[0]);
+                    if (variable[1] != null) {
+                        // the item definitions can be anywhere in the document
+                        if (!structureRefs.containsKey(variable[1])) {
+                            throw new UnsupportedModelException("an unknown item definition " + variable[1]);
+                        }
+                        if (structureRefs.get(variable[1]) != null) {
+                            vardefs.append(":").append(structureRefs.get(variable[1]));
+                        }
+                    }
+                }
+                properties.put("vardefs", vardefs.toString());
+            }
+            properties.putAll(processProperties);
+            return index;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Indexes the flow elements of the process.
+     * @param properties the diagram properties of the process, filled in.
+     * @return the ids and item definitions of the variables of the process.
+     */
+    private List<String[]> indexProcess(XMLStreamReader reader, Index index, Map<String, Object> properties)
+            throws XMLStreamException, UnsupportedModelException {
+        index.processId = reader.getAttributeValue(null, "id");
+        if (index.processId == null) {
+            throw new UnsupportedModelException("a process without id");
+        }
+        String executable = getRequiredAttribute(reader, "isExecutable");
+        if (!"true".equals(executable) && !"false".equals(executable)) {
+            throw new UnsupportedModelException("an isExecutable of " + executable);
+        }
+        properties.put("executable", executable);
+        properties.put("id", index.processId);
+        properties.put("name", reader.getAttributeValue(null, "name"));
+        // packageName and version and adHoc are jbpm-specific extension attributes
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (isExtension(reader.getAttributeNamespace(i))) {
+                String name = reader.getAttributeLocalName(i);
+                if (name.equals("packageName")) {
+                    properties.put("package", reader.getAttributeValue(i));
+                }
+                if (name.equals("version")) {
+                    properties.put("version", reader.getAttributeValue(i));
+                }
+                if (name.equals("adHoc")) {
+                    properties.put("adhocprocess", reader.getAttributeValue(i));
+                }
+            }
+        }
+
+        List<String[]> variables = new ArrayList<String[]>();
+        StringBuilder imports = new StringBuilder();
+        StringBuilder globals = new StringBuilder();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (!BPMN2.equals(reader.getNamespaceURI())) {
+                throw new UnsupportedModelException("a " + name + " element");
+            } else if (name.equals("extensionElements")) {
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (isExtension(reader.getNamespaceURI()) && reader.getLocalName().equals("import")) {
+                        imports.append(reader.getAttributeValue(null, "name")).append(",");
+                    } else if (isExtension(reader.getNamespaceURI()) && reader.getLocalName().equals("global")) {
+                        globals.append(reader.getAttributeValue(null, "identifier") + ":"
+                                + reader.getAttributeValue(null, "type")).append(",");
+                    }
+                    skip(reader);
+                }
+            } else if (name.equals("property")) {
+                variables.add(new String[] { reader.getAttributeValue(null, "id"),
+                        reader.getAttributeValue(null, "itemSubjectRef") });
+                skip(reader);
+            } else if (name.equals("laneSet")) {
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (isElement(reader, BPMN2, "lane")) {
+                        throw new UnsupportedModelException("lanes");
+                    }
+                    skip(reader);
+                }
+            } else if (name.equals("documentation") || name.equals("auditing") || name.equals("monitoring")) {
+                skip(reader);
+            } else if (STENCILS.containsKey(name)) {
+                indexFlowNode(reader, index);
+            } else if (name.equals("sequenceFlow")) {
+                indexSequenceFlow(reader, index);
+            } else {
+                throw new UnsupportedModelException("a " + name + " element");
+            }
+        }
+        if (imports.length() > 0) {
+            properties.put("imports", imports.substring(0, imports.length() - 1));
+        }
+        if (globals.length() > 0) {
+            properties.put("globals", globals.substring(0, globals.length() - 1));
+        }
+        return variables;
+    }
+
+    private void indexFlowNode(XMLStreamReader reader, Index index) throws XMLStreamException, UnsupportedModelException {
+        String id = getId(reader, index);
+        index.nodes.put(id, reader.getLocalName());
+        if (reader.getLocalName().equals(EXCLUSIVE_GATEWAY) && reader.getAttributeValue(null, "default") != null) {
+            index.defaultFlows.add(reader.getAttributeValue(null, "default"));
+        }
+        boolean documented = false;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (!BPMN2.equals(reader.getNamespaceURI())) {
+                throw new UnsupportedModelException("a " + name + " element in " + id);
+            } else if (name.equals("incoming")) {
+                skip(reader);
+            } else if (name.equals("outgoing")) {
+                index.addOutgoing(id, reader.getElementText().trim());
+            } else if (name.equals("documentation") && !documented) {
+                readDocumentation(reader);
+                documented = true;
+            } else if (name.equals("documentation")) {
+                skip(reader);
+            } else {
+                throw new UnsupportedModelException("a " + name + " element in " + id);
+            }
+        }
+    }
+
+    private void indexSequenceFlow(XMLStreamReader reader, Index index) throws XMLStreamException, UnsupportedModelException {
+        String id = getId(reader, index);
+        String source = getRequiredAttribute(reader, "sourceRef");
+        String target = getRequiredAttribute(reader, "targetRef");
+        index.flows.put(id, new String[] { source, target });
+        index.addOutgoing(source, id);
+        boolean conditional = false;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (isElement(reader, BPMN2, "conditionExpression") && !conditional) {
+                if (!isFormalExpression(reader)) {
+                    skip(reader);
+                } else if (reader.getElementText().length() == 0) {
+                    // the body of an empty formal expression depends on how EMF read it
+                    throw new UnsupportedModelException("an empty condition in " + id);
+                }
+                conditional = true;
+            } else if (isElement(reader, BPMN2, "documentation")) {
+                skip(reader);
+            } else {
+                throw new UnsupportedModelException("a " + name + " element in " + id);
+            }
+        }
+    }
+
+    private void indexDiagram(XMLStreamReader reader, Index index) throws XMLStreamException, UnsupportedModelException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!isElement(reader, BPMNDI, "BPMNPlane")) {
+                skip(reader);
+                continue;
+            }
+            if (index.planeElement != null) {
+                throw new UnsupportedModelException("several planes");
+            }
+            index.planeElement = getReference(reader, "bpmnElement");
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String element = getReference(reader, "bpmnElement");
+                // the marshaller uses the first shape or edge of an element
+                boolean first = element != null && !index.bounds.containsKey(element)
+                        && !index.waypoints.containsKey(element);
+                if (first && isElement(reader, BPMNDI, "BPMNShape")) {
+                    float[] bounds = null;
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        if (isElement(reader, DC, "Bounds") && bounds == null) {
+                            bounds = new float[] { getFloat(reader, "x"), getFloat(reader, "y"),
+                                    getFloat(reader, "width"), getFloat(reader, "height") };
+                        }
+                        skip(reader);
+                    }
+                    if (bounds == null) {
+                        throw new UnsupportedModelException("a shape without bounds for " + element);
+                    }
+                    index.bounds.put(element, bounds);
+                } else if (first && isElement(reader, BPMNDI, "BPMNEdge")) {
+                    List<Float> points = new ArrayList<Float>();
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        if (isElement(reader, DI, "waypoint")) {
+                            points.add(getFloat(reader, "x"));
+                            points.add(getFloat(reader, "y"));
+                        }
+                        skip(reader);
+                    }
+                    float[] waypoints = new float[points.size()];
+                    for (int i = 0; i < waypoints.length; i++) {
+                        waypoints[i] = points.get(i);
+                    }
+                    index.waypoints.put(element, waypoints);
+                } else {
+                    skip(reader);
+                }
+            }
+        }
+    }
+
+    private void checkReferences(Index index) throws UnsupportedModelException {
+        for (String node : index.nodes.keySet()) {
+            if (!index.bounds.containsKey(node)) {
+                throw new UnsupportedModelException("no shape for " + node);
+            }
+            for (String flow : index.getOutgoing(node)) {
+                if (!index.flows.containsKey(flow) || !index.flows.get(flow)[0].equals(node)) {
+                    throw new UnsupportedModelException("an unknown outgoing flow " + flow + " of " + node);
+                }
+            }
+        }
+        for (Map.Entry<String, String[]> flow : index.flows.entrySet()) {
+            if (!index.nodes.containsKey(flow.getValue()[0]) || !index.nodes.containsKey(flow.getValue()[1])) {
+                throw new UnsupportedModelException("an unknown source or target for " + flow.getKey());
+            }
+            if (!index.waypoints.containsKey(flow.getKey())) {
+                throw new UnsupportedModelException("no edge for " + flow.getKey());
+            }
+        }
+        for (String flow : index.defaultFlows) {
+            if (!index.flows.containsKey(flow)) {
+                throw new UnsupportedModelException("an unknown default flow " + flow);
+            }
+        }
+    }
+
+    private void writeDefinitions(byte[] xml, Index index, String preProcessingData, OutputStream output)
+            throws XMLStreamException, IOException {
+        XMLStreamReader reader = _inputFactory.createXMLStreamReader(new ByteArrayInputStream(xml));
+        JsonGenerator generator = _jsonFactory.createJsonGenerator(output, JsonEncoding.UTF8);
+        try {
+            generator.writeStartObject();
+            generator.writeObjectField("resourceId", index.definitionsId);
+            reader.nextTag();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (!isElement(reader, BPMN2, "process")) {
+                    skip(reader);
+                    continue;
+                }
+                writeProperties(index.properties, "BPMNDiagram", generator);
+                writeStencil("BPMNDiagram", generator);
+                generator.writeArrayFieldStart("childShapes");
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (BPMN2.equals(reader.getNamespaceURI()) && STENCILS.containsKey(reader.getLocalName())) {
+                        writeFlowNode(reader, index, preProcessingData, generator);
+                    } else if (isElement(reader, BPMN2, "sequenceFlow")) {
+                        writeSequenceFlow(reader, index, generator);
+                    } else {
+                        skip(reader);
+                    }
+                }
+                generator.writeEndArray();
+            }
+            generator.writeObjectFieldStart("stencilset");
+            generator.writeObjectField("url", _profile.getStencilSetURL());
+            generator.writeObjectField("namespace", _profile.getStencilSetNamespaceURL());
+            generator.writeEndObject();
+            generator.writeArrayFieldStart("ssextensions");
+            generator.writeObject(_profile.getStencilSetExtensionURL());
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } finally {
+            reader.close();
+            generator.close();
+        }
+    }
+
+    private void writeFlowNode(XMLStreamReader reader, Index index, String preProcessingData, JsonGenerator generator)
+            throws XMLStreamException, IOException {
+        String element = reader.getLocalName();
+        String id = reader.getAttributeValue(null, "id");
+        String name = reader.getAttributeValue(null, "name");
+        String defaultFlow = element.equals(EXCLUSIVE_GATEWAY) ? reader.getAttributeValue(null, "default") : null;
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        String taskName = null;
+        boolean foundBgColor = false;
+        boolean foundBrColor = false;
+        boolean foundFontColor = false;
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (!isExtension(reader.getAttributeNamespace(i))) {
+                continue;
+            }
+            String attribute = reader.getAttributeLocalName(i);
+            if (attribute.equals("bgcolor")) {
+                properties.put("bgcolor", reader.getAttributeValue(i));
+                foundBgColor = true;
+            }
+            if (attribute.equals("bordercolor")) {
+                properties.put("bordercolor", reader.getAttributeValue(i));
+                foundBrColor = true;
+            }
+            if (attribute.equals("fontsize")) {
+                // as the marshaller does, a font size stands for a border color
+                properties.put("fontsize", reader.getAttributeValue(i));
+                foundBrColor = true;
+            }
+            if (attribute.equals("fontcolor")) {
+                properties.put("fontcolor", reader.getAttributeValue(i));
+                foundFontColor = true;
+            }
+            if (attribute.equals("taskName")) {
+                taskName = reader.getAttributeValue(i);
+            }
+        }
+        if (!foundBgColor) {
+            properties.put("bgcolor", element.equals(TASK) ? Bpmn2JsonMarshaller.defaultBgColor_Activities
+                    : Bpmn2JsonMarshaller.defaultBgColor_Events);
+        }
+        if (!foundBrColor) {
+            properties.put("bordercolor", Bpmn2JsonMarshaller.defaultBrColor);
+        }
+        if (!foundFontColor) {
+            properties.put("fontcolor", Bpmn2JsonMarshaller.defaultFontColor);
+        }
+        String documentation = null;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (documentation == null && isElement(reader, BPMN2, "documentation")) {
+                documentation = reader.getElementText();
+            } else {
+                skip(reader);
+            }
+        }
+
+        String stencil = STENCILS.get(element);
+        if (element.equals(TASK)) {
+            if (taskName != null) {
+                properties.put("taskname", taskName);
+            }
+            if (isCustomElement(taskName, preProcessingData)) {
+                properties.put("tasktype", taskName);
+                stencil = taskName;
+            } else {
+                properties.put("tasktype", "None");
+            }
+            properties.put("assignments", "");
+        } else if (defaultFlow != null) {
+            properties.put("defaultgate", defaultFlow);
+        }
+        if (documentation != null) {
+            properties.put("documentation", documentation);
+        }
+        properties.put("name", name != null ? name : "");
+
+        generator.writeStartObject();
+        generator.writeObjectField("resourceId", id);
+        writeProperties(properties, stencil, generator);
+        writeStencil(stencil, generator);
+        generator.writeArrayFieldStart("childShapes");
+        generator.writeEndArray();
+        generator.writeArrayFieldStart("outgoing");
+        for (String flow : index.getOutgoing(id)) {
+            generator.writeStartObject();
+            generator.writeObjectField("resourceId", flow);
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+
+        // the events and gateways are resized as the marshaller does, the
+        // flows marshalled after them use the new size
+        float[] bounds = index.bounds.get(id);
+        if (element.endsWith("Event")) {
+            correctSize(bounds, 30);
+        } else if (element.endsWith("Gateway")) {
+            correctSize(bounds, 40);
+        }
+        generator.writeObjectFieldStart("bounds");
+        generator.writeObjectFieldStart("lowerRight");
+        writePoint(bounds[0] + bounds[2], bounds[1] + bounds[3], generator);
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("upperLeft");
+        writePoint(bounds[0], bounds[1], generator);
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private void writeSequenceFlow(XMLStreamReader reader, Index index, JsonGenerator generator)
+            throws XMLStreamException, IOException {
+        String id = reader.getAttributeValue(null, "id");
+        String name = reader.getAttributeValue(null, "name");
+        String priority = null;
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (isExtension(reader.getAttributeNamespace(i)) && reader.getAttributeLocalName(i).equals("priority")) {
+                priority = reader.getAttributeValue(i);
+            }
+        }
+        String condition = null;
+        String language = null;
+        boolean conditional = false;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!conditional && isElement(reader, BPMN2, "conditionExpression") && isFormalExpression(reader)) {
+                language = reader.getAttributeValue(null, "language");
+                condition = reader.getElementText();
+                conditional = true;
+            } else {
+                conditional |= isElement(reader, BPMN2, "conditionExpression");
+                skip(reader);
+            }
+        }
+
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("name", name != null ? name : "");
+        if (condition != null) {
+            properties.put("conditionexpression", condition);
+        }
+        if (language != null) {
+            if (language.equalsIgnoreCase("http://www.java.com/java")) {
+                properties.put("conditionexpressionlanguage", "java");
+            } else if (language.equalsIgnoreCase("http://www.jboss.org/drools/rule")) {
+                properties.put("conditionexpressionlanguage", "drools");
+            } else {
+                // default to mvel
+                properties.put("conditionexpressionlanguage", "mvel");
+            }
+        }
+        if (priority != null) {
+            try {
+                if (Integer.parseInt(priority) >= 1) {
+                    properties.put("priority", priority);
+                } else {
+                    _logger.error("Priority must be equal or greater than 1.");
+                }
+            } catch (NumberFormatException e) {
+                _logger.error("Priority must be a number.");
+            }
+        }
+
+        String[] ends = index.flows.get(id);
+        generator.writeStartObject();
+        generator.writeObjectField("resourceId", id);
+        writeProperties(properties, "SequenceFlow", generator);
+        writeStencil("SequenceFlow", generator);
+        generator.writeArrayFieldStart("childShapes");
+        generator.writeEndArray();
+        generator.writeArrayFieldStart("outgoing");
+        generator.writeStartObject();
+        generator.writeObjectField("resourceId", ends[1]);
+        generator.writeEndObject();
+        generator.writeEndArray();
+
+        float[] sourceBounds = index.bounds.get(ends[0]);
+        float[] targetBounds = index.bounds.get(ends[1]);
+        float[] waypoints = index.waypoints.get(id);
+        generator.writeArrayFieldStart("dockers");
+        generator.writeStartObject();
+        writePoint(sourceBounds[2] / 2, sourceBounds[3] / 2, generator);
+        generator.writeEndObject();
+        for (int i = 2; i < waypoints.length - 2; i += 2) {
+            generator.writeStartObject();
+            writePoint(waypoints[i], waypoints[i + 1], generator);
+            generator.writeEndObject();
+        }
+        generator.writeStartObject();
+        writePoint(targetBounds[2] / 2, targetBounds[3] / 2, generator);
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    private void writeProperties(Map<String, Object> properties, String stencil, JsonGenerator generator) throws IOException {
+        generator.writeObjectFieldStart("properties");
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            String value = String.valueOf(entry.getValue());
+            if (_stencilDefaults == null || !_stencilDefaults.isDefault(stencil, entry.getKey(), value)) {
+                generator.writeObjectField(entry.getKey(), value);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeStencil(String stencil, JsonGenerator generator) throws IOException {
+        generator.writeObjectFieldStart("stencil");
+        generator.writeObjectField("id", stencil);
+        generator.writeEndObject();
+    }
+
+    private void writePoint(float x, float y, JsonGenerator generator) throws IOException {
+        generator.writeFieldName("x");
+        generator.writeNumber(x);
+        generator.writeFieldName("y");
+        generator.writeNumber(y);
+    }
+
+    /**
+     * Gives the bounds the size the editor draws the shape with, around the same center.
+     */
+    private static void correctSize(float[] bounds, float size) {
+        float width = bounds[2];
+        float height = bounds[3];
+        if (width != size || height != size) {
+            bounds[0] = bounds[0] - ((size - width) / 2);
+            bounds[1] = bounds[1] - ((size - height) / 2);
+            bounds[2] = size;
+            bounds[3] = size;
+        }
+    }
+
+    private static boolean isCustomElement(String taskType, String preProcessingData) {
+        if (taskType != null && taskType.length() > 0 && preProcessingData != null && preProcessingData.length() > 0) {
+            for (String element : preProcessingData.split(",\\s*")) {
+                if (taskType.equals(element)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getId(XMLStreamReader reader, Index index) throws UnsupportedModelException {
+        String id = reader.getAttributeValue(null, "id");
+        if (id == null || index.nodes.containsKey(id) || index.flows.containsKey(id)) {
+            throw new UnsupportedModelException("a " + reader.getLocalName() + " without a unique id");
+        }
+        return id;
+    }
+
+    private static String getRequiredAttribute(XMLStreamReader reader, String name) throws UnsupportedModelException {
+        // the default values of these attributes are left to EMF
+        String value = reader.getAttributeValue(null, name);
+        if (value == null) {
+            throw new UnsupportedModelException("no " + name + " in " + reader.getLocalName());
+        }
+        return value;
+    }
+
+    private static String getReference(XMLStreamReader reader, String name) throws UnsupportedModelException {
+        String value = reader.getAttributeValue(null, name);
+        if (value != null && value.indexOf(':') >= 0) {
+            throw new UnsupportedModelException("a qualified reference " + value);
+        }
+        return value;
+    }
+
+    private static float getFloat(XMLStreamReader reader, String name) throws UnsupportedModelException {
+        String value = reader.getAttributeValue(null, name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new UnsupportedModelException("a coordinate of " + value);
+        }
+    }
+
+    private static String readDocumentation(XMLStreamReader reader) throws XMLStreamException, UnsupportedModelException {
+        String text = reader.getElementText();
+        // the text of an empty documentation depends on how EMF read it
+        if (text.length() == 0) {
+            throw new UnsupportedModelException("an empty documentation");
+        }
+        return text;
+    }
+
+    private static boolean isFormalExpression(XMLStreamReader reader) {
+        String type = reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type");
+        return type != null && type.substring(type.indexOf(':') + 1).equals("tFormalExpression");
+    }
+
+    private static boolean isElement(XMLStreamReader reader, String namespace, String name) {
+        return name.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+    }
+
+    // the attributes and elements EMF keeps as extensions
+    private static boolean isExtension(String namespace) {
+        return namespace != null && namespace.length() > 0 && !BPMN2.equals(namespace)
+                && !XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(namespace)
+                && !XMLConstants.XML_NS_URI.equals(namespace);
+    }
+
+    /**
+     * Skips the current element, the reader is left on its end.
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.di.BPMNPlane;
+
+/**
+ * The state of one BPMN 2.0 to json conversion.
+ *
+ * A context is created for each call to {@link Bpmn2JsonMarshaller#marshall(Definitions, String)}
+ * and dropped when the call returns, so nothing of a model is kept by the
+ * marshaller once it is written, and a single marshaller can be shared by many threads.
+ */
+public class Bpmn2MarshallingContext {
+
+    private final Definitions _definitions;
+    private final String _preProcessingData;
+    private final boolean _collapseSubProcesses;
+    // the task types of the preprocessing data, read once rather than for every task.
+    private Set<String> _customTaskTypes;
+
+    // the diagram elements, boundary events and associations of the model,
+    // indexed on first use.
+    private Bpmn2DiagramIndex _index;
+
+    // the property buffers of the shapes written, given back once their
+    // properties are, and the buffers of the composite property values.
+    private final List<Bpmn2PropertyBuffer> _propertyBuffers = new ArrayList<Bpmn2PropertyBuffer>();
+    private final StringBuilder[] _scratch = new StringBuilder[2];
+
+    /**
+     * @param definitions the definitions being marshalled, or null when only a
+     * part of a model is marshalled, its lookups are then made in its plane.
+     * @param preProcessingData the preprocessing data of the profile
+     * @param collapseSubProcesses whether the embedded subprocesses are written without their shapes
+     */
+    public Bpmn2MarshallingContext(Definitions definitions, String preProcessingData, boolean collapseSubProcesses) {
+        _definitions = definitions;
+        _preProcessingData = preProcessingData;
+        _collapseSubProcesses = collapseSubProcesses;
+    }
+
+    public Definitions getDefinitions() {
+        return _definitions;
+    }
+
+    public String getPreProcessingData() {
+        return _preProcessingData;
+    }
+
+    public boolean isCollapseSubProcesses() {
+        return _collapseSubProcesses;
+    }
+
+    /**
+     * @return whether the task name is one of the custom task types of the preprocessing data.
+     */
+    public boolean isCustomTaskType(String taskName) {
+        if (taskName == null || taskName.length() == 0) {
+            return false;
+        }
+        if (_customTaskTypes == null) {
+            _customTaskTypes = _preProcessingData == null || _preProcessingData.length() == 0
+                ? Collections.<String>emptySet()
+                : new HashSet<String>(Arrays.asList(Bpmn2PropertyTokenizer.split(_preProcessingData, ",")));
+        }
+        return _customTaskTypes.contains(taskName);
+    }
+
+    /**
+     * @return an empty buffer for the properties of a shape, to give back with
+     * {@link #releaseProperties(Bpmn2PropertyBuffer)} once they are written.
+     */
+    Bpmn2PropertyBuffer acquireProperties() {
+        int last = _propertyBuffers.size() - 1;
+        return last < 0 ? new Bpmn2PropertyBuffer() : _propertyBuffers.remove(last);
+    }
+
+    /**
+     * Gives back a buffer once the properties of its shape are written.
+     */
+    void releaseProperties(Bpmn2PropertyBuffer properties) {
+        properties.clear();
+        _propertyBuffers.add(properties);
+    }
+
+    /**
+     * @return an empty buffer to build a property value in, such as the
+     * assignments or the data inputs of a task. The buffer is emptied by the
+     * next call for the same slot, so its text must be taken before.
+     * @param slot 0 or 1, for the values built at the same time
+     */
+    StringBuilder scratch(int slot) {
+        StringBuilder scratch = _scratch[slot];
+        if (scratch == null) {
+            scratch = new StringBuilder(256);
+            _scratch[slot] = scratch;
+        } else {
+            scratch.setLength(0);
+        }
+        return scratch;
+    }
+
+    /**
+     * @return the index of the definitions, or of the plane when the context has no definitions.
+     */
+    Bpmn2DiagramIndex getIndex(BPMNPlane plane) {
+        if (_index == null) {
+            _index = _definitions != null ? new Bpmn2DiagramIndex(_definitions) : new Bpmn2DiagramIndex(plane);
+        }
+        return _index;
+    }
+}
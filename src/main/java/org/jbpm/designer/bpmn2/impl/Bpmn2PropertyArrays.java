@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The properties of a shape, kept in the order they are put as an array of
+ * names and an array of values instead of the entries of a hash map.
+ *
+ * The properties are looked up by going through the names, which is faster
+ * than hashing them for the few dozen properties of a shape.
+ *
+ * @param <V> the values given to the callers, the values kept in the array
+ * may be of another form, see {@link #valueAt(int)}.
+ */
+abstract class Bpmn2PropertyArrays<V> extends AbstractMap<String, V> {
+
+    private String[] _keys;
+    private Object[] _values;
+    private int _size;
+
+    Bpmn2PropertyArrays(int capacity) {
+        _keys = new String[capacity];
+        _values = new Object[capacity];
+    }
+
+    /**
+     * @return the value kept at the index, as the callers get it.
+     */
+    abstract V valueAt(int index);
+
+    /**
+     * Called when a value is replaced or removed.
+     */
+    void changed() {
+    }
+
+    @Override
+    public V get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public V remove(Object key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V value = valueAt(index);
+        removeAt(index);
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(_keys, 0, _size, null);
+        Arrays.fill(_values, 0, _size, null);
+        _size = 0;
+        changed();
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return _size;
+            }
+        };
+    }
+
+    /**
+     * Keeps the value of the property.
+     * @return the previous value of the property, as the callers get it.
+     */
+    V set(String key, Object value) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            V previous = valueAt(index);
+            _values[index] = value;
+            changed();
+            return previous;
+        }
+        if (_size == _keys.length) {
+            int capacity = Math.max(4, _size * 2);
+            _keys = Arrays.copyOf(_keys, capacity);
+            _values = Arrays.copyOf(_values, capacity);
+        }
+        _keys[_size] = key;
+        _values[_size] = value;
+        _size++;
+        return null;
+    }
+
+    String keyAt(int index) {
+        return _keys[index];
+    }
+
+    /**
+     * @return the value as it is kept in the array.
+     */
+    Object storedAt(int index) {
+        return _values[index];
+    }
+
+    /**
+     * @return the room of the arrays.
+     */
+    int capacity() {
+        return _keys.length;
+    }
+
+    private int indexOf(Object key) {
+        // the parser interns the names, and most lookups are made with literals
+        for (int i = 0; i < _size; i++) {
+            if (_keys[i] == key) {
+                return i;
+            }
+        }
+        if (key != null) {
+            for (int i = 0; i < _size; i++) {
+                if (key.equals(_keys[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int index) {
+        int moved = _size - index - 1;
+        System.arraycopy(_keys, index + 1, _keys, index, moved);
+        System.arraycopy(_values, index + 1, _values, index, moved);
+        _size--;
+        _keys[_size] = null;
+        _values[_size] = null;
+        changed();
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, V>> {
+
+        private int _next;
+        private int _last = -1;
+
+        public boolean hasNext() {
+            return _next < _size;
+        }
+
+        public Map.Entry<String, V> next() {
+            if (_next >= _size) {
+                throw new NoSuchElementException();
+            }
+            _last = _next++;
+            final int index = _last;
+            return new Map.Entry<String, V>() {
+                public String getKey() {
+                    return _keys[index];
+                }
+
+                public V getValue() {
+                    return valueAt(index);
+                }
+
+                public V setValue(V value) {
+                    V previous = valueAt(index);
+                    put(_keys[index], value);
+                    return previous;
+                }
+
+                @Override
+                public boolean equals(Object o) {
+                    if (!(o instanceof Map.Entry)) {
+                        return false;
+                    }
+                    Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                    return eq(getKey(), e.getKey()) && eq(getValue(), e.getValue());
+                }
+
+                @Override
+                public int hashCode() {
+                    String key = getKey();
+                    V value = getValue();
+                    return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+                }
+
+                @Override
+                public String toString() {
+                    return getKey() + "=" + getValue();
+                }
+            };
+        }
+
+        public void remove() {
+            if (_last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(_last);
+            _next = _last;
+            _last = -1;
+        }
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * The properties of the shape {@link Bpmn2JsonMarshaller} is writing.
+ *
+ * The marshaller takes a buffer from its {@link Bpmn2MarshallingContext} for
+ * each node and artifact, whose properties are read and replaced before they
+ * are written, and gives it back once they are. The same arrays are used for
+ * all the shapes of a model instead of a hash map and its entries for every
+ * shape. The lanes and the sequence flows write their properties straight to
+ * the generator. The properties are written straight from the arrays to the
+ * generator.
+ */
+public class Bpmn2PropertyBuffer extends Bpmn2PropertyArrays<Object> {
+
+    public Bpmn2PropertyBuffer() {
+        this(32);
+    }
+
+    public Bpmn2PropertyBuffer(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return set(key, value);
+    }
+
+    /**
+     * Writes the properties as the <code>properties</code> field of the shape.
+     * @param stencil the stencil of the shape, or null
+     * @param defaults the defaults of the stencil set, the properties equal to
+     * their default are left out. Null writes all the properties.
+     */
+    public void write(JsonGenerator generator, String stencil, Bpmn2StencilDefaults defaults) throws IOException {
+        generator.writeObjectFieldStart("properties");
+        for (int i = 0; i < size(); i++) {
+            Object value = storedAt(i);
+            String text = value instanceof String ? (String) value : String.valueOf(value);
+            if (defaults == null || stencil == null || !defaults.isDefault(stencil, keyAt(i), text)) {
+                generator.writeStringField(keyAt(i), text);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    @Override
+    Object valueAt(int index) {
+        return storedAt(index);
+    }
+}
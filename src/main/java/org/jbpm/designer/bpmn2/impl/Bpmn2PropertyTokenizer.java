@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the small formats the designer uses in the properties of the json
+ * shapes: the comma separated lists of <code>name:type</code> declarations
+ * (vardefs, data input and output sets, globals), the assignments
+ * (<code>a=b</code>, <code>a-&gt;b</code>, <code>a&lt;-&gt;b</code>) and the
+ * <code>|</code> separated actions.
+ *
+ * The values are split exactly as <code>value.split(separator + "\\s*")</code>
+ * used to split them, without compiling a regular expression each time.
+ */
+public class Bpmn2PropertyTokenizer {
+
+    private Bpmn2PropertyTokenizer() {
+    }
+
+    /**
+     * A <code>name:type</code> declaration, or just a name.
+     */
+    public static class Declaration {
+
+        private final String _text;
+        private final String[] _parts;
+
+        Declaration(String text) {
+            _text = text;
+            _parts = split(text, ":");
+        }
+
+        /**
+         * @return the declaration as it was written.
+         */
+        public String getText() {
+            return _text;
+        }
+
+        /**
+         * @return the part before the first <code>:</code>, the whole text if there is none.
+         */
+        public String getName() {
+            return _parts.length > 0 ? _parts[0] : "";
+        }
+
+        /**
+         * @return the part after the first <code>:</code>, null if there is none.
+         */
+        public String getType() {
+            return _parts.length > 1 ? _parts[1] : null;
+        }
+
+        /**
+         * @return true if the declaration is made of a name and a type, and nothing else.
+         */
+        public boolean isNameAndType() {
+            return _parts.length == 2;
+        }
+    }
+
+    /**
+     * An assignment of a data input, or a mapping between a variable and a data
+     * input or output.
+     */
+    public static class DataMapping {
+
+        public enum Kind {
+            /** <code>input=value</code> */
+            ASSIGNMENT,
+            /** <code>variable&lt;-&gt;data</code> */
+            BIDIRECTIONAL,
+            /** <code>from-&gt;to</code> */
+            UNIDIRECTIONAL,
+            /** none of the above, the mapping is ignored */
+            NONE
+        }
+
+        private final Kind _kind;
+        private final String[] _parts;
+
+        DataMapping(Kind kind, String[] parts) {
+            _kind = kind;
+            _parts = parts;
+        }
+
+        public Kind getKind() {
+            return _kind;
+        }
+
+        /**
+         * @return the left side of the mapping, null if it has none.
+         */
+        public String getLeft() {
+            return _parts.length > 0 ? _parts[0] : null;
+        }
+
+        /**
+         * @return the right side of the mapping, null if it has none.
+         */
+        public String getRight() {
+            return _parts.length > 1 ? _parts[1] : null;
+        }
+    }
+
+    /**
+     * @return the comma separated declarations of the value.
+     */
+    public static List<Declaration> parseDeclarations(String value) {
+        String[] entries = split(value, ",");
+        List<Declaration> declarations = new ArrayList<Declaration>(entries.length);
+        for (String entry : entries) {
+            declarations.add(new Declaration(entry));
+        }
+        return declarations;
+    }
+
+    /**
+     * @return the comma separated assignments and mappings of the value, the
+     * kind of each one is the first of <code>=</code>, <code>&lt;-&gt;</code>
+     * and <code>-&gt;</code> it contains.
+     */
+    public static List<DataMapping> parseDataMappings(String value) {
+        String[] entries = split(value, ",");
+        List<DataMapping> mappings = new ArrayList<DataMapping>(entries.length);
+        for (String entry : entries) {
+            if (entry.indexOf('=') >= 0) {
+                mappings.add(new DataMapping(DataMapping.Kind.ASSIGNMENT, split(entry, "=")));
+            } else if (entry.indexOf("<->") >= 0) {
+                mappings.add(new DataMapping(DataMapping.Kind.BIDIRECTIONAL, split(entry, "<->")));
+            } else if (entry.indexOf("->") >= 0) {
+                mappings.add(new DataMapping(DataMapping.Kind.UNIDIRECTIONAL, split(entry, "->")));
+            } else {
+                mappings.add(new DataMapping(DataMapping.Kind.NONE, new String[] { entry }));
+            }
+        }
+        return mappings;
+    }
+
+    /**
+     * @return the comma separated <code>from-&gt;to</code> associations of the
+     * value, they are all read as {@link DataMapping.Kind#UNIDIRECTIONAL}.
+     */
+    public static List<DataMapping> parseAssociations(String value) {
+        String[] entries = split(value, ",");
+        List<DataMapping> mappings = new ArrayList<DataMapping>(entries.length);
+        for (String entry : entries) {
+            mappings.add(new DataMapping(DataMapping.Kind.UNIDIRECTIONAL, split(entry, "->")));
+        }
+        return mappings;
+    }
+
+    /**
+     * Splits the value around the separator and the whitespace following it, as
+     * {@link String#split(String)} does: the trailing empty strings are dropped,
+     * and a value without separator is returned as it is.
+     */
+    public static String[] split(String value, String separator) {
+        int index = value.indexOf(separator);
+        if (index < 0) {
+            return new String[] { value };
+        }
+        List<String> parts = new ArrayList<String>();
+        int start = 0;
+        while (index >= 0) {
+            parts.add(value.substring(start, index));
+            start = skipWhitespace(value, index + separator.length());
+            index = value.indexOf(separator, start);
+        }
+        parts.add(value.substring(start));
+        int size = parts.size();
+        while (size > 0 && parts.get(size - 1).length() == 0) {
+            size--;
+        }
+        return parts.subList(0, size).toArray(new String[size]);
+    }
+
+    // the characters matched by \s
+    private static int skipWhitespace(String value, int index) {
+        while (index < value.length()) {
+            char c = value.charAt(index);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * The properties of a json shape, kept small for models of thousands of shapes.
+ *
+ * The names and values are kept in two arrays instead of the entries of a
+ * hash map. The short values most shapes repeat (<code>None</code>,
+ * <code>false</code>, colors...) are shared by the shapes of a model through its
+ * {@link SharedValues}, which go away with the model. The names are the ones the
+ * parser gives, it interns them. The large texts, such as scripts and
+ * documentation, are kept as bytes when they fit in latin-1 and only turned into
+ * strings when they are read, the last one read is kept for the next read.
+ */
+public class Bpmn2ShapeProperties extends Bpmn2PropertyArrays<String> {
+
+    // the length from which a text is kept as bytes.
+    static final int LARGE_TEXT = 256;
+
+    private static final int MAX_SHARED_VALUES = 4096;
+    private static final int MAX_SHARED_VALUE_LENGTH = 32;
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * The short values shared by the shapes of one model. Not thread safe, each
+     * unmarshalling context has its own.
+     */
+    public static class SharedValues {
+        // bounded, so that a model of unexpected json can't grow it without end.
+        private final Map<String, String> _values = new HashMap<String, String>();
+
+        String share(String value) {
+            if (value == null || value.length() > MAX_SHARED_VALUE_LENGTH) {
+                return value;
+            }
+            if (value.length() == 0) {
+                return "";
+            }
+            String shared = _values.get(value);
+            if (shared == null) {
+                if (_values.size() >= MAX_SHARED_VALUES) {
+                    return value;
+                }
+                _values.put(value, value);
+                shared = value;
+            }
+            return shared;
+        }
+
+        public int size() {
+            return _values.size();
+        }
+    }
+
+    private final SharedValues _shared;
+    // the last large text read, and its index.
+    private String _decoded;
+    private int _decodedIndex = -1;
+
+    public Bpmn2ShapeProperties() {
+        this(16);
+    }
+
+    public Bpmn2ShapeProperties(int capacity) {
+        this(null, capacity);
+    }
+
+    /**
+     * @param shared the short values of the other shapes of the model, null to
+     * keep the values as they are given.
+     */
+    public Bpmn2ShapeProperties(SharedValues shared) {
+        this(shared, 16);
+    }
+
+    public Bpmn2ShapeProperties(SharedValues shared, int capacity) {
+        super(capacity);
+        _shared = shared;
+    }
+
+    /**
+     * Puts the value of the current token of the parser, without creating a
+     * string for a large text.
+     */
+    public String put(String key, JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_STRING && parser.getTextLength() >= LARGE_TEXT) {
+            byte[] text = toLatin1(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            if (text != null) {
+                return set(key, text);
+            }
+        }
+        return put(key, parser.getText());
+    }
+
+    @Override
+    public String put(String key, String value) {
+        if (value != null && value.length() >= LARGE_TEXT) {
+            byte[] text = toLatin1(value);
+            if (text != null) {
+                return set(key, text);
+            }
+        }
+        return set(key, _shared == null || value == null ? value : _shared.share(value));
+    }
+
+    /**
+     * @return the room of the arrays the names and values are kept in.
+     */
+    public int getCapacity() {
+        return capacity();
+    }
+
+    /**
+     * @return the bytes the large texts kept as latin-1 take.
+     */
+    public int getTextBytes() {
+        int bytes = 0;
+        for (int i = 0; i < size(); i++) {
+            if (storedAt(i) instanceof byte[]) {
+                bytes += ((byte[]) storedAt(i)).length;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    String valueAt(int index) {
+        Object value = storedAt(index);
+        if (!(value instanceof byte[])) {
+            return (String) value;
+        }
+        // the callers often test a text and then read it again
+        if (index != _decodedIndex) {
+            _decoded = new String((byte[]) value, LATIN_1);
+            _decodedIndex = index;
+        }
+        return _decoded;
+    }
+
+    @Override
+    void changed() {
+        _decoded = null;
+        _decodedIndex = -1;
+    }
+
+    /**
+     * @return the characters as latin-1 bytes, null if one of them isn't latin-1.
+     */
+    private static byte[] toLatin1(char[] chars, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char c = chars[offset + i];
+            if (c > 0xFF) {
+                return null;
+            }
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+
+    private static byte[] toLatin1(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            char c = value.charAt(i);
+            if (c > 0xFF) {
+                return null;
+            }
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * The default values of the properties of the stencils of a stencil set, such
+ * as <code>stencilsets/bpmn2.0jbpm/bpmn2.0jbpm.json</code>.
+ *
+ * The editor gives a shape the defaults of its stencil before reading the
+ * properties of the shape, so a model can be sent to the editor without the
+ * properties equal to their default. {@link Bpmn2JsonMarshaller} and
+ * {@link Bpmn2JsonWriter} leave them out when they are given the defaults, and
+ * {@link Bpmn2JsonUnmarshaller} puts them back when its
+ * {@link Bpmn2UnmarshallingContext} has the defaults, as the editor would.
+ *
+ * The values are kept as the text the marshaller writes: the booleans and
+ * numbers of the stencil set are compared by their text. The properties
+ * without a default value are always written.
+ */
+public class Bpmn2StencilDefaults {
+
+    // the stencil sets read from the files of the web application, by path.
+    private static final ConcurrentHashMap<String, Bpmn2StencilDefaults> LOADED =
+        new ConcurrentHashMap<String, Bpmn2StencilDefaults>();
+
+    private final Map<String, Map<String, String>> _defaults;
+    private final long _lastModified;
+
+    private Bpmn2StencilDefaults(Map<String, Map<String, String>> defaults, long lastModified) {
+        _defaults = defaults;
+        _lastModified = lastModified;
+    }
+
+    /**
+     * @return the defaults of the stencil set file, read again when the file changed.
+     */
+    public static Bpmn2StencilDefaults getInstance(File stencilSet) throws IOException {
+        String path = stencilSet.getAbsolutePath();
+        Bpmn2StencilDefaults defaults = LOADED.get(path);
+        if (defaults == null || defaults._lastModified != stencilSet.lastModified()) {
+            long lastModified = stencilSet.lastModified();
+            InputStream in = new FileInputStream(stencilSet);
+            try {
+                defaults = new Bpmn2StencilDefaults(read(in), lastModified);
+            } finally {
+                in.close();
+            }
+            LOADED.put(path, defaults);
+        }
+        return defaults;
+    }
+
+    /**
+     * Reads the defaults of a stencil set. The stream is not closed.
+     */
+    public static Bpmn2StencilDefaults load(InputStream in) throws IOException {
+        return new Bpmn2StencilDefaults(read(in), 0);
+    }
+
+    /**
+     * @return the default of the property of the stencil, null if it has none
+     * or the stencil isn't in the stencil set.
+     */
+    public String getDefault(String stencilId, String property) {
+        Map<String, String> defaults = _defaults.get(stencilId);
+        return defaults == null ? null : defaults.get(property);
+    }
+
+    /**
+     * @return whether the value is the default of the property of the stencil.
+     */
+    public boolean isDefault(String stencilId, String property, String value) {
+        String defaultValue = getDefault(stencilId, property);
+        return defaultValue != null && defaultValue.equals(value);
+    }
+
+    /**
+     * Gives the properties of a shape missing from the properties their default.
+     */
+    public void fill(String stencilId, Map<String, String> properties) {
+        Map<String, String> defaults = _defaults.get(stencilId);
+        if (defaults == null) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : defaults.entrySet()) {
+            if (!properties.containsKey(entry.getKey())) {
+                properties.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, Map<String, String>> read(InputStream in) throws IOException {
+        JsonNode stencilSet = new ObjectMapper().readTree(toJson(IOUtils.toString(in, "UTF-8")));
+        Map<String, Map<String, String>> packages = new HashMap<String, Map<String, String>>();
+        for (JsonNode propertyPackage : stencilSet.path("propertyPackages")) {
+            packages.put(propertyPackage.path("name").getTextValue(), readProperties(propertyPackage));
+        }
+        Map<String, Map<String, String>> defaults = new HashMap<String, Map<String, String>>();
+        for (JsonNode stencil : stencilSet.path("stencils")) {
+            Map<String, String> properties = new LinkedHashMap<String, String>();
+            for (JsonNode name : stencil.path("propertyPackages")) {
+                Map<String, String> propertyPackage = packages.get(name.getTextValue());
+                if (propertyPackage != null) {
+                    properties.putAll(propertyPackage);
+                }
+            }
+            // the properties of the stencil come after the ones of its packages
+            properties.putAll(readProperties(stencil));
+            defaults.put(stencil.path("id").getTextValue(), Collections.unmodifiableMap(properties));
+        }
+        return defaults;
+    }
+
+    private static Map<String, String> readProperties(JsonNode node) {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        for (Iterator<JsonNode> it = node.path("properties").getElements(); it.hasNext();) {
+            JsonNode property = it.next();
+            JsonNode value = property.get("value");
+            if (value == null) {
+                continue;
+            }
+            String text;
+            if (value.isTextual()) {
+                text = value.getTextValue();
+            } else if (value.isBoolean()) {
+                text = String.valueOf(value.getBooleanValue());
+            } else if (value.isNumber()) {
+                text = value.toString();
+            } else {
+                // null, or a structured value the marshaller never writes as is
+                continue;
+            }
+            properties.put(property.path("id").getTextValue(), text);
+        }
+        return properties;
+    }
+
+    /**
+     * The stencil sets are read by the editor as javascript: they have comments
+     * and commas before the closing brackets. Both are removed, outside of the
+     * strings, to read them as json.
+     */
+    static String toJson(String stencilSet) {
+        StringBuilder json = new StringBuilder(stencilSet.length());
+        int length = stencilSet.length();
+        int i = 0;
+        while (i < length) {
+            char c = stencilSet.charAt(i);
+            if (c == '"') {
+                int end = i + 1;
+                while (end < length && stencilSet.charAt(end) != '"') {
+                    end += stencilSet.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(end + 1, length);
+                json.append(stencilSet, i, end);
+                i = end;
+            } else if (stencilSet.startsWith("/*", i) || stencilSet.startsWith("//", i)) {
+                i = skipComment(stencilSet, i);
+            } else if (c == ',') {
+                int next = skipBlanks(stencilSet, i + 1);
+                if (next >= length || (stencilSet.charAt(next) != '}' && stencilSet.charAt(next) != ']')) {
+                    json.append(c);
+                }
+                i++;
+            } else {
+                json.append(c);
+                i++;
+            }
+        }
+        return json.toString();
+    }
+
+    private static int skipComment(String text, int start) {
+        if (text.startsWith("/*", start)) {
+            int end = text.indexOf("*/", start + 2);
+            return end < 0 ? text.length() : end + 2;
+        }
+        int end = text.indexOf('\n', start);
+        return end < 0 ? text.length() : end;
+    }
+
+    // skips the whitespace and the comments.
+    private static int skipBlanks(String text, int start) {
+        int i = start;
+        while (i < text.length()) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                i++;
+            } else if (text.startsWith("/*", i) || text.startsWith("//", i)) {
+                i = skipComment(text, i);
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+}
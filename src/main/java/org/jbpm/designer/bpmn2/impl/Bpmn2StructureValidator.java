@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.bpmn2.BaseElement;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.SequenceFlow;
+import org.eclipse.bpmn2.di.BPMNDiagram;
+import org.eclipse.bpmn2.di.BPMNEdge;
+import org.eclipse.bpmn2.di.BPMNShape;
+import org.eclipse.dd.di.DiagramElement;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.emf.ecore.util.FeatureMap;
+import org.eclipse.emf.ecore.util.FeatureMapUtil;
+
+/**
+ * Checks that a model built from json can be saved as xml and read back,
+ * without saving it.
+ *
+ * It looks for what made the json to xml to json round trip fail:
+ * references to elements outside of the model or without a usable id,
+ * text that can't be written in xml, and sequence flows the json marshaller
+ * can't draw.
+ */
+public class Bpmn2StructureValidator {
+
+    /**
+     * @param resource the resource the model was unmarshalled to
+     * @return the problems found, empty if the model can be saved.
+     */
+    public List<String> validate(Resource resource) {
+        List<String> problems = new ArrayList<String>();
+        Set<EObject> diagramElements = new HashSet<EObject>();
+        for (Iterator<EObject> it = resource.getAllContents(); it.hasNext();) {
+            EObject object = it.next();
+            checkReferences(resource, object, problems);
+            checkAttributes(object, problems);
+            if (object instanceof BPMNShape) {
+                diagramElements.add(((BPMNShape) object).getBpmnElement());
+            } else if (object instanceof BPMNEdge) {
+                diagramElements.add(((BPMNEdge) object).getBpmnElement());
+            }
+        }
+        for (EObject root : resource.getContents()) {
+            if (root instanceof Definitions && hasDiagram((Definitions) root)) {
+                checkSequenceFlows(root, diagramElements, problems);
+            }
+        }
+        return problems;
+    }
+
+    private void checkReferences(Resource resource, EObject object, List<String> problems) {
+        for (EReference reference : object.eClass().getEAllReferences()) {
+            if (reference.isContainment() || reference.isContainer() || reference.isTransient()
+                    || reference.isDerived() || !object.eIsSet(reference)) {
+                continue;
+            }
+            Object value = object.eGet(reference, false);
+            if (value instanceof List) {
+                for (Object target : (List<?>) value) {
+                    checkReference(resource, object, reference, (EObject) target, problems);
+                }
+            } else {
+                checkReference(resource, object, reference, (EObject) value, problems);
+            }
+        }
+    }
+
+    private void checkReference(Resource resource, EObject object, EReference reference, EObject target, List<String> problems) {
+        if (target == null || target.eIsProxy()) {
+            return;
+        }
+        if (target.eResource() != resource) {
+            problems.add(describe(object) + ": " + reference.getName() + " refers to an element that is not part of the model");
+        } else if (target.eClass().getEIDAttribute() != null) {
+            // references are written as ids, which can't be empty or contain spaces.
+            // the elements without id get a generated one when the resource is saved.
+            String id = EcoreUtil.getID(target);
+            if (id != null && id.length() == 0) {
+                problems.add(describe(object) + ": " + reference.getName() + " refers to an element with an empty id");
+            } else if (id != null && containsWhitespace(id)) {
+                problems.add(describe(object) + ": " + reference.getName() + " refers to the invalid id \"" + id + "\"");
+            }
+        }
+    }
+
+    private void checkAttributes(EObject object, List<String> problems) {
+        for (EAttribute attribute : object.eClass().getEAllAttributes()) {
+            if (attribute.isTransient() || attribute.isDerived() || !object.eIsSet(attribute)) {
+                continue;
+            }
+            Object value = object.eGet(attribute);
+            if (FeatureMapUtil.isFeatureMap(attribute)) {
+                for (FeatureMap.Entry entry : (FeatureMap) value) {
+                    checkText(object, entry.getEStructuralFeature().getName(), entry.getValue(), problems);
+                }
+            } else if (value instanceof List) {
+                for (Object item : (List<?>) value) {
+                    checkText(object, attribute.getName(), item, problems);
+                }
+            } else {
+                checkText(object, attribute.getName(), value, problems);
+            }
+        }
+    }
+
+    private void checkText(EObject object, String name, Object value, List<String> problems) {
+        if (!(value instanceof String)) {
+            return;
+        }
+        String text = (String) value;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' || c == 0xFFFE || c == 0xFFFF) {
+                problems.add(describe(object) + ": " + name + " contains a character that can't be written in xml");
+                return;
+            }
+        }
+    }
+
+    private void checkSequenceFlows(EObject definitions, Set<EObject> diagramElements, List<String> problems) {
+        for (Iterator<EObject> it = definitions.eAllContents(); it.hasNext();) {
+            EObject object = it.next();
+            if (object instanceof SequenceFlow) {
+                SequenceFlow flow = (SequenceFlow) object;
+                if (flow.getSourceRef() == null || flow.getTargetRef() == null) {
+                    problems.add(describe(flow) + ": the sequence flow is not connected");
+                } else if (!diagramElements.contains(flow) || !diagramElements.contains(flow.getSourceRef())
+                        || !diagramElements.contains(flow.getTargetRef())) {
+                    problems.add(describe(flow) + ": the sequence flow or its ends have no diagram information");
+                }
+            }
+        }
+    }
+
+    private boolean hasDiagram(Definitions definitions) {
+        for (BPMNDiagram diagram : definitions.getDiagrams()) {
+            if (diagram.getPlane() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsWhitespace(String id) {
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.isWhitespace(id.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String describe(EObject object) {
+        if (object instanceof BaseElement && ((BaseElement) object).getId() != null) {
+            return ((BaseElement) object).getId();
+        }
+        if (object instanceof DiagramElement && ((DiagramElement) object).getId() != null) {
+            return ((DiagramElement) object).getId();
+        }
+        return object.eClass().getName();
+    }
+}
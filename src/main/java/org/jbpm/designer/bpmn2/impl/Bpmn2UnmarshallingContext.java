@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.bpmn2.Artifact;
+import org.eclipse.bpmn2.Error;
+import org.eclipse.bpmn2.Escalation;
+import org.eclipse.bpmn2.ItemDefinition;
+import org.eclipse.bpmn2.Lane;
+import org.eclipse.bpmn2.Message;
+import org.eclipse.dd.di.DiagramElement;
+
+/**
+ * The state of one json to BPMN 2.0 conversion.
+ *
+ * A context is created for each call to {@link Bpmn2JsonUnmarshaller#unmarshall(String, String)}
+ * and dropped when the call returns, which lets a single unmarshaller be shared by many threads.
+ */
+public class Bpmn2UnmarshallingContext {
+
+    private String _preProcessingData;
+    // the task types of the preprocessing data, read once rather than for every shape.
+    private Set<String> _customTaskTypes;
+
+    // the elements created, kept in memory with their original id for
+    // fast lookup.
+    private Bpmn2ElementIndex _index = new Bpmn2ElementIndex();
+
+    // the collection of outgoing ids.
+    // we reconnect the edges with the shapes as a last step of the construction
+    // of our graph from json, as we miss elements before.
+    private Map<Object, List<String>> _outgoingFlows = new HashMap<Object, List<String>>();
+    private Bpmn2Geometry _geometry = new Bpmn2Geometry();
+    private List<Lane> _lanes = new ArrayList<Lane>();
+    private List<Artifact> _artifacts = new ArrayList<Artifact>();
+    private Map<String, ItemDefinition> _subProcessItemDefs = new HashMap<String, ItemDefinition>();
+
+    private Map<String, Escalation> _escalations = new HashMap<String, Escalation>();
+    private Map<String, Error> _errors = new HashMap<String, Error>();
+    private Map<String, Message> _messages = new HashMap<String, Message>();
+    private Map<String, ItemDefinition> _itemDefinitions = new HashMap<String, ItemDefinition>();
+
+    // the diagram elements by the id of their bpmn element, only filled when the model is patched.
+    private Map<String, DiagramElement> _diagramElements;
+
+    // the defaults of the properties the model was sent without, null if it has all its properties.
+    private Bpmn2StencilDefaults _stencilDefaults;
+
+    // the short property values the shapes of the model repeat.
+    private Bpmn2ShapeProperties.SharedValues _sharedValues = new Bpmn2ShapeProperties.SharedValues();
+
+    public Bpmn2UnmarshallingContext(String preProcessingData) {
+        _preProcessingData = preProcessingData;
+    }
+
+    /**
+     * Adds the state of a context used to parse a part of the model to this one.
+     */
+    public void merge(Bpmn2UnmarshallingContext context) {
+        _index.addAll(context._index);
+        _outgoingFlows.putAll(context._outgoingFlows);
+        _geometry.merge(context._geometry);
+        _lanes.addAll(context._lanes);
+        _artifacts.addAll(context._artifacts);
+        _subProcessItemDefs.putAll(context._subProcessItemDefs);
+    }
+
+    public String getPreProcessingData() {
+        return _preProcessingData;
+    }
+
+    public Bpmn2StencilDefaults getStencilDefaults() {
+        return _stencilDefaults;
+    }
+
+    /**
+     * @param stencilDefaults the defaults of the stencil set, given to the
+     * properties missing from the shapes of the model, as the editor does.
+     */
+    public void setStencilDefaults(Bpmn2StencilDefaults stencilDefaults) {
+        _stencilDefaults = stencilDefaults;
+    }
+
+    /**
+     * @return true if the task type is one of the custom tasks listed in the preprocessing data.
+     */
+    public boolean isCustomTaskType(String taskType) {
+        if (taskType == null || taskType.length() == 0) {
+            return false;
+        }
+        if (_customTaskTypes == null) {
+            _customTaskTypes = new HashSet<String>();
+            if (_preProcessingData != null && _preProcessingData.length() > 0) {
+                _customTaskTypes.addAll(Arrays.asList(Bpmn2PropertyTokenizer.split(_preProcessingData, ",")));
+            }
+        }
+        return _customTaskTypes.contains(taskType);
+    }
+
+    /**
+     * @return the short property values shared by the shapes read with this context.
+     */
+    public Bpmn2ShapeProperties.SharedValues getSharedValues() {
+        return _sharedValues;
+    }
+
+    public Bpmn2ElementIndex getIndex() {
+        return _index;
+    }
+
+    public Map<Object, List<String>> getOutgoingFlows() {
+        return _outgoingFlows;
+    }
+
+    /**
+     * @return the bounds and dockers of the shapes.
+     */
+    public Bpmn2Geometry getGeometry() {
+        return _geometry;
+    }
+
+    public List<Lane> getLanes() {
+        return _lanes;
+    }
+
+    public List<Artifact> getArtifacts() {
+        return _artifacts;
+    }
+
+    public Map<String, ItemDefinition> getSubProcessItemDefs() {
+        return _subProcessItemDefs;
+    }
+
+    public Map<String, Escalation> getEscalations() {
+        return _escalations;
+    }
+
+    public Map<String, Error> getErrors() {
+        return _errors;
+    }
+
+    public Map<String, Message> getMessages() {
+        return _messages;
+    }
+
+    public Map<String, ItemDefinition> getItemDefinitions() {
+        return _itemDefinitions;
+    }
+
+    public Map<String, DiagramElement> getDiagramElements() {
+        return _diagramElements;
+    }
+
+    public void setDiagramElements(Map<String, DiagramElement> diagramElements) {
+        _diagramElements = diagramElements;
+    }
+}
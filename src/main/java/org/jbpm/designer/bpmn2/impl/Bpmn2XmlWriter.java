@@ -0,0 +1,611 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.util.TokenBuffer;
+import org.eclipse.bpmn2.ProcessType;
+import org.eclipse.bpmn2.util.Bpmn2Resource;
+
+/**
+ * Writes the BPMN 2.0 xml of a json model straight from the json, without
+ * building the EMF model of the process first.
+ *
+ * Only a small subset of the models is written this way: flat processes made of
+ * none start and end events, plain tasks (no task type, task name, documentation
+ * or data), exclusive and parallel gateways and sequence flows, with no
+ * documentation, variables, imports or globals on the process. The typed tasks,
+ * the other events, lanes, subprocesses, artifacts and any property that adds
+ * elements to the model are not covered, those models are unmarshalled and saved
+ * through EMF as before. The xml of both ways loads as the same model.
+ */
+public class Bpmn2XmlWriter {
+
+    private static final Logger _logger = Logger.getLogger(Bpmn2XmlWriter.class);
+
+    private static final String BPMN2 = "http://www.omg.org/spec/BPMN/20100524/MODEL";
+    private static final String BPMNDI = "http://www.omg.org/spec/BPMN/20100524/DI";
+    private static final String DC = "http://www.omg.org/spec/DD/20100524/DC";
+    private static final String DI = "http://www.omg.org/spec/DD/20100524/DI";
+    private static final String DROOLS = "http://www.jboss.org/drools";
+    private static final String XSI = XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI;
+
+    private static final String SEQUENCE_FLOW = "SequenceFlow";
+    private static final String EXCLUSIVE_GATEWAY = "Exclusive_Databased_Gateway";
+
+    // the xml elements of the stencils written directly.
+    private static final Map<String, String> ELEMENTS = new HashMap<String, String>();
+    static {
+        ELEMENTS.put("StartNoneEvent", "startEvent");
+        ELEMENTS.put("EndNoneEvent", "endEvent");
+        ELEMENTS.put("Task", "task");
+        ELEMENTS.put(EXCLUSIVE_GATEWAY, "exclusiveGateway");
+        ELEMENTS.put("ParallelGateway", "parallelGateway");
+        ELEMENTS.put(SEQUENCE_FLOW, "sequenceFlow");
+    }
+
+    // the properties that add elements to the model when they are set, by stencil.
+    private static final Map<String, Set<String>> UNSUPPORTED_PROPERTIES = new HashMap<String, Set<String>>();
+    static {
+        Set<String> events = properties("documentation", "auditing", "monitoring", "dataoutput",
+                "dataoutputassociations", "datainput", "datainputassociations");
+        UNSUPPORTED_PROPERTIES.put("BPMNDiagram", properties("documentation", "auditing", "monitoring",
+                "vardefs", "imports", "globals"));
+        UNSUPPORTED_PROPERTIES.put("StartNoneEvent", events);
+        UNSUPPORTED_PROPERTIES.put("EndNoneEvent", events);
+        UNSUPPORTED_PROPERTIES.put("Task", properties("documentation", "taskname", "lanes", "datainputset",
+                "dataoutputset", "assignments", "onentryactions", "onexitactions"));
+        UNSUPPORTED_PROPERTIES.put(EXCLUSIVE_GATEWAY, properties("documentation"));
+        UNSUPPORTED_PROPERTIES.put("ParallelGateway", properties("documentation"));
+        UNSUPPORTED_PROPERTIES.put(SEQUENCE_FLOW, properties("documentation", "auditing", "monitoring"));
+    }
+
+    private static final Set<String> STRUCTURED_FIELDS = properties("properties", "stencil", "childShapes", "bounds",
+            "dockers", "outgoing");
+
+    private static final XMLOutputFactory _outputFactory = XMLOutputFactory.newInstance();
+
+    /**
+     * A shape of the json model, as the unmarshaller reads it.
+     */
+    private static class Shape {
+        String id;
+        String stencil;
+        Bpmn2ShapeProperties properties = new Bpmn2ShapeProperties();
+        // x, y, width and height
+        float[] bounds;
+        List<float[]> dockers;
+        List<String> outgoing = new ArrayList<String>();
+        List<Shape> childShapes = new ArrayList<Shape>();
+        // set when the shape has json the unmarshaller doesn't expect.
+        boolean malformed;
+
+        // the connections, for flow nodes and sequence flows.
+        List<Shape> incomingFlows = new ArrayList<Shape>();
+        List<Shape> outgoingFlows = new ArrayList<Shape>();
+        Shape source;
+        Shape target;
+    }
+
+    private Bpmn2JsonUnmarshaller _unmarshaller;
+
+    /**
+     * @param unmarshaller the unmarshaller of the models that can't be written directly.
+     */
+    public Bpmn2XmlWriter(Bpmn2JsonUnmarshaller unmarshaller) {
+        _unmarshaller = unmarshaller;
+    }
+
+    /**
+     * Writes the BPMN 2.0 xml of the json model, directly when the model is supported and
+     * through EMF otherwise. The streams are not closed.
+     * @return whether the model was written directly.
+     */
+    public boolean write(InputStream json, String preProcessingData, OutputStream output) throws IOException {
+        JsonFactory factory = new JsonFactory();
+        factory.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        JsonParser parser = factory.createJsonParser(json);
+        TokenBuffer buffer = new TokenBuffer(null);
+        try {
+            parser.nextToken();
+            buffer.copyCurrentStructure(parser);
+        } finally {
+            parser.close();
+        }
+
+        Shape root = null;
+        if (!_unmarshaller.hasHelpers()) {
+            JsonParser bufferParser = buffer.asParser();
+            bufferParser.nextToken();
+            root = readShape(bufferParser);
+        }
+        Map<String, Shape> shapes = new HashMap<String, Shape>();
+        if (root != null && isSupported(root, shapes, preProcessingData)) {
+            try {
+                writeDefinitions(root, shapes, output);
+                return true;
+            } catch (XMLStreamException e) {
+                throw new IOException("Unable to write the model: " + e.getMessage());
+            }
+        }
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Writing the model through EMF, it is not supported by the direct writer");
+        }
+        Bpmn2Resource resource = _unmarshaller.unmarshall(buffer.asParser(), new Bpmn2UnmarshallingContext(preProcessingData));
+        resource.save(output, new HashMap<Object, Object>());
+        return false;
+    }
+
+    private Shape readShape(JsonParser parser) throws JsonParseException, IOException {
+        Shape shape = new Shape();
+        while (parser.nextToken() != JsonToken.END_OBJECT) {
+            String fieldname = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("resourceId".equals(fieldname)) {
+                shape.id = parser.getText();
+            } else if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+                // the other fields the unmarshaller reads are objects and arrays
+                if (STRUCTURED_FIELDS.contains(fieldname)) {
+                    shape.malformed = true;
+                }
+            } else if ("properties".equals(fieldname)) {
+                while (parser.nextToken() != JsonToken.END_OBJECT) {
+                    String name = parser.getCurrentName();
+                    if (parser.nextToken().isScalarValue()) {
+                        shape.properties.put(name, parser);
+                    } else {
+                        parser.skipChildren();
+                        shape.malformed = true;
+                    }
+                }
+            } else if ("stencil".equals(fieldname)) {
+                while (parser.nextToken() != JsonToken.END_OBJECT) {
+                    parser.nextToken();
+                    if ("id".equals(parser.getCurrentName())) {
+                        shape.stencil = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("childShapes".equals(fieldname)) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    shape.childShapes.add(readShape(parser));
+                }
+            } else if ("bounds".equals(fieldname)) {
+                // the first point is the lower right one, as the unmarshaller reads them
+                float[] lowerRight = readPoint(parser, shape);
+                float[] upperLeft = readPoint(parser, shape);
+                parser.nextToken();
+                shape.bounds = new float[] { upperLeft[0], upperLeft[1],
+                        lowerRight[0] - upperLeft[0], lowerRight[1] - upperLeft[1] };
+            } else if ("dockers".equals(fieldname)) {
+                shape.dockers = new ArrayList<float[]>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    shape.dockers.add(readCoordinates(parser, shape));
+                }
+            } else if ("outgoing".equals(fieldname)) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_OBJECT) {
+                        parser.nextToken();
+                        if ("resourceId".equals(parser.getCurrentName())) {
+                            shape.outgoing.add(parser.getText());
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return shape;
+    }
+
+    private float[] readPoint(JsonParser parser, Shape shape) throws JsonParseException, IOException {
+        parser.nextToken(); // the name of the point
+        parser.nextToken();
+        return readCoordinates(parser, shape);
+    }
+
+    private float[] readCoordinates(JsonParser parser, Shape shape) throws JsonParseException, IOException {
+        float[] point = new float[2];
+        int found = 0;
+        while (parser.nextToken() != JsonToken.END_OBJECT) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            // coordinates are truncated to integers, as the unmarshaller does
+            if ("x".equals(name)) {
+                point[0] = parser.getIntValue();
+                found++;
+            } else if ("y".equals(name)) {
+                point[1] = parser.getIntValue();
+                found++;
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (found != 2) {
+            shape.malformed = true;
+        }
+        return point;
+    }
+
+    /**
+     * Checks that the model only has what is written directly, and connects its shapes.
+     */
+    private boolean isSupported(Shape root, Map<String, Shape> shapes, String preProcessingData) {
+        if (root.malformed || !"BPMNDiagram".equals(root.stencil) || root.id == null || !hasSupportedProperties(root)
+                || !isText(root.properties.get("id")) || root.childShapes.isEmpty()
+                || "true".equals(root.properties.get("adhocprocess"))) {
+            return false;
+        }
+        for (Shape shape : root.childShapes) {
+            if (shape.malformed || shape.id == null || !ELEMENTS.containsKey(shape.stencil) || !shape.childShapes.isEmpty()
+                    || !hasSupportedProperties(shape) || shapes.put(shape.id, shape) != null) {
+                return false;
+            }
+            if (SEQUENCE_FLOW.equals(shape.stencil)) {
+                if (shape.dockers == null) {
+                    return false;
+                }
+            } else if (shape.bounds == null) {
+                return false;
+            }
+            String taskType = shape.properties.get("tasktype");
+            if ("Task".equals(shape.stencil) && (taskType != null && !"None".equals(taskType)
+                    || _unmarshaller.isCustomTask(taskType, preProcessingData))) {
+                return false;
+            }
+        }
+        for (Shape shape : root.childShapes) {
+            boolean flow = SEQUENCE_FLOW.equals(shape.stencil);
+            if (flow && shape.outgoing.size() != 1) {
+                return false;
+            }
+            for (String id : shape.outgoing) {
+                Shape next = shapes.get(id);
+                if (next == null || flow == SEQUENCE_FLOW.equals(next.stencil)) {
+                    return false;
+                }
+                if (flow) {
+                    shape.target = next;
+                    next.incomingFlows.add(shape);
+                } else {
+                    if (next.source != null) {
+                        return false;
+                    }
+                    next.source = shape;
+                    shape.outgoingFlows.add(next);
+                }
+            }
+        }
+        for (Shape shape : root.childShapes) {
+            if (SEQUENCE_FLOW.equals(shape.stencil) && shape.source == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the properties of the shape can be written as attributes, and none of
+     * them adds elements the writer doesn't write.
+     */
+    private boolean hasSupportedProperties(Shape shape) {
+        Set<String> unsupported = UNSUPPORTED_PROPERTIES.get(shape.stencil);
+        if (unsupported == null) {
+            return false;
+        }
+        for (Map.Entry<String, String> property : shape.properties.entrySet()) {
+            String value = property.getValue();
+            if (unsupported.contains(property.getKey()) && value != null && value.trim().length() > 0) {
+                return false;
+            }
+        }
+        if (shape.properties.containsKey("boundarycancelactivity")) {
+            return false;
+        }
+        // the text the unmarshaller doesn't set on the model isn't checked
+        for (String name : Arrays.asList("name", "bgcolor", "bordercolor", "fontsize", "fontcolor", "package", "version",
+                "typelanguage", "expressionlanguage", "defaultgate", "priority", "conditionexpressionlanguage")) {
+            String value = shape.properties.get(name);
+            if (value != null && !isText(value)) {
+                return false;
+            }
+        }
+        String condition = shape.properties.get("conditionexpression");
+        if (condition != null && (condition.contains("]]>") || !isXmlText(condition))) {
+            return false;
+        }
+        return isText(shape.id);
+    }
+
+    /**
+     * @return whether the value is written the same way in an attribute by EMF and by
+     * the stream writer, which don't escape the same characters.
+     */
+    private boolean isText(String value) {
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&' || c == '<' || c == '"' || c < 0x20) {
+                return false;
+            }
+        }
+        return isXmlText(value);
+    }
+
+    private boolean isXmlText(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' || c == 0xFFFE || c == 0xFFFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeDefinitions(Shape root, Map<String, Shape> shapes, OutputStream output) throws XMLStreamException {
+        XMLStreamWriter writer = _outputFactory.createXMLStreamWriter(output, "UTF-8");
+        Map<String, String> properties = root.properties;
+        String processId = properties.get("id");
+
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.setPrefix("xsi", XSI);
+        writer.setPrefix("bpmn2", BPMN2);
+        writer.setPrefix("bpmndi", BPMNDI);
+        writer.setPrefix("dc", DC);
+        writer.setPrefix("di", DI);
+        writer.setPrefix("drools", DROOLS);
+        writer.writeStartElement(BPMN2, "definitions");
+        writer.writeNamespace("xsi", XSI);
+        writer.writeNamespace("bpmn2", BPMN2);
+        writer.writeNamespace("bpmndi", BPMNDI);
+        writer.writeNamespace("dc", DC);
+        writer.writeNamespace("di", DI);
+        writer.writeNamespace("drools", DROOLS);
+        writer.writeAttribute("id", root.id);
+        writeExtensionAttributes(writer, properties);
+        writer.writeAttribute(XSI, "schemaLocation", "http://www.omg.org/spec/BPMN/20100524/MODEL BPMN20.xsd");
+        writeAttribute(writer, "expressionLanguage", properties.get("expressionlanguage"));
+        writer.writeAttribute("targetNamespace", "http://www.omg.org/bpmn20");
+        writeAttribute(writer, "typeLanguage", properties.get("typelanguage"));
+
+        writer.writeStartElement(BPMN2, "process");
+        writer.writeAttribute("id", processId);
+        writeDroolsAttribute(writer, "packageName", properties.get("package"));
+        writeDroolsAttribute(writer, "version", properties.get("version"));
+        writer.writeAttribute("name", name(properties));
+        writer.writeAttribute("isClosed", String.valueOf(Boolean.parseBoolean(properties.get("isclosed"))));
+        writer.writeAttribute("isExecutable", String.valueOf(Boolean.parseBoolean(properties.get("executable"))));
+        ProcessType processType = ProcessType.getByName(properties.get("processtype"));
+        writer.writeAttribute("processType", processType == null ? ProcessType.NONE.getName() : processType.getName());
+        // the default flows get an empty condition when they have none
+        Set<Shape> defaultFlows = new HashSet<Shape>();
+        for (Shape shape : root.childShapes) {
+            Shape defaultFlow = getDefaultFlow(shape, shapes);
+            if (defaultFlow != null) {
+                defaultFlows.add(defaultFlow);
+            }
+        }
+        for (Shape shape : root.childShapes) {
+            if (SEQUENCE_FLOW.equals(shape.stencil)) {
+                writeSequenceFlow(writer, shape, defaultFlows.contains(shape));
+            } else {
+                writeFlowNode(writer, shape, shapes);
+            }
+        }
+        writer.writeEndElement();
+
+        writer.writeStartElement(BPMNDI, "BPMNDiagram");
+        writer.writeAttribute("id", "_" + root.id + "_diagram");
+        writer.writeStartElement(BPMNDI, "BPMNPlane");
+        writer.writeAttribute("id", "_" + processId + "_plane");
+        writer.writeAttribute("bpmnElement", processId);
+        for (Shape shape : root.childShapes) {
+            if (SEQUENCE_FLOW.equals(shape.stencil)) {
+                writeEdge(writer, shape);
+            } else {
+                writer.writeStartElement(BPMNDI, "BPMNShape");
+                writer.writeAttribute("id", "_" + shape.id + "_shape");
+                writer.writeAttribute("bpmnElement", shape.id);
+                writer.writeEmptyElement(DC, "Bounds");
+                writer.writeAttribute("height", Float.toString(shape.bounds[3]));
+                writer.writeAttribute("width", Float.toString(shape.bounds[2]));
+                writer.writeAttribute("x", Float.toString(shape.bounds[0]));
+                writer.writeAttribute("y", Float.toString(shape.bounds[1]));
+                writer.writeEndElement();
+            }
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    private void writeFlowNode(XMLStreamWriter writer, Shape shape, Map<String, Shape> shapes) throws XMLStreamException {
+        Map<String, String> properties = shape.properties;
+        writer.writeStartElement(BPMN2, ELEMENTS.get(shape.stencil));
+        writer.writeAttribute("id", shape.id);
+        writeExtensionAttributes(writer, properties);
+        if (EXCLUSIVE_GATEWAY.equals(shape.stencil) && properties.get("defaultgate") != null) {
+            writeDroolsAttribute(writer, "dg", properties.get("defaultgate"));
+        }
+        writer.writeAttribute("name", name(properties));
+        if (shape.stencil.endsWith("Gateway")) {
+            String direction = getGatewayDirection(shape);
+            if (direction != null) {
+                writer.writeAttribute("gatewayDirection", direction);
+            }
+            Shape defaultFlow = getDefaultFlow(shape, shapes);
+            if (defaultFlow != null) {
+                writer.writeAttribute("default", defaultFlow.id);
+            }
+        }
+        for (Shape flow : shape.incomingFlows) {
+            writer.writeStartElement(BPMN2, "incoming");
+            writer.writeCharacters(flow.id);
+            writer.writeEndElement();
+        }
+        for (Shape flow : shape.outgoingFlows) {
+            writer.writeStartElement(BPMN2, "outgoing");
+            writer.writeCharacters(flow.id);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    private void writeSequenceFlow(XMLStreamWriter writer, Shape shape, boolean defaultFlow) throws XMLStreamException {
+        Map<String, String> properties = shape.properties;
+        writer.writeStartElement(BPMN2, "sequenceFlow");
+        writer.writeAttribute("id", shape.id);
+        writeExtensionAttributes(writer, properties);
+        writeDroolsAttribute(writer, "priority", properties.get("priority"));
+        String name = properties.get("name");
+        if (name != null && name.length() > 0) {
+            writer.writeAttribute("name", name);
+        }
+        writer.writeAttribute("sourceRef", shape.source.id);
+        writer.writeAttribute("targetRef", shape.target.id);
+        writer.writeAttribute("isImmediate", String.valueOf(Boolean.parseBoolean(properties.get("isimmediate"))));
+        String condition = properties.get("conditionexpression");
+        boolean hasCondition = condition != null && condition.length() > 0;
+        if (hasCondition || defaultFlow) {
+            writer.writeStartElement(BPMN2, "conditionExpression");
+            writer.writeAttribute(XSI, "type", "bpmn2:tFormalExpression");
+            if (hasCondition) {
+                writeAttribute(writer, "language", getConditionLanguage(properties.get("conditionexpressionlanguage")));
+                writer.writeCData(condition);
+            }
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    private void writeEdge(XMLStreamWriter writer, Shape shape) throws XMLStreamException {
+        writer.writeStartElement(BPMNDI, "BPMNEdge");
+        writer.writeAttribute("id", "_" + shape.id + "_edge");
+        writer.writeAttribute("bpmnElement", shape.id);
+        writeWaypoint(writer, center(shape.source.bounds));
+        for (int i = 1; i < shape.dockers.size() - 1; i++) {
+            writeWaypoint(writer, shape.dockers.get(i));
+        }
+        writeWaypoint(writer, center(shape.target.bounds));
+        writer.writeEndElement();
+    }
+
+    private void writeWaypoint(XMLStreamWriter writer, float[] point) throws XMLStreamException {
+        writer.writeEmptyElement(DI, "waypoint");
+        writer.writeAttribute(XSI, "type", "dc:Point");
+        writer.writeAttribute("x", Float.toString(point[0]));
+        writer.writeAttribute("y", Float.toString(point[1]));
+    }
+
+    /**
+     * Writes the drools attributes the unmarshaller sets on all elements.
+     */
+    private void writeExtensionAttributes(XMLStreamWriter writer, Map<String, String> properties) throws XMLStreamException {
+        writeColor(writer, "bgcolor", properties.get("bgcolor"), Bpmn2JsonUnmarshaller.defaultBgColor);
+        writeColor(writer, "bordercolor", properties.get("bordercolor"), Bpmn2JsonUnmarshaller.defaultBrColor);
+        writeDroolsAttribute(writer, "fontsize", properties.get("fontsize"));
+        writeColor(writer, "fontcolor", properties.get("fontcolor"), Bpmn2JsonUnmarshaller.defaultFontColor);
+    }
+
+    private void writeColor(XMLStreamWriter writer, String name, String value, String defaultValue) throws XMLStreamException {
+        if (value != null && !value.equals(defaultValue)) {
+            writeDroolsAttribute(writer, name, value);
+        }
+    }
+
+    private void writeDroolsAttribute(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        if (value != null && value.length() > 0) {
+            writer.writeAttribute(DROOLS, name, value);
+        }
+    }
+
+    private void writeAttribute(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        if (value != null) {
+            writer.writeAttribute(name, value);
+        }
+    }
+
+    private String name(Map<String, String> properties) {
+        String name = properties.get("name");
+        return name == null ? "" : name;
+    }
+
+    private String getGatewayDirection(Shape gateway) {
+        int incoming = gateway.incomingFlows.size();
+        int outgoing = gateway.outgoingFlows.size();
+        if (incoming <= 1 && outgoing > 1) {
+            return "Diverging";
+        } else if (incoming > 1 && outgoing <= 1) {
+            return "Converging";
+        } else if (incoming > 1 && outgoing > 1) {
+            return "Mixed";
+        }
+        // unspecified is the default direction
+        return null;
+    }
+
+    private Shape getDefaultFlow(Shape gateway, Map<String, Shape> shapes) {
+        if (!EXCLUSIVE_GATEWAY.equals(gateway.stencil) || gateway.properties.get("defaultgate") == null) {
+            return null;
+        }
+        Shape flow = shapes.get(gateway.properties.get("defaultgate"));
+        return flow != null && SEQUENCE_FLOW.equals(flow.stencil) ? flow : null;
+    }
+
+    private String getConditionLanguage(String language) {
+        if (language == null || language.length() == 0) {
+            return null;
+        } else if (language.equals("drools")) {
+            return "http://www.jboss.org/drools/rule";
+        } else if (language.equals("java")) {
+            return "http://www.java.com/java";
+        }
+        return "http://www.mvel.org/2.0";
+    }
+
+    private static Set<String> properties(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.bpmn2.Bpmn2Factory;
+import org.eclipse.bpmn2.Bpmn2Package;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EObject;
+
+/**
+ * Creates the elements and the event definitions of the {@link Bpmn20Stencil stencils}
+ * through the typed methods of the factory, rather than through
+ * {@link Bpmn2Factory#create(EClass)} which switches on the class for every call.
+ *
+ * Each stencil finds its factories once, when the stencils are loaded.
+ */
+enum ElementFactory {
+
+    TASK(Bpmn2Package.eINSTANCE.getTask()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createTask(); }
+    },
+    DEFINITIONS(Bpmn2Package.eINSTANCE.getDefinitions()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createDefinitions(); }
+    },
+    PROCESS(Bpmn2Package.eINSTANCE.getProcess()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createProcess(); }
+    },
+    LANE(Bpmn2Package.eINSTANCE.getLane()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createLane(); }
+    },
+    SEQUENCE_FLOW(Bpmn2Package.eINSTANCE.getSequenceFlow()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createSequenceFlow(); }
+    },
+    SCRIPT_TASK(Bpmn2Package.eINSTANCE.getScriptTask()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createScriptTask(); }
+    },
+    USER_TASK(Bpmn2Package.eINSTANCE.getUserTask()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createUserTask(); }
+    },
+    BUSINESS_RULE_TASK(Bpmn2Package.eINSTANCE.getBusinessRuleTask()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createBusinessRuleTask(); }
+    },
+    MANUAL_TASK(Bpmn2Package.eINSTANCE.getManualTask()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createManualTask(); }
+    },
+    SERVICE_TASK(Bpmn2Package.eINSTANCE.getServiceTask()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createServiceTask(); }
+    },
+    SEND_TASK(Bpmn2Package.eINSTANCE.getSendTask()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createSendTask(); }
+    },
+    RECEIVE_TASK(Bpmn2Package.eINSTANCE.getReceiveTask()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createReceiveTask(); }
+    },
+    EXCLUSIVE_GATEWAY(Bpmn2Package.eINSTANCE.getExclusiveGateway()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createExclusiveGateway(); }
+    },
+    PARALLEL_GATEWAY(Bpmn2Package.eINSTANCE.getParallelGateway()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createParallelGateway(); }
+    },
+    EVENT_BASED_GATEWAY(Bpmn2Package.eINSTANCE.getEventBasedGateway()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createEventBasedGateway(); }
+    },
+    COMPLEX_GATEWAY(Bpmn2Package.eINSTANCE.getComplexGateway()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createComplexGateway(); }
+    },
+    INCLUSIVE_GATEWAY(Bpmn2Package.eINSTANCE.getInclusiveGateway()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createInclusiveGateway(); }
+    },
+    START_EVENT(Bpmn2Package.eINSTANCE.getStartEvent()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createStartEvent(); }
+    },
+    END_EVENT(Bpmn2Package.eINSTANCE.getEndEvent()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createEndEvent(); }
+    },
+    INTERMEDIATE_CATCH_EVENT(Bpmn2Package.eINSTANCE.getIntermediateCatchEvent()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createIntermediateCatchEvent(); }
+    },
+    INTERMEDIATE_THROW_EVENT(Bpmn2Package.eINSTANCE.getIntermediateThrowEvent()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createIntermediateThrowEvent(); }
+    },
+    TEXT_ANNOTATION(Bpmn2Package.eINSTANCE.getTextAnnotation()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createTextAnnotation(); }
+    },
+    GROUP(Bpmn2Package.eINSTANCE.getGroup()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createGroup(); }
+    },
+    DATA_OBJECT(Bpmn2Package.eINSTANCE.getDataObject()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createDataObject(); }
+    },
+    DATA_STORE(Bpmn2Package.eINSTANCE.getDataStore()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createDataStore(); }
+    },
+    MESSAGE(Bpmn2Package.eINSTANCE.getMessage()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createMessage(); }
+    },
+    ASSOCIATION(Bpmn2Package.eINSTANCE.getAssociation()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createAssociation(); }
+    },
+    SUB_PROCESS(Bpmn2Package.eINSTANCE.getSubProcess()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createSubProcess(); }
+    },
+    AD_HOC_SUB_PROCESS(Bpmn2Package.eINSTANCE.getAdHocSubProcess()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createAdHocSubProcess(); }
+    },
+    CALL_ACTIVITY(Bpmn2Package.eINSTANCE.getCallActivity()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createCallActivity(); }
+    },
+    MESSAGE_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getMessageEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createMessageEventDefinition(); }
+    },
+    ESCALATION_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getEscalationEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createEscalationEventDefinition(); }
+    },
+    COMPENSATE_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getCompensateEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createCompensateEventDefinition(); }
+    },
+    SIGNAL_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getSignalEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createSignalEventDefinition(); }
+    },
+    TIMER_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getTimerEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createTimerEventDefinition(); }
+    },
+    ERROR_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getErrorEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createErrorEventDefinition(); }
+    },
+    CONDITIONAL_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getConditionalEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createConditionalEventDefinition(); }
+    },
+    CANCEL_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getCancelEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createCancelEventDefinition(); }
+    },
+    TERMINATE_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getTerminateEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createTerminateEventDefinition(); }
+    },
+    LINK_EVENT_DEFINITION(Bpmn2Package.eINSTANCE.getLinkEventDefinition()) {
+        EObject create() { return Bpmn2Factory.eINSTANCE.createLinkEventDefinition(); }
+    };
+
+    private static final Map<EClass, ElementFactory> FACTORIES = new HashMap<EClass, ElementFactory>();
+
+    static {
+        for (ElementFactory factory : values()) {
+            FACTORIES.put(factory._eClass, factory);
+        }
+    }
+
+    private final EClass _eClass;
+
+    private ElementFactory(EClass eClass) {
+        _eClass = eClass;
+    }
+
+    abstract EObject create();
+
+    /**
+     * @return the factory of the given class, null if there is none.
+     */
+    static ElementFactory forClass(EClass eClass) {
+        return FACTORIES.get(eClass);
+    }
+}
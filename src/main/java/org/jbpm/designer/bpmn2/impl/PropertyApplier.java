@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.bpmn2.AdHocSubProcess;
+import org.eclipse.bpmn2.Association;
+import org.eclipse.bpmn2.BaseElement;
+import org.eclipse.bpmn2.Bpmn2Factory;
+import org.eclipse.bpmn2.BusinessRuleTask;
+import org.eclipse.bpmn2.CallActivity;
+import org.eclipse.bpmn2.CatchEvent;
+import org.eclipse.bpmn2.DataObject;
+import org.eclipse.bpmn2.DataStore;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.EndEvent;
+import org.eclipse.bpmn2.Event;
+import org.eclipse.bpmn2.Gateway;
+import org.eclipse.bpmn2.GlobalTask;
+import org.eclipse.bpmn2.Group;
+import org.eclipse.bpmn2.Lane;
+import org.eclipse.bpmn2.Message;
+import org.eclipse.bpmn2.Process;
+import org.eclipse.bpmn2.ReceiveTask;
+import org.eclipse.bpmn2.ScriptTask;
+import org.eclipse.bpmn2.SendTask;
+import org.eclipse.bpmn2.SequenceFlow;
+import org.eclipse.bpmn2.ServiceTask;
+import org.eclipse.bpmn2.StartEvent;
+import org.eclipse.bpmn2.SubProcess;
+import org.eclipse.bpmn2.Task;
+import org.eclipse.bpmn2.TextAnnotation;
+import org.eclipse.bpmn2.ThrowEvent;
+import org.eclipse.bpmn2.UserTask;
+
+/**
+ * The groups of properties {@link Bpmn2JsonUnmarshaller#applyProperties(BaseElement, java.util.Map)}
+ * applies, in the order it applies them, with the type of element each one applies to.
+ *
+ * The appliers of an element class are looked up once and kept, instead of
+ * testing the element against every type for every shape.
+ */
+enum PropertyApplier {
+
+    SUB_PROCESS(SubProcess.class),
+    AD_HOC_SUB_PROCESS(AdHocSubProcess.class),
+    CALL_ACTIVITY(CallActivity.class),
+    GLOBAL_TASK(GlobalTask.class),
+    DEFINITIONS(Definitions.class),
+    PROCESS(Process.class),
+    LANE(Lane.class),
+    SEQUENCE_FLOW(SequenceFlow.class),
+    TASK(Task.class),
+    USER_TASK(UserTask.class),
+    BUSINESS_RULE_TASK(BusinessRuleTask.class),
+    SCRIPT_TASK(ScriptTask.class),
+    SERVICE_TASK(ServiceTask.class),
+    RECEIVE_TASK(ReceiveTask.class),
+    SEND_TASK(SendTask.class),
+    GATEWAY(Gateway.class),
+    EVENT(Event.class),
+    CATCH_EVENT(CatchEvent.class),
+    THROW_EVENT(ThrowEvent.class),
+    TEXT_ANNOTATION(TextAnnotation.class),
+    GROUP(Group.class),
+    DATA_OBJECT(DataObject.class),
+    DATA_STORE(DataStore.class),
+    MESSAGE(Message.class),
+    START_EVENT(StartEvent.class),
+    END_EVENT(EndEvent.class),
+    ASSOCIATION(Association.class);
+
+    private static final ConcurrentHashMap<Class<?>, PropertyApplier[]> CHAINS =
+        new ConcurrentHashMap<Class<?>, PropertyApplier[]>();
+
+    static {
+        // the elements of the stencils are known, the others are added when they are first met.
+        for (Bpmn20Stencil stencil : Bpmn20Stencil.values()) {
+            chain(Bpmn2Factory.eINSTANCE.create(stencil.className).getClass());
+        }
+    }
+
+    private final Class<? extends BaseElement> _type;
+
+    private PropertyApplier(Class<? extends BaseElement> type) {
+        _type = type;
+    }
+
+    /**
+     * @return the appliers for the elements of the given class, in the order they apply.
+     */
+    static PropertyApplier[] chain(Class<?> elementClass) {
+        PropertyApplier[] chain = CHAINS.get(elementClass);
+        if (chain == null) {
+            List<PropertyApplier> appliers = new ArrayList<PropertyApplier>();
+            for (PropertyApplier applier : values()) {
+                if (applier._type.isAssignableFrom(elementClass)) {
+                    appliers.add(applier);
+                }
+            }
+            chain = appliers.toArray(new PropertyApplier[appliers.size()]);
+            CHAINS.put(elementClass, chain);
+        }
+        return chain;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.FlowElement;
+import org.eclipse.bpmn2.FlowElementsContainer;
+import org.eclipse.bpmn2.Process;
+import org.eclipse.bpmn2.RootElement;
+
+/**
+ * Runs the revisit phases of the json unmarshalling.
+ *
+ * All the phases registered on a pipeline share a single traversal of the
+ * flow elements of the processes: each flow element is handed to every phase,
+ * in registration order. Sub-processes are only descended into when one of the
+ * phases is recursive. Once the traversal is over, the phases are completed in
+ * registration order, which is when they may change the definitions (add root
+ * elements, add or remove flow elements).
+ */
+public class RevisitPipeline {
+
+    private static final Logger _logger = Logger.getLogger(RevisitPipeline.class);
+
+    /**
+     * A revisit phase. Phases must not change the flow elements lists while
+     * visiting; changes are to be collected and applied in {@link #complete(Definitions)}.
+     */
+    public static abstract class Phase {
+
+        private final String _name;
+
+        protected Phase(String name) {
+            _name = name;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        /**
+         * @return true if the phase wants to visit the flow elements of sub-processes.
+         */
+        public boolean isRecursive() {
+            return false;
+        }
+
+        public void visit(FlowElement fe, FlowElementsContainer container) {
+        }
+
+        public void complete(Definitions def) {
+        }
+    }
+
+    private List<Phase> _phases = new ArrayList<Phase>();
+
+    public RevisitPipeline add(Phase phase) {
+        _phases.add(phase);
+        return this;
+    }
+
+    public void run(Definitions def) {
+        long start = System.currentTimeMillis();
+        List<Phase> recursivePhases = new ArrayList<Phase>();
+        for (Phase phase : _phases) {
+            if (phase.isRecursive()) {
+                recursivePhases.add(phase);
+            }
+        }
+        for (RootElement root : def.getRootElements()) {
+            if (root instanceof Process) {
+                visit((Process) root, _phases, recursivePhases);
+            }
+        }
+        long visited = System.currentTimeMillis();
+        for (Phase phase : _phases) {
+            long phaseStart = System.currentTimeMillis();
+            phase.complete(def);
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("Completed phase " + phase.getName() + " in " + (System.currentTimeMillis() - phaseStart) + " ms");
+            }
+        }
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Ran phases " + getPhaseNames() + ": traversal " + (visited - start) + " ms, total "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private void visit(FlowElementsContainer container, List<Phase> phases, List<Phase> recursivePhases) {
+        for (FlowElement fe : container.getFlowElements()) {
+            for (Phase phase : phases) {
+                phase.visit(fe, container);
+            }
+            if (fe instanceof FlowElementsContainer && !recursivePhases.isEmpty()) {
+                visit((FlowElementsContainer) fe, recursivePhases, recursivePhases);
+            }
+        }
+    }
+
+    private String getPhaseNames() {
+        StringBuilder names = new StringBuilder();
+        for (Phase phase : _phases) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(phase.getName());
+        }
+        return names.toString();
+    }
+}
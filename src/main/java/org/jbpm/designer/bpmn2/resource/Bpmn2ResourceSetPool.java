@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.bpmn2.Bpmn2Package;
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.impl.EPackageRegistryImpl;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.ResourceFactoryRegistryImpl;
+import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.eclipse.emf.ecore.xmi.XMLParserPool;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.emf.ecore.xmi.impl.XMLParserPoolImpl;
+
+/**
+ * Hands out the resource sets the bpmn2 models are converted with, set up once
+ * instead of for every conversion.
+ *
+ * The xml models are loaded in resource sets kept in a pool, with the EMF load
+ * options that speed up the loading of large models. The options can be turned
+ * off one by one in the profile:
+ * <ul>
+ * <li>a parser pool shared by all the sets,</li>
+ * <li>a map of the xml names to the model features, kept by each set,</li>
+ * <li>the resolution of the IDREFs once the whole document is read.</li>
+ * </ul>
+ * A set {@link #acquire() acquired} from the pool is emptied when it is
+ * {@link #release(PooledResourceSet) released}. A model {@link #load(InputStream) loaded}
+ * to be kept takes its whole set with it, only the load options go back to the pool.
+ *
+ * Each set has a package registry of its own, which finds the bpmn2 package
+ * and the global packages through a registry only read once it is set up.
+ */
+public class Bpmn2ResourceSetPool {
+
+    public static final String BPMN2_NS = "http://www.omg.org/spec/BPMN/20100524/MODEL";
+
+    private static final int MAX_IDLE = 16;
+
+    private static final Resource.Factory.Registry FACTORIES = new ResourceFactoryRegistryImpl();
+    // only read once set up, the sets put the packages they find in their own registry.
+    private static final EPackage.Registry PACKAGES = new EPackageRegistryImpl(EPackage.Registry.INSTANCE);
+    static {
+        // the factory keeps no state, the options are set on each resource it creates
+        JBPMBpmn2ResourceFactoryImpl factory = new JBPMBpmn2ResourceFactoryImpl();
+        FACTORIES.getExtensionToFactoryMap().put("bpmn2", factory);
+        FACTORIES.getExtensionToFactoryMap().put(Resource.Factory.Registry.DEFAULT_EXTENSION, factory);
+        PACKAGES.put(BPMN2_NS, Bpmn2Package.eINSTANCE);
+    }
+
+    private static final XMLParserPool PARSER_POOL = new XMLParserPoolImpl();
+
+    private static final ConcurrentHashMap<String, Bpmn2ResourceSetPool> POOLS =
+        new ConcurrentHashMap<String, Bpmn2ResourceSetPool>();
+
+    private final boolean _useParserPool;
+    private final boolean _useNameToFeatureMap;
+    private final boolean _deferIdrefResolution;
+
+    private final ConcurrentLinkedQueue<PooledResourceSet> _idle = new ConcurrentLinkedQueue<PooledResourceSet>();
+    private final AtomicInteger _idleCount = new AtomicInteger();
+
+    /**
+     * A resource set of the pool, used by one thread until it is released.
+     */
+    public static class PooledResourceSet {
+        private final ResourceSet _resourceSet;
+        private final Map<Object, Object> _loadOptions;
+
+        private PooledResourceSet(Map<Object, Object> loadOptions) {
+            _resourceSet = createResourceSet();
+            _loadOptions = loadOptions;
+        }
+
+        public ResourceSet getResourceSet() {
+            return _resourceSet;
+        }
+
+        /**
+         * Loads a bpmn2 xml model in the set.
+         * @param is the model, in UTF-8. The stream is not closed.
+         * @return the loaded resource, part of the set until the set is released.
+         */
+        public JBPMBpmn2ResourceImpl load(InputStream is) throws IOException {
+            JBPMBpmn2ResourceImpl resource = (JBPMBpmn2ResourceImpl) _resourceSet.createResource(
+                    URI.createURI("inputStream://dummyUriWithValidSuffix.xml"));
+            resource.getDefaultLoadOptions().put(XMLResource.OPTION_ENCODING, "UTF-8");
+            resource.setEncoding("UTF-8");
+            resource.load(is, _loadOptions);
+            return resource;
+        }
+    }
+    private Bpmn2ResourceSetPool(boolean useParserPool, boolean useNameToFeatureMap, boolean deferIdrefResolution) {
+        _useParserPool = useParserPool;
+        _useNameToFeatureMap = useNameToFeatureMap;
+        _deferIdrefResolution = deferIdrefResolution;
+    }
+
+    /**
+     * @return the pool of the sets loading with all the load options.
+     */
+    public static Bpmn2ResourceSetPool getDefault() {
+        return getPool(true, true, true);
+    }
+
+    /**
+     * @return the pool of the sets loading with the given load options, shared
+     * by all the profiles using the same options.
+     */
+    public static Bpmn2ResourceSetPool getPool(boolean useParserPool, boolean useNameToFeatureMap,
+            boolean deferIdrefResolution) {
+        String key = useParserPool + "," + useNameToFeatureMap + "," + deferIdrefResolution;
+        Bpmn2ResourceSetPool pool = POOLS.get(key);
+        if (pool == null) {
+            pool = new Bpmn2ResourceSetPool(useParserPool, useNameToFeatureMap, deferIdrefResolution);
+            Bpmn2ResourceSetPool existing = POOLS.putIfAbsent(key, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return a new resource set using the shared resource factories, with a
+     * package registry of its own.
+     */
+    public static ResourceSet createResourceSet() {
+        ResourceSetImpl resourceSet = new ResourceSetImpl();
+        resourceSet.setResourceFactoryRegistry(FACTORIES);
+        resourceSet.setPackageRegistry(new EPackageRegistryImpl(PACKAGES));
+        return resourceSet;
+    }
+
+    /**
+     * @return a new, empty bpmn2 resource in a resource set of its own.
+     */
+    public static JBPMBpmn2ResourceImpl createResource() {
+        return (JBPMBpmn2ResourceImpl) createResourceSet().createResource(URI.createURI("virtual.bpmn2"));
+    }
+
+    /**
+     * @return a set of the pool, to give back with {@link #release(PooledResourceSet)}
+     * once the resources loaded in it are no longer used.
+     */
+    public PooledResourceSet acquire() {
+        PooledResourceSet pooled = _idle.poll();
+        if (pooled != null) {
+            _idleCount.decrementAndGet();
+            return pooled;
+        }
+        Map<Object, Object> loadOptions = new HashMap<Object, Object>();
+        initLoadOptions(loadOptions);
+        return new PooledResourceSet(loadOptions);
+    }
+
+    /**
+     * Empties the set and gives it back to the pool.
+     */
+    public void release(PooledResourceSet pooled) {
+        pooled._resourceSet.getResources().clear();
+        pooled._resourceSet.getPackageRegistry().clear();
+        offer(pooled);
+    }
+
+    /**
+     * Loads a bpmn2 xml model to be kept by the caller.
+     * @param is the model, in UTF-8. The stream is not closed.
+     * @return the loaded resource, in a resource set of its own.
+     */
+    public JBPMBpmn2ResourceImpl load(InputStream is) throws IOException {
+        PooledResourceSet pooled = acquire();
+        try {
+            return pooled.load(is);
+        } finally {
+            // the set goes with the resource, its load options are used again
+            offer(new PooledResourceSet(pooled._loadOptions));
+        }
+    }
+
+    private void offer(PooledResourceSet pooled) {
+        if (_idleCount.incrementAndGet() <= MAX_IDLE) {
+            _idle.offer(pooled);
+        } else {
+            _idleCount.decrementAndGet();
+        }
+    }
+
+    private void initLoadOptions(Map<Object, Object> options) {
+        options.put(XMLResource.OPTION_ENCODING, "UTF-8");
+        if (_useParserPool) {
+            options.put(XMLResource.OPTION_USE_PARSER_POOL, PARSER_POOL);
+        }
+        if (_useNameToFeatureMap) {
+            // filled by the loads, a set is only used by one load at a time
+            options.put(XMLResource.OPTION_USE_XML_NAME_TO_FEATURE_MAP, new HashMap<Object, Object>());
+        }
+        if (_deferIdrefResolution) {
+            options.put(XMLResource.OPTION_DEFER_IDREF_RESOLUTION, Boolean.TRUE);
+        }
+        options.put(XMLResource.OPTION_USE_DEPRECATED_METHODS, Boolean.FALSE);
+    }
+}
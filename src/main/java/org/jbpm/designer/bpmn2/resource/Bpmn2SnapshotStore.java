@@ -0,0 +1,276 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.bpmn2.resource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.DocumentRoot;
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.BinaryResourceImpl;
+import org.eclipse.emf.ecore.util.BasicExtendedMetaData;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.emf.ecore.util.ExtendedMetaData;
+import org.eclipse.emf.ecore.util.FeatureMap;
+import org.eclipse.emf.ecore.util.FeatureMapUtil;
+
+/**
+ * Keeps the models loaded from the repository as EMF binary snapshots on the
+ * local disk, keyed by the uuid of the asset and by its version, so that a
+ * version already loaded once is read back without parsing its xml. The version
+ * is the one the repository gives the asset, such as its ETag.
+ *
+ * The binary format finds the features by name and can't create the ones the
+ * xml parser demands for the extension attributes, such as the
+ * <code>drools</code> ones. A snapshot starts with the list of those features,
+ * which are demanded again in the resource set it is loaded in.
+ *
+ * A snapshot replaces the snapshots of the older versions of its asset.
+ * Snapshots that can't be read are dropped and the xml is parsed again.
+ */
+public class Bpmn2SnapshotStore {
+
+    private static final Logger _logger = Logger.getLogger(Bpmn2SnapshotStore.class);
+
+    private static final String EXTENSION = ".bpmn2snapshot";
+
+    // written before the list of the demanded features, the snapshots without it are dropped.
+    private static final int MAGIC = 0x62706d33;
+
+    private static final ConcurrentHashMap<File, Bpmn2SnapshotStore> STORES =
+        new ConcurrentHashMap<File, Bpmn2SnapshotStore>();
+
+    private final File _directory;
+
+    public Bpmn2SnapshotStore(File directory) {
+        _directory = directory;
+    }
+
+    /**
+     * @return the store of the directory, shared by all the profiles using it.
+     */
+    public static Bpmn2SnapshotStore getStore(File directory) {
+        File key = directory.getAbsoluteFile();
+        Bpmn2SnapshotStore store = STORES.get(key);
+        if (store == null) {
+            store = new Bpmn2SnapshotStore(key);
+            Bpmn2SnapshotStore existing = STORES.putIfAbsent(key, store);
+            if (existing != null) {
+                store = existing;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return the version of the xml of an asset, a hash of its content. Used when
+     * the repository gives no version.
+     */
+    public static String version(byte[] xml) {
+        try {
+            byte[] bytes = MessageDigest.getInstance("SHA-1").digest(xml);
+            StringBuilder version = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                version.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return version.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the version of an asset as the repository sends it: its ETag, else its
+     * Last-Modified date and size, else a hash of its xml.
+     */
+    public static String version(String etag, String lastModified, String xml) {
+        // a weak ETag may be kept by a change of the content
+        if (etag != null && etag.length() > 0 && !etag.startsWith("W/")) {
+            return "etag:" + etag;
+        }
+        if (lastModified != null && lastModified.length() > 0) {
+            // one second apart at best, the size tells most quick saves apart
+            return "modified:" + lastModified + ":" + xml.length();
+        }
+        try {
+            return version(xml.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the definitions of the snapshot of the version of the asset, null if
+     * there is none.
+     */
+    public Definitions load(String uuid, String version) {
+        File file = getFile(uuid, version);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC) {
+                throw new IOException("not a snapshot");
+            }
+            ResourceSet resourceSet = Bpmn2ResourceSetPool.createResourceSet();
+            // the demanded packages are put in the registry of the set
+            ExtendedMetaData metaData = new BasicExtendedMetaData(resourceSet.getPackageRegistry());
+            for (int i = input.readInt(); i > 0; i--) {
+                metaData.demandFeature(input.readUTF(), input.readUTF(), input.readBoolean(), input.readBoolean());
+            }
+            Resource resource = new BinaryResourceImpl(URI.createFileURI(file.getPath()));
+            resourceSet.getResources().add(resource);
+            resource.load(input, Collections.emptyMap());
+            return ((DocumentRoot) resource.getContents().get(0)).getDefinitions();
+        } catch (Exception e) {
+            _logger.warn("Dropping the unreadable snapshot " + file + ": " + e.getMessage());
+            IOUtils.closeQuietly(input);
+            file.delete();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Stores a snapshot of a copy of the definitions, in place of the snapshots of
+     * the other versions of the asset.
+     */
+    public void store(String uuid, String version, Definitions definitions) {
+        EObject root = definitions.eContainer() instanceof DocumentRoot ? definitions.eContainer() : definitions;
+        File file = getFile(uuid, version);
+        File temp = new File(_directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            if (!_directory.isDirectory() && !_directory.mkdirs()) {
+                throw new IOException("Unable to create " + _directory);
+            }
+            Resource resource = new BinaryResourceImpl(URI.createFileURI(file.getPath()));
+            Bpmn2ResourceSetPool.createResourceSet().getResources().add(resource);
+            resource.getContents().add(EcoreUtil.copy(root));
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(MAGIC);
+            List<EStructuralFeature> demanded = getDocumentRootFeatures(resource);
+            output.writeInt(demanded.size());
+            for (EStructuralFeature feature : demanded) {
+                output.writeUTF(feature.getEContainingClass().getEPackage().getNsURI());
+                output.writeUTF(ExtendedMetaData.INSTANCE.getName(feature));
+                output.writeBoolean(ExtendedMetaData.INSTANCE.getFeatureKind(feature) == ExtendedMetaData.ELEMENT_FEATURE);
+                output.writeBoolean(feature instanceof EReference);
+            }
+            resource.save(output, Collections.emptyMap());
+            output.close();
+            output = null;
+            removeSnapshots(uuid);
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            _logger.warn("Unable to store the snapshot of " + uuid + ": " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(output);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Removes the snapshots of all the versions of the asset.
+     */
+    public void removeSnapshots(String uuid) {
+        String prefix = getPrefix(uuid);
+        File[] files = _directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(prefix) && file.getName().endsWith(EXTENSION)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the features of the document roots the objects of the resource have
+     * values of in their feature maps: the extension attributes and elements.
+     */
+    private static List<EStructuralFeature> getDocumentRootFeatures(Resource resource) {
+        Set<EStructuralFeature> features = new LinkedHashSet<EStructuralFeature>();
+        for (Iterator<EObject> it = resource.getAllContents(); it.hasNext();) {
+            EObject object = it.next();
+            for (EStructuralFeature feature : object.eClass().getEAllStructuralFeatures()) {
+                if (!FeatureMapUtil.isFeatureMap(feature) || !object.eIsSet(feature)) {
+                    continue;
+                }
+                for (FeatureMap.Entry entry : (FeatureMap) object.eGet(feature)) {
+                    EStructuralFeature entryFeature = entry.getEStructuralFeature();
+                    if (ExtendedMetaData.INSTANCE.isDocumentRoot(entryFeature.getEContainingClass())) {
+                        features.add(entryFeature);
+                    }
+                }
+            }
+        }
+        return new ArrayList<EStructuralFeature>(features);
+    }
+
+    private File getFile(String uuid, String version) {
+        // the version is sent by the repository, its hash is a safe file name
+        return new File(_directory, getPrefix(uuid) + version(toBytes(version)) + EXTENSION);
+    }
+
+    private static byte[] toBytes(String version) {
+        try {
+            return version.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the uuid is sent by the client, only its file name safe characters are kept
+    private static String getPrefix(String uuid) {
+        StringBuilder prefix = new StringBuilder(uuid.length() + 1);
+        for (int i = 0; i < uuid.length(); i++) {
+            char c = uuid.charAt(i);
+            prefix.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+        }
+        return prefix.append('@').toString();
+    }
+}
@@ -18,6 +18,9 @@ import org.eclipse.emf.ecore.xmi.impl.XMLSaveImpl;
 
 public class JBPMXMLSaveImpl extends XMLSaveImpl {
 	
+	private static final String CDATA_START = "<![CDATA[";
+	private static final String CDATA_END = "]]>";
+	
 	public JBPMXMLSaveImpl(XMLHelper helper) {
 		super(helper);
 	}
@@ -26,6 +29,72 @@ public class JBPMXMLSaveImpl extends XMLSaveImpl {
 	protected void init(XMLResource resource, Map<?, ?> options) {
 		super.init(resource, options);
 		featureTable = new JBPMXMLSaveImpl.JBPMLookup(map, extendedMetaData, elementHandler);
+		if(escape != null) {
+			escape = new CDataEscape(escape);
+		}
+	}
+	
+	@Override
+	protected String getDatatypeValue(Object value, EStructuralFeature f, boolean isAttribute) {
+		if(!isAttribute && value instanceof String) {
+			String cdata = toCData((String) value);
+			if(cdata != null) {
+				return cdata;
+			}
+		}
+		return super.getDatatypeValue(value, f, isAttribute);
+	}
+	
+	/**
+	 * @return the CDATA sections of a value the unmarshaller wrapped in a CDATA block,
+	 * null if the value isn't one or can't be written as CDATA.
+	 */
+	static String toCData(String value) {
+		if(value == null || !value.startsWith(CDATA_START) || !value.endsWith(CDATA_END)
+				|| value.length() < CDATA_START.length() + CDATA_END.length()) {
+			return null;
+		}
+		String text = value.substring(CDATA_START.length(), value.length() - CDATA_END.length());
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			// the characters xml can't hold, they have to be escaped
+			if((c < 0x20 && c != '\t' && c != '\n' && c != '\r') || c == 0xFFFE || c == 0xFFFF) {
+				return null;
+			}
+		}
+		if(text.indexOf(CDATA_END) < 0) {
+			return value;
+		}
+		// a CDATA section can't hold its end marker, it is split in two sections there
+		return CDATA_START + text.replace(CDATA_END, "]]" + CDATA_END + CDATA_START + ">") + CDATA_END;
+	}
+	
+	/**
+	 * Escapes the text as the save does, but writes the CDATA blocks the scripts,
+	 * expressions and documentation are wrapped in as they are.
+	 */
+	protected static class CDataEscape extends Escape {
+		private final Escape escape;
+		
+		public CDataEscape(Escape escape) {
+			this.escape = escape;
+		}
+		
+		@Override
+		public String convert(String input) {
+			return escape.convert(input);
+		}
+		
+		@Override
+		public String convertText(String input) {
+			String cdata = toCData(input);
+			return cdata != null ? cdata : escape.convertText(input);
+		}
+		
+		@Override
+		public String convertLines(String input) {
+			return escape.convertLines(input);
+		}
 	}
 	
 	@Override
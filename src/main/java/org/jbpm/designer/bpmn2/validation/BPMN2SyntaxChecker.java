@@ -64,6 +64,7 @@ import sun.misc.BASE64Encoder;
 public class BPMN2SyntaxChecker implements SyntaxChecker {
 	protected Map<String, List<String>> errors = new HashMap<String, List<String>>();
 	private String json;
+	private InputStream jsonStream;
 	private String preprocessingData;
 	private IDiagramProfile profile;
 	private String defaultResourceId = "";
@@ -78,8 +79,23 @@ public class BPMN2SyntaxChecker implements SyntaxChecker {
 		this.uuid = uuid;
 	}
 	
+	/**
+	 * @param json the json model, read when the syntax is checked.
+	 */
+	public BPMN2SyntaxChecker(InputStream json, String preprocessingData, IDiagramProfile profile, String uuid) {
+		this.jsonStream = json;
+		this.preprocessingData = preprocessingData;
+		this.profile = profile;
+		this.uuid = uuid;
+	}
+	
 	public void checkSyntax() {
-		Definitions def = profile.createMarshaller().getDefinitions(json, preprocessingData);
+		Definitions def;
+		if(jsonStream != null) {
+			def = profile.createMarshaller().getDefinitions(jsonStream, preprocessingData);
+		} else {
+			def = profile.createMarshaller().getDefinitions(json, preprocessingData);
+		}
 		
 		List<RootElement> rootElements =  def.getRootElements();
         for(RootElement root : rootElements) {
@@ -15,7 +15,11 @@
  */
 package org.jbpm.designer.web;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
+
+import org.jbpm.designer.bpmn2.BpmnMarshallerHelperTracker;
 
 import org.jbpm.designer.server.EditorHandler;
 import org.jbpm.designer.web.filter.IFilterFactory;
@@ -43,6 +47,9 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
  */
 public class Activator implements BundleActivator {
 
+    // the trackers opened by start, closed by stop
+    private List<ServiceTracker> _trackers = new ArrayList<ServiceTracker>();
+
     @SuppressWarnings("rawtypes")
     public void start(final BundleContext context) throws Exception {
         {
@@ -72,6 +79,7 @@ public class Activator implements BundleActivator {
                 ServiceTracker tracker = new ServiceTracker(context,
                         IUUIDBasedRepositoryService.class.getName(), cust);
                 tracker.open();
+                _trackers.add(tracker);
 
             }
         }
@@ -103,6 +111,7 @@ public class Activator implements BundleActivator {
                 ServiceTracker tracker = new ServiceTracker(context,
                 		IDiagramPreferenceService.class.getName(), cust);
                 tracker.open();
+                _trackers.add(tracker);
 
             }
         }
@@ -134,6 +143,7 @@ public class Activator implements BundleActivator {
                 ServiceTracker tracker = new ServiceTracker(context,
                         IFilterFactory.class.getName(), cust);
                 tracker.open();
+                _trackers.add(tracker);
 
             }
         }
@@ -167,12 +177,17 @@ public class Activator implements BundleActivator {
 	        ServiceTracker tracker = new ServiceTracker(context,
 	                IDiagramProfileFactory.class.getName(), cust);
 	        tracker.open();
+	        _trackers.add(tracker);
 	        // register self to make the default profile available to the world:
 	        context.registerService(IDiagramProfileService.class.getName(), ProfileServiceImpl.INSTANCE, new Hashtable());
         }
     }
 
     public void stop(BundleContext bundleContext) throws Exception {
-
+        for (ServiceTracker tracker : _trackers) {
+            tracker.close();
+        }
+        _trackers.clear();
+        BpmnMarshallerHelperTracker.close();
     }
 }
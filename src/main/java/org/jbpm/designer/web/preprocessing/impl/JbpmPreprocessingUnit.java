@@ -1,18 +1,13 @@
 package org.jbpm.designer.web.preprocessing.impl;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -38,14 +33,12 @@ import org.drools.process.core.impl.ParameterDefinitionImpl;
 import org.jbpm.designer.web.preprocessing.IDiagramPreprocessingUnit;
 import org.jbpm.designer.web.profile.IDiagramProfile;
 import org.jbpm.designer.web.profile.impl.ExternalInfo;
+import org.jbpm.designer.web.server.GuvnorClient;
 import org.jbpm.designer.web.server.ServletUtil;
 import org.jbpm.process.workitem.WorkDefinitionImpl;
 import org.drools.process.core.datatype.DataType;
 import org.mvel2.MVEL;
 
-import sun.misc.BASE64Encoder;
-
-
 /**
  * JbpmPreprocessingUnit - preprocessing unit for the jbpm profile
  * 
@@ -263,43 +256,7 @@ public class JbpmPreprocessingUnit implements IDiagramPreprocessingUnit {
     }
     
     private InputStream getInputStreamForURL(String urlLocation, IDiagramProfile profile) throws Exception{
-        // pretend we are mozilla
-        URL url = new URL(urlLocation);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-        connection.setRequestMethod("GET");
-        connection
-                .setRequestProperty(
-                        "User-Agent",
-                        "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.6; en-US; rv:1.9.2.16) Gecko/20110319 Firefox/3.6.16");
-        connection
-                .setRequestProperty("Accept",
-                        "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
-        connection.setRequestProperty("Accept-Language", "en-us,en;q=0.5");
-        connection.setRequestProperty("Accept-Encoding", "gzip,deflate");
-        connection.setRequestProperty("charset", "UTF-8");
-        connection.setReadTimeout(5 * 1000);
-        
-        if(profile.getUsr() != null && profile.getUsr().trim().length() > 0 && profile.getPwd() != null && profile.getPwd().trim().length() > 0) {
-            BASE64Encoder enc = new sun.misc.BASE64Encoder();
-            String userpassword = profile.getUsr() + ":" + profile.getPwd();
-            String encodedAuthorization = enc.encode( userpassword.getBytes() );
-            connection.setRequestProperty("Authorization", "Basic "+ encodedAuthorization);
-        }
-        
-        connection.connect();
-        
-        BufferedReader sreader = new BufferedReader(new InputStreamReader(
-                connection.getInputStream(), "UTF-8"));
-        StringBuilder stringBuilder = new StringBuilder();
-
-        String line = null;
-        while ((line = sreader.readLine()) != null) {
-            stringBuilder.append(line + "\n");
-        }
-        
-        return new ByteArrayInputStream(stringBuilder.toString()
-                .getBytes("UTF-8"));
+        return ServletUtil.getInputStreamForURL(urlLocation, "GET", profile);
     }
     
     private void setupDefaultWorkitemConfigs(String uuid, List<String> packageNames, IDiagramProfile profile) {
@@ -371,113 +328,15 @@ public class JbpmPreprocessingUnit implements IDiagramPreprocessingUnit {
                             profile.getExternalLoadURLSubdomain().indexOf("/"))
                     + "/rest/packages/" + pkg + "/assets/";
     		try {
-				// check if the images already exists
-				URL checkEmailIconURL = new URL(emailIconURL);
-				HttpURLConnection checkEmailIconConnection = (HttpURLConnection) checkEmailIconURL
-				        .openConnection();
-				applyAuth(profile, checkEmailIconConnection);
-				checkEmailIconConnection.setRequestMethod("GET");
-				checkEmailIconConnection
-				        .setRequestProperty("Accept", "application/atom+xml");
-				checkEmailIconConnection.connect();
-				System.out.println("check email icon connection response code: " + checkEmailIconConnection.getResponseCode());
-				if (checkEmailIconConnection.getResponseCode() == 200) {
-				    URL deleteAssetURL = new URL(emailIconURL);
-				    HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-				            .openConnection();
-				    applyAuth(profile, deleteConnection);
-				    deleteConnection.setRequestMethod("DELETE");
-				    deleteConnection.connect();
-				    System.out.println("delete email icon response code: " + deleteConnection.getResponseCode());
-				}
-				
-				URL checkLogIconURL = new URL(logIconURL);
-				HttpURLConnection checkLogIconConnection = (HttpURLConnection) checkLogIconURL
-				        .openConnection();
-				applyAuth(profile, checkLogIconConnection);
-				checkLogIconConnection.setRequestMethod("GET");
-				checkLogIconConnection
-				        .setRequestProperty("Accept", "application/atom+xml");
-				checkLogIconConnection.connect();
-				System.out.println("check log icon connection response code: " + checkLogIconConnection.getResponseCode());
-				if (checkLogIconConnection.getResponseCode() == 200) {
-				    URL deleteAssetURL = new URL(logIconURL);
-				    HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-				            .openConnection();
-				    applyAuth(profile, deleteConnection);
-				    deleteConnection.setRequestMethod("DELETE");
-				    deleteConnection.connect();
-				    System.out.println("delete log icon response code: " + deleteConnection.getResponseCode());
-				}
-				
-				URL checkServiceNodeIconURL = new URL(serviceNodeIconURL);
-				HttpURLConnection checkServiceNodeIconConnection = (HttpURLConnection) checkServiceNodeIconURL
-				        .openConnection();
-				applyAuth(profile, checkServiceNodeIconConnection);
-				checkServiceNodeIconConnection.setRequestMethod("GET");
-				checkServiceNodeIconConnection
-				        .setRequestProperty("Accept", "application/atom+xml");
-				checkServiceNodeIconConnection.connect();
-				System.out.println("check service node icon connection response code: " + checkServiceNodeIconConnection.getResponseCode());
-				if (checkServiceNodeIconConnection.getResponseCode() == 200) {
-				    URL deleteAssetURL = new URL(serviceNodeIconURL);
-				    HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-				            .openConnection();
-				    applyAuth(profile, deleteConnection);
-				    deleteConnection.setRequestMethod("DELETE");
-				    deleteConnection.connect();
-				    System.out.println("delete service node icon response code: " + deleteConnection.getResponseCode());
-				}
-				
-				// now push all defaults 
-				// email icon
-				URL createEmailIconURL = new URL(packageAssetsURL);
-	            HttpURLConnection createEmailIconConnection = (HttpURLConnection) createEmailIconURL
-	                    .openConnection();
-	            applyAuth(profile, createEmailIconConnection);
-	            createEmailIconConnection.setRequestMethod("POST");
-	            createEmailIconConnection.setRequestProperty("Content-Type",
-	                    "application/octet-stream");
-	            createEmailIconConnection.setRequestProperty("Accept",
-	                    "application/atom+xml");
-	            createEmailIconConnection.setRequestProperty("Slug", "defaultemailicon.gif");
-	            createEmailIconConnection.setDoOutput(true);
-	            createEmailIconConnection.getOutputStream().write(getBytesFromFile(new File(default_emailicon)));
-	            createEmailIconConnection.connect();
-	            System.out.println("created email icon: " + createEmailIconConnection.getResponseCode());
+				// replace the images if they already exist
+				GuvnorClient guvnor = GuvnorClient.getInstance();
+				guvnor.replace(emailIconURL, packageAssetsURL, "defaultemailicon.gif",
+				        getBytesFromFile(new File(default_emailicon)), profile);
+				guvnor.replace(logIconURL, packageAssetsURL, "defaultlogicon.gif",
+				        getBytesFromFile(new File(default_logicon)), profile);
+				guvnor.replace(serviceNodeIconURL, packageAssetsURL, "defaultservicenodeicon.png",
+				        getBytesFromFile(new File(default_servicenodeicon)), profile);
 				
-	            // log icon
-	            URL createLogIconURL = new URL(packageAssetsURL);
-	            HttpURLConnection createLogIconConnection = (HttpURLConnection) createLogIconURL
-	                    .openConnection();
-	            applyAuth(profile, createLogIconConnection);
-	            createLogIconConnection.setRequestMethod("POST");
-	            createLogIconConnection.setRequestProperty("Content-Type",
-	                    "application/octet-stream");
-	            createLogIconConnection.setRequestProperty("Accept",
-	                    "application/atom+xml");
-	            createLogIconConnection.setRequestProperty("Slug", "defaultlogicon.gif");
-	            createLogIconConnection.setDoOutput(true);
-	            createLogIconConnection.getOutputStream().write(getBytesFromFile(new File(default_logicon)));
-	            createLogIconConnection.connect();
-	            System.out.println("created log icon: " + createLogIconConnection.getResponseCode());
-	            
-	            // service node icon
-	            URL createServiceNodeIconURL = new URL(packageAssetsURL);
-	            HttpURLConnection createServiceNodeIconConnection = (HttpURLConnection) createServiceNodeIconURL
-	                    .openConnection();
-	            applyAuth(profile, createServiceNodeIconConnection);
-	            createServiceNodeIconConnection.setRequestMethod("POST");
-	            createServiceNodeIconConnection.setRequestProperty("Content-Type",
-	                    "application/octet-stream");
-	            createServiceNodeIconConnection.setRequestProperty("Accept",
-	                    "application/atom+xml");
-	            createServiceNodeIconConnection.setRequestProperty("Slug", "defaultservicenodeicon.png");
-	            createServiceNodeIconConnection.setDoOutput(true);
-	            createServiceNodeIconConnection.getOutputStream().write(getBytesFromFile(new File(default_servicenodeicon)));
-	            createServiceNodeIconConnection.connect();
-	            System.out.println("created service node icon: " + createServiceNodeIconConnection.getResponseCode());
-	            
 				// default configuration wid
 	            StringTemplate widConfigTemplate = new StringTemplate(readFile(default_widconfigtemplate));
 	            widConfigTemplate.setAttribute("protocol", ExternalInfo.getExternalProtocol(profile));
@@ -486,20 +345,9 @@ public class JbpmPreprocessingUnit implements IDiagramPreprocessingUnit {
                         profile.getExternalLoadURLSubdomain().indexOf("/")));
 	            widConfigTemplate.setAttribute("pkgName", pkg);
 	            
-	            URL createWidURL = new URL(packageAssetsURL);
-	            HttpURLConnection createWidConnection = (HttpURLConnection) createWidURL
-	                    .openConnection();
-	            applyAuth(profile, createWidConnection);
-	            createWidConnection.setRequestMethod("POST");
-	            createWidConnection.setRequestProperty("Content-Type",
-	                    "application/octet-stream");
-	            createWidConnection.setRequestProperty("Accept",
-	                    "application/atom+xml");
-	            createWidConnection.setRequestProperty("Slug", "WorkDefinitions.wid");
-	            createWidConnection.setDoOutput(true);
-	            createWidConnection.getOutputStream().write(widConfigTemplate.toString().getBytes("UTF-8"));
-	            createWidConnection.connect();
-	            System.out.println("created default wid: " + createWidConnection.getResponseCode());
+	            int created = guvnor.create(packageAssetsURL, "WorkDefinitions.wid",
+	                    widConfigTemplate.toString().getBytes("UTF-8"), profile);
+	            _logger.info("created default wid: " + created);
 			} catch (Exception e) {
                 e.printStackTrace();
 			}
@@ -631,17 +479,6 @@ public class JbpmPreprocessingUnit implements IDiagramPreprocessingUnit {
         _logger.info("Created file:" + file);
     }
     
-    private void applyAuth(IDiagramProfile profile, HttpURLConnection connection) {
-        if (profile.getUsr() != null && profile.getUsr().trim().length() > 0
-                && profile.getPwd() != null
-                && profile.getPwd().trim().length() > 0) {
-            BASE64Encoder enc = new sun.misc.BASE64Encoder();
-            String userpassword = profile.getUsr() + ":" + profile.getPwd();
-            String encodedAuthorization = enc.encode(userpassword.getBytes());
-            connection.setRequestProperty("Authorization", "Basic "
-                    + encodedAuthorization);
-        }
-    }
     public static byte[] getBytesFromFile(File file) throws IOException {
     	InputStream is = null;
     	is = new FileInputStream(file);
@@ -15,10 +15,15 @@
  */
 package org.jbpm.designer.web.profile;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
+import java.util.List;
 
 import org.eclipse.bpmn2.Definitions;
 import org.eclipse.emf.ecore.resource.Resource;
+import org.jbpm.designer.web.repository.PatchableModel;
 
 /**
  * A profile for the editor to choose which stencilset 
@@ -125,6 +130,27 @@ public interface IDiagramProfile {
         public String parseModel(String jsonModel, String preProcessingData);
         public Definitions getDefinitions(String jsonModel, String preProcessingData); 
         public Resource getResource(String jsonModel, String preProcessingData);
+        
+        /**
+         * @param jsonModel the model, read as it is parsed. The stream is not closed.
+         * @param output where to write the serialized model. The stream is not closed.
+         */
+        public void parseModel(InputStream jsonModel, String preProcessingData, OutputStream output) throws IOException;
+        public Definitions getDefinitions(InputStream jsonModel, String preProcessingData);
+        public Resource getResource(InputStream jsonModel, String preProcessingData);
+
+        /**
+         * Checks that the model could be saved and read back, without saving it.
+         * @param jsonModel the model, read as it is parsed. The stream is not closed.
+         * @return the problems found, empty if none.
+         */
+        public List<String> validate(InputStream jsonModel, String preProcessingData);
+
+        /**
+         * @param jsonModel the whole model
+         * @return the model, kept to be patched with the shapes the editor changes.
+         */
+        public PatchableModel createPatchableModel(String jsonModel, String preProcessingData) throws IOException;
     }
     
     /**
@@ -140,5 +166,12 @@ public interface IDiagramProfile {
          * @return the json model
          */
         public String parseModel(String xmlModel, IDiagramProfile profile, String preProcessingData);
+        
+        /**
+         * @param xmlModel the bpmn2 xml model, read as it is parsed. The stream is not closed.
+         * @param profile process profile.
+         * @param output where to write the json model. The stream is not closed.
+         */
+        public void parseModel(InputStream xmlModel, IDiagramProfile profile, String preProcessingData, OutputStream output) throws IOException;
     }
 }
@@ -21,9 +21,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletContext;
@@ -50,6 +52,7 @@ import org.jbpm.designer.bpmn2.resource.JBPMBpmn2ResourceImpl;
 import org.jbpm.designer.web.plugin.IDiagramPlugin;
 import org.jbpm.designer.web.plugin.impl.PluginServiceImpl;
 import org.jbpm.designer.web.profile.IDiagramProfile;
+import org.jbpm.designer.web.repository.PatchableModel;
 import org.jbpm.designer.web.profile.IDiagramProfile.IDiagramUnmarshaller;
 
 
@@ -73,6 +76,8 @@ public class DefaultProfileImpl implements IDiagramProfile {
     private String _usr;
     private String _pwd;
     private String _serviceRepositoryLocation;
+    // the unmarshaller keeps no state, it is shared with the other profiles and servlets
+    private Bpmn2JsonUnmarshaller _unmarshaller = Bpmn2JsonUnmarshaller.INSTANCE;
     
     public DefaultProfileImpl(ServletContext servletContext) {
         this(servletContext, true);
@@ -175,11 +180,10 @@ public class DefaultProfileImpl implements IDiagramProfile {
     public IDiagramMarshaller createMarshaller() {
         return new IDiagramMarshaller() {
             public String parseModel(String jsonModel, String preProcessingData) {
-                Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
                 //Definitions def;
                 Resource res;
                 try {
-                    res = unmarshaller.unmarshall(jsonModel, preProcessingData);
+                    res = _unmarshaller.unmarshall(jsonModel, preProcessingData);
                     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
                     res.save(outputStream, Collections.singletonMap(XMLResource.OPTION_ENCODING, "UTF-8"));
                     return outputStream.toString();
@@ -195,8 +199,7 @@ public class DefaultProfileImpl implements IDiagramProfile {
             public Definitions getDefinitions(String jsonModel,
 					String preProcessingData) {
 				try {
-					Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
-					JBPMBpmn2ResourceImpl res = (JBPMBpmn2ResourceImpl) unmarshaller.unmarshall(jsonModel, preProcessingData);
+					JBPMBpmn2ResourceImpl res = (JBPMBpmn2ResourceImpl) _unmarshaller.unmarshall(jsonModel, preProcessingData);
 					return (Definitions) res.getContents().get(0);
 				} catch (JsonParseException e) {
 					_logger.error(e.getMessage(), e);
@@ -208,8 +211,7 @@ public class DefaultProfileImpl implements IDiagramProfile {
             
             public Resource getResource(String jsonModel, String preProcessingData) {
 				try {
-					Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
-					return (JBPMBpmn2ResourceImpl) unmarshaller.unmarshall(jsonModel, preProcessingData);
+					return (JBPMBpmn2ResourceImpl) _unmarshaller.unmarshall(jsonModel, preProcessingData);
 				} catch (JsonParseException e) {
 					_logger.error(e.getMessage(), e);
 				} catch (IOException e) {
@@ -217,6 +219,35 @@ public class DefaultProfileImpl implements IDiagramProfile {
 				}
 				return null;
 			}
+
+            public void parseModel(InputStream jsonModel, String preProcessingData, OutputStream output) throws IOException {
+                Resource res = _unmarshaller.unmarshall(jsonModel, preProcessingData);
+                res.save(output, Collections.singletonMap(XMLResource.OPTION_ENCODING, "UTF-8"));
+            }
+
+            public Definitions getDefinitions(InputStream jsonModel, String preProcessingData) {
+                Resource res = getResource(jsonModel, preProcessingData);
+                return res == null ? null : (Definitions) res.getContents().get(0);
+            }
+
+            public Resource getResource(InputStream jsonModel, String preProcessingData) {
+                try {
+                    return (JBPMBpmn2ResourceImpl) _unmarshaller.unmarshall(jsonModel, preProcessingData);
+                } catch (JsonParseException e) {
+                    _logger.error(e.getMessage(), e);
+                } catch (IOException e) {
+                    _logger.error(e.getMessage(), e);
+                }
+                return null;
+            }
+
+            public List<String> validate(InputStream jsonModel, String preProcessingData) {
+                return _unmarshaller.validate(jsonModel, preProcessingData);
+            }
+
+            public PatchableModel createPatchableModel(String jsonModel, String preProcessingData) throws IOException {
+                return new PatchableModel(_unmarshaller, preProcessingData, jsonModel);
+            }
         };
     }
     
@@ -232,17 +263,35 @@ public class DefaultProfileImpl implements IDiagramProfile {
                 }
                 return "";
             }
+
+            public void parseModel(InputStream xmlModel, IDiagramProfile profile, String preProcessingData, OutputStream output) throws IOException {
+                Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+                marshaller.setProfile(profile);
+                Definitions def = getDefinitions(xmlModel);
+                if (def == null) {
+                    throw new IOException("Unable to parse the bpmn2 model");
+                }
+                marshaller.marshall(def, preProcessingData, output);
+            }
         };
     }
     
     private Definitions getDefinitions(String xml) {
+        try {
+            return getDefinitions(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return null;
+        }
+    }
+    
+    private Definitions getDefinitions(InputStream is) {
         try {
             ResourceSet resourceSet = new ResourceSetImpl();
             resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap()
                 .put(Resource.Factory.Registry.DEFAULT_EXTENSION, new Bpmn2ResourceFactoryImpl());
             resourceSet.getPackageRegistry().put("http://www.omg.org/spec/BPMN/20100524/MODEL", Bpmn2Package.eINSTANCE);
             Resource resource = resourceSet.createResource(URI.createURI("inputStream://dummyUriWithValidSuffix.xml"));
-            InputStream is = new ByteArrayInputStream(xml.getBytes("UTF-8"));
             resource.load(is, Collections.EMPTY_MAP);
             resource.load(Collections.EMPTY_MAP);
             return ((DocumentRoot) resource.getContents().get(0)).getDefinitions();
@@ -4,9 +4,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletContext;
@@ -14,6 +17,7 @@ import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
+import org.apache.commons.io.IOUtils;
 import org.codehaus.jackson.JsonParseException;
 import org.eclipse.bpmn2.Definitions;
 import org.eclipse.emf.ecore.resource.Resource;
@@ -24,6 +28,7 @@ import org.jbpm.designer.epn.impl.EpnJsonUnmarshaller;
 import org.jbpm.designer.web.plugin.IDiagramPlugin;
 import org.jbpm.designer.web.plugin.impl.PluginServiceImpl;
 import org.jbpm.designer.web.profile.IDiagramProfile;
+import org.jbpm.designer.web.repository.PatchableModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +49,8 @@ public class EpnProfileImpl implements IDiagramProfile {
     private String _usr;
     private String _pwd;
     private String _serviceRepositoryLocation;
+    // the unmarshaller keeps no state, it is shared with the other profiles and servlets
+    private Bpmn2JsonUnmarshaller _unmarshaller = Bpmn2JsonUnmarshaller.INSTANCE;
     
     public EpnProfileImpl(ServletContext servletContext) {
         this(servletContext, true);
@@ -171,8 +178,7 @@ public class EpnProfileImpl implements IDiagramProfile {
             public Definitions getDefinitions(String jsonModel,
 					String preProcessingData) {
 				try {
-					Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
-					JBPMBpmn2ResourceImpl res = (JBPMBpmn2ResourceImpl) unmarshaller.unmarshall(jsonModel, preProcessingData);
+					JBPMBpmn2ResourceImpl res = (JBPMBpmn2ResourceImpl) _unmarshaller.unmarshall(jsonModel, preProcessingData);
 					return (Definitions) res.getContents().get(0);
 				} catch (JsonParseException e) {
 					_logger.error(e.getMessage(), e);
@@ -184,8 +190,7 @@ public class EpnProfileImpl implements IDiagramProfile {
             
             public Resource getResource(String jsonModel, String preProcessingData) {
 				try {
-					Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
-					return (JBPMBpmn2ResourceImpl) unmarshaller.unmarshall(jsonModel, preProcessingData);
+					return (JBPMBpmn2ResourceImpl) _unmarshaller.unmarshall(jsonModel, preProcessingData);
 				} catch (JsonParseException e) {
 					_logger.error(e.getMessage(), e);
 				} catch (IOException e) {
@@ -193,6 +198,45 @@ public class EpnProfileImpl implements IDiagramProfile {
 				}
 				return null;
 			}
+
+            public void parseModel(InputStream jsonModel, String preProcessingData, OutputStream output) throws IOException {
+                //TODO write the model when we have the epn ecore model
+            }
+
+            public Definitions getDefinitions(InputStream jsonModel, String preProcessingData) {
+                Resource res = getResource(jsonModel, preProcessingData);
+                return res == null ? null : (Definitions) res.getContents().get(0);
+            }
+
+            public Resource getResource(InputStream jsonModel, String preProcessingData) {
+                try {
+                    return (JBPMBpmn2ResourceImpl) _unmarshaller.unmarshall(jsonModel, preProcessingData);
+                } catch (JsonParseException e) {
+                    _logger.error(e.getMessage(), e);
+                } catch (IOException e) {
+                    _logger.error(e.getMessage(), e);
+                }
+                return null;
+            }
+
+            public List<String> validate(InputStream jsonModel, String preProcessingData) {
+                //TODO validate the model when we have the epn ecore model
+                // until then, the verdict of the round trip through xml the models were checked with
+                try {
+                    String xml = parseModel(IOUtils.toString(jsonModel, "UTF-8"), preProcessingData);
+                    String json = createUnmarshaller().parseModel(xml, EpnProfileImpl.this, preProcessingData);
+                    if (json != null && json.length() > 0) {
+                        return Collections.emptyList();
+                    }
+                } catch (IOException e) {
+                    _logger.error(e.getMessage(), e);
+                }
+                return Collections.singletonList("The epn model can't be read back");
+            }
+
+            public PatchableModel createPatchableModel(String jsonModel, String preProcessingData) throws IOException {
+                return new PatchableModel(_unmarshaller, preProcessingData, jsonModel);
+            }
         };
     }
 
@@ -208,6 +252,12 @@ public class EpnProfileImpl implements IDiagramProfile {
                 }
                 return "";
             }
+
+            public void parseModel(InputStream xmlModel, IDiagramProfile profile, String preProcessingData, OutputStream output) throws IOException {
+                EpnJsonMarshaller marshaller = new EpnJsonMarshaller();
+                marshaller.setProfile(profile);
+                output.write(marshaller.marshall("").getBytes("UTF-8")); // TODO FIX THIS!
+            }
         };
     }
 
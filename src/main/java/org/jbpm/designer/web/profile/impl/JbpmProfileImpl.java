@@ -2,14 +2,17 @@ package org.jbpm.designer.web.profile.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletContext;
@@ -17,28 +20,31 @@ import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
-import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.io.IOUtils;
 import org.codehaus.jackson.JsonParseException;
 import org.eclipse.bpmn2.Definitions;
-import org.eclipse.emf.common.util.URI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 import org.eclipse.bpmn2.DocumentRoot;
-import org.eclipse.bpmn2.Bpmn2Package;
 import org.eclipse.emf.common.util.EList;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.Resource.Diagnostic;
-import org.eclipse.emf.ecore.resource.ResourceSet;
-import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.jbpm.designer.bpmn2.impl.Bpmn2AssetCache;
+import org.jbpm.designer.bpmn2.impl.Bpmn2DefinitionsCache;
 import org.jbpm.designer.bpmn2.impl.Bpmn2JsonMarshaller;
 import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
-import org.jbpm.designer.bpmn2.resource.JBPMBpmn2ResourceFactoryImpl;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonWriter;
+import org.jbpm.designer.bpmn2.impl.Bpmn2StencilDefaults;
+import org.jbpm.designer.bpmn2.impl.Bpmn2XmlWriter;
+import org.jbpm.designer.bpmn2.resource.Bpmn2ResourceSetPool;
+import org.jbpm.designer.bpmn2.resource.Bpmn2SnapshotStore;
 import org.jbpm.designer.bpmn2.resource.JBPMBpmn2ResourceImpl;
 import org.jbpm.designer.web.plugin.IDiagramPlugin;
 import org.jbpm.designer.web.plugin.impl.PluginServiceImpl;
 import org.jbpm.designer.web.profile.IDiagramProfile;
+import org.jbpm.designer.web.repository.PatchableModel;
 
 
 /**
@@ -58,6 +64,19 @@ public class JbpmProfileImpl implements IDiagramProfile {
     private String _usr;
     private String _pwd;
     private String _serviceRepositoryLocation;
+    // the unmarshaller keeps no state, it is shared with the other profiles and servlets
+    private Bpmn2JsonUnmarshaller _unmarshaller = Bpmn2JsonUnmarshaller.INSTANCE;
+    private Bpmn2XmlWriter _xmlWriter = new Bpmn2XmlWriter(_unmarshaller);
+    // the models are shared with the other profiles and servlets
+    private Bpmn2DefinitionsCache _definitionsCache = Bpmn2DefinitionsCache.INSTANCE;
+    // the xml models are loaded with the options of the profile
+    private Bpmn2ResourceSetPool _resourceSetPool = Bpmn2ResourceSetPool.getDefault();
+    // the snapshots of the assets loaded from the repository, if the profile keeps them
+    private Bpmn2SnapshotStore _snapshotStore;
+    // the definitions of the assets loaded with their subprocesses collapsed
+    private Bpmn2AssetCache _assetCache = Bpmn2AssetCache.INSTANCE;
+    // the defaults of the stencil set, null if it couldn't be read
+    private Bpmn2StencilDefaults _stencilDefaults;
     
     public JbpmProfileImpl(ServletContext servletContext) {
         this(servletContext, true);
@@ -170,6 +189,29 @@ public class JbpmProfileImpl implements IDiagramProfile {
                                 }
                     		}
                     	}
+                    } else if ("emfloadoptions".equals(reader.getLocalName())) {
+                        boolean parserPool = true;
+                        boolean nameToFeatureMap = true;
+                        boolean deferIdrefResolution = true;
+                        for (int i = 0 ; i < reader.getAttributeCount() ; i++) {
+                            if ("parserpool".equals(reader.getAttributeLocalName(i))) {
+                                parserPool = Boolean.parseBoolean(reader.getAttributeValue(i));
+                            } else if ("nametofeaturemap".equals(reader.getAttributeLocalName(i))) {
+                                nameToFeatureMap = Boolean.parseBoolean(reader.getAttributeValue(i));
+                            } else if ("deferidrefresolution".equals(reader.getAttributeLocalName(i))) {
+                                deferIdrefResolution = Boolean.parseBoolean(reader.getAttributeValue(i));
+                            }
+                        }
+                        _resourceSetPool = Bpmn2ResourceSetPool.getPool(parserPool, nameToFeatureMap, deferIdrefResolution);
+                    } else if ("snapshots".equals(reader.getLocalName())) {
+                        String directory = null;
+                        for (int i = 0 ; i < reader.getAttributeCount() ; i++) {
+                            if ("directory".equals(reader.getAttributeLocalName(i))) {
+                                directory = reader.getAttributeValue(i);
+                            }
+                        }
+                        _snapshotStore = Bpmn2SnapshotStore.getStore(isEmpty(directory)
+                                ? getDefaultSnapshotDirectory(context) : new File(directory));
                     }
                 }
             }
@@ -179,6 +221,49 @@ public class JbpmProfileImpl implements IDiagramProfile {
         } finally {
             if (fileStream != null) { try { fileStream.close(); } catch(IOException e) {}};
         }
+        if (_stencilSet != null) {
+            String stencilSetPath = context.getRealPath("/stencilsets/" + _stencilSet + "/" + _stencilSet + ".json");
+            try {
+                _stencilDefaults = Bpmn2StencilDefaults.getInstance(new File(stencilSetPath));
+            } catch (Exception e) {
+                // the models are then always written with all their properties
+                _logger.error("Unable to read the defaults of the stencil set " + stencilSetPath, e);
+            }
+        }
+    }
+
+    public Bpmn2StencilDefaults getStencilDefaults() {
+        return _stencilDefaults;
+    }
+
+    public void setStencilDefaults(Bpmn2StencilDefaults stencilDefaults) {
+        _stencilDefaults = stencilDefaults;
+    }
+
+    /**
+     * @param sparse whether the json leaves out the properties equal to the default
+     * of their stencil, which the editor fills when it loads them. Ignored when the
+     * defaults of the stencil set are unknown.
+     */
+    private Bpmn2JsonWriter createJsonWriter(boolean sparse) {
+        Bpmn2JsonWriter writer = new Bpmn2JsonWriter(this);
+        if (sparse) {
+            writer.setStencilDefaults(_stencilDefaults);
+        }
+        return writer;
+    }
+
+    /**
+     * @param sparse as for {@link #createJsonWriter(boolean)}
+     */
+    private Bpmn2JsonMarshaller createJsonMarshaller(boolean collapseSubProcesses, boolean sparse) {
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(this);
+        marshaller.setCollapseSubProcesses(collapseSubProcesses);
+        if (sparse) {
+            marshaller.setStencilDefaults(_stencilDefaults);
+        }
+        return marshaller;
     }
 
     public String getName() {
@@ -216,13 +301,10 @@ public class JbpmProfileImpl implements IDiagramProfile {
     public IDiagramMarshaller createMarshaller() {
         return new IDiagramMarshaller() {
             public String parseModel(String jsonModel, String preProcessingData) {
-                Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
-                JBPMBpmn2ResourceImpl res;
                 try {
-                    res = (JBPMBpmn2ResourceImpl) unmarshaller.unmarshall(jsonModel, preProcessingData);
                     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                    res.save(outputStream, new HashMap<Object, Object>());
-                    return StringEscapeUtils.unescapeHtml(outputStream.toString("UTF-8"));
+                    _xmlWriter.write(new ByteArrayInputStream(jsonModel.getBytes("UTF-8")), preProcessingData, outputStream);
+                    return outputStream.toString("UTF-8");
                 } catch (JsonParseException e) {
                     _logger.error(e.getMessage(), e);
                 } catch (IOException e) {
@@ -234,9 +316,7 @@ public class JbpmProfileImpl implements IDiagramProfile {
 			public Definitions getDefinitions(String jsonModel,
 					String preProcessingData) {
 				try {
-					Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
-					JBPMBpmn2ResourceImpl res = (JBPMBpmn2ResourceImpl) unmarshaller.unmarshall(jsonModel, preProcessingData);
-					return (Definitions) res.getContents().get(0);
+					return _definitionsCache.getDefinitions(jsonModel.getBytes("UTF-8"), preProcessingData);
 				} catch (JsonParseException e) {
 					_logger.error(e.getMessage(), e);
 				} catch (IOException e) {
@@ -247,8 +327,7 @@ public class JbpmProfileImpl implements IDiagramProfile {
 			
 			public Resource getResource(String jsonModel, String preProcessingData) {
 				try {
-					Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
-					return (JBPMBpmn2ResourceImpl) unmarshaller.unmarshall(jsonModel, preProcessingData);
+					return (JBPMBpmn2ResourceImpl) _definitionsCache.copyResource(jsonModel.getBytes("UTF-8"), preProcessingData);
 				} catch (JsonParseException e) {
 					_logger.error(e.getMessage(), e);
 				} catch (IOException e) {
@@ -256,37 +335,250 @@ public class JbpmProfileImpl implements IDiagramProfile {
 				}
 				return null;
 			}
+
+            public void parseModel(InputStream jsonModel, String preProcessingData, OutputStream output) throws IOException {
+                _xmlWriter.write(jsonModel, preProcessingData, output);
+            }
+
+            public Definitions getDefinitions(InputStream jsonModel, String preProcessingData) {
+                try {
+                    return _definitionsCache.getDefinitions(jsonModel, preProcessingData);
+                } catch (JsonParseException e) {
+                    _logger.error(e.getMessage(), e);
+                } catch (IOException e) {
+                    _logger.error(e.getMessage(), e);
+                }
+                return null;
+            }
+
+            public Resource getResource(InputStream jsonModel, String preProcessingData) {
+                try {
+                    return (JBPMBpmn2ResourceImpl) _definitionsCache.copyResource(jsonModel, preProcessingData);
+                } catch (JsonParseException e) {
+                    _logger.error(e.getMessage(), e);
+                } catch (IOException e) {
+                    _logger.error(e.getMessage(), e);
+                }
+                return null;
+            }
+
+            public List<String> validate(InputStream jsonModel, String preProcessingData) {
+                return _definitionsCache.validate(jsonModel, preProcessingData);
+            }
+
+            public PatchableModel createPatchableModel(String jsonModel, String preProcessingData) throws IOException {
+                return new PatchableModel(_unmarshaller, preProcessingData, jsonModel);
+            }
         };
     }
 
     public IDiagramUnmarshaller createUnmarshaller() {
         return new IDiagramUnmarshaller() {
             public String parseModel(String xmlModel, IDiagramProfile profile, String preProcessingData) {
-                Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
-                marshaller.setProfile(profile);
                 try {
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    if (new Bpmn2JsonWriter(profile).write(xmlModel.getBytes("UTF-8"), preProcessingData, outputStream)) {
+                        return outputStream.toString("UTF-8");
+                    }
+                    Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+                    marshaller.setProfile(profile);
                     return marshaller.marshall(getDefinitions(xmlModel), preProcessingData);
                 } catch (Exception e) {
                     _logger.error(e.getMessage(), e);
                 }
                 return "";
             }
+
+            public void parseModel(InputStream xmlModel, IDiagramProfile profile, String preProcessingData, OutputStream output) throws IOException {
+                // the xml is read twice by the writer, and once more by EMF if the writer can't convert it
+                byte[] bytes = IOUtils.toByteArray(xmlModel);
+                if (new Bpmn2JsonWriter(profile).write(bytes, preProcessingData, output)) {
+                    return;
+                }
+                Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+                marshaller.setProfile(profile);
+                Definitions def = getDefinitions(new ByteArrayInputStream(bytes));
+                if (def == null) {
+                    throw new IOException("Unable to parse the bpmn2 model");
+                }
+                marshaller.marshall(def, preProcessingData, output);
+            }
         };
     }
     
+    /**
+     * @return the directory of the snapshots in the temporary directory the
+     * container gives the web application, which no other application shares.
+     */
+    private static File getDefaultSnapshotDirectory(ServletContext context) {
+        Object tempDir = context.getAttribute("javax.servlet.context.tempdir");
+        if (tempDir instanceof File) {
+            return new File((File) tempDir, "designer-snapshots");
+        }
+        // named after the context path, as the container would name its own
+        String name = context.getContextPath() == null ? "" : context.getContextPath().replaceAll("[^A-Za-z0-9_-]", "_");
+        return new File(System.getProperty("java.io.tmpdir"), "designer-snapshots" + name);
+    }
+
     public Definitions getDefinitions(String xml) {
         try {
-            ResourceSet resourceSet = new ResourceSetImpl();
-            resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap()
-                .put(Resource.Factory.Registry.DEFAULT_EXTENSION, new JBPMBpmn2ResourceFactoryImpl());
-            resourceSet.getPackageRegistry().put("http://www.omg.org/spec/BPMN/20100524/MODEL", Bpmn2Package.eINSTANCE);
-            JBPMBpmn2ResourceImpl resource = (JBPMBpmn2ResourceImpl) resourceSet.createResource(URI.createURI("inputStream://dummyUriWithValidSuffix.xml"));
-            resource.getDefaultLoadOptions().put(JBPMBpmn2ResourceImpl.OPTION_ENCODING, "UTF-8");
-            resource.setEncoding("UTF-8");
-            Map<String, Object> options = new HashMap<String, Object>();
-            options.put( JBPMBpmn2ResourceImpl.OPTION_ENCODING, "UTF-8" );
-            InputStream is = new ByteArrayInputStream(xml.getBytes("UTF-8"));
-            resource.load(is, options);
+            return getDefinitions(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param uuid the uuid of the asset the xml was loaded from
+     * @return the definitions of the xml, read from the snapshot of that version
+     * of the asset when the profile keeps snapshots.
+     */
+    public Definitions getDefinitions(String uuid, String xml) {
+        return getDefinitions(uuid, null, xml);
+    }
+
+    /**
+     * @param uuid the uuid of the asset the xml was loaded from
+     * @param version the version the repository gives that xml, null to use a hash of the xml
+     * @return the definitions of the xml, read from the snapshot of that version
+     * of the asset when the profile keeps snapshots.
+     */
+    public Definitions getDefinitions(String uuid, String version, String xml) {
+        if (_snapshotStore == null || uuid == null) {
+            return getDefinitions(xml);
+        }
+        try {
+            byte[] bytes = xml.getBytes("UTF-8");
+            if (version == null) {
+                version = Bpmn2SnapshotStore.version(bytes);
+            }
+            Definitions def = _snapshotStore.load(uuid, version);
+            if (def == null) {
+                def = getDefinitions(new ByteArrayInputStream(bytes));
+                if (def != null) {
+                    _snapshotStore.store(uuid, version, def);
+                }
+            }
+            return def;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param uuid the uuid of the asset the xml was loaded from
+     * @return the json model of the xml, or an empty string if it can't be parsed.
+     */
+    public String parseModel(String uuid, String xml, String preProcessingData) {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            parseModel(uuid, xml, preProcessingData, false, outputStream);
+            return outputStream.toString("UTF-8");
+        } catch (Exception e) {
+            _logger.error(e.getMessage(), e);
+        }
+        return "";
+    }
+
+    /**
+     * Writes the json model of the xml to the stream, nothing if the xml can't be parsed.
+     * The models {@link Bpmn2JsonWriter} supports are written straight from the xml,
+     * the others are read from their snapshot or loaded by EMF.
+     * @param uuid the uuid of the asset the xml was loaded from
+     * @param sparse whether the json leaves out the properties equal to the default
+     * of their stencil, which the editor fills when it loads them
+     * @param output where to write the json model, in UTF-8. The stream is not closed.
+     */
+    public void parseModel(String uuid, String xml, String preProcessingData, boolean sparse, OutputStream output) throws IOException {
+        parseModel(uuid, null, xml, preProcessingData, sparse, output);
+    }
+
+    /**
+     * As {@link #parseModel(String, String, String, boolean, OutputStream)}, with
+     * the version the repository gives the xml to find its snapshot.
+     * @param version the version of the asset the xml was loaded from, null to use
+     * a hash of the xml
+     */
+    public void parseModel(String uuid, String version, String xml, String preProcessingData, boolean sparse, OutputStream output) throws IOException {
+        if (createJsonWriter(sparse).write(xml.getBytes("UTF-8"), preProcessingData, output)) {
+            return;
+        }
+        Definitions def = getDefinitions(uuid, version, xml);
+        if (def == null) {
+            _logger.error("Unable to parse the bpmn2 model of " + uuid);
+            return;
+        }
+        createJsonMarshaller(false, sparse).marshall(def, preProcessingData, output);
+    }
+
+    /**
+     * Writes the json model of the xml to the stream with its embedded subprocesses
+     * collapsed, nothing if the xml can't be parsed. The definitions of that version
+     * of the asset are kept for {@link #parseSubProcess(String, String, String, String, boolean, OutputStream)}.
+     * @param uuid the uuid of the asset the xml was loaded from
+     * @param version the version of the asset the xml was loaded from
+     * @param sparse as for {@link #parseModel(String, String, String, boolean, OutputStream)}
+     * @param output where to write the json model, in UTF-8. The stream is not closed.
+     */
+    public void parseCollapsedModel(String uuid, String version, String xml, String preProcessingData, boolean sparse, OutputStream output) throws IOException {
+        // the models the writer supports have no subprocesses
+        if (createJsonWriter(sparse).write(xml.getBytes("UTF-8"), preProcessingData, output)) {
+            return;
+        }
+        Definitions def = getDefinitions(uuid, version, xml);
+        if (def == null) {
+            _logger.error("Unable to parse the bpmn2 model of " + uuid);
+            return;
+        }
+        createJsonMarshaller(true, sparse).marshall(def, preProcessingData, output);
+        _assetCache.put(uuid, version, def);
+    }
+
+    /**
+     * Writes the shapes of a collapsed subprocess of a version of an asset loaded by
+     * {@link #parseCollapsedModel(String, String, String, String, boolean, OutputStream)},
+     * with its nested subprocesses collapsed.
+     * @param version the version of the asset the subprocess is written from
+     * @param sparse as for {@link #parseModel(String, String, String, boolean, OutputStream)}
+     * @param output where to write the shapes, in UTF-8. The stream is not closed.
+     * @return false if the definitions of that version of the asset were dropped or
+     * have no such subprocess, nothing is written then.
+     */
+    public boolean parseSubProcess(String uuid, String version, String subProcessId, String preProcessingData, boolean sparse, OutputStream output) throws IOException {
+        Definitions def = _assetCache.get(uuid, version);
+        if (def == null) {
+            return false;
+        }
+        Bpmn2JsonMarshaller marshaller = createJsonMarshaller(true, sparse);
+        synchronized (def) {
+            return marshaller.marshallSubProcess(def, subProcessId, preProcessingData, output);
+        }
+    }
+
+    /**
+     * Writes the shapes of a collapsed subprocess of the xml of a version of an
+     * asset, whose definitions are kept for the next subprocesses.
+     * @param version the version of the asset the xml was loaded from
+     * @return false if the xml can't be parsed or has no such subprocess, nothing
+     * is written then.
+     */
+    public boolean parseSubProcess(String uuid, String version, String xml, String subProcessId, String preProcessingData, boolean sparse, OutputStream output) throws IOException {
+        Definitions def = getDefinitions(uuid, version, xml);
+        if (def == null) {
+            _logger.error("Unable to parse the bpmn2 model of " + uuid);
+            return false;
+        }
+        _assetCache.put(uuid, version, def);
+        return parseSubProcess(uuid, version, subProcessId, preProcessingData, sparse, output);
+    }
+
+    /**
+     * @param is the bpmn2 xml model, in UTF-8. The stream is not closed.
+     */
+    public Definitions getDefinitions(InputStream is) {
+        try {
+            JBPMBpmn2ResourceImpl resource = _resourceSetPool.load(is);
             
             EList<Diagnostic> warnings = resource.getWarnings();
             
@@ -15,6 +15,10 @@
  */
 package org.jbpm.designer.web.repository;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 
@@ -43,6 +47,32 @@ public interface IUUIDBasedRepository {
      * @return the model as a set of bytes.
      */
     public byte[] load(HttpServletRequest req, String uuid, IDiagramProfile profile) throws Exception;
+
+    /**
+     * Writes the model to the stream as it is converted, instead of returning it.
+     * Nothing is written if the repository has no model for the uuid.
+     * @param req the request from the user.
+     * @param uuid the id of the model.
+     * @param profile the profile
+     * @param output where to write the model, not closed
+     */
+    public void load(HttpServletRequest req, String uuid, IDiagramProfile profile, OutputStream output) throws Exception;
+
+    /**
+     * Writes the shapes of a subprocess of a model loaded with the <code>collapsed</code>
+     * parameter, whose subprocesses were written without their shapes. Nothing is
+     * written if the repository has no such subprocess. The shapes are written from
+     * the version of the model the user loaded, named by the <code>version</code>
+     * parameter of the request, when the repository keeps versions.
+     * @param req the request from the user.
+     * @param uuid the id of the model.
+     * @param subProcessId the resource id of the subprocess.
+     * @param profile the profile
+     * @param output where to write the shapes, not closed
+     * @return false if the model changed since the user loaded it, nothing is
+     * written then.
+     */
+    public boolean loadSubProcess(HttpServletRequest req, String uuid, String subProcessId, IDiagramProfile profile, OutputStream output) throws Exception;
     
     /**
      * Saves the model inside the repository.
@@ -53,6 +83,16 @@ public interface IUUIDBasedRepository {
      * @param profile the profile
      */
     public void save(HttpServletRequest req, String uuid, String json, String svg, IDiagramProfile profile, Boolean autosave);
+
+    /**
+     * Saves a model kept on the server and patched by the editor.
+     * @param req the request from the user.
+     * @param uuid the id of the model
+     * @param model the model, only converted if the repository stores it
+     * @param svg the svg representation of the model, or null
+     * @param profile the profile
+     */
+    public void save(HttpServletRequest req, String uuid, PatchableModel model, String svg, IDiagramProfile profile, Boolean autosave);
     
     /**
      * Transforms given json to bpmn2 xml
@@ -63,4 +103,13 @@ public interface IUUIDBasedRepository {
      */
     public String toXML(String json, IDiagramProfile profile, String preProcessingData);
 
+    /**
+     * Transforms the json read from the stream to bpmn2 xml
+     * @param json the json model, not closed
+     * @param profile
+     * @param preProcessingData
+     * @param output where to write the bpmn2 xml, not closed
+     */
+    public void toXML(InputStream json, IDiagramProfile profile, String preProcessingData, OutputStream output) throws IOException;
+
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.web.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jbpm.designer.bpmn2.resource.Bpmn2SnapshotStore;
+
+/**
+ * Keeps the json marshalled from the assets of the repository, so that an
+ * asset nobody changed since it was last opened is sent again without being
+ * parsed and marshalled.
+ *
+ * The json is kept by a key naming the asset and how it was marshalled (its
+ * uuid, the profile, the preprocessing data...), with the version of the
+ * asset it was marshalled from. Only the last marshalled version of a key is
+ * kept. The entries also keep the Last-Modified and ETag headers the
+ * repository sent with that version, to ask it whether the asset changed.
+ *
+ * The cache is bounded by the total size of the json it keeps, the least
+ * recently used entries are dropped first.
+ *
+ * The json is marshalled into a {@link Buffer}, whose array the entry keeps
+ * without copying it: the slack left at the end of the array is counted in
+ * the size of the entry.
+ */
+public class MarshalledModelCache {
+
+    // about the json of a few hundred large models.
+    public static final long DEFAULT_MAX_WEIGHT = 32 * 1024 * 1024;
+
+    public static final MarshalledModelCache INSTANCE = new MarshalledModelCache(DEFAULT_MAX_WEIGHT);
+
+    /**
+     * A stream the json is marshalled into, handed over to an {@link Entry}.
+     */
+    public static class Buffer extends ByteArrayOutputStream {
+
+        public Buffer() {
+            super(8192);
+        }
+
+        byte[] getArray() {
+            return buf;
+        }
+    }
+
+    /**
+     * The json of a version of an asset.
+     */
+    public static class Entry {
+        private final String _version;
+        private final byte[] _json;
+        private final int _length;
+        private final String _etag;
+        private final String _lastModified;
+        private final String _repositoryETag;
+
+        /**
+         * @param key the key the json is kept by
+         * @param version the version of the asset the json was marshalled from
+         * @param json the json, in UTF-8
+         * @param lastModified the Last-Modified header the repository sent with the asset, or null
+         * @param repositoryETag the ETag header the repository sent with the asset, or null
+         */
+        public Entry(String key, String version, byte[] json, String lastModified, String repositoryETag) {
+            this(key, version, json, json.length, lastModified, repositoryETag);
+        }
+
+        /**
+         * Keeps the array of the buffer, which mustn't be written to anymore.
+         * @see #Entry(String, String, byte[], String, String)
+         */
+        public Entry(String key, String version, Buffer json, String lastModified, String repositoryETag) {
+            this(key, version, json.getArray(), json.size(), lastModified, repositoryETag);
+        }
+
+        private Entry(String key, String version, byte[] json, int length, String lastModified, String repositoryETag) {
+            _version = version;
+            _json = json;
+            _length = length;
+            _lastModified = lastModified;
+            _repositoryETag = repositoryETag;
+            try {
+                _etag = "\"" + Bpmn2SnapshotStore.version((key + "\0" + version).getBytes("UTF-8")) + "\"";
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public String getVersion() {
+            return _version;
+        }
+
+        /**
+         * @return the ETag of the json, which changes with the key and the version.
+         */
+        public String getETag() {
+            return _etag;
+        }
+
+        /**
+         * @return the ETag of the json compressed with gzip, another representation
+         * of the same json.
+         */
+        public String getGzipETag() {
+            return _etag.substring(0, _etag.length() - 1) + "-gz\"";
+        }
+
+        public String getLastModified() {
+            return _lastModified;
+        }
+
+        public String getRepositoryETag() {
+            return _repositoryETag;
+        }
+
+        public int getLength() {
+            return _length;
+        }
+
+        /**
+         * @return the bytes the entry keeps, the json and the slack of its array.
+         */
+        public int getSize() {
+            return _json.length;
+        }
+
+        /**
+         * @return a copy of the json.
+         */
+        public byte[] getJson() {
+            return Arrays.copyOf(_json, _length);
+        }
+
+        public void writeTo(OutputStream output) throws IOException {
+            output.write(_json, 0, _length);
+        }
+    }
+
+    private final long _maxWeight;
+    // access ordered, the eldest entry is the least recently used.
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long _weight;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * @param maxWeight the total size in bytes of the kept json
+     */
+    public MarshalledModelCache(long maxWeight) {
+        _maxWeight = maxWeight;
+    }
+
+    /**
+     * @return the entry of the key, whatever its version, null if there is none.
+     * The entry isn't counted as a hit, it is only used to revalidate the asset.
+     */
+    public Entry peek(String key) {
+        synchronized (_entries) {
+            Entry entry = _entries.get(key);
+            return entry;
+        }
+    }
+
+    /**
+     * @return the json of the version of the asset, null if it isn't kept.
+     */
+    public Entry get(String key, String version) {
+        synchronized (_entries) {
+            Entry entry = _entries.get(key);
+            if (entry != null && entry.getVersion().equals(version)) {
+                _hits.incrementAndGet();
+                return entry;
+            }
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Keeps the entry in place of the previous version of the key, if it isn't
+     * larger than the cache.
+     * @return the entry.
+     */
+    public Entry put(String key, Entry entry) {
+        long weight = entry.getSize();
+        synchronized (_entries) {
+            Entry previous = _entries.remove(key);
+            if (previous != null) {
+                _weight -= previous.getSize();
+            }
+            if (weight > _maxWeight) {
+                return entry;
+            }
+            _entries.put(key, entry);
+            _weight += weight;
+            for (Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator(); _weight > _maxWeight && it.hasNext();) {
+                _weight -= it.next().getValue().getSize();
+                it.remove();
+                _evictions.incrementAndGet();
+            }
+        }
+        return entry;
+    }
+
+    public void remove(String key) {
+        synchronized (_entries) {
+            Entry entry = _entries.remove(key);
+            if (entry != null) {
+                _weight -= entry.getSize();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+            _weight = 0;
+        }
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    public int size() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    /**
+     * @return the total size in bytes of the kept json.
+     */
+    public long getWeight() {
+        synchronized (_entries) {
+            return _weight;
+        }
+    }
+}
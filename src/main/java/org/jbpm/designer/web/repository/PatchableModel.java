@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.web.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.eclipse.bpmn2.util.Bpmn2Resource;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonPatcher;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2UnmarshallingContext;
+
+/**
+ * A json model kept on the server, that the editor updates by sending the
+ * shapes it added, changed or removed.
+ *
+ * The BPMN 2.0 form of the model is only computed when asked for, by patching
+ * the resource computed the time before with the shapes changed since then.
+ * The model is unmarshalled again when the changes can't be patched.
+ *
+ * The changes are tracked for the top level shapes only. A shape changed inside
+ * a lane or a subprocess comes as a change of the top level shape that holds it,
+ * with all its child shapes, and the patcher unmarshalls the model again for it.
+ */
+public class PatchableModel {
+
+    private static final Logger _logger = Logger.getLogger(PatchableModel.class);
+
+    private static final ObjectMapper _mapper = new ObjectMapper();
+
+    private Bpmn2JsonUnmarshaller _unmarshaller;
+    private String _preProcessingData;
+    private int _version;
+
+    // the model without its top level shapes, and the shapes by resource id.
+    private ObjectNode _json;
+    private Map<String, JsonNode> _shapes = new LinkedHashMap<String, JsonNode>();
+
+    // the shapes changed since the resource was last computed.
+    private Set<String> _added = new LinkedHashSet<String>();
+    private Set<String> _changed = new LinkedHashSet<String>();
+    private Set<String> _removed = new LinkedHashSet<String>();
+    private boolean _rebuild = true;
+
+    private Bpmn2Resource _resource;
+    private Bpmn2UnmarshallingContext _context;
+
+    /**
+     * @param json the whole json model
+     */
+    public PatchableModel(Bpmn2JsonUnmarshaller unmarshaller, String preProcessingData, String json) throws IOException {
+        _unmarshaller = unmarshaller;
+        _preProcessingData = preProcessingData;
+        _json = (ObjectNode) _mapper.readTree(json);
+        JsonNode childShapes = _json.remove("childShapes");
+        if (childShapes != null) {
+            for (JsonNode shape : childShapes) {
+                _shapes.put(shape.path("resourceId").getTextValue(), shape);
+            }
+        }
+    }
+
+    /**
+     * @return the version of the model, increased each time it is patched.
+     */
+    public synchronized int getVersion() {
+        return _version;
+    }
+
+    /**
+     * Applies the changes made in the editor to the json model.
+     * @param base the version of the model the changes were made against
+     * @param patch an object with the <code>added</code> and <code>changed</code> top level shapes,
+     * the resource ids of the <code>removed</code> shapes, and the <code>properties</code> of the
+     * model if they changed.
+     * @return the new version of the model, or -1 if the model is not at the base version.
+     */
+    public synchronized int patch(int base, JsonNode patch) {
+        if (base != _version) {
+            return -1;
+        }
+        for (JsonNode shape : patch.path("added")) {
+            String id = shape.path("resourceId").getTextValue();
+            if (_removed.remove(id)) {
+                _changed.add(id);
+            } else {
+                _added.add(id);
+            }
+            _shapes.put(id, shape);
+        }
+        for (JsonNode shape : patch.path("changed")) {
+            String id = shape.path("resourceId").getTextValue();
+            if (!_shapes.containsKey(id)) {
+                _rebuild = true;
+            } else if (!_added.contains(id)) {
+                _changed.add(id);
+            }
+            _shapes.put(id, shape);
+        }
+        for (JsonNode removed : patch.path("removed")) {
+            String id = removed.getTextValue();
+            if (_shapes.remove(id) != null && !_added.remove(id)) {
+                _changed.remove(id);
+                _removed.add(id);
+            }
+        }
+        if (patch.has("properties")) {
+            _json.put("properties", patch.get("properties"));
+            _rebuild = true;
+        }
+        return ++_version;
+    }
+
+    /**
+     * @return the BPMN 2.0 resource of the model.
+     */
+    public synchronized Bpmn2Resource getResource() throws IOException {
+        if (!_rebuild && !(_added.isEmpty() && _changed.isEmpty() && _removed.isEmpty())) {
+            try {
+                _rebuild = !new Bpmn2JsonPatcher(_unmarshaller).apply(_resource, _context,
+                        getShapes(_added), getShapes(_changed), _removed);
+            } catch (RuntimeException e) {
+                _logger.debug("Unable to patch the model, unmarshalling it again: " + e.getMessage(), e);
+                _rebuild = true;
+            }
+        }
+        if (_rebuild) {
+            Bpmn2UnmarshallingContext context = new Bpmn2UnmarshallingContext(_preProcessingData);
+            _resource = _unmarshaller.unmarshall(toJson(), context);
+            _context = context;
+            _rebuild = false;
+        }
+        _added.clear();
+        _changed.clear();
+        _removed.clear();
+        return _resource;
+    }
+
+    /**
+     * @return the BPMN 2.0 xml of the model.
+     */
+    public synchronized String toXml() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        getResource().save(outputStream, new HashMap<Object, Object>());
+        return outputStream.toString("UTF-8");
+    }
+
+    /**
+     * @return the whole json model.
+     */
+    public synchronized String toJson() throws IOException {
+        ArrayNode childShapes = _json.putArray("childShapes");
+        for (JsonNode shape : _shapes.values()) {
+            childShapes.add(shape);
+        }
+        try {
+            return _mapper.writeValueAsString(_json);
+        } finally {
+            _json.remove("childShapes");
+        }
+    }
+
+    private Map<String, String> getShapes(Set<String> ids) throws IOException {
+        Map<String, String> shapes = new LinkedHashMap<String, String>();
+        for (String id : ids) {
+            shapes.put(id, _mapper.writeValueAsString(_shapes.get(id)));
+        }
+        return shapes;
+    }
+}
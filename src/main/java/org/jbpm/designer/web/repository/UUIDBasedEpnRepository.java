@@ -1,5 +1,9 @@
 package org.jbpm.designer.web.repository;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 
@@ -24,13 +28,33 @@ public class UUIDBasedEpnRepository implements IUUIDBasedRepository {
         return new byte[0];
     }
 
+    public void load(HttpServletRequest req, String uuid,
+            IDiagramProfile profile, OutputStream output) throws Exception {
+        // TODO hook up with Guvnor
+    }
+
+    public boolean loadSubProcess(HttpServletRequest req, String uuid, String subProcessId,
+            IDiagramProfile profile, OutputStream output) throws Exception {
+        // TODO hook up with Guvnor
+        return true;
+    }
+
     public void save(HttpServletRequest req, String uuid, String json,
             String svg, IDiagramProfile profile, Boolean autosave) {
         //TODO hook up with Guvnor 
     }
 
+    public void save(HttpServletRequest req, String uuid, PatchableModel model,
+            String svg, IDiagramProfile profile, Boolean autosave) {
+        //TODO hook up with Guvnor 
+    }
+
     public String toXML(String json, IDiagramProfile profile,String preProcessingData) {
         return profile.createMarshaller().parseModel(json, preProcessingData);
     }
+
+    public void toXML(InputStream json, IDiagramProfile profile, String preProcessingData, OutputStream output) throws IOException {
+        profile.createMarshaller().parseModel(json, preProcessingData, output);
+    }
     
 }
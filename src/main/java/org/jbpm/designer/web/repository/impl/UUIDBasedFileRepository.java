@@ -23,6 +23,7 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
 
 import javax.servlet.http.HttpServlet;
@@ -32,6 +33,7 @@ import org.apache.log4j.Logger;
 import org.jbpm.designer.web.profile.IDiagramProfile;
 import org.jbpm.designer.web.profile.IDiagramProfile.IDiagramMarshaller;
 import org.jbpm.designer.web.repository.IUUIDBasedRepository;
+import org.jbpm.designer.web.repository.PatchableModel;
 
 
 /**
@@ -56,13 +58,18 @@ public class UUIDBasedFileRepository implements IUUIDBasedRepository {
     }
     
     public byte[] load(HttpServletRequest req, String uuid, IDiagramProfile profile) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        load(req, uuid, profile, output);
+        return output.toByteArray();
+    }
+
+    public void load(HttpServletRequest req, String uuid, IDiagramProfile profile, OutputStream output) throws Exception {
         
         String filename = _repositoryPath + "/" + uuid + ".json";
         if (!new File(filename).exists()) {
-           return new byte[0]; // then return nothing. 
+           return; // then return nothing. 
         }
         InputStream input = null;
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
         try {
             input = new FileInputStream(filename);
             byte[] buffer = new byte[4096];
@@ -82,8 +89,11 @@ public class UUIDBasedFileRepository implements IUUIDBasedRepository {
         } finally {
             if (input != null) { try { input.close();} catch(Exception e) {} }
         }
-        
-        return output.toByteArray();
+    }
+
+    public boolean loadSubProcess(HttpServletRequest req, String uuid, String subProcessId, IDiagramProfile profile, OutputStream output) {
+        // the models are stored and loaded whole, their subprocesses are never collapsed
+        return true;
     }
 
     public void save(HttpServletRequest req, String uuid, String json, String svg, IDiagramProfile profile, Boolean autosave) {
@@ -102,6 +112,19 @@ public class UUIDBasedFileRepository implements IUUIDBasedRepository {
         	writeFile(svg, _repositoryPath + "/" + uuid + ".svg");
         }
     }
+
+    public void save(HttpServletRequest req, String uuid, PatchableModel model, String svg, IDiagramProfile profile, Boolean autosave) {
+        String ext = profile.getSerializedModelExtension();
+        try {
+            writeFile(model.toXml(), _repositoryPath + "/" + uuid + "." + ext);
+            writeFile(model.toJson(), _repositoryPath + "/" + uuid + ".json");
+        } catch(Exception e) {
+            _logger.error(e.getMessage(), e);
+        }
+        if (!autosave && svg != null) {
+        	writeFile(svg, _repositoryPath + "/" + uuid + ".svg");
+        }
+    }
     
     private static void writeFile(String contents, String filename) {
         BufferedWriter writer = null;
@@ -118,6 +141,10 @@ public class UUIDBasedFileRepository implements IUUIDBasedRepository {
     public String toXML(String json, IDiagramProfile profile, String preProcessingData) {
         return profile.createMarshaller().parseModel(json, preProcessingData);
     }
+
+    public void toXML(InputStream json, IDiagramProfile profile, String preProcessingData, OutputStream output) throws IOException {
+        profile.createMarshaller().parseModel(json, preProcessingData, output);
+    }
     
     
 }
@@ -1,18 +1,24 @@
 package org.jbpm.designer.web.repository.impl;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.log4j.Logger;
+import org.jbpm.designer.bpmn2.resource.Bpmn2SnapshotStore;
 import org.jbpm.designer.web.profile.IDiagramProfile;
 import org.jbpm.designer.web.profile.impl.ExternalInfo;
+import org.jbpm.designer.web.profile.impl.JbpmProfileImpl;
+import org.jbpm.designer.web.server.GuvnorClient;
 import org.jbpm.designer.web.repository.IUUIDBasedRepository;
+import org.jbpm.designer.web.repository.MarshalledModelCache;
+import org.jbpm.designer.web.repository.PatchableModel;
 
 
 public class UUIDBasedJbpmRepository implements IUUIDBasedRepository {
@@ -21,28 +27,149 @@ public class UUIDBasedJbpmRepository implements IUUIDBasedRepository {
     private final static String DEFAULTS_PATH = "defaults";
     
     private String _defaultsPath;
+    // the json of the assets, shared with the other servlets using this repository
+    private MarshalledModelCache _jsonCache = MarshalledModelCache.INSTANCE;
     
     public void configure(HttpServlet servlet) {
         _defaultsPath = servlet.getServletContext().getRealPath("/" + DEFAULTS_PATH);
     }
 
     public byte[] load(HttpServletRequest req, String uuid, IDiagramProfile profile) throws Exception {
-        String processjson = "";
+        MarshalledModelCache.Entry entry = loadCached(req, uuid, profile);
+        return entry == null ? new byte[0] : entry.getJson();
+    }
+
+    public void load(HttpServletRequest req, String uuid, IDiagramProfile profile, OutputStream output) throws Exception {
+        MarshalledModelCache.Entry entry = loadCached(req, uuid, profile);
+        if (entry != null) {
+            entry.writeTo(output);
+        }
+    }
+
+    /**
+     * Loads the json of the asset, only marshalled again when Guvnor has a version
+     * of the asset that isn't cached. Guvnor is asked whether the asset changed with
+     * the Last-Modified and ETag headers it sent with the cached version, if any.
+     * With the <code>sparse=true</code> parameter the json is written without the
+     * properties equal to the default of their stencil, which the editor fills.
+     * <p>
+     * The version of the asset is the SHA-1 of its xml: the load url of Guvnor
+     * doesn't give the version number of the asset. When Guvnor sends neither
+     * Last-Modified nor ETag, or the cached json was dropped, the whole xml is
+     * downloaded and hashed again to find its version, only the marshalling is
+     * saved then.
+     * @return the json of the asset, null if Guvnor has no model for the uuid or
+     * the model can't be parsed.
+     */
+    public MarshalledModelCache.Entry loadCached(HttpServletRequest req, String uuid, IDiagramProfile profile) throws Exception {
+        return loadCached(req, uuid, profile, "true".equals(req.getParameter("collapsed")));
+    }
+
+    private MarshalledModelCache.Entry loadCached(HttpServletRequest req, String uuid, IDiagramProfile profile,
+            boolean collapsed) throws Exception {
         String preProcessingParam = req.getParameter("pp");
+        boolean sparse = "true".equals(req.getParameter("sparse"));
+        String key = uuid + "\0" + profile.getName() + "\0" + collapsed + "\0" + sparse + "\0" + preProcessingParam;
+        String url = buildExternalLoadURL(profile, uuid);
         // check with Guvnor to see what it has for this uuid for us
-        String processxml = doHttpUrlConnectionAction(buildExternalLoadURL(profile, uuid));
-        if(processxml != null && processxml.length() > 0) {
-            processjson = profile.createUnmarshaller().parseModel(processxml, profile, preProcessingParam);
-            return processjson.getBytes("UTF-8");
+        MarshalledModelCache.Entry cached = _jsonCache.peek(key);
+        GuvnorAsset asset = fetchAsset(url, cached);
+        if (asset != null && asset.notModified) {
+            MarshalledModelCache.Entry entry = _jsonCache.get(key, cached.getVersion());
+            if (entry != null) {
+                return entry;
+            }
+            // dropped since, it is loaded again
+            asset = fetchAsset(url, null);
+        }
+        if (asset == null || asset.xml.length() == 0) {
+            return null;
+        }
+        String version = Bpmn2SnapshotStore.version(asset.etag, asset.lastModified, asset.xml);
+        MarshalledModelCache.Entry entry = _jsonCache.get(key, version);
+        if (entry != null) {
+            return entry;
+        }
+
+        // kept by the entry as it is, without a copy
+        MarshalledModelCache.Buffer json = new MarshalledModelCache.Buffer();
+        if (profile instanceof JbpmProfileImpl && collapsed) {
+            ((JbpmProfileImpl) profile).parseCollapsedModel(uuid, version, asset.xml, preProcessingParam, sparse, json);
+        } else if (profile instanceof JbpmProfileImpl) {
+            ((JbpmProfileImpl) profile).parseModel(uuid, version, asset.xml, preProcessingParam, sparse, json);
         } else {
-            return new byte[0];
+            profile.createUnmarshaller().parseModel(new ByteArrayInputStream(asset.xml.getBytes("UTF-8")),
+                    profile, preProcessingParam, json);
+        }
+        if (json.size() == 0) {
+            return null;
         }
+        return _jsonCache.put(key, new MarshalledModelCache.Entry(key, version, json,
+                asset.lastModified, asset.etag));
+    }
+
+    /**
+     * Writes the shapes of the subprocess from the version of the model the client
+     * loaded, named by the <code>version</code> parameter: the ETag of the json of
+     * the collapsed model. The <code>pp</code> and <code>sparse</code> parameters are
+     * the ones the model was loaded with.
+     * @return false if Guvnor has another version of the model now, nothing is
+     * written then.
+     */
+    public boolean loadSubProcess(HttpServletRequest req, String uuid, String subProcessId, IDiagramProfile profile,
+            OutputStream output) throws Exception {
+        if (!(profile instanceof JbpmProfileImpl)) {
+            // only the jbpm profile collapses the subprocesses
+            return true;
+        }
+        JbpmProfileImpl jbpmProfile = (JbpmProfileImpl) profile;
+        String preProcessingParam = req.getParameter("pp");
+        boolean sparse = "true".equals(req.getParameter("sparse"));
+        // revalidated with Guvnor, the model is only parsed again if it changed
+        MarshalledModelCache.Entry entry = loadCached(req, uuid, profile, true);
+        if (entry == null || !isETagOf(req.getParameter("version"), entry)) {
+            return false;
+        }
+        if (jbpmProfile.parseSubProcess(uuid, entry.getVersion(), subProcessId, preProcessingParam, sparse, output)) {
+            return true;
+        }
+        // the definitions were dropped from the cache, or the subprocess doesn't exist
+        GuvnorAsset asset = fetchAsset(buildExternalLoadURL(profile, uuid), null);
+        if (asset == null || asset.xml.length() == 0) {
+            return true;
+        }
+        String version = Bpmn2SnapshotStore.version(asset.etag, asset.lastModified, asset.xml);
+        if (!version.equals(entry.getVersion())) {
+            // changed since it was revalidated
+            return false;
+        }
+        jbpmProfile.parseSubProcess(uuid, version, asset.xml, subProcessId, preProcessingParam, sparse, output);
+        return true;
+    }
+
+    /**
+     * @return whether the tag is the ETag of the entry, compressed or not, quoted or not.
+     */
+    private static boolean isETagOf(String tag, MarshalledModelCache.Entry entry) {
+        if (tag == null) {
+            return false;
+        }
+        tag = tag.trim();
+        if (!tag.startsWith("\"")) {
+            tag = "\"" + tag + "\"";
+        }
+        return tag.equals(entry.getETag()) || tag.equals(entry.getGzipETag());
     }
 
     public void save(HttpServletRequest req, String uuid, String json,
             String svg, IDiagramProfile profile, Boolean autosave) {
         // Guvnor is responsible for saving 
     }
+
+    public void save(HttpServletRequest req, String uuid, PatchableModel model,
+            String svg, IDiagramProfile profile, Boolean autosave) {
+        // Guvnor is responsible for saving 
+    }
     
     private String buildExternalLoadURL(IDiagramProfile profile, String uuid) {
         StringBuffer buff = new StringBuffer();
@@ -63,43 +190,55 @@ public class UUIDBasedJbpmRepository implements IUUIDBasedRepository {
         return profile.createMarshaller().parseModel(json, preProcessingData);
     }
 
-    private String doHttpUrlConnectionAction(String desiredUrl) throws Exception {
-      URL url = null;
-      BufferedReader reader = null;
-      StringBuilder stringBuilder;
+    public void toXML(InputStream json, IDiagramProfile profile, String preProcessingData, OutputStream output) throws IOException {
+        profile.createMarshaller().parseModel(json, preProcessingData, output);
+    }
 
-      try {
-        url = new URL(desiredUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Content-Type", "application/xml"); 
-        connection.setRequestProperty("charset", "UTF-8");
-        connection.setReadTimeout(5*1000);
-        connection.connect();
+    /**
+     * An asset as Guvnor sent it.
+     */
+    private static class GuvnorAsset {
+        String xml;
+        String lastModified;
+        String etag;
+        // whether the cached version is still the current one, no xml is sent then
+        boolean notModified;
+    }
 
-        reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-        stringBuilder = new StringBuilder();
+    /**
+     * @param cached the json of the version of the asset the caller has, or null
+     * @return the asset, null if Guvnor can't be reached.
+     */
+    private GuvnorAsset fetchAsset(String desiredUrl, MarshalledModelCache.Entry cached) throws Exception {
+      try {
+        GetMethod method = new GetMethod(desiredUrl);
+        method.setRequestHeader("Content-Type", "application/xml");
+        method.setRequestHeader("charset", "UTF-8");
+        if (cached != null && cached.getLastModified() != null) {
+            method.setRequestHeader("If-Modified-Since", cached.getLastModified());
+        }
+        if (cached != null && cached.getRepositoryETag() != null) {
+            method.setRequestHeader("If-None-Match", cached.getRepositoryETag());
+        }
+        // the user and password are in the url
+        GuvnorClient.Response response = GuvnorClient.getInstance().execute(method, null);
 
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-          stringBuilder.append(line + "\n");
+        GuvnorAsset asset = new GuvnorAsset();
+        asset.lastModified = response.getHeader("Last-Modified");
+        asset.etag = response.getHeader("ETag");
+        if (response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            asset.notModified = true;
+            return asset;
         }
-        return stringBuilder.toString();
+        if (response.getStatus() >= 400) {
+            throw new IOException("Server returned HTTP response code: " + response.getStatus());
+        }
+        asset.xml = response.getBodyAsString();
+        return asset;
       } catch (Exception e) {
           _logger.error("Unable to connect to Gunvor. Is it running? [" + e.getMessage() + "]");
           // don't blow up, we will just show the default process
-          return "";
-      } finally {
-        if (reader != null) {
-          try {
-            reader.close();
-          } catch (IOException ioe) {
-              _logger.error("Unable to read from Gunvor. [" + ioe.getMessage() + "]");
-              // don't blow up, we will just show the default process
-              return "";
-          }
-        }
+          return null;
       }
     }
 }
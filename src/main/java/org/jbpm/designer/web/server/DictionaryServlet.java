@@ -22,8 +22,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -100,17 +98,9 @@ public class DictionaryServlet extends HttpServlet {
                 + "/rest/packages/globalArea/assets/" + DICTIONARY_FNAME
                 + "/source/";
 		try {
-			URL checkURL = new URL(dictionaryURL);
-	        HttpURLConnection checkConnection = (HttpURLConnection) checkURL
-	                .openConnection();
-	        ServletUtil.applyAuth(profile, checkConnection);
-	        checkConnection.setRequestMethod("GET");
-	        checkConnection
-	                .setRequestProperty("Accept", "application/atom+xml");
-	        checkConnection.setConnectTimeout(3000);
-	        checkConnection.connect();
-	        _logger.info("check connection response code: " + checkConnection.getResponseCode());
-	        if (checkConnection.getResponseCode() == 200) {
+			int status = GuvnorClient.getInstance().check(dictionaryURL, profile);
+	        _logger.info("check connection response code: " + status);
+	        if (status == 200) {
 	        	InputStream in = ServletUtil.getInputStreamForURL(dictionarySourceURL, "GET", profile);
 	            StringWriter writer = new StringWriter();
 	            IOUtils.copy(in, writer);
@@ -132,14 +122,6 @@ public class DictionaryServlet extends HttpServlet {
                         profile.getExternalLoadURLSubdomain().indexOf("/"))
                 + "/rest/packages/globalArea/assets/" + DICTIONARY_FNAME;
 		
-		String dictionaryDeleteURL = ExternalInfo.getExternalProtocol(profile)
-                + "://"
-                + ExternalInfo.getExternalHost(profile)
-                + "/"
-                + profile.getExternalLoadURLSubdomain().substring(0,
-                        profile.getExternalLoadURLSubdomain().indexOf("/"))
-                + "/rest/packages/globalArea/assets/" + DICTIONARY_FNAME;
-		
 		String dictionaryAssetsURL = ExternalInfo.getExternalProtocol(profile)
                 + "://"
                 + ExternalInfo.getExternalHost(profile)
@@ -148,40 +130,9 @@ public class DictionaryServlet extends HttpServlet {
                         profile.getExternalLoadURLSubdomain().indexOf("/"))
                 + "/rest/packages/globalArea/assets/";
 		try {
-			// check if the dictionary already exists
-	        URL checkURL = new URL(dictionaryURL);
-	        HttpURLConnection checkConnection = (HttpURLConnection) checkURL
-	                .openConnection();
-	        ServletUtil.applyAuth(profile, checkConnection);
-	        checkConnection.setRequestMethod("GET");
-	        checkConnection
-	                .setRequestProperty("Accept", "application/atom+xml");
-	        checkConnection.connect();
-	        _logger.info("check connection response code: " + checkConnection.getResponseCode());
-	        if (checkConnection.getResponseCode() == 200) {
-	            URL deleteAssetURL = new URL(dictionaryDeleteURL);
-	            HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-	                    .openConnection();
-	            ServletUtil.applyAuth(profile, deleteConnection);
-	            deleteConnection.setRequestMethod("DELETE");
-	            deleteConnection.connect();
-	            _logger.info("delete connection response code: " + deleteConnection.getResponseCode());
-	        }
-	        
-	        URL createURL = new URL(dictionaryAssetsURL);
-            HttpURLConnection createConnection = (HttpURLConnection) createURL
-                    .openConnection();
-            ServletUtil.applyAuth(profile, createConnection);
-            createConnection.setRequestMethod("POST");
-            createConnection.setRequestProperty("Content-Type",
-                    "application/octet-stream");
-            createConnection.setRequestProperty("Accept",
-                    "application/atom+xml");
-            createConnection.setRequestProperty("Slug", DICTIONARY_FNAME + DICTIONARY_FEXT);
-            createConnection.setDoOutput(true);
-            createConnection.getOutputStream().write(dvalue.getBytes("UTF-8"));
-            createConnection.connect();
-            _logger.info("create connection response code: " + createConnection.getResponseCode());
+			// replace the dictionary if it already exists
+			GuvnorClient.getInstance().replace(dictionaryURL, dictionaryAssetsURL,
+			        DICTIONARY_FNAME + DICTIONARY_FEXT, dvalue.getBytes("UTF-8"), profile);
 		} catch (Exception e) {
             // we dont want to barf..just log that error happened
             _logger.error(e.getMessage());
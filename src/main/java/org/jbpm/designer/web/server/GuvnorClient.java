@@ -0,0 +1,325 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.web.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.jbpm.designer.web.profile.IDiagramProfile;
+
+/**
+ * The client all the requests to the Guvnor REST api go through.
+ *
+ * The requests share a pool of keep-alive connections, so a servlet reading a
+ * few assets in a row, or the preprocessing unit checking and storing its
+ * defaults, reuses the connections of the previous requests instead of
+ * opening one for each of them. The connections to a host are limited.
+ *
+ * The reads wait for Guvnor for the read timeout. The requests storing or
+ * deleting an asset have their own, longer, write timeout: Guvnor may take a
+ * while to check in a large asset, and a write given up on may still happen.
+ * The shared client takes its timeouts from the designer.guvnor.readtimeout
+ * and designer.guvnor.writetimeout system properties, in milliseconds, 0 to
+ * wait without a limit.
+ *
+ * The responses are read whole and their connection given back to the pool
+ * before the methods return.
+ */
+public class GuvnorClient {
+    private static final Logger _logger = Logger.getLogger(GuvnorClient.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 100;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 5 * 1000;
+    public static final int DEFAULT_WRITE_TIMEOUT = 60 * 1000;
+
+    public static final String READ_TIMEOUT = "designer.guvnor.readtimeout";
+    public static final String WRITE_TIMEOUT = "designer.guvnor.writetimeout";
+
+    private static final String ATOM = "application/atom+xml";
+    private static final String USER_AGENT =
+        "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.6; en-US; rv:1.9.2.16) Gecko/20110319 Firefox/3.6.16";
+    private static final String ACCEPT_ANY =
+        "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+
+    private static final GuvnorClient INSTANCE = new GuvnorClient(
+            DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT,
+            getTimeout(READ_TIMEOUT, DEFAULT_READ_TIMEOUT), getTimeout(WRITE_TIMEOUT, DEFAULT_WRITE_TIMEOUT));
+
+    private final MultiThreadedHttpConnectionManager _connectionManager;
+    private final HttpClient _client;
+    private final int _writeTimeout;
+
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+    private final AtomicLong _nanos = new AtomicLong();
+
+    /**
+     * A client whose writes have the default write timeout.
+     * @see #GuvnorClient(int, int, int, int, int)
+     */
+    public GuvnorClient(int maxConnectionsPerHost, int maxTotalConnections, int connectTimeout, int readTimeout) {
+        this(maxConnectionsPerHost, maxTotalConnections, connectTimeout, readTimeout, DEFAULT_WRITE_TIMEOUT);
+    }
+
+    /**
+     * @param maxConnectionsPerHost the connections kept open to a Guvnor
+     * @param maxTotalConnections the connections kept open to all the hosts
+     * @param connectTimeout the milliseconds to open a connection
+     * @param readTimeout the milliseconds to wait for the data of the response to a read
+     * @param writeTimeout the milliseconds to wait for the data of the response to a
+     * creation or a deletion, 0 to wait without a limit
+     */
+    public GuvnorClient(int maxConnectionsPerHost, int maxTotalConnections, int connectTimeout, int readTimeout,
+            int writeTimeout) {
+        _writeTimeout = writeTimeout;
+        _connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = _connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setConnectionTimeout(connectTimeout);
+        params.setSoTimeout(readTimeout);
+        // a pooled connection Guvnor closed in the meantime is opened again
+        params.setStaleCheckingEnabled(true);
+        params.setTcpNoDelay(true);
+        _client = new HttpClient(_connectionManager);
+        // the wait for a free connection of the pool
+        _client.getParams().setConnectionManagerTimeout(connectTimeout);
+    }
+
+    /**
+     * @return the timeout set by the system property, the default if it is
+     * missing or invalid.
+     */
+    private static int getTimeout(String property, int defaultTimeout) {
+        String timeout = System.getProperty(property);
+        if (timeout != null) {
+            try {
+                return Math.max(0, Integer.parseInt(timeout.trim()));
+            } catch (NumberFormatException e) {
+                _logger.warn("Invalid " + property + ": " + timeout);
+            }
+        }
+        return defaultTimeout;
+    }
+
+    /**
+     * @return the client shared by the servlets.
+     */
+    public static GuvnorClient getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reads a resource, such as the source of an asset or a feed of the assets of a package.
+     * @param profile the profile with the user and password, or null to send none
+     * @throws IOException if Guvnor can't be reached or answers with an error
+     */
+    public byte[] get(String url, IDiagramProfile profile) throws IOException {
+        GetMethod method = new GetMethod(url);
+        method.setRequestHeader("User-Agent", USER_AGENT);
+        method.setRequestHeader("Accept", ACCEPT_ANY);
+        method.setRequestHeader("Accept-Language", "en-us,en;q=0.5");
+        method.setRequestHeader("charset", "UTF-8");
+        Response response = execute(method, profile);
+        if (response.getStatus() >= 400) {
+            throw new IOException("Server returned HTTP response code: " + response.getStatus() + " for URL: " + url);
+        }
+        return response.getBody();
+    }
+
+    /**
+     * @return the status of the atom entry of the asset, 200 when it exists.
+     */
+    public int check(String assetURL, IDiagramProfile profile) throws IOException {
+        GetMethod method = new GetMethod(assetURL);
+        method.setRequestHeader("Accept", ATOM);
+        return execute(method, profile).getStatus();
+    }
+
+    /**
+     * @return whether the asset exists.
+     */
+    public boolean exists(String assetURL, IDiagramProfile profile) throws IOException {
+        return check(assetURL, profile) == 200;
+    }
+
+    /**
+     * @return the status of the deletion of the asset.
+     */
+    public int delete(String assetURL, IDiagramProfile profile) throws IOException {
+        DeleteMethod method = new DeleteMethod(assetURL);
+        method.getParams().setSoTimeout(_writeTimeout);
+        return execute(method, profile).getStatus();
+    }
+
+    /**
+     * Creates an asset in a package.
+     * @param packageAssetsURL the url of the assets of the package
+     * @param slug the file name of the asset
+     * @return the status of the creation.
+     */
+    public int create(String packageAssetsURL, String slug, byte[] content, IDiagramProfile profile) throws IOException {
+        PostMethod method = new PostMethod(packageAssetsURL);
+        method.setRequestHeader("Accept", ATOM);
+        method.setRequestHeader("Slug", slug);
+        method.setRequestEntity(new ByteArrayRequestEntity(content, "application/octet-stream"));
+        method.getParams().setSoTimeout(_writeTimeout);
+        return execute(method, profile).getStatus();
+    }
+
+    /**
+     * Creates an asset in a package, after deleting the asset of the same name.
+     * @return the status of the creation.
+     */
+    public int replace(String assetURL, String packageAssetsURL, String slug, byte[] content,
+            IDiagramProfile profile) throws IOException {
+        int check = check(assetURL, profile);
+        _logger.info("check connection response code: " + check);
+        if (check == 200) {
+            _logger.info("delete connection response code: " + delete(assetURL, profile));
+        }
+        int created = create(packageAssetsURL, slug, content, profile);
+        _logger.info("create connection response code: " + created);
+        return created;
+    }
+
+    /**
+     * Sends a request on a pooled connection and reads its response.
+     * @param profile the profile with the user and password, or null to send none
+     */
+    public Response execute(HttpMethodBase method, IDiagramProfile profile) throws IOException {
+        String authorization = profile != null ? getAuthorization(profile.getUsr(), profile.getPwd()) : null;
+        if (authorization != null) {
+            method.setRequestHeader("Authorization", authorization);
+        }
+        long start = System.nanoTime();
+        _requests.incrementAndGet();
+        try {
+            int status = _client.executeMethod(method);
+            InputStream in = method.getResponseBodyAsStream();
+            byte[] body = in == null ? new byte[0] : IOUtils.toByteArray(in);
+            return new Response(status, body, method.getResponseHeaders());
+        } catch (IOException e) {
+            _failures.incrementAndGet();
+            throw e;
+        } finally {
+            // the body is read, the connection goes back to the pool
+            method.releaseConnection();
+            _nanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the basic authorization header of the user, null without a user
+     * and a password. The header is computed for each request, the passwords
+     * aren't kept.
+     */
+    public String getAuthorization(String usr, String pwd) {
+        if (usr == null || usr.trim().length() == 0 || pwd == null || pwd.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return "Basic " + new String(Base64.encodeBase64((usr + ":" + pwd).getBytes("UTF-8")), "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getRequestCount() {
+        return _requests.get();
+    }
+
+    public long getFailureCount() {
+        return _failures.get();
+    }
+
+    /**
+     * @return the mean milliseconds of a request, its response read.
+     */
+    public double getAverageLatency() {
+        long requests = _requests.get();
+        return requests == 0 ? 0 : _nanos.get() / 1000000.0 / requests;
+    }
+
+    /**
+     * @return the connections of the pool, in use or kept open.
+     */
+    public int getConnectionsInPool() {
+        return _connectionManager.getConnectionsInPool();
+    }
+
+    /**
+     * Closes the connections of the pool.
+     */
+    public void shutdown() {
+        _connectionManager.shutdown();
+    }
+
+    /**
+     * A response of Guvnor, read whole.
+     */
+    public static class Response {
+        private final int _status;
+        private final byte[] _body;
+        private final Header[] _headers;
+
+        Response(int status, byte[] body, Header[] headers) {
+            _status = status;
+            _body = body;
+            _headers = headers;
+        }
+
+        public int getStatus() {
+            return _status;
+        }
+
+        public byte[] getBody() {
+            return _body;
+        }
+
+        public String getBodyAsString() throws UnsupportedEncodingException {
+            return new String(_body, "UTF-8");
+        }
+
+        /**
+         * @return the value of the header, null if the response has none.
+         */
+        public String getHeader(String name) {
+            for (Header header : _headers) {
+                if (header.getName().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+    }
+}
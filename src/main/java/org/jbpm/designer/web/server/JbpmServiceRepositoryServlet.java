@@ -5,7 +5,6 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -180,79 +179,22 @@ public class JbpmServiceRepositoryServlet extends HttpServlet {
 					                    + "/rest/packages/" + pkg + "/assets/";
 								
 								
-								// check if the wid already exists
-								URL checkWidURL = new URL(widURL);
-								HttpURLConnection checkWidConnection = (HttpURLConnection) checkWidURL
-								        .openConnection();
-								ServletUtil.applyAuth(profile, checkWidConnection);
-								checkWidConnection.setRequestMethod("GET");
-								checkWidConnection
-								        .setRequestProperty("Accept", "application/atom+xml");
-								checkWidConnection.connect();
-								_logger.info("check wid connection response code: " + checkWidConnection.getResponseCode());
-								if (checkWidConnection.getResponseCode() == 200) {
-									URL deleteAssetURL = new URL(widURL);
-								    HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-								            .openConnection();
-								    ServletUtil.applyAuth(profile, deleteConnection);
-								    deleteConnection.setRequestMethod("DELETE");
-								    deleteConnection.connect();
-								    _logger.info("delete wid response code: " + deleteConnection.getResponseCode());
+								// delete the wid and the icon if they already exist
+								GuvnorClient guvnor = GuvnorClient.getInstance();
+								if (guvnor.exists(widURL, profile)) {
+								    _logger.info("delete wid response code: " + guvnor.delete(widURL, profile));
 								}
-								
-								// check if icon already exists
-								URL checkIconURL = new URL(iconURL);
-								HttpURLConnection checkIconConnection = (HttpURLConnection) checkIconURL
-								        .openConnection();
-								ServletUtil.applyAuth(profile, checkIconConnection);
-								checkIconConnection.setRequestMethod("GET");
-								checkIconConnection
-								        .setRequestProperty("Accept", "application/atom+xml");
-								checkIconConnection.connect();
-								_logger.info("check icon connection response code: " + checkIconConnection.getResponseCode());
-								if (checkIconConnection.getResponseCode() == 200) {
-								    URL deleteAssetURL = new URL(iconURL);
-								    HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-								            .openConnection();
-								    ServletUtil.applyAuth(profile, deleteConnection);
-								    deleteConnection.setRequestMethod("DELETE");
-								    deleteConnection.connect();
-								    _logger.info("delete icon response code: " + deleteConnection.getResponseCode());
+								if (guvnor.exists(iconURL, profile)) {
+								    _logger.info("delete icon response code: " + guvnor.delete(iconURL, profile));
 								}
 								
 								// replace the icon value of the workitem config to include the guvnor rest url 
 								workItemDefinitionContent = workItemDefinitionContent.replaceAll( "(\"icon\"\\s*\\:\\s*\")(.*?)(\")", "$1"+ ( packageAssetsURL + iconName.substring(0, iconName.indexOf("."))  +"/binary" ) + "$3" );
 								// write to guvnor
-								URL createWidURL = new URL(packageAssetsURL);
-					            HttpURLConnection createWidConnection = (HttpURLConnection) createWidURL
-					                    .openConnection();
-					            ServletUtil.applyAuth(profile, createWidConnection);
-					            createWidConnection.setRequestMethod("POST");
-					            createWidConnection.setRequestProperty("Content-Type",
-					                    "application/octet-stream");
-					            createWidConnection.setRequestProperty("Accept",
-					                    "application/atom+xml");
-					            createWidConnection.setRequestProperty("Slug", widName + ".wid");
-					            createWidConnection.setDoOutput(true);
-					            createWidConnection.getOutputStream().write(workItemDefinitionContent.getBytes("UTF-8"));
-					            createWidConnection.connect();
-					            System.out.println("created wid configuration:" + createWidConnection.getResponseCode());
-
-					            URL createIconURL = new URL(packageAssetsURL);
-					            HttpURLConnection createIconConnection = (HttpURLConnection) createIconURL
-					                    .openConnection();
-					            ServletUtil.applyAuth(profile, createIconConnection);
-					            createIconConnection.setRequestMethod("POST");
-					            createIconConnection.setRequestProperty("Content-Type",
-					                    "application/octet-stream");
-					            createIconConnection.setRequestProperty("Accept",
-					                    "application/atom+xml");
-					            createIconConnection.setRequestProperty("Slug", iconName);
-					            createIconConnection.setDoOutput(true);
-					            createIconConnection.getOutputStream().write(iconContent);
-					            createIconConnection.connect();
-					            _logger.info("icon creation response code: " + createIconConnection.getResponseCode());
-					            System.out.println("created icon:" + createIconConnection.getResponseCode());
+								_logger.info("created wid configuration: " + guvnor.create(packageAssetsURL, widName + ".wid",
+								        workItemDefinitionContent.getBytes("UTF-8"), profile));
+								_logger.info("icon creation response code: " + guvnor.create(packageAssetsURL, iconName,
+								        iconContent, profile));
 								
 								break;
 							} else {
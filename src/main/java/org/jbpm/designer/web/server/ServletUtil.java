@@ -1,12 +1,10 @@
 package org.jbpm.designer.web.server;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,6 +14,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamReader;
 
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.jbpm.designer.web.profile.IDiagramProfile;
@@ -23,8 +22,6 @@ import org.jbpm.designer.web.profile.IDiagramProfileService;
 import org.jbpm.designer.web.profile.impl.ExternalInfo;
 import org.jbpm.designer.web.profile.impl.ProfileServiceImpl;
 
-import sun.misc.BASE64Encoder;
-
 /**
  * Utility class for web servlets.
  * 
@@ -51,6 +48,34 @@ public class ServletUtil {
         return profile;
     }
 	
+	/**
+	 * Models can be posted as a form parameter, or as the raw body of the request,
+	 * in which case the other parameters are passed in the url.
+	 * @param parameter the form parameter holding the model
+	 * @return the model, or null if it wasn't sent.
+	 */
+	public static InputStream getModelInputStream(HttpServletRequest req,
+            String parameter) throws IOException {
+        if (isRawBody(req)) {
+            return req.getInputStream();
+        }
+        String model = req.getParameter(parameter);
+        if (model == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(model.getBytes("UTF-8"));
+    }
+	
+	/**
+	 * @return whether the body of the request is a model rather than form parameters.
+	 */
+	public static boolean isRawBody(HttpServletRequest req) {
+        String contentType = req.getContentType();
+        return contentType != null
+                && !contentType.startsWith("application/x-www-form-urlencoded")
+                && !contentType.startsWith("multipart/form-data");
+    }
+	
 	public static String[] findPackageAndAssetInfo(String uuid,
             IDiagramProfile profile) {
         List<String> packages = new ArrayList<String>();
@@ -127,51 +152,28 @@ public class ServletUtil {
         return pkgassetinfo;
     }
 	
+	/**
+	 * Reads a resource of Guvnor through the shared {@link GuvnorClient}.
+	 * @param requestMethod GET, the only method a resource is read with
+	 */
 	public static InputStream getInputStreamForURL(String urlLocation,
             String requestMethod, IDiagramProfile profile) throws Exception {
-        URL url = new URL(urlLocation);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-        connection.setRequestMethod(requestMethod);
-        connection
-                .setRequestProperty(
-                        "User-Agent",
-                        "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.6; en-US; rv:1.9.2.16) Gecko/20110319 Firefox/3.6.16");
-        connection
-                .setRequestProperty("Accept",
-                        "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
-        connection.setRequestProperty("Accept-Language", "en-us,en;q=0.5");
-        connection.setRequestProperty("Accept-Encoding", "gzip,deflate");
-        connection.setRequestProperty("charset", "UTF-8");
-        connection.setReadTimeout(5 * 1000);
-
-        ServletUtil.applyAuth(profile, connection);
-
-        connection.connect();
-
-        BufferedReader sreader = new BufferedReader(new InputStreamReader(
-                connection.getInputStream(), "UTF-8"));
-        StringBuilder stringBuilder = new StringBuilder();
-
-        String line = null;
-        while ((line = sreader.readLine()) != null) {
-            stringBuilder.append(line + "\n");
+        if (!"GET".equals(requestMethod)) {
+            throw new IllegalArgumentException("Resources are read with GET, not " + requestMethod);
         }
-
-        return new ByteArrayInputStream(stringBuilder.toString().getBytes(
-                "UTF-8"));
+        return new ByteArrayInputStream(GuvnorClient.getInstance().get(urlLocation, profile));
     }
 	
+	/**
+	 * Sets the basic authorization of the user of the profile on a connection
+	 * that doesn't go through the {@link GuvnorClient}.
+	 */
 	public static void applyAuth(IDiagramProfile profile,
 			HttpURLConnection connection) {
-		if (profile.getUsr() != null && profile.getUsr().trim().length() > 0
-				&& profile.getPwd() != null
-				&& profile.getPwd().trim().length() > 0) {
-			BASE64Encoder enc = new sun.misc.BASE64Encoder();
-			String userpassword = profile.getUsr() + ":" + profile.getPwd();
-			String encodedAuthorization = enc.encode(userpassword.getBytes());
-			connection.setRequestProperty("Authorization", "Basic "
-					+ encodedAuthorization);
+		String authorization = GuvnorClient.getInstance().getAuthorization(
+				profile.getUsr(), profile.getPwd());
+		if (authorization != null) {
+			connection.setRequestProperty("Authorization", authorization);
 		}
 	}
 	
@@ -185,19 +187,9 @@ public class ServletUtil {
     	                profile.getExternalLoadURLSubdomain().indexOf("/"))
     	        + "/rest/packages/" + packageName + "/assets/" + URLEncoder.encode(assetName, "UTF-8");
     	
-    	
-			URL checkURL = new URL(formURL);
-			HttpURLConnection checkConnection = (HttpURLConnection) checkURL
-			        .openConnection();
-			ServletUtil.applyAuth(profile, checkConnection);
-			checkConnection.setRequestMethod("GET");
-			checkConnection
-			        .setRequestProperty("Accept", "application/atom+xml");
-			checkConnection.connect();
-			_logger.info("check connection response code: " + checkConnection.getResponseCode());
-			if (checkConnection.getResponseCode() == 200) {
-				return true;
-			}
+			int status = GuvnorClient.getInstance().check(formURL, profile);
+			_logger.info("check connection response code: " + status);
+			return status == 200;
 		} catch (Exception e) {
 			_logger.error(e.getMessage());
 		}
@@ -206,18 +198,9 @@ public class ServletUtil {
 	
 	public static boolean existsProcessImageInGuvnor(String assetURL, IDiagramProfile profile) {
 		try {	
-			URL checkURL = new URL(assetURL);
-			HttpURLConnection checkConnection = (HttpURLConnection) checkURL
-			        .openConnection();
-			ServletUtil.applyAuth(profile, checkConnection);
-			checkConnection.setRequestMethod("GET");
-			//checkConnection
-			//        .setRequestProperty("Accept", "application/binary");
-			checkConnection.connect();
-			_logger.info("check connection response code: " + checkConnection.getResponseCode());
-			if (checkConnection.getResponseCode() == 200) {
-				return true;
-			}
+			int status = GuvnorClient.getInstance().execute(new GetMethod(assetURL), profile).getStatus();
+			_logger.info("check connection response code: " + status);
+			return status == 200;
 		} catch (Exception e) {
 			_logger.error(e.getMessage());
 		}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.web.server;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpSession;
+
+import org.jbpm.designer.web.repository.PatchableModel;
+
+/**
+ * Keeps the models patched by a user session, by uuid.
+ *
+ * The cache is bounded, the least recently used model is dropped first.
+ *
+ * The models aren't serialized with the session: a session that was persisted
+ * or replicated comes back with an empty cache, and the editor is answered a
+ * conflict so that it sends its next model whole.
+ */
+public class SessionModelCache implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String SESSION_ATTRIBUTE = SessionModelCache.class.getName();
+
+    /**
+     * The system property or servlet init parameter with the number of models kept for a session.
+     */
+    public static final String MAX_MODELS = "designer.sessionmodels";
+
+    /**
+     * The number of models kept for a session when none is configured.
+     */
+    public static final int DEFAULT_MAX_MODELS = 4;
+
+    private final int _maxModels;
+
+    // the EMF resources of the models can't be serialized
+    private transient Map<String, PatchableModel> _models;
+
+    public SessionModelCache(int maxModels) {
+        _maxModels = maxModels;
+    }
+
+    private Map<String, PatchableModel> getModels() {
+        if (_models == null) {
+            _models = new LinkedHashMap<String, PatchableModel>(_maxModels, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PatchableModel> eldest) {
+                    return size() > _maxModels;
+                }
+            };
+        }
+        return _models;
+    }
+
+    /**
+     * @param maxModels the number of models kept if the session has no cache yet
+     */
+    public static SessionModelCache getCache(HttpSession session, int maxModels) {
+        synchronized (session) {
+            SessionModelCache cache = (SessionModelCache) session.getAttribute(SESSION_ATTRIBUTE);
+            if (cache == null) {
+                cache = new SessionModelCache(maxModels);
+                session.setAttribute(SESSION_ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    public synchronized PatchableModel get(String uuid) {
+        return getModels().get(uuid);
+    }
+
+    public synchronized void put(String uuid, PatchableModel model) {
+        getModels().put(uuid, model);
+    }
+
+    public synchronized void remove(String uuid) {
+        getModels().remove(uuid);
+    }
+}
@@ -1,6 +1,7 @@
 package org.jbpm.designer.web.server;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -33,7 +34,7 @@ public class SyntaxCheckerServlet extends HttpServlet {
 	@Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
-		String json = req.getParameter("data");
+		InputStream json = ServletUtil.getModelInputStream(req, "data");
         String profileName = req.getParameter("profile");
         String preprocessingData = req.getParameter("pp");
         String uuid = req.getParameter("uuid");
@@ -4,8 +4,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 
 import javax.servlet.ServletConfig;
@@ -85,41 +83,10 @@ public class TaskFormsEditorServlet extends HttpServlet {
 						profile.getExternalLoadURLSubdomain().indexOf("/"))
 				+ "/rest/packages/" + packageName + "/assets/";
 		
-        URL checkURL = new URL(taskFormURL);
-        HttpURLConnection checkConnection = (HttpURLConnection) checkURL
-                .openConnection();
-        ServletUtil.applyAuth(profile, checkConnection);
-        checkConnection.setRequestMethod("GET");
-        checkConnection
-                .setRequestProperty("Accept", "application/atom+xml");
-        checkConnection.connect();
-        _logger.info("check connection response code: " + checkConnection.getResponseCode());
-        if (checkConnection.getResponseCode() == 200) {
-            // delete the asset
-            URL deleteAssetURL = new URL(taskFormURL);
-            HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-                    .openConnection();
-            ServletUtil.applyAuth(profile, deleteConnection);
-            deleteConnection.setRequestMethod("DELETE");
-            deleteConnection.connect();
-            _logger.info("delete connection response code: " + deleteConnection.getResponseCode());
-        }
-        URL createURL = new URL(createNewURL);
-        HttpURLConnection createConnection = (HttpURLConnection) createURL
-                .openConnection();
-        ServletUtil.applyAuth(profile, createConnection);
-        createConnection.setRequestMethod("POST");
-        createConnection.setRequestProperty("Content-Type",
-                "application/octet-stream");
-        createConnection.setRequestProperty("Accept",
-                "application/atom+xml");
-        createConnection.setRequestProperty("Slug", URLEncoder.encode(taskName, "UTF-8") + TASKFORM_NAME_EXTENSION + TASKFORM_FILE_EXTENSION);
-        createConnection.setDoOutput(true);
-        
-        createConnection.getOutputStream ().write(formValue.getBytes("UTF-8"));
-        
-        createConnection.connect();
-        _logger.info("create connection response code: " + createConnection.getResponseCode());
+        // replace the task form if it already exists
+        GuvnorClient.getInstance().replace(taskFormURL, createNewURL,
+                URLEncoder.encode(taskName, "UTF-8") + TASKFORM_NAME_EXTENSION + TASKFORM_FILE_EXTENSION,
+                formValue.getBytes("UTF-8"), profile);
 		return "ok";
 	 }
 	 
@@ -142,17 +109,9 @@ public class TaskFormsEditorServlet extends HttpServlet {
 	                + "/source/";
 			
 			try {
-				URL checkURL = new URL(taskFormURL);
-		        HttpURLConnection checkConnection = (HttpURLConnection) checkURL
-		                .openConnection();
-		        ServletUtil.applyAuth(profile, checkConnection);
-		        checkConnection.setRequestMethod("GET");
-		        checkConnection
-		                .setRequestProperty("Accept", "application/atom+xml");
-		        checkConnection.setConnectTimeout(2000);
-		        checkConnection.connect();
-		        _logger.info("check connection response code: " + checkConnection.getResponseCode());
-		        if (checkConnection.getResponseCode() == 200) {
+				int status = GuvnorClient.getInstance().check(taskFormURL, profile);
+		        _logger.info("check connection response code: " + status);
+		        if (status == 200) {
 		        	InputStream in = ServletUtil.getInputStreamForURL(taskFormSourceURL, "GET", profile);
 		            StringWriter writer = new StringWriter();
 		            IOUtils.copy(in, writer);
@@ -5,8 +5,6 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
@@ -24,7 +22,6 @@ import org.antlr.stringtemplate.StringTemplate;
 import org.antlr.stringtemplate.StringTemplateGroup;
 import org.apache.log4j.Logger;
 import org.eclipse.bpmn2.Definitions;
-import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
 import org.jbpm.designer.taskforms.TaskFormInfo;
 import org.jbpm.designer.taskforms.TaskFormTemplateManager;
 import org.jbpm.designer.web.profile.IDiagramProfile;
@@ -57,7 +54,7 @@ public class TaskFormsServlet extends HttpServlet {
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
         
-        String json = req.getParameter("json");
+        InputStream json = ServletUtil.getModelInputStream(req, "json");
         String uuid = req.getParameter("uuid");
         String profileName = req.getParameter("profile");
         String preprocessingData = req.getParameter("ppdata");
@@ -69,8 +66,7 @@ public class TaskFormsServlet extends HttpServlet {
         String packageName = packageAssetInfo[0];
         String assetName = packageAssetInfo[1];
 
-        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
-        Definitions def = ((Definitions) unmarshaller.unmarshall(json, preprocessingData).getContents().get(0));
+        Definitions def = profile.createMarshaller().getDefinitions(json, preprocessingData);
         
         TaskFormTemplateManager templateManager = new TaskFormTemplateManager( profile, packageName, assetName, getServletContext().getRealPath("/" + TASKFORMS_PATH), def );
         templateManager.processTemplates();
@@ -140,42 +136,9 @@ public class TaskFormsServlet extends HttpServlet {
         + "/rest/packages/" + taskForm.getPkgName() + "/assets/";
         
         
-        // check if the task form already exists
-        URL checkURL = new URL(formURL);
-        HttpURLConnection checkConnection = (HttpURLConnection) checkURL
-                .openConnection();
-        ServletUtil.applyAuth(profile, checkConnection);
-        checkConnection.setRequestMethod("GET");
-        checkConnection
-                .setRequestProperty("Accept", "application/atom+xml");
-        checkConnection.connect();
-        _logger.info("check connection response code: " + checkConnection.getResponseCode());
-        if (checkConnection.getResponseCode() == 200) {
-            // delete the asset
-            URL deleteAssetURL = new URL(formURL);
-            HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-                    .openConnection();
-            ServletUtil.applyAuth(profile, deleteConnection);
-            deleteConnection.setRequestMethod("DELETE");
-            deleteConnection.connect();
-            _logger.info("delete connection response code: " + deleteConnection.getResponseCode());
-        }
-        // create new 
-        URL createURL = new URL(createNewURL);
-        HttpURLConnection createConnection = (HttpURLConnection) createURL
-                .openConnection();
-        ServletUtil.applyAuth(profile, createConnection);
-        createConnection.setRequestMethod("POST");
-        createConnection.setRequestProperty("Content-Type",
-                "application/octet-stream");
-        createConnection.setRequestProperty("Accept",
-                "application/atom+xml");
-        createConnection.setRequestProperty("Slug", URLEncoder.encode(taskForm.getId(), "UTF-8") + FORMTEMPLATE_FILE_EXTENSION);
-        createConnection.setDoOutput(true);
-        
-        createConnection.getOutputStream ().write(taskForm.getOutput().getBytes("UTF-8"));
-        
-        createConnection.connect();
-        _logger.info("create connection response code: " + createConnection.getResponseCode());
+        // replace the task form if it already exists
+        GuvnorClient.getInstance().replace(formURL, createNewURL,
+                URLEncoder.encode(taskForm.getId(), "UTF-8") + FORMTEMPLATE_FILE_EXTENSION,
+                taskForm.getOutput().getBytes("UTF-8"), profile);
     }
 }
@@ -23,8 +23,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -48,7 +46,6 @@ import org.apache.batik.util.ParsedURL;
 import org.apache.commons.io.IOUtils;
 import org.apache.fop.svg.PDFTranscoder;
 import org.apache.log4j.Logger;
-import org.eclipse.bpmn2.Bpmn2Package;
 import org.eclipse.bpmn2.Definitions;
 import org.eclipse.bpmn2.DocumentRoot;
 import org.eclipse.bpmn2.FlowElement;
@@ -64,12 +61,8 @@ import org.eclipse.bpmn2.di.BpmnDiFactory;
 import org.eclipse.dd.dc.Bounds;
 import org.eclipse.dd.dc.DcFactory;
 import org.eclipse.dd.dc.Point;
-import org.eclipse.emf.common.util.URI;
-import org.eclipse.emf.ecore.resource.Resource;
-import org.eclipse.emf.ecore.resource.ResourceSet;
-import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
 import org.eclipse.emf.ecore.xmi.XMLResource;
-import org.jbpm.designer.bpmn2.resource.JBPMBpmn2ResourceFactoryImpl;
+import org.jbpm.designer.bpmn2.resource.Bpmn2ResourceSetPool;
 import org.jbpm.designer.bpmn2.resource.JBPMBpmn2ResourceImpl;
 import org.jbpm.designer.web.batikprotocolhandler.GuvnorParsedURLProtocolHandler;
 import org.jbpm.designer.web.profile.IDiagramProfile;
@@ -115,7 +108,6 @@ public class TransformerServlet extends HttpServlet {
         String transformto = req.getParameter("transformto");
         String jpdl = req.getParameter("jpdl");
         String gpd = req.getParameter("gpd");
-        String bpmn2in = req.getParameter("bpmn2");
         String respaction = req.getParameter("respaction");
         String pp = req.getParameter("pp");
         String processid = req.getParameter("processid");
@@ -205,22 +197,22 @@ public class TransformerServlet extends HttpServlet {
         	revisitNodeNames(def);
         	
         	// get the xml from Definitions
-        	ResourceSet rSet = new ResourceSetImpl();
-            rSet.getResourceFactoryRegistry().getExtensionToFactoryMap().put("bpmn2", new JBPMBpmn2ResourceFactoryImpl());
-            JBPMBpmn2ResourceImpl bpmn2resource = (JBPMBpmn2ResourceImpl) rSet.createResource(URI.createURI("virtual.bpmn2"));
-            rSet.getResources().add(bpmn2resource);
+            JBPMBpmn2ResourceImpl bpmn2resource = Bpmn2ResourceSetPool.createResource();
             bpmn2resource.getContents().add(def);
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
             bpmn2resource.save(outputStream, new HashMap<Object, Object>());
-            String fullXmlModel =  outputStream.toString();
         	// convert to json and write response
-        	String json = profile.createUnmarshaller().parseModel(fullXmlModel, profile, pp);
         	resp.setContentType("application/json");
-        	resp.getWriter().print(json);
+        	resp.setCharacterEncoding("UTF-8");
+        	profile.createUnmarshaller().parseModel(new ByteArrayInputStream(outputStream.toByteArray()), profile, pp, resp.getOutputStream());
         }  else if (transformto != null && transformto.equals(BPMN2_TO_JSON)) { 
-        	String json = profile.createUnmarshaller().parseModel(bpmn2in, profile, pp);
+        	InputStream bpmn2in = ServletUtil.getModelInputStream(req, "bpmn2");
+        	if (bpmn2in == null) {
+        	    throw new ServletException("bpmn2 parameter required");
+        	}
         	resp.setContentType("application/json");
-			resp.getWriter().print(json);
+        	resp.setCharacterEncoding("UTF-8");
+        	profile.createUnmarshaller().parseModel(bpmn2in, profile, pp, resp.getOutputStream());
         } else if(transformto == null && respaction != null && respaction.equals(RESPACTION_SHOWEMBEDDABLE)) {
         	resp.setCharacterEncoding("UTF-8");
         	resp.setContentType("text/plain");
@@ -459,53 +451,13 @@ public class TransformerServlet extends HttpServlet {
                             profile.getExternalLoadURLSubdomain().indexOf("/"))
                     + "/rest/packages/" + packageName + "/assets/";
 
-            String deleteURL = ExternalInfo.getExternalProtocol(profile)
-                    + "://"
-                    + ExternalInfo.getExternalHost(profile)
-                    + "/"
-                    + profile.getExternalLoadURLSubdomain().substring(0,
-                            profile.getExternalLoadURLSubdomain().indexOf("/"))
-                    + "/rest/packages/" + packageName + "/assets/" + assetName
-                    + assetExt;
-
-            // check if the image already exists
-            URL checkURL = new URL(pngURL);
-            HttpURLConnection checkConnection = (HttpURLConnection) checkURL
-                    .openConnection();
-            ServletUtil.applyAuth(profile, checkConnection);
-            checkConnection.setRequestMethod("GET");
-            checkConnection
-                    .setRequestProperty("Accept", "application/atom+xml");
-            checkConnection.connect();
-            _logger.info("check connection response code: " + checkConnection.getResponseCode());
-            if (checkConnection.getResponseCode() == 200) {
-                URL deleteAssetURL = new URL(deleteURL);
-                HttpURLConnection deleteConnection = (HttpURLConnection) deleteAssetURL
-                        .openConnection();
-                ServletUtil.applyAuth(profile, deleteConnection);
-                deleteConnection.setRequestMethod("DELETE");
-                deleteConnection.connect();
-                _logger.info("delete connection response code: " + deleteConnection.getResponseCode());
-            }
-            // create new
-            URL createURL = new URL(packageAssetsURL);
-            HttpURLConnection createConnection = (HttpURLConnection) createURL
-                    .openConnection();
-            ServletUtil.applyAuth(profile, createConnection);
-            createConnection.setRequestMethod("POST");
-            createConnection.setRequestProperty("Content-Type",
-                    "application/octet-stream");
-            createConnection.setRequestProperty("Accept",
-                    "application/atom+xml");
-            createConnection.setRequestProperty("Slug", assetName + assetExt + assetFileExt);
-            createConnection.setDoOutput(true);
-
+            // the asset is transcoded before the connection is taken from the pool
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
             if (transformto.equals(TO_PDF)) {
             	PDFTranscoder t = new PDFTranscoder();
             	TranscoderInput input = new TranscoderInput(new StringReader(
             			rawSvg));
-            	TranscoderOutput output = new TranscoderOutput(
-            			createConnection.getOutputStream());
+            	TranscoderOutput output = new TranscoderOutput(content);
             	t.transcode(input, output);
             }
 
@@ -514,8 +466,7 @@ public class TransformerServlet extends HttpServlet {
             	t.addTranscodingHint(ImageTranscoder.KEY_MEDIA, "screen");
             	TranscoderInput input = new TranscoderInput(new StringReader(
             			rawSvg));
-            	TranscoderOutput output = new TranscoderOutput(
-            			createConnection.getOutputStream());
+            	TranscoderOutput output = new TranscoderOutput(content);
             	try {
 					t.transcode(input, output);
 				} catch (Exception e) {
@@ -523,8 +474,9 @@ public class TransformerServlet extends HttpServlet {
 					_logger.debug(e.getMessage());
 				}
             }
-            createConnection.connect();
-            _logger.info("create connection response code: " + createConnection.getResponseCode());
+            // replace the image if it already exists
+            GuvnorClient.getInstance().replace(pngURL, packageAssetsURL,
+                    assetName + assetExt + assetFileExt, content.toByteArray(), profile);
         } catch (Exception e) {
             // we dont want to barf..just log that error happened
             _logger.error(e.getMessage());
@@ -556,24 +508,8 @@ public class TransformerServlet extends HttpServlet {
 
     private Definitions getDefinitions(String xml) {
         try {
-            ResourceSet resourceSet = new ResourceSetImpl();
-            resourceSet
-                    .getResourceFactoryRegistry()
-                    .getExtensionToFactoryMap()
-                    .put(Resource.Factory.Registry.DEFAULT_EXTENSION,
-                            new JBPMBpmn2ResourceFactoryImpl());
-            resourceSet.getPackageRegistry().put(
-                    "http://www.omg.org/spec/BPMN/20100524/MODEL",
-                    Bpmn2Package.eINSTANCE);
-            XMLResource resource = (XMLResource) resourceSet.createResource(URI
-                    .createURI("inputStream://dummyUriWithValidSuffix.xml"));
-            resource.getDefaultLoadOptions().put(XMLResource.OPTION_ENCODING,
-                    "UTF-8");
-            resource.setEncoding("UTF-8");
-            Map<String, Object> options = new HashMap<String, Object>();
-            options.put(XMLResource.OPTION_ENCODING, "UTF-8");
             InputStream is = new ByteArrayInputStream(xml.getBytes("UTF-8"));
-            resource.load(is, options);
+            XMLResource resource = Bpmn2ResourceSetPool.getDefault().load(is);
             return ((DocumentRoot) resource.getContents().get(0))
                     .getDefinitions();
         } catch (Throwable t) {
@@ -16,12 +16,15 @@
 package org.jbpm.designer.web.server;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
-import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -30,6 +33,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.eclipse.bpmn2.Definitions;
 import org.eclipse.emf.common.util.EList;
 import org.eclipse.emf.ecore.resource.Resource;
@@ -40,6 +45,8 @@ import org.jbpm.designer.web.profile.impl.DefaultProfileImpl;
 import org.jbpm.designer.web.profile.impl.ProfileServiceImpl;
 import org.jbpm.designer.web.repository.IUUIDBasedRepository;
 import org.jbpm.designer.web.repository.IUUIDBasedRepositoryService;
+import org.jbpm.designer.web.repository.MarshalledModelCache;
+import org.jbpm.designer.web.repository.PatchableModel;
 import org.jbpm.designer.web.repository.UUIDBasedEpnRepository;
 import org.jbpm.designer.web.repository.impl.UUIDBasedFileRepository;
 import org.jbpm.designer.web.repository.impl.UUIDBasedJbpmRepository;
@@ -92,11 +99,24 @@ public class UUIDBasedRepositoryServlet extends HttpServlet {
         }     
     };
     
+    private static final ObjectMapper _mapper = new ObjectMapper();
+
     private IUUIDBasedRepository _repository;
+    // the number of patched models kept for a session
+    private int _sessionModels = SessionModelCache.DEFAULT_MAX_MODELS;
     
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
+        String sessionModels = System.getProperty(SessionModelCache.MAX_MODELS) == null ?
+                config.getInitParameter(SessionModelCache.MAX_MODELS) : System.getProperty(SessionModelCache.MAX_MODELS);
+        if (sessionModels != null) {
+            try {
+                _sessionModels = Math.max(1, Integer.parseInt(sessionModels.trim()));
+            } catch (NumberFormatException e) {
+                _logger.warn("Invalid " + SessionModelCache.MAX_MODELS + ": " + sessionModels);
+            }
+        }
         try {
             _repository = _factory.createRepository(config);
             _repository.configure(this);
@@ -117,35 +137,105 @@ public class UUIDBasedRepositoryServlet extends HttpServlet {
         }
         IDiagramProfile profile = ServletUtil.getProfile(req, req.getParameter("profile"), getServletContext());
 		try {
-			String response =  new String(_repository.load(req, uuid, profile), Charset.forName("UTF-8"));
-			resp.getWriter().write(response);
+			// the model is compressed if the client accepts it, caches must keep
+			// both representations apart
+			String acceptEncoding = req.getHeader("Accept-Encoding");
+			boolean compressed = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+			resp.setHeader("Vary", "Accept-Encoding");
+			// the marshalled models of the jbpm repository are cached, the browser
+			// revalidates them with their ETag, which differs for the compressed json
+			MarshalledModelCache.Entry cached = null;
+			String subProcessId = req.getParameter("subprocess");
+			if (subProcessId == null && _repository instanceof UUIDBasedJbpmRepository) {
+				cached = ((UUIDBasedJbpmRepository) _repository).loadCached(req, uuid, profile);
+				if (cached != null) {
+					String etag = compressed ? cached.getGzipETag() : cached.getETag();
+					resp.setHeader("ETag", etag);
+					resp.setHeader("Cache-Control", "no-cache");
+					if (matches(req.getHeader("If-None-Match"), etag)) {
+						resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						return;
+					}
+				}
+			}
+			ByteArrayOutputStream shapes = null;
+			if (subProcessId != null) {
+				// the shapes of a subprocess of a model loaded with its subprocesses collapsed,
+				// from the version the client has
+				shapes = new ByteArrayOutputStream();
+				if (!_repository.loadSubProcess(req, uuid, subProcessId, profile, shapes)) {
+					resp.sendError(HttpServletResponse.SC_CONFLICT, "The model changed since it was loaded");
+					return;
+				}
+			}
+
+			// the model is written as it is converted
+			OutputStream output = resp.getOutputStream();
+			GZIPOutputStream gzip = null;
+			if (compressed) {
+				resp.setHeader("Content-Encoding", "gzip");
+				output = gzip = new GZIPOutputStream(output, 8192);
+			}
+			if (shapes != null) {
+				shapes.writeTo(output);
+			} else if (cached != null) {
+				cached.writeTo(output);
+			} else if (!(_repository instanceof UUIDBasedJbpmRepository)) {
+				// the jbpm repository has no model for the uuid when nothing is cached
+				_repository.load(req, uuid, profile, output);
+			}
+			if (gzip != null) {
+				gzip.finish();
+			}
+			output.flush();
 		} catch (Exception e) {
 			throw new ServletException("Exception loading process: " + e.getMessage());
 		}
     }
 
+    /**
+     * @return whether the If-None-Match header of the request names the ETag.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         String actionParam = req.getParameter("action");
         String preProcessingParam = req.getParameter("pp");
         if(actionParam != null && actionParam.equals("toXML")) {
             IDiagramProfile profile = ServletUtil.getProfile(req, req.getParameter("profile"), getServletContext());
-            String json = req.getParameter("data");
-            String xml = _repository.toXML(json, profile, preProcessingParam);
-            StringWriter output = new StringWriter();
-            output.write(xml);
+            InputStream json = ServletUtil.getModelInputStream(req, "data");
+            if (json == null) {
+                throw new ServletException("data parameter required");
+            }
+            // convert before answering, so that a failure can still be reported.
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            _repository.toXML(json, profile, preProcessingParam, xml);
             resp.setContentType("application/xml");
             resp.setCharacterEncoding("UTF-8");
             resp.setStatus(200);
-            resp.getWriter().print(output.toString());
+            resp.setContentLength(xml.size());
+            xml.writeTo(resp.getOutputStream());
         } else if(actionParam != null && actionParam.equals("checkErrors")) { 
         	String retValue = "false";
         	IDiagramProfile profile = ServletUtil.getProfile(req, req.getParameter("profile"), getServletContext());
-            String json = req.getParameter("data");
             try {
-				String xmlOut = profile.createMarshaller().parseModel(json, preProcessingParam);
-				String jsonIn = profile.createUnmarshaller().parseModel(xmlOut, profile, preProcessingParam);
-				if(jsonIn == null || jsonIn.length() < 1) {
+                InputStream json = ServletUtil.getModelInputStream(req, "data");
+                // the model is only built and checked, it used to be converted to xml and back.
+                List<String> problems = profile.createMarshaller().validate(json, preProcessingParam);
+				if(!problems.isEmpty()) {
+					_logger.info("The process has errors: " + problems);
 					retValue = "true";
 				}
 			} catch (Throwable t) {
@@ -158,6 +248,8 @@ public class UUIDBasedRepositoryServlet extends HttpServlet {
             resp.setCharacterEncoding("UTF-8");
             resp.setStatus(200);
             resp.getWriter().print(output.toString());
+        } else if(actionParam != null && actionParam.equals("patch")) {
+            patch(req, resp, preProcessingParam);
         } else {
             BufferedReader reader = req.getReader();
             StringWriter reqWriter = new StringWriter();
@@ -186,4 +278,42 @@ public class UUIDBasedRepositoryServlet extends HttpServlet {
             }
         }
     }
+
+    /**
+     * Saves a model kept in the user session, patched with the shapes the editor changed
+     * since the last patch. The editor sends the whole model when it has no version of it
+     * on the server, and when the server answers with a conflict.
+     */
+    private void patch(HttpServletRequest req, HttpServletResponse resp, String preProcessingParam) throws ServletException, IOException {
+        JsonNode request = _mapper.readTree(req.getReader());
+        String uuid = request.path("uuid").getTextValue();
+        if (uuid == null) {
+            throw new ServletException("uuid parameter required");
+        }
+        IDiagramProfile profile = ServletUtil.getProfile(req, request.path("profile").getTextValue(), getServletContext());
+        SessionModelCache cache = SessionModelCache.getCache(req.getSession(), _sessionModels);
+        PatchableModel model;
+        int version;
+        if (request.has("data")) {
+            model = profile.createMarshaller().createPatchableModel(request.get("data").getTextValue(), preProcessingParam);
+            cache.put(uuid, model);
+            version = model.getVersion();
+        } else {
+            model = cache.get(uuid);
+            version = model == null ? -1 : model.patch(request.path("base").getIntValue(), request);
+        }
+        if (version < 0) {
+            resp.sendError(HttpServletResponse.SC_CONFLICT, "The model is not known to the server, send it whole");
+            return;
+        }
+        try {
+            _repository.save(req, uuid, model, request.path("svg").getTextValue(), profile, request.path("savetype").getBooleanValue());
+        } catch (Exception e) {
+            cache.remove(uuid);
+            throw new ServletException("Exception saving process: " + e.getMessage(), e);
+        }
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write("{\"version\":" + version + "}");
+    }
 }
@@ -785,11 +785,11 @@ ORYX.Editor = {
     	var processJSON = ORYX.EDITOR.getSerializedJSON();
 		
 		var ajaxObj = new XMLHttpRequest;
-		var url = ORYX.PATH + "uuidRepository";
-	    var params  = "action=checkErrors&pp=" + ORYX.PREPROCESSING + "&profile=" + ORYX.PROFILE + "&data=" + encodeURIComponent(processJSON);
+		// the model is sent as the body of the request, the parameters in the url.
+		var url = ORYX.PATH + "uuidRepository?action=checkErrors&pp=" + ORYX.PREPROCESSING + "&profile=" + ORYX.PROFILE;
 	    ajaxObj.open("POST",url,false);
-	    ajaxObj.setRequestHeader("Content-type", "application/x-www-form-urlencoded");
-	    ajaxObj.send(params);
+	    ajaxObj.setRequestHeader("Content-type", "application/json; charset=UTF-8");
+	    ajaxObj.send(processJSON);
 	    
 	    if (ajaxObj.status == 200) {
 			return ajaxObj.responseText == "true";
@@ -108,7 +108,7 @@ ORYX.Plugins.UUIDRepositorySave = ORYX.Plugins.AbstractPlugin.extend({
 		}.bind(this);
 		
 		// let's set autosave on.
-		this.autosaveFunction = function() { if (/*savePlugin.changeDifference != 0*/true) { this._save(this, true, true); }}.bind(this, autosavecfg);
+		this.autosaveFunction = function() { if (/*savePlugin.changeDifference != 0*/true) { this._autosave(this); }}.bind(this, autosavecfg);
 		this.setautosave(ORYX.CONFIG.UUID_AUTOSAVE_INTERVAL);
 	},
 	
@@ -187,6 +187,87 @@ ORYX.Plugins.UUIDRepositorySave = ORYX.Plugins.AbstractPlugin.extend({
 		return true;
 	},
 	
+	/**
+	 * Autosaves the shapes changed since the last autosave. The server patches
+	 * the model it kept from the last autosave, the whole model is only sent when
+	 * the server has no version of it.
+	 * Only the top level shapes are compared: a shape changed inside a lane or a
+	 * subprocess is sent with the whole top level shape that contains it.
+	 * The svg of the model is sent each time, as the repositories save it too.
+	 */
+	_autosave: function(savePlugin) {
+		this.showSaveStatus(savePlugin, true);
+		var svgDOM = DataManager.serialize(this.facade.getCanvas().getSVGRepresentation(true));
+		var json = this.facade.getJSON();
+		var shapes = {};
+		var encodedShapes = {};
+		for (var i = 0; i < json.childShapes.length; i++) {
+			var shape = json.childShapes[i];
+			shapes[shape.resourceId] = shape;
+			encodedShapes[shape.resourceId] = Ext.encode(shape);
+		}
+		var encodedProperties = Ext.encode(json.properties);
+
+		var request = {uuid: ORYX.UUID, svg: svgDOM, profile: ORYX.PROFILE, savetype: true};
+		if (this.patchVersion === undefined) {
+			request.data = Ext.encode(json);
+		} else {
+			request.base = this.patchVersion;
+			request.added = [];
+			request.changed = [];
+			request.removed = [];
+			for (var id in encodedShapes) {
+				if (this.patchShapes[id] === undefined) {
+					request.added.push(shapes[id]);
+				} else if (this.patchShapes[id] != encodedShapes[id]) {
+					request.changed.push(shapes[id]);
+				}
+			}
+			for (var id in this.patchShapes) {
+				if (encodedShapes[id] === undefined) {
+					request.removed.push(id);
+				}
+			}
+			if (encodedProperties != this.patchProperties) {
+				request.properties = json.properties;
+			}
+		}
+
+		new Ajax.Request(ORYX.CONFIG.UUID_URL() + "&action=patch", {
+                method: 'POST',
+                asynchronous: true,
+                postBody: Ext.encode(request),
+			onSuccess: (function(transport) {
+				this.patchVersion = transport.responseText.evalJSON().version;
+				this.patchShapes = encodedShapes;
+				this.patchProperties = encodedProperties;
+				//show saved status
+				this.facade.raiseEvent({
+						type:ORYX.CONFIG.EVENT_LOADING_STATUS,
+						text:ORYX.I18N.Save.saved
+					});
+			}).bind(this),
+			on409: (function(transport) {
+				// the server lost our version of the model, send it whole.
+				this.patchVersion = undefined;
+				this._autosave(savePlugin);
+			}).bind(this),
+			onFailure: (function(transport) {
+				this.patchVersion = undefined;
+				// raise loading disable event.
+                this.facade.raiseEvent({
+                    type: ORYX.CONFIG.EVENT_LOADING_DISABLE
+                });
+
+				Ext.Msg.alert(ORYX.I18N.Oryx.title, ORYX.I18N.Save.failed);
+				
+				ORYX.log.warn("Saving failed: " + transport.responseText);
+			}).bind(this)
+		});
+		this.hideSaveStatus(savePlugin, true);
+		return true;
+	},
+	
 	/**
 	 * Shows the saving status
 	 * @param asynchronous whether the save is synchronous or asynchronous.
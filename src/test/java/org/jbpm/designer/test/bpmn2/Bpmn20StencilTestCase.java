@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import org.eclipse.bpmn2.Association;
+import org.eclipse.bpmn2.BaseElement;
+import org.eclipse.bpmn2.CatchEvent;
+import org.eclipse.bpmn2.EventDefinition;
+import org.eclipse.bpmn2.ThrowEvent;
+import org.eclipse.emf.common.util.EList;
+import org.jbpm.designer.bpmn2.impl.Bpmn20Stencil;
+import org.junit.Test;
+
+public class Bpmn20StencilTestCase {
+
+    @Test
+    public void testCreateElements() throws Exception {
+        for (Bpmn20Stencil stencil : Bpmn20Stencil.values()) {
+            BaseElement element = Bpmn20Stencil.createElement(stencil.name(), null, false);
+            assertEquals(stencil.name(), stencil.className, element.eClass());
+            if (stencil.eventType != null) {
+                EList<EventDefinition> definitions = element instanceof CatchEvent
+                        ? ((CatchEvent) element).getEventDefinitions() : ((ThrowEvent) element).getEventDefinitions();
+                assertEquals(stencil.name(), 1, definitions.size());
+                assertEquals(stencil.name(), stencil.eventType, definitions.get(0).eClass());
+            }
+            if (stencil.associationDirection != null) {
+                assertEquals(stencil.name(), stencil.associationDirection, ((Association) element).getAssociationDirection());
+            }
+        }
+    }
+
+    @Test
+    public void testTaskTypes() throws Exception {
+        assertEquals(Bpmn20Stencil.Task_Business_Rule.className,
+                Bpmn20Stencil.createElement("Task", "Business Rule", false).eClass());
+        assertEquals(Bpmn20Stencil.Task_Custom.className, Bpmn20Stencil.createElement("Task", "Email", true).eClass());
+        try {
+            Bpmn20Stencil.createElement("Task", "Unknown", false);
+            fail("unknown task types are not created");
+        } catch (IllegalArgumentException e) {
+            // as valueOf fails
+        }
+    }
+}
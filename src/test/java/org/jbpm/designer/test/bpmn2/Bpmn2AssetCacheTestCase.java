@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import org.eclipse.bpmn2.Bpmn2Factory;
+import org.eclipse.bpmn2.Definitions;
+import org.jbpm.designer.bpmn2.impl.Bpmn2AssetCache;
+import org.junit.Test;
+
+public class Bpmn2AssetCacheTestCase {
+
+    @Test
+    public void testVersions() throws Exception {
+        Bpmn2AssetCache cache = new Bpmn2AssetCache(2);
+        Definitions first = Bpmn2Factory.eINSTANCE.createDefinitions();
+        Definitions second = Bpmn2Factory.eINSTANCE.createDefinitions();
+
+        cache.put("uuid", "v1", first);
+        assertTrue(first == cache.get("uuid", "v1"));
+        // the definitions are only returned for the version they were loaded from
+        assertNull(cache.get("uuid", "v2"));
+
+        // a new version replaces the old one
+        cache.put("uuid", "v2", second);
+        assertTrue(second == cache.get("uuid", "v2"));
+        assertNull(cache.get("uuid", "v1"));
+        assertEquals(1, cache.size());
+
+        // the least recently used asset is dropped first
+        cache.put("other", "v1", first);
+        cache.get("uuid", "v2");
+        cache.put("third", "v1", first);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("other", "v1"));
+        assertTrue(second == cache.get("uuid", "v2"));
+    }
+}
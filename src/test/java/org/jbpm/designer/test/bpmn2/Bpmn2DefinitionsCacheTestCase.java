@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.bpmn2.Definitions;
+import org.jbpm.designer.bpmn2.impl.Bpmn2DefinitionsCache;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.junit.Test;
+
+public class Bpmn2DefinitionsCacheTestCase {
+
+    @Test
+    public void testDefinitionsCache() throws Exception {
+        byte[] json = LargeModelBuilder.build(1000).getBytes("UTF-8");
+        Bpmn2DefinitionsCache probe = new Bpmn2DefinitionsCache(new Bpmn2JsonUnmarshaller(), Long.MAX_VALUE);
+        probe.getDefinitions(json, "");
+        // the estimate counts every object of the model, not only the json
+        assertTrue(probe.getWeight() > json.length * 4L);
+        // room for two models of that size, not three
+        long maxWeight = probe.getWeight() * 3 - 1;
+        Bpmn2DefinitionsCache cache = new Bpmn2DefinitionsCache(new Bpmn2JsonUnmarshaller(), maxWeight);
+
+        Definitions definitions = cache.getDefinitions(json, "");
+        assertEquals(1, cache.getMisses());
+        LargeModelBuilder.checkModel(definitions, 1000);
+
+        // each call gets a copy, which can be changed without changing the cached model
+        Definitions copy = cache.getDefinitions(new ByteArrayInputStream(json), "");
+        assertEquals(1, cache.getHits());
+        assertTrue(copy != definitions);
+        LargeModelBuilder.getProcess(copy).getFlowElements().clear();
+        LargeModelBuilder.checkModel(cache.getDefinitions(json, ""), 1000);
+        LargeModelBuilder.getProcess((Definitions) cache.copyResource(json, "").getContents().get(0)).getFlowElements().clear();
+        LargeModelBuilder.checkModel(cache.getDefinitions(json, ""), 1000);
+
+        // the preprocessing data is part of the key
+        cache.getDefinitions(json, "other");
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+
+        // a third model pushes out the least recently used one
+        cache.getDefinitions(LargeModelBuilder.build(1001).getBytes("UTF-8"), "");
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        assertTrue(cache.getWeight() <= maxWeight);
+        cache.getDefinitions(json, "");
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testTooHeavyModel() throws Exception {
+        Bpmn2DefinitionsCache cache = new Bpmn2DefinitionsCache(new Bpmn2JsonUnmarshaller(), 1024);
+        byte[] json = LargeModelBuilder.build(100).getBytes("UTF-8");
+        LargeModelBuilder.checkModel(cache.getDefinitions(json, ""), 100);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testConcurrentCopies() throws Exception {
+        final byte[] json = LargeModelBuilder.build(200).getBytes("UTF-8");
+        final Bpmn2DefinitionsCache cache = new Bpmn2DefinitionsCache(new Bpmn2JsonUnmarshaller(), Long.MAX_VALUE);
+        final List<String> problems = cache.validate(new ByteArrayInputStream(json), "");
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < 4; i++) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int j = 0; j < 5; j++) {
+                        Definitions definitions = cache.getDefinitions(json, "");
+                        LargeModelBuilder.checkModel(definitions, 200);
+                        LargeModelBuilder.getProcess(definitions).getFlowElements().clear();
+                        assertEquals(problems, cache.validate(new ByteArrayInputStream(json), ""));
+                    }
+                    return null;
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            for (Future<Object> result : executor.invokeAll(tasks)) {
+                // rethrows what failed in the threads
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, cache.getMisses());
+        LargeModelBuilder.checkModel(cache.getDefinitions(json, ""), 200);
+    }
+}
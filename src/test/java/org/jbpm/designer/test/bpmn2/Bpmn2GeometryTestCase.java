@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.SequenceFlow;
+import org.eclipse.bpmn2.di.BPMNEdge;
+import org.eclipse.bpmn2.di.BPMNShape;
+import org.eclipse.dd.dc.Bounds;
+import org.eclipse.dd.dc.Point;
+import org.eclipse.dd.di.DiagramElement;
+import org.jbpm.designer.bpmn2.impl.Bpmn2Geometry;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.junit.Test;
+
+/**
+ * Checks the geometry the unmarshaller keeps for the shapes, and the diagram
+ * it creates from it.
+ */
+public class Bpmn2GeometryTestCase {
+
+    @Test
+    public void testGeometry() {
+        Bpmn2Geometry geometry = new Bpmn2Geometry();
+        // more shapes than the arrays first have room for
+        for (int i = 0; i < 200; i++) {
+            geometry.putBounds("_shape" + i, i, i * 2, 100, 80);
+            geometry.startDockers("_shape" + i);
+            geometry.addDocker(i, 1);
+            geometry.addDocker(i + 1, 2);
+        }
+        assertEquals(123f, geometry.createBounds("_shape123").getX());
+        assertEquals(246f, geometry.createBounds("_shape123").getY());
+        assertEquals(100f, geometry.createBounds("_shape123").getWidth());
+        assertEquals(80f, geometry.createBounds("_shape123").getHeight());
+        assertEquals(2, geometry.getDockerCount("_shape123"));
+        assertEquals(124f, geometry.createDocker("_shape123", 1).getX());
+        assertEquals(164f, geometry.createCenter("_shape114").getX());
+        assertEquals(268f, geometry.createCenter("_shape114").getY());
+        // each call gives a new object
+        assertTrue(geometry.createBounds("_shape1") != geometry.createBounds("_shape1"));
+
+        geometry.remove("_shape123");
+        assertFalse(geometry.hasBounds("_shape123"));
+        assertNull(geometry.createBounds("_shape123"));
+        assertNull(geometry.createBounds("unknown"));
+    }
+
+    @Test
+    public void testLargeModelDiagram() throws Exception {
+        int tasks = 1000;
+        String json = LargeModelBuilder.build(tasks);
+        Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(json, "").getContents().get(0);
+
+        // the upper left corner of each shape of the json
+        Map<String, float[]> corners = new HashMap<String, float[]>();
+        for (JsonNode shape : new ObjectMapper().readTree(json).get("childShapes")) {
+            JsonNode upperLeft = shape.get("bounds").get("upperLeft");
+            corners.put(shape.get("resourceId").getTextValue(),
+                    new float[] { upperLeft.get("x").getIntValue(), upperLeft.get("y").getIntValue() });
+        }
+
+        int shapes = 0;
+        int edges = 0;
+        for (DiagramElement element : definitions.getDiagrams().get(0).getPlane().getPlaneElement()) {
+            if (element instanceof BPMNShape) {
+                shapes++;
+                BPMNShape shape = (BPMNShape) element;
+                float[] corner = corners.get(shape.getBpmnElement().getId());
+                Bounds bounds = shape.getBounds();
+                assertEquals(corner[0], bounds.getX());
+                assertEquals(corner[1], bounds.getY());
+                assertEquals(100f, bounds.getWidth());
+                assertEquals(80f, bounds.getHeight());
+            } else {
+                edges++;
+                BPMNEdge edge = (BPMNEdge) element;
+                SequenceFlow flow = (SequenceFlow) edge.getBpmnElement();
+                // the dockers of the built flows are the centers of their shapes
+                assertEquals(2, edge.getWaypoint().size());
+                checkCenter(corners.get(flow.getSourceRef().getId()), edge.getWaypoint().get(0));
+                checkCenter(corners.get(flow.getTargetRef().getId()), edge.getWaypoint().get(1));
+            }
+        }
+        assertEquals(LargeModelBuilder.countFlowNodes(tasks), shapes);
+        assertEquals(LargeModelBuilder.countSequenceFlows(tasks), edges);
+    }
+
+    private static void checkCenter(float[] corner, Point point) {
+        assertNotNull(corner);
+        assertEquals(corner[0] + 50, point.getX());
+        assertEquals(corner[1] + 40, point.getY());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.FlowElement;
+import org.eclipse.bpmn2.FlowNode;
+import org.eclipse.bpmn2.Process;
+import org.eclipse.bpmn2.SequenceFlow;
+import org.eclipse.bpmn2.util.Bpmn2Resource;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonPatcher;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2UnmarshallingContext;
+import org.junit.Test;
+
+/**
+ * Checks that the shapes that changed are patched into a model without
+ * unmarshalling the whole json again.
+ */
+public class Bpmn2JsonPatcherTestCase {
+
+    @Test
+    public void testPatchLargeModel() throws Exception {
+        int tasks = 4000;
+        String json = LargeModelBuilder.build(tasks);
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+        Bpmn2UnmarshallingContext context = new Bpmn2UnmarshallingContext("");
+        Bpmn2Resource resource = unmarshaller.unmarshall(json, context);
+
+        // rename a task and remove the default flow of the first diverging gateway
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, String> changed = new HashMap<String, String>();
+        String renamed = null;
+        String removedFlow = null;
+        for (JsonNode shape : mapper.readTree(json).get("childShapes")) {
+            String stencil = shape.get("stencil").get("id").getTextValue();
+            if (renamed == null && "Task".equals(stencil)) {
+                renamed = shape.get("resourceId").getTextValue();
+                ((ObjectNode) shape.get("properties")).put("name", "renamed");
+                changed.put(renamed, mapper.writeValueAsString(shape));
+            } else if (removedFlow == null && shape.get("properties").has("defaultgate")) {
+                removedFlow = shape.get("properties").get("defaultgate").getTextValue();
+                ((ArrayNode) shape.get("outgoing")).remove(1);
+                ((ObjectNode) shape.get("properties")).put("defaultgate", "");
+                changed.put(shape.get("resourceId").getTextValue(), mapper.writeValueAsString(shape));
+            }
+        }
+        assertTrue(new Bpmn2JsonPatcher(unmarshaller).apply(resource, context,
+                new HashMap<String, String>(), changed, Collections.singletonList(removedFlow)));
+
+        Definitions definitions = (Definitions) resource.getContents().get(0);
+        Process process = LargeModelBuilder.getProcess(definitions);
+        int flows = 0;
+        for (FlowElement fe : process.getFlowElements()) {
+            if (fe instanceof SequenceFlow) {
+                flows++;
+                assertNotNull(((SequenceFlow) fe).getSourceRef());
+                assertNotNull(((SequenceFlow) fe).getTargetRef());
+            }
+            if (renamed.equals(fe.getId())) {
+                assertEquals("renamed", fe.getName());
+                assertEquals(1, ((FlowNode) fe).getIncoming().size());
+                assertEquals(1, ((FlowNode) fe).getOutgoing().size());
+            }
+        }
+        assertEquals(LargeModelBuilder.countSequenceFlows(tasks) - 1, flows);
+        assertEquals(LargeModelBuilder.countFlowNodes(tasks) + flows,
+                definitions.getDiagrams().get(0).getPlane().getPlaneElement().size());
+    }
+}
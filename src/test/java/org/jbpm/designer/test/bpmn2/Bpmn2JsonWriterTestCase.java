@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonMarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonWriter;
+import org.jbpm.designer.bpmn2.impl.Bpmn2StencilDefaults;
+import org.jbpm.designer.bpmn2.impl.Bpmn2XmlWriter;
+import org.jbpm.designer.web.profile.impl.JbpmProfileImpl;
+import org.junit.Test;
+
+/**
+ * Checks that the json written directly from the xml is the json marshalled
+ * from the EMF model of the xml.
+ */
+public class Bpmn2JsonWriterTestCase {
+
+    /**
+     * The fixtures made only of what the writer supports, they must not fall back to EMF.
+     */
+    private static final String[] DIRECT_FIXTURES = { "startEvent.json", "endEvent.json", "gateway.json",
+        "parallelGateway.json", "sequenceFlow.json" };
+
+    @Test
+    public void testFixtures() throws Exception {
+        File directory = new File(Bpmn2JsonWriterTestCase.class.getResource("empty.json").getFile()).getParentFile();
+        Set<String> direct = new HashSet<String>();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".json")) {
+                // the fixtures the xml writer doesn't support are saved through EMF
+                ByteArrayOutputStream xml = new ByteArrayOutputStream();
+                new Bpmn2XmlWriter(new Bpmn2JsonUnmarshaller()).write(new ByteArrayInputStream(readFile(file)), "", xml);
+                if (checkEquivalence(xml.toByteArray(), file.getName())) {
+                    direct.add(file.getName());
+                }
+            }
+        }
+        for (String fixture : DIRECT_FIXTURES) {
+            assertTrue(fixture + " wasn't written directly", direct.contains(fixture));
+        }
+    }
+
+    @Test
+    public void testLargeModels() throws Exception {
+        for (int tasks : new int[] { 9, 250, 1000 }) {
+            // the empty conditions of the default flows are converted through EMF
+            String json = LargeModelBuilder.build(tasks).replace("\"conditionexpression\":\"\"",
+                    "\"conditionexpression\":\"return false;\"");
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            assertTrue(new Bpmn2XmlWriter(new Bpmn2JsonUnmarshaller()).write(
+                    new ByteArrayInputStream(json.getBytes("UTF-8")), "", xml));
+            assertTrue(checkEquivalence(xml.toByteArray(), tasks + " tasks"));
+        }
+    }
+
+    @Test
+    public void testSparseModel() throws Exception {
+        Bpmn2StencilDefaults defaults = Bpmn2StencilDefaults.getInstance(
+                new File("src/main/webapp/stencilsets/bpmn2.0jbpm/bpmn2.0jbpm.json"));
+        String json = LargeModelBuilder.build(250).replace("\"conditionexpression\":\"\"",
+                "\"conditionexpression\":\"return false;\"");
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        assertTrue(new Bpmn2XmlWriter(new Bpmn2JsonUnmarshaller()).write(
+                new ByteArrayInputStream(json.getBytes("UTF-8")), "", xml));
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        marshaller.setStencilDefaults(defaults);
+        String expected = marshaller.marshall(profile.getDefinitions(new ByteArrayInputStream(xml.toByteArray())), "");
+        Bpmn2JsonWriter writer = new Bpmn2JsonWriter(profile);
+        writer.setStencilDefaults(defaults);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        assertTrue(writer.write(xml.toByteArray(), "", written));
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.readTree(expected), mapper.readTree(written.toString("UTF-8")));
+    }
+
+    @Test
+    public void testUnsupportedModel() throws Exception {
+        // embedded subprocesses are converted through EMF
+        byte[] json = LargeModelBuilder.buildWithSubprocesses(2, 10).getBytes("UTF-8");
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        new Bpmn2JsonUnmarshaller().unmarshall(new ByteArrayInputStream(json), "").save(xml, new HashMap<Object, Object>());
+        assertTrue(!checkEquivalence(xml.toByteArray(), "subprocesses"));
+    }
+
+    /**
+     * @return whether the model was written directly.
+     */
+    private boolean checkEquivalence(byte[] xml, String name) throws Exception {
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        String expected = marshaller.marshall(profile.getDefinitions(new ByteArrayInputStream(xml)), "");
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        if (!new Bpmn2JsonWriter(profile).write(xml, "", json)) {
+            assertEquals(name, 0, json.size());
+            return false;
+        }
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(name + " isn't written as through EMF:\n" + expected + "\n" + json.toString("UTF-8"),
+                mapper.readTree(expected), mapper.readTree(json.toString("UTF-8")));
+        return true;
+    }
+
+    private byte[] readFile(File file) throws Exception {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
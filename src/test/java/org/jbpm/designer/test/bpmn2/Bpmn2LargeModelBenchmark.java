@@ -0,0 +1,456 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.eclipse.bpmn2.Artifact;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.DocumentRoot;
+import org.eclipse.bpmn2.FlowElement;
+import org.eclipse.bpmn2.util.Bpmn2Resource;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.jbpm.designer.bpmn2.impl.Bpmn2DefinitionsCache;
+import org.jbpm.designer.bpmn2.impl.Bpmn2Geometry;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonMarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonPatcher;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2StencilDefaults;
+import org.jbpm.designer.bpmn2.impl.Bpmn2UnmarshallingContext;
+import org.jbpm.designer.bpmn2.resource.Bpmn2ResourceSetPool;
+import org.jbpm.designer.bpmn2.resource.Bpmn2SnapshotStore;
+import org.jbpm.designer.web.profile.impl.JbpmProfileImpl;
+import org.junit.Test;
+
+/**
+ * Logs the time and the memory the conversions of large models take, so that
+ * the numbers can be compared from one change to the other.
+ *
+ * The benchmarks are left out of the unit tests, they are run with the
+ * benchmark profile: mvn test -Pbenchmark
+ */
+public class Bpmn2LargeModelBenchmark {
+
+    private static final Logger _logger = Logger.getLogger(Bpmn2LargeModelBenchmark.class);
+
+    private static final int[] SIZES = { 250, 1000, 4000 };
+
+    @Test
+    public void testUnmarshallLargeModel() throws Exception {
+        // warm up
+        new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(100), "");
+        for (int tasks : SIZES) {
+            String json = LargeModelBuilder.build(tasks);
+            long start = System.currentTimeMillis();
+            new Bpmn2JsonUnmarshaller().unmarshall(json, "");
+            long time = System.currentTimeMillis() - start;
+            _logger.info("Unmarshalled " + tasks + " tasks in " + time + " ms");
+        }
+    }
+
+    @Test
+    public void testMarshallScaling() throws Exception {
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        // warm up
+        marshaller.marshall((Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(100), "").getContents().get(0), "");
+        for (int tasks : new int[] { 1000, 2000, 4000, 8000 }) {
+            Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(tasks), "").getContents().get(0);
+            long time = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                marshaller.marshall(definitions, "");
+                time = Math.min(time, System.nanoTime() - start);
+            }
+            int nodes = LargeModelBuilder.countFlowNodes(tasks);
+            _logger.info("Marshalled " + nodes + " nodes in " + (time / 1000000) + " ms, "
+                    + time / nodes + " ns per node");
+        }
+    }
+
+    @Test
+    public void testParallelUnmarshallScaling() throws Exception {
+        int subprocesses = 16;
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Bpmn2JsonUnmarshaller sequential = new Bpmn2JsonUnmarshaller();
+            Bpmn2JsonUnmarshaller parallel = new Bpmn2JsonUnmarshaller(executor);
+            // warm up
+            String warmUp = LargeModelBuilder.buildWithSubprocesses(subprocesses, 20);
+            sequential.unmarshall(warmUp, "");
+            parallel.unmarshall(warmUp, "");
+            for (int tasks : SIZES) {
+                String json = LargeModelBuilder.buildWithSubprocesses(subprocesses, tasks / 4);
+                long start = System.currentTimeMillis();
+                Definitions definitions = (Definitions) sequential.unmarshall(json, "").getContents().get(0);
+                long sequentialTime = System.currentTimeMillis() - start;
+                LargeModelBuilder.checkSubprocesses(definitions, subprocesses, tasks / 4);
+
+                start = System.currentTimeMillis();
+                definitions = (Definitions) parallel.unmarshall(json, "").getContents().get(0);
+                long parallelTime = System.currentTimeMillis() - start;
+                LargeModelBuilder.checkSubprocesses(definitions, subprocesses, tasks / 4);
+
+                _logger.info("Unmarshalled " + subprocesses + " subprocesses of " + (tasks / 4) + " tasks in "
+                        + sequentialTime + " ms, in " + parallelTime + " ms on " + threads + " threads");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMarshallerSoak() throws Exception {
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+        int models = 2000;
+        long warmedUp = 0;
+        for (int i = 0; i < models; i++) {
+            int tasks = 5 + i % 20;
+            Definitions definitions = (Definitions) unmarshaller.unmarshall(LargeModelBuilder.build(tasks), "").getContents().get(0);
+            marshaller.marshall(definitions, "");
+            if (i == models / 4) {
+                warmedUp = usedMemory();
+            }
+        }
+        long growth = usedMemory() - warmedUp;
+        _logger.info("Heap grew by " + growth / 1024 + " KB over " + (models - models / 4) + " models marshalled by one marshaller");
+    }
+
+    @Test
+    public void testMixedModelMarshalling() throws Exception {
+        // every kind of element of the fixtures, marshalled as one workload
+        File directory = new File(Bpmn2LargeModelBenchmark.class.getResource("empty.json").getFile()).getParentFile();
+        List<Definitions> models = new ArrayList<Definitions>();
+        int elements = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".json")) {
+                Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(file, "").getContents().get(0);
+                models.add(definitions);
+                for (Iterator<EObject> it = definitions.eAllContents(); it.hasNext();) {
+                    EObject object = it.next();
+                    if (object instanceof FlowElement || object instanceof Artifact) {
+                        elements++;
+                    }
+                }
+            }
+        }
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        List<String> expected = new ArrayList<String>();
+        for (Definitions definitions : models) {
+            expected.add(marshaller.marshall(definitions, ""));
+        }
+        int rounds = 200;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < models.size(); i++) {
+                String json = marshaller.marshall(models.get(i), "");
+                if (round == rounds - 1) {
+                    assertEquals(expected.get(i), json);
+                }
+            }
+        }
+        long time = System.nanoTime() - start;
+        _logger.info("Marshalled " + models.size() + " models of " + elements + " elements " + rounds + " times in "
+                + time / 1000000 + " ms, " + time / ((long) rounds * elements) + " ns per element");
+    }
+
+    @Test
+    public void testPatchLargeModel() throws Exception {
+        int tasks = 4000;
+        String json = LargeModelBuilder.build(tasks);
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+        Bpmn2UnmarshallingContext context = new Bpmn2UnmarshallingContext("");
+        Bpmn2Resource resource = unmarshaller.unmarshall(json, context);
+
+        // rename a task
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, String> changed = new HashMap<String, String>();
+        for (JsonNode shape : mapper.readTree(json).get("childShapes")) {
+            if ("Task".equals(shape.get("stencil").get("id").getTextValue())) {
+                ((ObjectNode) shape.get("properties")).put("name", "renamed");
+                changed.put(shape.get("resourceId").getTextValue(), mapper.writeValueAsString(shape));
+                break;
+            }
+        }
+        long start = System.currentTimeMillis();
+        new Bpmn2JsonPatcher(unmarshaller).apply(resource, context,
+                new HashMap<String, String>(), changed, Collections.<String>emptyList());
+        _logger.info("Patched " + tasks + " tasks in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Test
+    public void testValidateLargeModel() throws Exception {
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+        for (int tasks : SIZES) {
+            String json = LargeModelBuilder.build(tasks);
+            long start = System.currentTimeMillis();
+            unmarshaller.validate(new ByteArrayInputStream(json.getBytes("UTF-8")), "");
+            _logger.info("Validated " + tasks + " tasks in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    @Test
+    public void testDefinitionsCache() throws Exception {
+        byte[] json = LargeModelBuilder.build(1000).getBytes("UTF-8");
+        Bpmn2DefinitionsCache cache = new Bpmn2DefinitionsCache(new Bpmn2JsonUnmarshaller(), Long.MAX_VALUE);
+        long start = System.currentTimeMillis();
+        cache.getDefinitions(json, "");
+        long missTime = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        cache.getDefinitions(new ByteArrayInputStream(json), "");
+        _logger.info("Unmarshalled 1000 tasks in " + missTime + " ms, found them in the cache in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Test
+    public void testGeometryAllocation() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            _logger.info("Thread allocation is not measured on this vm");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        allocation.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+        // warm up
+        new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(100), "");
+        for (int tasks : SIZES) {
+            String json = LargeModelBuilder.build(tasks);
+            int shapes = LargeModelBuilder.countFlowNodes(tasks) + LargeModelBuilder.countSequenceFlows(tasks);
+            Bpmn2UnmarshallingContext context = new Bpmn2UnmarshallingContext("");
+            long start = allocation.getThreadAllocatedBytes(thread);
+            new Bpmn2JsonUnmarshaller().unmarshall(json, context);
+            long unmarshallBytes = allocation.getThreadAllocatedBytes(thread) - start;
+
+            // what the geometry kept by the context takes, the diagram objects left out
+            start = allocation.getThreadAllocatedBytes(thread);
+            Bpmn2Geometry geometry = new Bpmn2Geometry();
+            for (int i = 0; i < shapes; i++) {
+                String id = "_shape" + i;
+                geometry.putBounds(id, i, i, 100, 80);
+                geometry.startDockers(id);
+                geometry.addDocker(50, 40);
+                geometry.addDocker(50, 40);
+            }
+            long geometryBytes = allocation.getThreadAllocatedBytes(thread) - start;
+            _logger.info("Unmarshalled " + shapes + " shapes in " + (unmarshallBytes / 1024) + " KB, "
+                    + unmarshallBytes / shapes + " bytes per shape, " + geometryBytes / shapes + " of them for the geometry");
+        }
+    }
+
+    @Test
+    public void testPropertyAllocation() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            _logger.info("Thread allocation is not measured on this vm");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        allocation.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        for (int tasks : SIZES) {
+            Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(tasks), "").getContents().get(0);
+            // warm up
+            marshaller.marshall(definitions, "");
+            long start = allocation.getThreadAllocatedBytes(thread);
+            String json = marshaller.marshall(definitions, "");
+            long marshallBytes = allocation.getThreadAllocatedBytes(thread) - start;
+            int elements = LargeModelBuilder.countFlowNodes(tasks) + LargeModelBuilder.countSequenceFlows(tasks);
+            _logger.info("Marshalled " + elements + " elements in " + (marshallBytes / 1024) + " KB, "
+                    + marshallBytes / elements + " bytes per element, " + json.length() * 2 / elements + " of them for the json");
+        }
+    }
+
+    @Test
+    public void testShapePropertiesSize() throws Exception {
+        // about 5000 flow nodes, each task with a script
+        int tasks = 4165;
+        StringBuilder script = new StringBuilder();
+        while (script.length() < 2000) {
+            script.append("System.out.println(\\\"task \\\" + kcontext.getProcessInstance().getId());\\n");
+        }
+        String json = LargeModelBuilder.build(tasks).replace("\"script\":\"\"", "\"script\":\"" + script + "\"");
+
+        long start = usedMemory();
+        List<Map<String, String>> maps = Bpmn2ShapePropertiesTestCase.readProperties(json, false);
+        long mapSize = usedMemory() - start;
+        start = usedMemory();
+        List<Map<String, String>> properties = Bpmn2ShapePropertiesTestCase.readProperties(json, true);
+        long propertiesSize = usedMemory() - start;
+        // both lists are still referenced while they are measured
+        _logger.info("Kept the properties of " + maps.size() + " shapes in " + (mapSize / 1024)
+                + " KB of hash maps, of " + properties.size() + " shapes in " + (propertiesSize / 1024) + " KB of shape properties");
+    }
+
+    @Test
+    public void testXmlLoadThroughput() throws Exception {
+        int tasks = 1000;
+        byte[] bytes = Bpmn2ResourceLoadingTestCase.toXml(tasks);
+        Bpmn2ResourceSetPool pool = Bpmn2ResourceSetPool.getDefault();
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            Bpmn2ResourceLoadingTestCase.loadWithNewResourceSet(bytes);
+            pool.load(new ByteArrayInputStream(bytes));
+        }
+
+        int loads = 10;
+        long start = System.currentTimeMillis();
+        Definitions expected = null;
+        for (int i = 0; i < loads; i++) {
+            expected = Bpmn2ResourceLoadingTestCase.loadWithNewResourceSet(bytes);
+        }
+        long time = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        Definitions actual = null;
+        for (int i = 0; i < loads; i++) {
+            Resource resource = pool.load(new ByteArrayInputStream(bytes));
+            assertEquals(0, resource.getErrors().size());
+            actual = ((DocumentRoot) resource.getContents().get(0)).getDefinitions();
+        }
+        long pooledTime = System.currentTimeMillis() - start;
+        _logger.info("Loaded " + loads + " models of " + tasks + " tasks in " + time + " ms, in "
+                + pooledTime + " ms from the pool");
+
+        LargeModelBuilder.checkModel(expected, tasks);
+        LargeModelBuilder.checkModel(actual, tasks);
+    }
+
+    @Test
+    public void testSnapshotLoad() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "designer-snapshots-" + System.nanoTime());
+        Bpmn2SnapshotStore store = new Bpmn2SnapshotStore(directory);
+        Bpmn2ResourceSetPool pool = Bpmn2ResourceSetPool.getDefault();
+        try {
+            for (int tasks : new int[] { 10, 250, 4000 }) {
+                byte[] bytes = Bpmn2ResourceLoadingTestCase.toXml(tasks);
+                String uuid = "process-" + tasks;
+                String version = Bpmn2SnapshotStore.version(bytes);
+                store.store(uuid, version, ((DocumentRoot) pool.load(new ByteArrayInputStream(bytes)).getContents().get(0)).getDefinitions());
+
+                int loads = 5;
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < loads; i++) {
+                    pool.load(new ByteArrayInputStream(bytes));
+                }
+                long xmlTime = System.currentTimeMillis() - start;
+                start = System.currentTimeMillis();
+                for (int i = 0; i < loads; i++) {
+                    store.load(uuid, version);
+                }
+                long snapshotTime = System.currentTimeMillis() - start;
+                _logger.info("Loaded " + loads + " models of " + tasks + " tasks in " + xmlTime
+                        + " ms from xml, in " + snapshotTime + " ms from snapshots");
+            }
+        } finally {
+            Bpmn2ResourceLoadingTestCase.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testCollapsedSubProcesses() throws Exception {
+        int subprocesses = 8;
+        int tasks = 500;
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        Bpmn2JsonMarshaller collapsing = new Bpmn2JsonMarshaller();
+        collapsing.setProfile(profile);
+        collapsing.setCollapseSubProcesses(true);
+        Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(
+                LargeModelBuilder.buildWithSubprocesses(subprocesses, tasks), "").getContents().get(0);
+
+        long start = System.currentTimeMillis();
+        String whole = marshaller.marshall(definitions, "");
+        long wholeTime = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        String collapsed = collapsing.marshall(definitions, "");
+        long collapsedTime = System.currentTimeMillis() - start;
+        _logger.info("Marshalled " + subprocesses + " subprocesses of " + tasks + " tasks in " + wholeTime + " ms ("
+                + whole.length() + " chars), collapsed in " + collapsedTime + " ms (" + collapsed.length() + " chars)");
+    }
+
+    @Test
+    public void testSparsePayload() throws Exception {
+        int tasks = 1000;
+        Bpmn2StencilDefaults defaults = Bpmn2StencilDefaults.getInstance(Bpmn2SparseJsonTestCase.STENCIL_SET);
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        Bpmn2JsonMarshaller sparse = new Bpmn2JsonMarshaller();
+        sparse.setProfile(profile);
+        sparse.setStencilDefaults(defaults);
+        Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(tasks), "").getContents().get(0);
+        String full = marshaller.marshall(definitions, "");
+        String sparseJson = sparse.marshall(definitions, "");
+
+        ObjectMapper mapper = new ObjectMapper();
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            mapper.readTree(full);
+            mapper.readTree(sparseJson);
+        }
+        int parses = 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < parses; i++) {
+            mapper.readTree(full);
+        }
+        long fullTime = (System.nanoTime() - start) / parses;
+        start = System.nanoTime();
+        for (int i = 0; i < parses; i++) {
+            mapper.readTree(sparseJson);
+        }
+        long sparseTime = (System.nanoTime() - start) / parses;
+        _logger.info("Marshalled " + tasks + " tasks in " + full.length() + " chars parsed in " + fullTime / 1000
+                + " us, " + sparseJson.length() + " chars parsed in " + sparseTime / 1000 + " us without the defaults");
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.Task;
+import org.jbpm.designer.bpmn2.impl.Bpmn2CustomTaskHandler;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonMarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.web.profile.impl.JbpmProfileImpl;
+import org.junit.Test;
+
+/**
+ * A series of tests to check the marshalling of bpmn2 to json.
+ *
+ * The time the marshalling takes is measured by {@link Bpmn2LargeModelBenchmark}.
+ */
+public class Bpmn2MarshallingTestCase {
+
+    @Test
+    public void testMarshallLargeModel() throws Exception {
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        for (int tasks : new int[] { 1000, 2000 }) {
+            Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(tasks), "").getContents().get(0);
+            JsonNode shapes = new ObjectMapper().readTree(marshaller.marshall(definitions, "")).get("childShapes");
+            assertEquals(LargeModelBuilder.countFlowNodes(tasks) + LargeModelBuilder.countSequenceFlows(tasks), shapes.size());
+        }
+    }
+
+    @Test
+    public void testMarshallScaling() throws Exception {
+        // four times the tasks take about four times as long, going through
+        // the whole model for each node would take sixteen times as long
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        Definitions small = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(500), "").getContents().get(0);
+        Definitions large = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(2000), "").getContents().get(0);
+        marshaller.marshall(small, "");
+        long smallTime = marshallTime(marshaller, small);
+        long largeTime = marshallTime(marshaller, large);
+        assertTrue(smallTime + " ns for 500 tasks, " + largeTime + " ns for 2000 tasks", largeTime < 10 * smallTime);
+    }
+
+    @Test
+    public void testConcurrentMarshall() throws Exception {
+        final JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        final Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Definitions> models = new ArrayList<Definitions>();
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 16; i++) {
+                final Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(
+                        LargeModelBuilder.build(100 + i), "").getContents().get(0);
+                models.add(definitions);
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return marshaller.marshall(definitions, "");
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                Bpmn2JsonMarshaller sequential = new Bpmn2JsonMarshaller();
+                sequential.setProfile(profile);
+                assertEquals(sequential.marshall(models.get(i), ""), results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMarshallerReuse() throws Exception {
+        // nothing of the models marshalled before shows up in the next one
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+        for (int i = 0; i < 100; i++) {
+            int tasks = 5 + i % 20;
+            Definitions definitions = (Definitions) unmarshaller.unmarshall(LargeModelBuilder.build(tasks), "").getContents().get(0);
+            Bpmn2JsonMarshaller fresh = new Bpmn2JsonMarshaller();
+            fresh.setProfile(profile);
+            assertEquals(fresh.marshall(definitions, ""), marshaller.marshall(definitions, ""));
+        }
+    }
+
+    @Test
+    public void testMarshallerKeepsNoModel() throws Exception {
+        // the models a reused marshaller went through can all be collected
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        List<WeakReference<Definitions>> models = marshallModels(marshaller, 200);
+        int kept = models.size();
+        for (int i = 0; i < 20 && kept > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+            kept = 0;
+            for (WeakReference<Definitions> model : models) {
+                if (model.get() != null) {
+                    kept++;
+                }
+            }
+        }
+        assertEquals(kept + " of " + models.size() + " models are still reachable", 0, kept);
+        // the marshaller itself is still in use
+        assertTrue(marshaller.marshall((Definitions) new Bpmn2JsonUnmarshaller().unmarshall(
+                LargeModelBuilder.build(5), "").getContents().get(0), "").length() > 0);
+    }
+
+    @Test
+    public void testMarshallFixturesAgain() throws Exception {
+        // a marshaller gives the same json each time it marshalls a model
+        File directory = new File(Bpmn2MarshallingTestCase.class.getResource("empty.json").getFile()).getParentFile();
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        int fixtures = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".json")) {
+                fixtures++;
+                Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(file, "").getContents().get(0);
+                String expected = marshaller.marshall(definitions, "");
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(file.getName(), expected, marshaller.marshall(definitions, ""));
+                }
+            }
+        }
+        assertTrue(fixtures > 0);
+    }
+
+    @Test
+    public void testCustomTaskHandler() throws Exception {
+        String json = LargeModelBuilder.build(9).replace("\"tasktype\":\"None\"", "\"tasktype\":\"Email\",\"taskname\":\"Email\"");
+        Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(json, "Email").getContents().get(0);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        assertFalse(marshaller.marshall(definitions, "Email").contains("\"to\":\"someone\""));
+
+        marshaller.setCustomTaskHandler("Email", new Bpmn2CustomTaskHandler() {
+            public void marshallProperties(Task task, Map<String, Object> properties) {
+                properties.put("to", "someone");
+            }
+        });
+        JsonNode model = new ObjectMapper().readTree(marshaller.marshall(definitions, "Email"));
+        int tasks = 0;
+        for (JsonNode shape : model.get("childShapes")) {
+            if ("Email".equals(shape.get("stencil").get("id").getTextValue())) {
+                tasks++;
+                assertEquals("someone", shape.get("properties").get("to").getTextValue());
+                assertEquals("Email", shape.get("properties").get("tasktype").getTextValue());
+            }
+        }
+        assertEquals(9, tasks);
+        // the handler is only used for the tasks of its type
+        assertFalse(marshaller.marshall(definitions, "").contains("\"to\":\"someone\""));
+    }
+
+    @Test
+    public void testCollapsedSubProcesses() throws Exception {
+        int subprocesses = 8;
+        int tasks = 500;
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        Bpmn2JsonMarshaller collapsing = new Bpmn2JsonMarshaller();
+        collapsing.setProfile(profile);
+        collapsing.setCollapseSubProcesses(true);
+        Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(
+                LargeModelBuilder.buildWithSubprocesses(subprocesses, tasks), "").getContents().get(0);
+        String whole = marshaller.marshall(definitions, "");
+        String collapsed = collapsing.marshall(definitions, "");
+
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode expected = mapper.readTree(whole).get("childShapes");
+        JsonNode actual = mapper.readTree(collapsed).get("childShapes");
+        assertEquals(expected.size(), actual.size());
+        int found = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            JsonNode shape = actual.get(i);
+            if (!"Subprocess".equals(shape.path("stencil").path("id").getTextValue())) {
+                assertEquals(expected.get(i), shape);
+                continue;
+            }
+            found++;
+            assertEquals("true", shape.path("properties").path("collapsed").getTextValue());
+            assertEquals(0, shape.get("childShapes").size());
+
+            // the shapes of the subprocess are the ones left out of the model
+            ByteArrayOutputStream subtree = new ByteArrayOutputStream();
+            String id = shape.get("resourceId").getTextValue();
+            assertTrue(collapsing.marshallSubProcess(definitions, id, "", subtree));
+            JsonNode children = mapper.readTree(subtree.toString("UTF-8"));
+            assertEquals(id, children.get("resourceId").getTextValue());
+            assertEquals(expected.get(i).get("childShapes"), children.get("childShapes"));
+
+            ((ObjectNode) shape.get("properties")).remove("collapsed");
+            ((ObjectNode) shape).put("childShapes", children.get("childShapes"));
+            assertEquals(expected.get(i), shape);
+        }
+        assertEquals(subprocesses, found);
+        assertFalse(collapsing.marshallSubProcess(definitions, "unknown", "", new ByteArrayOutputStream()));
+    }
+
+    private static long marshallTime(Bpmn2JsonMarshaller marshaller, Definitions definitions) throws Exception {
+        long time = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            marshaller.marshall(definitions, "");
+            time = Math.min(time, System.nanoTime() - start);
+        }
+        return time;
+    }
+
+    private static List<WeakReference<Definitions>> marshallModels(Bpmn2JsonMarshaller marshaller, int count) throws Exception {
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+        List<WeakReference<Definitions>> models = new ArrayList<WeakReference<Definitions>>();
+        for (int i = 0; i < count; i++) {
+            Definitions definitions = (Definitions) unmarshaller.unmarshall(LargeModelBuilder.build(5 + i % 20), "").getContents().get(0);
+            marshaller.marshall(definitions, "");
+            models.add(new WeakReference<Definitions>(definitions));
+        }
+        return models;
+    }
+}
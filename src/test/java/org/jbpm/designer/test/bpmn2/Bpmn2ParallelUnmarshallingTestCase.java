@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.bpmn2.BaseElement;
+import org.eclipse.bpmn2.Bpmn2Package;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2UnmarshallingContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the models parsed in parallel are the same as the ones parsed
+ * on a single thread.
+ */
+public class Bpmn2ParallelUnmarshallingTestCase {
+
+    private ExecutorService _executor;
+
+    @Before
+    public void startExecutor() {
+        _executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void stopExecutor() {
+        _executor.shutdown();
+    }
+
+    @Test
+    public void testSubprocesses() throws Exception {
+        checkSameAsSequential("subprocesses", LargeModelBuilder.buildWithSubprocesses(8, 20));
+    }
+
+    @Test
+    public void testFixtures() throws Exception {
+        // the lanes of the fixtures are parsed in parallel too
+        File directory = new File(Bpmn2ParallelUnmarshallingTestCase.class.getResource("empty.json").getFile()).getParentFile();
+        int fixtures = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".json")) {
+                fixtures++;
+                checkSameAsSequential(file.getName(), FileUtils.readFileToString(file, "UTF-8"));
+            }
+        }
+        assertTrue(fixtures > 0);
+    }
+
+    private void checkSameAsSequential(String name, String json) throws Exception {
+        Bpmn2UnmarshallingContext sequentialContext = new Bpmn2UnmarshallingContext("");
+        Definitions sequential = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(json, sequentialContext).getContents().get(0);
+        Bpmn2UnmarshallingContext parallelContext = new Bpmn2UnmarshallingContext("");
+        Definitions parallel = (Definitions) new Bpmn2JsonUnmarshaller(_executor).unmarshall(json, parallelContext).getContents().get(0);
+
+        assertTrue(name, EcoreUtil.equals(sequential, parallel));
+        // the revisit phases find the elements in the index, in the order they were parsed
+        assertEquals(name, getIds(sequentialContext), getIds(parallelContext));
+    }
+
+    private static List<String> getIds(Bpmn2UnmarshallingContext context) {
+        List<String> ids = new ArrayList<String>();
+        for (BaseElement element : context.getIndex().<BaseElement>getByEClass(Bpmn2Package.Literals.BASE_ELEMENT)) {
+            ids.add(element.eClass().getName() + ":" + element.getId());
+        }
+        return ids;
+    }
+}
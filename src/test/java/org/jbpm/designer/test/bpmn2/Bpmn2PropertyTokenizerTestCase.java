@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.jbpm.designer.bpmn2.impl.Bpmn2PropertyTokenizer;
+import org.jbpm.designer.bpmn2.impl.Bpmn2PropertyTokenizer.DataMapping;
+import org.jbpm.designer.bpmn2.impl.Bpmn2PropertyTokenizer.Declaration;
+import org.junit.Test;
+
+/**
+ * Checks that the property values are read as they were with the regular
+ * expressions, on random values made of the characters of the formats.
+ */
+public class Bpmn2PropertyTokenizerTestCase {
+
+    private static final String ALPHABET = "ab ,:=<->|\t\n.";
+    private static final int RUNS = 20000;
+
+    private final Random _random = new Random(42);
+
+    @Test
+    public void testSplit() {
+        for (String separator : new String[] { ",", ":", "=", "|", "->", "<->" }) {
+            String regex = separator.equals("|") ? "\\|\\s*" : separator + "\\s*";
+            for (int i = 0; i < RUNS; i++) {
+                String value = randomValue();
+                String[] expected = value.split(regex);
+                String[] actual = Bpmn2PropertyTokenizer.split(value, separator);
+                assertTrue("\"" + value + "\" split on " + separator + ": " + Arrays.toString(expected) + " != " + Arrays.toString(actual),
+                        Arrays.equals(expected, actual));
+            }
+        }
+    }
+
+    @Test
+    public void testDeclarations() {
+        for (int i = 0; i < RUNS; i++) {
+            String value = randomValue();
+            String[] entries = value.split(",\\s*");
+            List<Declaration> declarations = Bpmn2PropertyTokenizer.parseDeclarations(value);
+            assertEquals(value, entries.length, declarations.size());
+            for (int j = 0; j < entries.length; j++) {
+                Declaration declaration = declarations.get(j);
+                String[] parts = entries[j].split(":\\s*");
+                assertEquals(value, entries[j], declaration.getText());
+                assertEquals(value, parts.length == 2, declaration.isNameAndType());
+                if (parts.length > 0) {
+                    assertEquals(value, parts[0], declaration.getName());
+                }
+                assertEquals(value, parts.length > 1 ? parts[1] : null, declaration.getType());
+            }
+        }
+    }
+
+    @Test
+    public void testDataMappings() {
+        for (int i = 0; i < RUNS; i++) {
+            String value = randomValue();
+            String[] entries = value.split(",\\s*");
+            List<DataMapping> mappings = Bpmn2PropertyTokenizer.parseDataMappings(value);
+            assertEquals(value, entries.length, mappings.size());
+            for (int j = 0; j < entries.length; j++) {
+                String entry = entries[j];
+                DataMapping mapping = mappings.get(j);
+                String[] parts;
+                if (entry.contains("=")) {
+                    assertEquals(value, DataMapping.Kind.ASSIGNMENT, mapping.getKind());
+                    parts = entry.split("=\\s*");
+                } else if (entry.contains("<->")) {
+                    assertEquals(value, DataMapping.Kind.BIDIRECTIONAL, mapping.getKind());
+                    parts = entry.split("<->\\s*");
+                } else if (entry.contains("->")) {
+                    assertEquals(value, DataMapping.Kind.UNIDIRECTIONAL, mapping.getKind());
+                    parts = entry.split("->\\s*");
+                } else {
+                    assertEquals(value, DataMapping.Kind.NONE, mapping.getKind());
+                    continue;
+                }
+                checkParts(value, parts, mapping);
+            }
+
+            List<DataMapping> associations = Bpmn2PropertyTokenizer.parseAssociations(value);
+            assertEquals(value, entries.length, associations.size());
+            for (int j = 0; j < entries.length; j++) {
+                checkParts(value, entries[j].split("->\\s*"), associations.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void testKnownValues() {
+        List<DataMapping> mappings = Bpmn2PropertyTokenizer.parseDataMappings("TaskName=review, in<->var,  out->result,x");
+        assertEquals(4, mappings.size());
+        assertEquals(DataMapping.Kind.ASSIGNMENT, mappings.get(0).getKind());
+        assertEquals("TaskName", mappings.get(0).getLeft());
+        assertEquals("review", mappings.get(0).getRight());
+        assertEquals(DataMapping.Kind.BIDIRECTIONAL, mappings.get(1).getKind());
+        assertEquals("var", mappings.get(1).getRight());
+        assertEquals(DataMapping.Kind.UNIDIRECTIONAL, mappings.get(2).getKind());
+        assertEquals("out", mappings.get(2).getLeft());
+        assertEquals(DataMapping.Kind.NONE, mappings.get(3).getKind());
+
+        List<Declaration> declarations = Bpmn2PropertyTokenizer.parseDeclarations("name:String, count:  Integer,flag");
+        assertEquals("String", declarations.get(0).getType());
+        assertEquals("Integer", declarations.get(1).getType());
+        assertEquals("flag", declarations.get(2).getName());
+        assertEquals(null, declarations.get(2).getType());
+    }
+
+    private void checkParts(String value, String[] parts, DataMapping mapping) {
+        assertEquals(value, parts.length > 0 ? parts[0] : null, mapping.getLeft());
+        assertEquals(value, parts.length > 1 ? parts[1] : null, mapping.getRight());
+    }
+
+    private String randomValue() {
+        int length = _random.nextInt(24);
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append(ALPHABET.charAt(_random.nextInt(ALPHABET.length())));
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.bpmn2.Bpmn2Package;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.DocumentRoot;
+import org.eclipse.bpmn2.Process;
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EcorePackage;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.bpmn2.resource.Bpmn2ResourceSetPool;
+import org.jbpm.designer.bpmn2.resource.Bpmn2SnapshotStore;
+import org.jbpm.designer.bpmn2.resource.JBPMBpmn2ResourceFactoryImpl;
+import org.junit.Test;
+
+/**
+ * Checks that the pooled resource sets and the snapshots load the same
+ * models as the xml parsed the way it was before them.
+ */
+public class Bpmn2ResourceLoadingTestCase {
+
+    @Test
+    public void testPooledLoad() throws Exception {
+        int tasks = 1000;
+        byte[] bytes = toXml(tasks);
+        Bpmn2ResourceSetPool pool = Bpmn2ResourceSetPool.getDefault();
+        Definitions expected = loadWithNewResourceSet(bytes);
+        ResourceSet previous = null;
+        for (int i = 0; i < 3; i++) {
+            // the load options of the pool are reused from one load to the other,
+            // the loaded resource keeps its set
+            Resource resource = pool.load(new ByteArrayInputStream(bytes));
+            assertEquals(0, resource.getErrors().size());
+            assertNotNull(resource.getResourceSet());
+            assertTrue(resource.getResourceSet() != previous);
+            assertTrue(resource.getResourceSet().getResources().contains(resource));
+            if (previous != null) {
+                assertTrue(resource.getResourceSet().getPackageRegistry() != previous.getPackageRegistry());
+            }
+            previous = resource.getResourceSet();
+            Definitions actual = ((DocumentRoot) resource.getContents().get(0)).getDefinitions();
+            LargeModelBuilder.checkModel(actual, tasks);
+            assertTrue(EcoreUtil.equals(expected, actual));
+        }
+    }
+
+    @Test
+    public void testAcquiredSet() throws Exception {
+        byte[] bytes = toXml(10);
+        Bpmn2ResourceSetPool pool = Bpmn2ResourceSetPool.getPool(true, true, false);
+        Bpmn2ResourceSetPool.PooledResourceSet pooled = pool.acquire();
+        Resource resource = pooled.load(new ByteArrayInputStream(bytes));
+        // the resource stays in the set until the set is released
+        assertTrue(resource.getResourceSet() == pooled.getResourceSet());
+        LargeModelBuilder.checkModel(((DocumentRoot) resource.getContents().get(0)).getDefinitions(), 10);
+        pooled.getResourceSet().getPackageRegistry().put("urn:test", EcorePackage.eINSTANCE);
+        pool.release(pooled);
+        assertTrue(pooled.getResourceSet().getResources().isEmpty());
+        assertEquals(null, pooled.getResourceSet().getPackageRegistry().get("urn:test"));
+        assertNotNull(pooled.getResourceSet().getPackageRegistry().getEPackage(Bpmn2ResourceSetPool.BPMN2_NS));
+        // no other set sees what a set registered
+        assertEquals(null, Bpmn2ResourceSetPool.createResourceSet().getPackageRegistry().getEPackage("urn:test"));
+    }
+
+    @Test
+    public void testSnapshotLoad() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "designer-snapshots-" + System.nanoTime());
+        Bpmn2SnapshotStore store = new Bpmn2SnapshotStore(directory);
+        Bpmn2ResourceSetPool pool = Bpmn2ResourceSetPool.getDefault();
+        try {
+            for (int tasks : new int[] { 10, 250 }) {
+                byte[] bytes = toXml(tasks);
+                String uuid = "process-" + tasks;
+                String version = Bpmn2SnapshotStore.version(bytes);
+                assertEquals(null, store.load(uuid, version));
+                Definitions parsed = ((DocumentRoot) pool.load(new ByteArrayInputStream(bytes)).getContents().get(0)).getDefinitions();
+                store.store(uuid, version, parsed);
+                Definitions loaded = store.load(uuid, version);
+                assertNotNull(loaded);
+                assertTrue(EcoreUtil.equals(parsed, loaded));
+                LargeModelBuilder.checkModel(loaded, tasks);
+
+                // a new version replaces the snapshot of the previous one
+                store.store(uuid, "next", parsed);
+                assertEquals(null, store.load(uuid, version));
+                assertNotNull(store.load(uuid, "next"));
+                store.removeSnapshots(uuid);
+                assertEquals(null, store.load(uuid, "next"));
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testSnapshotOfExtensionAttributes() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "designer-snapshots-" + System.nanoTime());
+        Bpmn2SnapshotStore store = new Bpmn2SnapshotStore(directory);
+        try {
+            // the drools attributes of a fixture, and an attribute of a namespace demanded by the parser
+            ByteArrayOutputStream saved = new ByteArrayOutputStream();
+            InputStream json = Bpmn2ResourceLoadingTestCase.class.getResourceAsStream("userTask.json");
+            try {
+                new Bpmn2JsonUnmarshaller().unmarshall(json, "").save(saved, new HashMap<Object, Object>());
+            } finally {
+                json.close();
+            }
+            String namespace = "http://www.example.org/designer-test-" + System.nanoTime();
+            String xml = saved.toString("UTF-8").replaceFirst("<bpmn2:process ",
+                    "<bpmn2:process xmlns:test=\"" + namespace + "\" test:flag=\"on\" ");
+            Resource resource = Bpmn2ResourceSetPool.getDefault().load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            assertEquals(0, resource.getErrors().size());
+            Definitions parsed = ((DocumentRoot) resource.getContents().get(0)).getDefinitions();
+            Process process = LargeModelBuilder.getProcess(parsed);
+            assertTrue(process.getAnyAttribute().size() > 1);
+
+            store.store("extensions", "1", parsed);
+            // as after a restart: the demanded package is known to no registry
+            EPackage.Registry.INSTANCE.remove(namespace);
+            resource.getResourceSet().getPackageRegistry().remove(namespace);
+            Definitions loaded = store.load("extensions", "1");
+            assertNotNull(loaded);
+            assertTrue(EcoreUtil.equals(parsed, loaded));
+            assertEquals(process.getAnyAttribute().size(), LargeModelBuilder.getProcess(loaded).getAnyAttribute().size());
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testRepositoryVersion() {
+        assertEquals("etag:\"1\"", Bpmn2SnapshotStore.version("\"1\"", "Mon, 01 Jan 2012 00:00:00 GMT", "<xml/>"));
+        assertEquals("modified:Mon, 01 Jan 2012 00:00:00 GMT:6",
+                Bpmn2SnapshotStore.version("W/\"1\"", "Mon, 01 Jan 2012 00:00:00 GMT", "<xml/>"));
+        assertEquals(40, Bpmn2SnapshotStore.version(null, null, "<xml/>").length());
+    }
+
+    static byte[] toXml(int tasks) throws Exception {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(tasks), "").save(xml, new HashMap<Object, Object>());
+        return xml.toByteArray();
+    }
+
+    // the set up the xml models were loaded with before the pool
+    static Definitions loadWithNewResourceSet(byte[] xml) throws Exception {
+        ResourceSet resourceSet = new ResourceSetImpl();
+        resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap()
+            .put(Resource.Factory.Registry.DEFAULT_EXTENSION, new JBPMBpmn2ResourceFactoryImpl());
+        resourceSet.getPackageRegistry().put("http://www.omg.org/spec/BPMN/20100524/MODEL", Bpmn2Package.eINSTANCE);
+        Resource resource = resourceSet.createResource(URI.createURI("inputStream://dummyUriWithValidSuffix.xml"));
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(XMLResource.OPTION_ENCODING, "UTF-8");
+        resource.load(new ByteArrayInputStream(xml), options);
+        return ((DocumentRoot) resource.getContents().get(0)).getDefinitions();
+    }
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
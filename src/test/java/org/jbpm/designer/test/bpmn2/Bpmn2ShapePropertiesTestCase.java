@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.jbpm.designer.bpmn2.impl.Bpmn2ShapeProperties;
+import org.junit.Test;
+
+public class Bpmn2ShapePropertiesTestCase {
+
+    @Test
+    public void testLargeModelProperties() throws Exception {
+        int tasks = 100;
+        StringBuilder script = new StringBuilder();
+        while (script.length() < 2000) {
+            script.append("System.out.println(\\\"task \\\" + kcontext.getProcessInstance().getId());\\n");
+        }
+        String json = LargeModelBuilder.build(tasks).replace("\"script\":\"\"", "\"script\":\"" + script + "\"");
+
+        List<Map<String, String>> maps = readProperties(json, false);
+        List<Map<String, String>> properties = readProperties(json, true);
+        assertEquals(maps, properties);
+
+        int scripts = 0;
+        for (int i = 0; i < properties.size(); i++) {
+            Bpmn2ShapeProperties shape = (Bpmn2ShapeProperties) properties.get(i);
+            // the arrays grow by doubling from 16
+            assertTrue(shape.getCapacity() >= shape.size());
+            assertTrue(shape.getCapacity() <= Math.max(16, shape.size() * 2));
+
+            // the large texts are kept as one byte a character
+            int largeTexts = 0;
+            for (String value : maps.get(i).values()) {
+                if (value.length() >= 256) {
+                    largeTexts += value.length();
+                    scripts++;
+                }
+            }
+            assertEquals(largeTexts, shape.getTextBytes());
+        }
+        assertEquals(tasks, scripts);
+
+        // the names and the short values are shared by the shapes
+        Map<String, String> first = properties.get(2);
+        Map<String, String> second = properties.get(4);
+        assertSame(first.get("bgcolor"), second.get("bgcolor"));
+        assertSame(first.get("looptype"), second.get("looptype"));
+        assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+    }
+
+    @Test
+    public void testNonLatin1Text() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 300) {
+            text.append("\u0100");
+        }
+        Bpmn2ShapeProperties properties = new Bpmn2ShapeProperties(2);
+        properties.put("documentation", text.toString());
+        properties.put("script", text.toString().replace('\u0100', 'a'));
+        properties.put("name", "task");
+        assertEquals(300, properties.getTextBytes());
+        assertEquals(text.toString(), properties.get("documentation"));
+        assertEquals(4, properties.getCapacity());
+
+        properties.remove("script");
+        assertEquals(0, properties.getTextBytes());
+        assertEquals(2, properties.size());
+    }
+
+    @Test
+    public void testLargeTextReadOnce() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 300) {
+            text.append("a");
+        }
+        Bpmn2ShapeProperties properties = new Bpmn2ShapeProperties();
+        properties.put("documentation", text.toString());
+        properties.put("script", text.toString());
+        String documentation = properties.get("documentation");
+        assertEquals(text.toString(), documentation);
+        // read again without decoding the bytes again
+        assertSame(documentation, properties.get("documentation"));
+
+        String script = properties.get("script");
+        assertEquals(text.toString(), script);
+        assertTrue(script != properties.get("documentation"));
+
+        properties.put("documentation", text.toString().replace('a', 'b'));
+        assertEquals(text.toString().replace('a', 'b'), properties.get("documentation"));
+        properties.remove("documentation");
+        assertEquals(text.toString(), properties.get("script"));
+    }
+
+    @Test
+    public void testSharedValuesOfAModel() {
+        // the values are shared by the shapes of a model, not by all the models
+        Bpmn2ShapeProperties.SharedValues shared = new Bpmn2ShapeProperties.SharedValues();
+        Bpmn2ShapeProperties first = new Bpmn2ShapeProperties(shared);
+        Bpmn2ShapeProperties second = new Bpmn2ShapeProperties(shared);
+        first.put("name", new String("task"));
+        second.put("name", new String("task"));
+        assertSame(first.get("name"), second.get("name"));
+        assertEquals(1, shared.size());
+
+        Bpmn2ShapeProperties other = new Bpmn2ShapeProperties(new Bpmn2ShapeProperties.SharedValues());
+        other.put("name", new String("task"));
+        assertTrue(other.get("name") != first.get("name"));
+    }
+
+    static List<Map<String, String>> readProperties(String json, boolean compact) throws Exception {
+        List<Map<String, String>> properties = new ArrayList<Map<String, String>>();
+        JsonParser parser = new JsonFactory().createJsonParser(json);
+        Bpmn2ShapeProperties.SharedValues shared = new Bpmn2ShapeProperties.SharedValues();
+        while (parser.nextToken() != null) {
+            if (parser.getCurrentToken() == JsonToken.FIELD_NAME && "properties".equals(parser.getCurrentName())) {
+                parser.nextToken();
+                Bpmn2ShapeProperties shape = new Bpmn2ShapeProperties(shared);
+                Map<String, String> map = new HashMap<String, String>();
+                while (parser.nextToken() != JsonToken.END_OBJECT) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if (compact) {
+                        shape.put(name, parser);
+                    } else {
+                        map.put(name, parser.getText());
+                    }
+                }
+                properties.add(compact ? shape : map);
+            }
+        }
+        parser.close();
+        return properties;
+    }
+}
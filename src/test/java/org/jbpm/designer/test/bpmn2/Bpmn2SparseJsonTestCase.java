@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.eclipse.bpmn2.Definitions;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonMarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2StencilDefaults;
+import org.jbpm.designer.bpmn2.impl.Bpmn2UnmarshallingContext;
+import org.jbpm.designer.web.profile.impl.JbpmProfileImpl;
+import org.junit.Test;
+
+/**
+ * Checks that the json left without the stencil defaults unmarshalls to the
+ * same models as the whole json.
+ */
+public class Bpmn2SparseJsonTestCase {
+
+    static final File STENCIL_SET = new File("src/main/webapp/stencilsets/bpmn2.0jbpm/bpmn2.0jbpm.json");
+
+    @Test
+    public void testSparseRoundTrip() throws Exception {
+        Bpmn2StencilDefaults defaults = Bpmn2StencilDefaults.getInstance(STENCIL_SET);
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        Bpmn2JsonMarshaller sparse = new Bpmn2JsonMarshaller();
+        sparse.setProfile(profile);
+        sparse.setStencilDefaults(defaults);
+        ObjectMapper mapper = new ObjectMapper();
+
+        File directory = new File(Bpmn2SparseJsonTestCase.class.getResource("empty.json").getFile()).getParentFile();
+        int fixtures = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".json")) {
+                fixtures++;
+                Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(file, "").getContents().get(0);
+                String full = marshaller.marshall(definitions, "");
+                String sparseJson = sparse.marshall(definitions, "");
+                assertTrue(file.getName(), sparseJson.length() <= full.length());
+
+                // the editor gives the shapes their defaults before reading them, and
+                // posts the whole model back: both end up as the same model
+                String expected = marshaller.marshall(unmarshallWithDefaults(full, defaults), "");
+                String actual = marshaller.marshall(unmarshallWithDefaults(sparseJson, defaults), "");
+                assertEquals(file.getName(), mapper.readTree(expected), mapper.readTree(actual));
+            }
+        }
+        assertTrue(fixtures > 0);
+    }
+
+    @Test
+    public void testSparseLargeModel() throws Exception {
+        int tasks = 1000;
+        Bpmn2StencilDefaults defaults = Bpmn2StencilDefaults.getInstance(STENCIL_SET);
+        JbpmProfileImpl profile = new JbpmProfileImpl(null, false);
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(profile);
+        Bpmn2JsonMarshaller sparse = new Bpmn2JsonMarshaller();
+        sparse.setProfile(profile);
+        sparse.setStencilDefaults(defaults);
+        Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(tasks), "").getContents().get(0);
+        String full = marshaller.marshall(definitions, "");
+        String sparseJson = sparse.marshall(definitions, "");
+        assertTrue(sparseJson.length() < full.length());
+
+        // the unmarshaller gives the defaults back when it is asked to
+        LargeModelBuilder.checkModel(unmarshallWithDefaults(sparseJson, defaults), tasks);
+    }
+
+    static Definitions unmarshallWithDefaults(String json, Bpmn2StencilDefaults defaults) throws Exception {
+        Bpmn2UnmarshallingContext context = new Bpmn2UnmarshallingContext("");
+        context.setStencilDefaults(defaults);
+        return (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(json, context).getContents().get(0);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.jbpm.designer.web.profile.IDiagramProfile;
+import org.jbpm.designer.web.profile.impl.EpnProfileImpl;
+import org.jbpm.designer.web.profile.impl.JbpmProfileImpl;
+import org.junit.Test;
+
+/**
+ * Checks that the models are found valid when the round trip through xml they
+ * used to be checked with gives a model back, and only then.
+ */
+public class Bpmn2StructureValidatorTestCase {
+
+    @Test
+    public void testFixtures() throws Exception {
+        File directory = new File(Bpmn2StructureValidatorTestCase.class.getResource("empty.json").getFile()).getParentFile();
+        IDiagramProfile jbpm = new JbpmProfileImpl(null, false);
+        IDiagramProfile epn = new EpnProfileImpl(null, false);
+        int fixtures = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".json")) {
+                fixtures++;
+                String json = FileUtils.readFileToString(file, "UTF-8");
+                checkSameVerdict(file.getName(), jbpm, json);
+                checkSameVerdict(file.getName(), epn, json);
+            }
+        }
+        assertTrue(fixtures > 0);
+    }
+
+    @Test
+    public void testLargeModels() throws Exception {
+        IDiagramProfile jbpm = new JbpmProfileImpl(null, false);
+        checkSameVerdict("tasks", jbpm, LargeModelBuilder.build(1000));
+        checkSameVerdict("subprocesses", jbpm, LargeModelBuilder.buildWithSubprocesses(8, 20));
+    }
+
+    private static void checkSameVerdict(String name, IDiagramProfile profile, String json) throws Exception {
+        // the checkErrors action of the repository servlet, before and now
+        boolean roundTripErrors;
+        try {
+            String xml = profile.createMarshaller().parseModel(json, "");
+            String jsonIn = profile.createUnmarshaller().parseModel(xml, profile, "");
+            roundTripErrors = jsonIn == null || jsonIn.length() < 1;
+        } catch (Throwable t) {
+            roundTripErrors = true;
+        }
+        boolean validateErrors = !profile.createMarshaller().validate(
+                new ByteArrayInputStream(json.getBytes("UTF-8")), "").isEmpty();
+        assertEquals(profile.getName() + " " + name, roundTripErrors, validateErrors);
+    }
+}
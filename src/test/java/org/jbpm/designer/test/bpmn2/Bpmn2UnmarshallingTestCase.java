@@ -16,16 +16,30 @@
 package org.jbpm.designer.test.bpmn2;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
 
 import org.eclipse.bpmn2.Association;
 import org.eclipse.bpmn2.AssociationDirection;
+import org.eclipse.bpmn2.BaseElement;
 import org.eclipse.bpmn2.CancelEventDefinition;
 import org.eclipse.bpmn2.CatchEvent;
 import org.eclipse.bpmn2.CompensateEventDefinition;
@@ -39,6 +53,7 @@ import org.eclipse.bpmn2.ErrorEventDefinition;
 import org.eclipse.bpmn2.EscalationEventDefinition;
 import org.eclipse.bpmn2.EventBasedGateway;
 import org.eclipse.bpmn2.ExclusiveGateway;
+import org.eclipse.bpmn2.FlowElement;
 import org.eclipse.bpmn2.GlobalBusinessRuleTask;
 import org.eclipse.bpmn2.GlobalManualTask;
 import org.eclipse.bpmn2.GlobalScriptTask;
@@ -71,6 +86,8 @@ import org.junit.Test;
  * A series of tests to check the unmarshalling of json to bpmn2.
  */
 public class Bpmn2UnmarshallingTestCase {
+
+    private static final int[] LARGE_MODEL_SIZES = { 250, 1000, 4000 };
     
     private static File getTestJsonFile(String filename) {
         URL fileURL = Bpmn2UnmarshallingTestCase.class.getResource(filename);
@@ -253,6 +270,34 @@ public class Bpmn2UnmarshallingTestCase {
         definitions.eResource().save(System.out, Collections.emptyMap());
     }
     
+    @Test
+    public void testGatewayDefaultFlowById() throws Exception {
+        // the default flow of a gateway names the id of the flow, which isn't always its resource id
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller() {
+            @Override
+            protected void applyBaseElementProperties(BaseElement baseElement, Map<String, String> properties) {
+                if (baseElement instanceof SequenceFlow) {
+                    baseElement.setId("flow" + properties.get("resourceId"));
+                }
+                super.applyBaseElementProperties(baseElement, properties);
+            }
+        };
+        String json = LargeModelBuilder.build(20).replace("\"defaultgate\":\"", "\"defaultgate\":\"flow");
+        Definitions definitions = ((Definitions) unmarshaller.unmarshall(json, "").getContents().get(0));
+        Process process = getRootProcess(definitions);
+        int gateways = 0;
+        for (FlowElement fe : process.getFlowElements()) {
+            if (fe instanceof ExclusiveGateway && ((ExclusiveGateway) fe).getOutgoing().size() > 1) {
+                gateways++;
+                SequenceFlow defaultFlow = ((ExclusiveGateway) fe).getDefault();
+                assertNotNull(defaultFlow);
+                assertTrue(defaultFlow.getId().startsWith("flow"));
+                assertTrue(((ExclusiveGateway) fe).getOutgoing().contains(defaultFlow));
+            }
+        }
+        assertEquals(2, gateways);
+    }
+    
     @Test
     public void testStartEventUnmarshalling() throws Exception {
         Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
@@ -798,6 +843,59 @@ public class Bpmn2UnmarshallingTestCase {
         definitions.eResource().save(System.out, Collections.emptyMap());
     }*/
     
+    @Test
+    public void testUnmarshallLargeModel() throws Exception {
+        for (int tasks : LARGE_MODEL_SIZES) {
+            Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(tasks), "").getContents().get(0);
+            LargeModelBuilder.checkModel(definitions, tasks);
+        }
+    }
+
+    @Test
+    public void testConcurrentUnmarshall() throws Exception {
+        final Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Definitions>> results = new ArrayList<Future<Definitions>>();
+            for (int i = 0; i < 16; i++) {
+                final String json = LargeModelBuilder.build(100 + i);
+                results.add(executor.submit(new Callable<Definitions>() {
+                    public Definitions call() throws Exception {
+                        return (Definitions) unmarshaller.unmarshall(json, "").getContents().get(0);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                LargeModelBuilder.checkModel(results.get(i).get(), 100 + i);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testValidateLargeModel() throws Exception {
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+        for (int tasks : LARGE_MODEL_SIZES) {
+            String json = LargeModelBuilder.build(tasks);
+            List<String> problems = unmarshaller.validate(new ByteArrayInputStream(json.getBytes("UTF-8")), "");
+            assertTrue(problems.toString(), problems.isEmpty());
+        }
+
+        // point a sequence flow to a shape that doesn't exist
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode model = mapper.readTree(LargeModelBuilder.build(100));
+        for (JsonNode shape : model.get("childShapes")) {
+            if ("SequenceFlow".equals(shape.get("stencil").get("id").getTextValue())) {
+                ((ObjectNode) shape.get("outgoing").get(0)).put("resourceId", "missing");
+                break;
+            }
+        }
+        List<String> problems = unmarshaller.validate(
+                new ByteArrayInputStream(mapper.writeValueAsBytes(model)), "");
+        assertFalse(problems.isEmpty());
+    }
+
     private Process getRootProcess(Definitions def) {
         for(RootElement nextRootElement : def.getRootElements()) {
             if(nextRootElement instanceof Process) {
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.eclipse.bpmn2.BaseElement;
+import org.eclipse.bpmn2.Bpmn2Package;
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.DocumentRoot;
+import org.eclipse.bpmn2.Expression;
+import org.eclipse.bpmn2.FlowNode;
+import org.eclipse.bpmn2.di.BPMNDiagram;
+import org.eclipse.dd.di.DiagramElement;
+import org.eclipse.emf.common.util.ECollections;
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.emf.ecore.util.FeatureMap;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2XmlWriter;
+import org.jbpm.designer.bpmn2.resource.JBPMBpmn2ResourceFactoryImpl;
+import org.jbpm.designer.web.profile.IDiagramProfile.IDiagramMarshaller;
+import org.jbpm.designer.web.profile.impl.JbpmProfileImpl;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Checks that the xml written directly from the json loads as the same model
+ * as the xml saved through EMF.
+ */
+public class Bpmn2XmlWriterTestCase {
+
+    private static final Comparator<BaseElement> BY_ID = new Comparator<BaseElement>() {
+        public int compare(BaseElement e1, BaseElement e2) {
+            return e1.getId().compareTo(e2.getId());
+        }
+    };
+
+    /**
+     * The fixtures made only of what the writer supports, they must not fall back to EMF.
+     */
+    private static final String[] DIRECT_FIXTURES = { "startEvent.json", "endEvent.json", "gateway.json",
+        "parallelGateway.json", "sequenceFlow.json" };
+
+    @Test
+    public void testFixtures() throws Exception {
+        File directory = new File(Bpmn2XmlWriterTestCase.class.getResource("empty.json").getFile()).getParentFile();
+        Set<String> direct = new HashSet<String>();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".json") && checkConformance(readFile(file), file.getName())) {
+                direct.add(file.getName());
+            }
+        }
+        for (String fixture : DIRECT_FIXTURES) {
+            assertTrue(fixture + " wasn't written directly", direct.contains(fixture));
+        }
+    }
+
+    @Test
+    public void testLargeModels() throws Exception {
+        for (int tasks : new int[] { 10, 250, 1000 }) {
+            assertTrue(checkConformance(LargeModelBuilder.build(tasks).getBytes("UTF-8"), tasks + " tasks"));
+        }
+    }
+
+    @Test
+    public void testUnsupportedModel() throws Exception {
+        // embedded subprocesses are written through EMF
+        byte[] json = LargeModelBuilder.buildWithSubprocesses(2, 10).getBytes("UTF-8");
+        assertTrue(!checkConformance(json, "subprocesses"));
+    }
+
+    @Test
+    public void testStringAndStreamConversions() throws Exception {
+        // the profile converts the models posted as strings and as streams the same way
+        IDiagramMarshaller marshaller = new JbpmProfileImpl(null, false).createMarshaller();
+        File directory = new File(Bpmn2XmlWriterTestCase.class.getResource("empty.json").getFile()).getParentFile();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".json")) {
+                byte[] json = readFile(file);
+                ByteArrayOutputStream xml = new ByteArrayOutputStream();
+                marshaller.parseModel(new ByteArrayInputStream(json), "", xml);
+                assertEquals(file.getName(), xml.toString("UTF-8"), marshaller.parseModel(new String(json, "UTF-8"), ""));
+            }
+        }
+    }
+
+    @Test
+    public void testCDataBlocks() throws Exception {
+        // the documentation is written through EMF
+        String text = "if (a < b && c) { s = ']]>'; } &nbsp;";
+        String json = LargeModelBuilder.build(10).replace("return true;", text)
+                .replace("\"documentation\":\"\"", "\"documentation\":\"" + text + "\"");
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        assertTrue(!new Bpmn2XmlWriter(new Bpmn2JsonUnmarshaller()).write(new ByteArrayInputStream(json.getBytes("UTF-8")), "", xml));
+
+        String saved = xml.toString("UTF-8");
+        assertTrue(saved, saved.contains("<![CDATA[if (a < b && c) { s = ']]]]><![CDATA[>'; } &nbsp;]]>"));
+        assertTrue(saved, !saved.contains("&lt;![CDATA["));
+        load(xml.toByteArray());
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.toByteArray()));
+        for (String element : new String[] { "conditionExpression", "documentation" }) {
+            NodeList nodes = document.getElementsByTagNameNS("*", element);
+            assertTrue(nodes.getLength() > 0);
+            for (int i = 0; i < nodes.getLength(); i++) {
+                assertEquals(text, nodes.item(i).getTextContent());
+            }
+        }
+    }
+
+    /**
+     * @return whether the model was written directly.
+     */
+    private boolean checkConformance(byte[] json, String name) throws Exception {
+        Bpmn2JsonUnmarshaller unmarshaller = new Bpmn2JsonUnmarshaller();
+
+        ByteArrayOutputStream emfXml = new ByteArrayOutputStream();
+        Resource resource = unmarshaller.unmarshall(new ByteArrayInputStream(json), "");
+        resource.save(emfXml, new HashMap<Object, Object>());
+
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        boolean direct = new Bpmn2XmlWriter(unmarshaller).write(new ByteArrayInputStream(json), "", xml);
+
+        Definitions expected = load(emfXml.toByteArray());
+        Definitions actual = load(xml.toByteArray());
+        normalize(expected);
+        normalize(actual);
+        assertTrue(name + " doesn't load as the same model:\n" + emfXml.toString("UTF-8") + "\n" + xml.toString("UTF-8"),
+                EcoreUtil.equals(expected, actual));
+        return direct;
+    }
+
+    private Definitions load(byte[] xml) throws Exception {
+        ResourceSet resourceSet = new ResourceSetImpl();
+        resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap()
+            .put(Resource.Factory.Registry.DEFAULT_EXTENSION, new JBPMBpmn2ResourceFactoryImpl());
+        resourceSet.getPackageRegistry().put("http://www.omg.org/spec/BPMN/20100524/MODEL", Bpmn2Package.eINSTANCE);
+        Resource resource = resourceSet.createResource(URI.createURI("inputStream://dummyUriWithValidSuffix.xml"));
+        resource.load(new ByteArrayInputStream(xml), new HashMap<Object, Object>());
+        assertEquals(0, resource.getErrors().size());
+        return ((DocumentRoot) resource.getContents().get(0)).getDefinitions();
+    }
+
+    /**
+     * Drops what differs from one save to the other: the ids generated for the diagram
+     * elements and the expressions, the schema location and the order of the connections.
+     */
+    private void normalize(Definitions definitions) {
+        for (Iterator<EObject> it = definitions.eAllContents(); it.hasNext();) {
+            EObject object = it.next();
+            if (object instanceof BPMNDiagram || object instanceof DiagramElement || object instanceof Expression) {
+                object.eUnset(object.eClass().getEIDAttribute());
+            }
+            if (object instanceof FlowNode) {
+                ECollections.sort(((FlowNode) object).getIncoming(), BY_ID);
+                ECollections.sort(((FlowNode) object).getOutgoing(), BY_ID);
+            }
+        }
+        for (Iterator<FeatureMap.Entry> it = definitions.getAnyAttribute().iterator(); it.hasNext();) {
+            if ("schemaLocation".equals(it.next().getEStructuralFeature().getName())) {
+                it.remove();
+            }
+        }
+    }
+
+    private byte[] readFile(File file) throws Exception {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.bpmn2;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.bpmn2.Definitions;
+import org.eclipse.bpmn2.ExclusiveGateway;
+import org.eclipse.bpmn2.FlowElement;
+import org.eclipse.bpmn2.FlowNode;
+import org.eclipse.bpmn2.GatewayDirection;
+import org.eclipse.bpmn2.Process;
+import org.eclipse.bpmn2.SequenceFlow;
+import org.eclipse.bpmn2.SubProcess;
+
+/**
+ * Builds the json of a large, valid process as the designer would send it:
+ * a start event, a chain of tasks with a diverging and a converging exclusive
+ * gateway every ten tasks, and an end event, all connected by sequence flows.
+ *
+ * The chain can also be repeated in a sequence of embedded subprocesses.
+ */
+public class LargeModelBuilder {
+
+    private static final String DIAGRAM_PROPERTIES = "\"name\":\"large\",\"documentation\":\"\",\"auditing\":\"\",\"monitoring\":\"\","
+            + "\"version\":\"\",\"author\":\"\",\"language\":\"English\",\"namespaces\":\"\",\"targetnamespace\":\"http://www.omg.org/bpmn20\","
+            + "\"expressionlanguage\":\"http://www.w3.org/1999/XPath\",\"typelanguage\":\"http://www.w3.org/2001/XMLSchema\","
+            + "\"creationdate\":\"\",\"modificationdate\":\"\",\"id\":\"com.sample.large\",\"package\":\"com.sample\"";
+
+    private static final String TASK_PROPERTIES = "\"documentation\":\"\",\"auditing\":\"\",\"monitoring\":\"\",\"categories\":\"\","
+            + "\"startquantity\":1,\"completionquantity\":1,\"isforcompensation\":\"\",\"assignments\":\"\",\"callacitivity\":\"\","
+            + "\"tasktype\":\"None\",\"implementation\":\"webService\",\"resources\":\"\",\"messageref\":\"\",\"operationref\":\"\","
+            + "\"instantiate\":\"\",\"script\":\"\",\"script_language\":\"\",\"bgcolor\":\"#b1c2d6\",\"looptype\":\"None\","
+            + "\"testbefore\":\"\",\"loopcondition\":\"\",\"loopmaximum\":\"\",\"loopcardinality\":\"\",\"loopdatainput\":\"\","
+            + "\"loopdataoutput\":\"\",\"inputdataitem\":\"\",\"outputdataitem\":\"\",\"behavior\":\"all\","
+            + "\"complexbehaviordefinition\":\"\",\"completioncondition\":\"\",\"properties\":\"\",\"datainputset\":\"\","
+            + "\"dataoutputset\":\"\",\"cost\":\"\"";
+
+    private static final String EVENT_PROPERTIES = "\"documentation\":\"\",\"auditing\":\"\",\"monitoring\":\"\","
+            + "\"eventdefinitionref\":\"\",\"eventdefinitions\":\"\",\"bgcolor\":\"#ffffff\",\"trigger\":\"None\"";
+
+    private static final String GATEWAY_PROPERTIES = "\"documentation\":\"\",\"auditing\":\"\",\"monitoring\":\"\","
+            + "\"gatewaytype\":\"XOR\",\"bgcolor\":\"#ffffff\"";
+
+    private static final String SUBPROCESS_PROPERTIES = "\"documentation\":\"\",\"auditing\":\"\",\"monitoring\":\"\","
+            + "\"vardefs\":\"\",\"onentryactions\":\"\",\"onexitactions\":\"\",\"bgcolor\":\"#ffffff\",\"looptype\":\"None\"";
+
+    private static final String FLOW_PROPERTIES = "\"documentation\":\"\",\"auditing\":\"\",\"monitoring\":\"\","
+            + "\"conditiontype\":\"None\",\"isimmediate\":\"\",\"showdiamondmarker\":false";
+
+    private static class Node {
+        String id;
+        String stencil;
+        String properties;
+        int x;
+        int y;
+        List<Flow> outgoing = new ArrayList<Flow>();
+        LargeModelBuilder content;
+    }
+
+    private static class Flow {
+        String id;
+        Node target;
+        String condition;
+    }
+
+    private String _prefix;
+    private List<Node> _nodes = new ArrayList<Node>();
+    private List<Flow> _flows = new ArrayList<Flow>();
+
+    private LargeModelBuilder(String prefix) {
+        _prefix = prefix;
+    }
+
+    /**
+     * @param tasks the number of tasks of the process.
+     * @return the json model.
+     */
+    public static String build(int tasks) {
+        LargeModelBuilder builder = new LargeModelBuilder("");
+        builder.createChain(tasks);
+        return builder.write();
+    }
+
+    /**
+     * @param subprocesses the number of embedded subprocesses, connected one after the other
+     * between a start and an end event.
+     * @param tasks the number of tasks of each subprocess.
+     * @return the json model.
+     */
+    public static String buildWithSubprocesses(int subprocesses, int tasks) {
+        LargeModelBuilder builder = new LargeModelBuilder("");
+        Node previous = builder.node("StartNoneEvent", "\"name\":\"start\"," + EVENT_PROPERTIES, 0);
+        for (int i = 1; i <= subprocesses; i++) {
+            Node subprocess = builder.node("Subprocess", "\"name\":\"subprocess" + i + "\"," + SUBPROCESS_PROPERTIES, i);
+            subprocess.content = new LargeModelBuilder("_sp" + i);
+            subprocess.content.createChain(tasks);
+            builder.flow(previous, subprocess, null);
+            previous = subprocess;
+        }
+        Node end = builder.node("EndNoneEvent", "\"name\":\"end\"," + EVENT_PROPERTIES, subprocesses + 1);
+        builder.flow(previous, end, null);
+        return builder.write();
+    }
+
+    /**
+     * @param tasks the number of tasks of the process.
+     * @return the number of flow nodes of the model built for that many tasks.
+     */
+    public static int countFlowNodes(int tasks) {
+        return tasks + 2 * (tasks / 10) + 2;
+    }
+
+    /**
+     * @param tasks the number of tasks of the process.
+     * @return the number of sequence flows of the model built for that many tasks.
+     */
+    public static int countSequenceFlows(int tasks) {
+        // the diverging gateways have two flows to the converging ones
+        return countFlowNodes(tasks) - 1 + tasks / 10;
+    }
+
+    /**
+     * Checks the model built from the json of {@link #build(int)}.
+     */
+    public static void checkModel(Definitions definitions, int tasks) {
+        Process process = getProcess(definitions);
+        int nodes = 0;
+        int flows = 0;
+        for (FlowElement fe : process.getFlowElements()) {
+            if (fe instanceof SequenceFlow) {
+                flows++;
+                assertNotNull(((SequenceFlow) fe).getTargetRef());
+            } else if (fe instanceof FlowNode) {
+                nodes++;
+            }
+            if (fe instanceof ExclusiveGateway && ((ExclusiveGateway) fe).getOutgoing().size() > 1) {
+                assertEquals(GatewayDirection.DIVERGING, ((ExclusiveGateway) fe).getGatewayDirection());
+                assertNotNull(((ExclusiveGateway) fe).getDefault());
+            }
+        }
+        assertEquals(countFlowNodes(tasks), nodes);
+        assertEquals(countSequenceFlows(tasks), flows);
+        assertEquals(nodes + flows, definitions.getDiagrams().get(0).getPlane().getPlaneElement().size());
+    }
+
+    /**
+     * Checks the model built from the json of {@link #buildWithSubprocesses(int, int)}.
+     */
+    public static void checkSubprocesses(Definitions definitions, int subprocesses, int tasks) {
+        Process process = getProcess(definitions);
+        int found = 0;
+        int elements = process.getFlowElements().size();
+        for (FlowElement fe : process.getFlowElements()) {
+            if (fe instanceof SubProcess) {
+                found++;
+                SubProcess subprocess = (SubProcess) fe;
+                assertEquals(countFlowNodes(tasks) + countSequenceFlows(tasks), subprocess.getFlowElements().size());
+                assertEquals(1, subprocess.getIncoming().size());
+                assertEquals(1, subprocess.getOutgoing().size());
+                for (FlowElement child : subprocess.getFlowElements()) {
+                    if (child instanceof SequenceFlow) {
+                        assertNotNull(((SequenceFlow) child).getSourceRef());
+                        assertNotNull(((SequenceFlow) child).getTargetRef());
+                    }
+                }
+                elements += subprocess.getFlowElements().size();
+            }
+        }
+        assertEquals(subprocesses, found);
+        assertEquals(elements, definitions.getDiagrams().get(0).getPlane().getPlaneElement().size());
+    }
+
+    public static Process getProcess(Definitions definitions) {
+        for (Object root : definitions.getRootElements()) {
+            if (root instanceof Process) {
+                return (Process) root;
+            }
+        }
+        return null;
+    }
+
+    private void createChain(int tasks) {
+        Node previous = node("StartNoneEvent", "\"name\":\"start\"," + EVENT_PROPERTIES, 0);
+        for (int i = 1; i <= tasks; i++) {
+            Node task = node("Task", "\"name\":\"task" + i + "\"," + TASK_PROPERTIES, i);
+            flow(previous, task, null);
+            previous = task;
+            if (i % 10 == 0) {
+                Node split = node("Exclusive_Databased_Gateway", GATEWAY_PROPERTIES, i);
+                Node join = node("Exclusive_Databased_Gateway", "\"name\":\"\"," + GATEWAY_PROPERTIES, i);
+                flow(previous, split, null);
+                flow(split, join, "return true;");
+                Flow defaultFlow = flow(split, join, null);
+                split.properties = "\"name\":\"\",\"defaultgate\":\"" + defaultFlow.id + "\"," + split.properties;
+                previous = join;
+            }
+        }
+        Node end = node("EndNoneEvent", "\"name\":\"end\"," + EVENT_PROPERTIES, tasks + 1);
+        flow(previous, end, null);
+    }
+
+    private Node node(String stencil, String properties, int column) {
+        Node node = new Node();
+        node.id = _prefix + "_node" + _nodes.size();
+        node.stencil = stencil;
+        node.properties = properties;
+        node.x = 100 + 150 * (column % 50);
+        node.y = 100 + 120 * (column / 50);
+        _nodes.add(node);
+        return node;
+    }
+
+    private Flow flow(Node source, Node target, String condition) {
+        Flow flow = new Flow();
+        flow.id = _prefix + "_flow" + _flows.size();
+        flow.target = target;
+        flow.condition = condition;
+        source.outgoing.add(flow);
+        _flows.add(flow);
+        return flow;
+    }
+
+    private String write() {
+        StringBuilder json = new StringBuilder(2048 * (_nodes.size() + _flows.size()));
+        json.append("{\"resourceId\":\"large\",\"properties\":{").append(DIAGRAM_PROPERTIES).append("},");
+        json.append("\"stencil\":{\"id\":\"BPMNDiagram\"},\"childShapes\":[");
+        writeShapes(json);
+        json.append("],\"bounds\":{\"lowerRight\":{\"x\":1485,\"y\":1050},\"upperLeft\":{\"x\":0,\"y\":0}}}");
+        return json.toString();
+    }
+
+    private void writeShapes(StringBuilder json) {
+        boolean first = true;
+        for (Node node : _nodes) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"resourceId\":\"").append(node.id).append("\",\"properties\":{").append(node.properties).append("},");
+            json.append("\"stencil\":{\"id\":\"").append(node.stencil).append("\"},\"childShapes\":[");
+            if (node.content != null) {
+                node.content.writeShapes(json);
+            }
+            json.append("],\"outgoing\":[");
+            for (int i = 0; i < node.outgoing.size(); i++) {
+                json.append(i > 0 ? "," : "").append("{\"resourceId\":\"").append(node.outgoing.get(i).id).append("\"}");
+            }
+            json.append("],\"bounds\":{\"lowerRight\":{\"x\":").append(node.x + 100).append(",\"y\":").append(node.y + 80);
+            json.append("},\"upperLeft\":{\"x\":").append(node.x).append(",\"y\":").append(node.y).append("}},\"dockers\":[]}");
+        }
+        for (Flow flow : _flows) {
+            json.append(",{\"resourceId\":\"").append(flow.id).append("\",\"properties\":{\"name\":\"\",").append(FLOW_PROPERTIES);
+            json.append(",\"conditionexpression\":\"").append(flow.condition == null ? "" : flow.condition).append("\"},");
+            json.append("\"stencil\":{\"id\":\"SequenceFlow\"},\"childShapes\":[],");
+            json.append("\"outgoing\":[{\"resourceId\":\"").append(flow.target.id).append("\"}],");
+            json.append("\"bounds\":{\"lowerRight\":{\"x\":0,\"y\":0},\"upperLeft\":{\"x\":0,\"y\":0}},");
+            json.append("\"dockers\":[{\"x\":50,\"y\":40},{\"x\":50,\"y\":40}],");
+            json.append("\"target\":{\"resourceId\":\"").append(flow.target.id).append("\"}}");
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.web;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.jbpm.designer.web.server.GuvnorClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the {@link GuvnorClient} against a local stub of the Guvnor REST api,
+ * which tells the connections apart by their port.
+ */
+public class GuvnorClientTestCase {
+
+    private HttpServer _server;
+    private ExecutorService _serverThreads;
+    private String _assetsURL;
+    // the connections the stub was sent requests on
+    private final Set<InetSocketAddress> _connections =
+        Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+    private final AtomicInteger _requests = new AtomicInteger();
+
+    @BeforeClass
+    public static void disableNagle() {
+        // the stub writes the headers and the body of a response apart, the
+        // body would otherwise wait for the client to acknowledge the headers
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    @Before
+    public void startGuvnor() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        _serverThreads = Executors.newFixedThreadPool(16);
+        _server.setExecutor(_serverThreads);
+        _server.start();
+        _assetsURL = "http://127.0.0.1:" + _server.getAddress().getPort() + "/drools-guvnor/rest/packages/defaultPackage/assets/";
+    }
+
+    @After
+    public void stopGuvnor() {
+        _server.stop(0);
+        _serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void testConnectionReuse() throws Exception {
+        final GuvnorClient client = new GuvnorClient(4, 8, 5000, 5000);
+        int threads = 8;
+        final int rounds = 5;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = 0; i < rounds; i++) {
+                            String assetURL = _assetsURL + "process" + thread + "-" + i;
+                            // what the servlets do to store an asset, then read it back
+                            client.replace(assetURL, _assetsURL, "process.bpmn2", new byte[1024], null);
+                            assertEquals("<asset/>", new String(client.get(assetURL + "/source/", null), "UTF-8"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+            client.shutdown();
+        }
+        int requests = _requests.get();
+        int connections = _connections.size();
+        assertEquals(client.getRequestCount(), requests);
+        assertEquals(0, client.getFailureCount());
+        // the connections are reused, and no more are opened than the limit per host
+        assertTrue(connections + " connections for " + requests + " requests", connections < requests);
+        assertTrue(connections + " connections", connections <= 4);
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+        GuvnorClient client = new GuvnorClient(2, 2, 5000, 5000);
+        try {
+            assertEquals(200, client.check(_assetsURL + "process", null));
+            assertEquals(404, client.check(_assetsURL + "missing", null));
+            try {
+                client.get(_assetsURL + "missing/source/", null);
+                fail("the missing asset was read");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(1, client.getConnectionsInPool());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testAuthorization() throws Exception {
+        GuvnorClient client = new GuvnorClient(2, 2, 5000, 5000);
+        try {
+            assertEquals("Basic YWRtaW46YWRtaW4=", client.getAuthorization("admin", "admin"));
+            assertEquals("Basic Z3Vlc3Q6YQ==", client.getAuthorization("guest", "a"));
+            assertNull(client.getAuthorization("admin", " "));
+            assertNull(client.getAuthorization(null, "admin"));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        // the stub answers in 500 ms, the reads give up after 100 ms, the writes don't
+        GuvnorClient client = new GuvnorClient(2, 2, 5000, 100, 5000);
+        try {
+            try {
+                client.check(_assetsURL + "slow", null);
+                fail("the read didn't time out");
+            } catch (SocketTimeoutException e) {
+                // expected
+            }
+            assertEquals(201, client.create(_assetsURL + "slow", "process.bpmn2", new byte[1024], null));
+            assertEquals(204, client.delete(_assetsURL + "slow", null));
+            assertEquals(1, client.getFailureCount());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        _requests.incrementAndGet();
+        _connections.add(exchange.getRemoteAddress());
+        InputStream in = exchange.getRequestBody();
+        IOUtils.toByteArray(in);
+        in.close();
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        if (path.contains("/slow")) {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (path.contains("/missing")) {
+            exchange.sendResponseHeaders(404, -1);
+        } else if ("DELETE".equals(method)) {
+            exchange.sendResponseHeaders(204, -1);
+        } else {
+            byte[] body = "<asset/>".getBytes("UTF-8");
+            exchange.sendResponseHeaders("POST".equals(method) ? 201 : 200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+        exchange.close();
+    }
+}
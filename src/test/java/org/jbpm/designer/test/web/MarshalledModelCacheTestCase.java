@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.web;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.eclipse.bpmn2.Definitions;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonMarshaller;
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.test.bpmn2.LargeModelBuilder;
+import org.jbpm.designer.web.profile.impl.JbpmProfileImpl;
+import org.jbpm.designer.web.repository.MarshalledModelCache;
+import org.junit.Test;
+
+public class MarshalledModelCacheTestCase {
+
+    @Test
+    public void testMarshalledModelCache() throws Exception {
+        Bpmn2JsonMarshaller marshaller = new Bpmn2JsonMarshaller();
+        marshaller.setProfile(new JbpmProfileImpl(null, false));
+        Definitions definitions = (Definitions) new Bpmn2JsonUnmarshaller().unmarshall(LargeModelBuilder.build(1000), "").getContents().get(0);
+        byte[] json = marshaller.marshall(definitions, "").getBytes("UTF-8");
+        // room for two models of that size, not three
+        MarshalledModelCache cache = new MarshalledModelCache(json.length * 3 - 1);
+
+        assertEquals(null, cache.get("a", "v1"));
+        MarshalledModelCache.Entry entry = cache.put("a", new MarshalledModelCache.Entry("a", "v1", json, "Mon, 03 Oct 2011 10:00:00 GMT", null));
+        assertTrue(entry == cache.get("a", "v1"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(entry == cache.peek("a"));
+        assertEquals("Mon, 03 Oct 2011 10:00:00 GMT", cache.peek("a").getLastModified());
+
+        // a new version replaces the previous one, with another ETag
+        assertEquals(null, cache.get("a", "v2"));
+        MarshalledModelCache.Entry next = cache.put("a", new MarshalledModelCache.Entry("a", "v2", json, null, "\"g2\""));
+        assertEquals(1, cache.size());
+        assertEquals(null, cache.get("a", "v1"));
+        assertFalse(entry.getETag().equals(next.getETag()));
+        assertFalse(next.getETag().equals(new MarshalledModelCache.Entry("b", "v2", json, null, null).getETag()));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        next.writeTo(output);
+        assertEquals(new String(json, "UTF-8"), output.toString("UTF-8"));
+        // the compressed json has its own ETag
+        assertFalse(next.getETag().equals(next.getGzipETag()));
+        assertTrue(next.getGzipETag().startsWith("\"") && next.getGzipETag().endsWith("-gz\""));
+
+        // the entry keeps the array of the buffer the json was marshalled into
+        MarshalledModelCache.Buffer buffer = new MarshalledModelCache.Buffer();
+        buffer.write(json);
+        MarshalledModelCache.Entry buffered = new MarshalledModelCache.Entry("a", "v2", buffer, null, null);
+        assertEquals(json.length, buffered.getLength());
+        assertTrue(buffered.getSize() >= json.length);
+        assertEquals(next.getETag(), buffered.getETag());
+        output.reset();
+        buffered.writeTo(output);
+        assertEquals(new String(json, "UTF-8"), output.toString("UTF-8"));
+        assertEquals(new String(json, "UTF-8"), new String(buffered.getJson(), "UTF-8"));
+
+        // a third model pushes out the least recently used one
+        cache.put("b", new MarshalledModelCache.Entry("b", "v1", json, null, null));
+        cache.get("a", "v2");
+        cache.put("c", new MarshalledModelCache.Entry("c", "v1", json, null, null));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        assertTrue(cache.getWeight() < json.length * 3);
+        assertEquals(null, cache.peek("b"));
+        assertTrue(next == cache.peek("a"));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2010 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jbpm.designer.test.web;
+
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.jbpm.designer.bpmn2.impl.Bpmn2JsonUnmarshaller;
+import org.jbpm.designer.test.bpmn2.LargeModelBuilder;
+import org.jbpm.designer.web.repository.PatchableModel;
+import org.jbpm.designer.web.server.SessionModelCache;
+import org.junit.Test;
+
+public class SessionModelCacheTestCase {
+
+    @Test
+    public void testSerialization() throws Exception {
+        SessionModelCache cache = new SessionModelCache(2);
+        PatchableModel model = new PatchableModel(Bpmn2JsonUnmarshaller.INSTANCE, "", LargeModelBuilder.build(10));
+        cache.put("uuid", model);
+        assertTrue(model == cache.get("uuid"));
+
+        // as a persisted or replicated session does, the models are left out
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(cache);
+        out.close();
+        SessionModelCache restored = (SessionModelCache) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertNull(restored.get("uuid"));
+
+        // and kept again, up to the same bound
+        restored.put("a", model);
+        restored.put("b", model);
+        restored.put("c", model);
+        assertNull(restored.get("a"));
+        assertTrue(model == restored.get("c"));
+    }
+}